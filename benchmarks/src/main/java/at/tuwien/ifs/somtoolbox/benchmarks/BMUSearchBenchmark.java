@@ -0,0 +1,99 @@
+package at.tuwien.ifs.somtoolbox.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.ExactBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.LocalBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.VPTreeBMUSearch;
+
+/**
+ * Benchmarks of the best-matching unit search strategies on a trained codebook. Each invocation searches the
+ * best-matching units of up to {@value #NUM_QUERIES} input vectors, with the result of the previous invocation as hint,
+ * as in batch training.
+ * 
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BMUSearchBenchmark {
+
+    private static final int NUM_QUERIES = 1000;
+
+    @Param({ BenchmarkData.SYNTHETIC, BenchmarkData.ZOO })
+    public String dataset;
+
+    @Param({ "20", "100" })
+    public int mapSize;
+
+    @Param({ "exact", "local", "vptree" })
+    public String search;
+
+    @Param({ "32" })
+    public int dim;
+
+    private HexagonalCodebook codebook;
+
+    private HexagonalBMUSearch bmuSearch;
+
+    private double[][] queries;
+
+    private int[] hints;
+
+    @Setup
+    public void setUp() throws Exception {
+        InputVectorStream stream = BenchmarkData.open(dataset, 10 * NUM_QUERIES, dim);
+        try {
+            HexagonalLayer layer = BenchmarkData.createLayer(mapSize, mapSize, stream.dim());
+            // a few epochs, so that the codebook is ordered as in practice
+            layer.trainBatch(stream, 3, mapSize / 2.0, 1.0, HexagonalLayer.DEFAULT_CHUNK_SIZE);
+            codebook = layer.getCodebook();
+            queries = BenchmarkData.readVectors(stream, NUM_QUERIES);
+        } finally {
+            stream.close();
+        }
+        bmuSearch = createSearch(search);
+        bmuSearch.weightsChanged(codebook);
+        hints = new int[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            hints[i] = codebook.getNearest(queries[i]);
+        }
+    }
+
+    private static HexagonalBMUSearch createSearch(String search) {
+        if ("local".equals(search)) {
+            return new LocalBMUSearch();
+        } else if ("vptree".equals(search)) {
+            return new VPTreeBMUSearch();
+        }
+        return new ExactBMUSearch();
+    }
+
+    @Benchmark
+    public int search() {
+        int sum = 0;
+        for (int i = 0; i < queries.length; i++) {
+            sum += bmuSearch.search(codebook, queries[i], hints[i]);
+        }
+        return sum;
+    }
+}
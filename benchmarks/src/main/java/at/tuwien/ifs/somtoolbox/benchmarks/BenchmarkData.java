@@ -0,0 +1,62 @@
+package at.tuwien.ifs.somtoolbox.benchmarks;
+
+import java.io.IOException;
+
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.data.SOMLibVectorStream;
+import at.tuwien.ifs.somtoolbox.data.VectorChunk;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+
+/**
+ * Data sets and maps shared by the benchmarks. The data set <code>zoo</code> is the bundled
+ * <code>zoo/zoo.vec</code>, found at the location of the system property <code>benchmark.zoo</code>, by default
+ * relative to the <code>benchmarks</code> directory; <code>synthetic</code> is a {@link SyntheticVectorStream}.
+ * 
+ * @version $Id: $
+ */
+public class BenchmarkData {
+
+    public static final String SYNTHETIC = "synthetic";
+
+    public static final String ZOO = "zoo";
+
+    public static final long SEED = 7;
+
+    private static final String METRIC = "at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric";
+
+    /** Opens the given data set; <code>numVectors</code> and <code>dim</code> apply to synthetic data only. */
+    public static InputVectorStream open(String dataset, int numVectors, int dim) throws IOException {
+        if (ZOO.equals(dataset)) {
+            return new SOMLibVectorStream(System.getProperty("benchmark.zoo", "../zoo/zoo.vec"));
+        } else if (SYNTHETIC.equals(dataset)) {
+            return new SyntheticVectorStream(numVectors, dim, 10, SEED);
+        }
+        throw new IllegalArgumentException("Unknown data set " + dataset + ".");
+    }
+
+    /** Reads up to <code>max</code> vectors of the stream into memory. */
+    public static double[][] readVectors(InputVectorStream stream, int max) throws IOException {
+        int count = stream.numVectors() >= 0 ? (int) Math.min(max, stream.numVectors()) : max;
+        double[][] vectors = new double[count][stream.dim()];
+        VectorChunk chunk = new VectorChunk(Math.max(1, Math.min(count, 4096)), stream.dim());
+        stream.reset();
+        int read = 0;
+        while (read < count && stream.read(chunk) > 0) {
+            for (int i = 0; i < chunk.size() && read < count; i++) {
+                chunk.getVector(i, vectors[read++]);
+            }
+        }
+        if (read < count) {
+            double[][] all = new double[read][];
+            System.arraycopy(vectors, 0, all, 0, read);
+            vectors = all;
+        }
+        stream.reset();
+        return vectors;
+    }
+
+    /** Creates a randomly initialised map. */
+    public static HexagonalLayer createLayer(int xSize, int ySize, int dim) {
+        return new HexagonalLayer(xSize, ySize, METRIC, dim, false, false, SEED, null);
+    }
+}
@@ -0,0 +1,70 @@
+package at.tuwien.ifs.somtoolbox.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.layers.GrowingLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.models.MyFuzzyColourCodingVisualiser;
+
+/**
+ * Benchmark of the contraction of unit locations by {@link MyFuzzyColourCodingVisualiser}.
+ * 
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContractionBenchmark {
+
+    @Param({ "20", "100" })
+    public int mapSize;
+
+    @Param({ "32" })
+    public int dim;
+
+    @Param({ "128" })
+    public int maxNeighbours;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private HexagonalLayer layer;
+
+    private ContractingVisualiser visualiser;
+
+    @Setup
+    public void setUp() {
+        HexagonalLayer.setNO_CPUS(threads);
+        layer = BenchmarkData.createLayer(mapSize, mapSize, dim);
+        visualiser = new ContractingVisualiser();
+        visualiser.setMaxNeighbours(maxNeighbours);
+    }
+
+    @Benchmark
+    public double[] contract() throws SOMToolboxException {
+        return visualiser.contractLocations(layer);
+    }
+
+    /** Gives access to the contraction step only. */
+    private static class ContractingVisualiser extends MyFuzzyColourCodingVisualiser {
+        private double[] contractLocations(GrowingLayer layer) throws SOMToolboxException {
+            return contract(layer);
+        }
+    }
+}
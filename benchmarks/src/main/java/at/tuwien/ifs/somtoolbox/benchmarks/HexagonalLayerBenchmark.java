@@ -0,0 +1,74 @@
+package at.tuwien.ifs.somtoolbox.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.LayerAccessException;
+
+/**
+ * Benchmarks of the map geometry of {@link HexagonalLayer}: map distances and neighbourhood queries.
+ * 
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexagonalLayerBenchmark {
+
+    private static final int NUM_PAIRS = 4096;
+
+    @Param({ "20", "100" })
+    public int mapSize;
+
+    private HexagonalLayer layer;
+
+    private int[] pairs;
+
+    @Setup
+    public void setUp() {
+        layer = BenchmarkData.createLayer(mapSize, mapSize, 8);
+        Random random = new Random(BenchmarkData.SEED);
+        pairs = new int[4 * NUM_PAIRS];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = random.nextInt(mapSize);
+        }
+    }
+
+    /** Map distance of {@value #NUM_PAIRS} random pairs of units. */
+    @Benchmark
+    public double mapDistance() {
+        double sum = 0;
+        for (int i = 0; i < pairs.length; i += 4) {
+            sum += layer.getMapDistance(pairs[i], pairs[i + 1], pairs[i + 2], pairs[i + 3]);
+        }
+        return sum;
+    }
+
+    /** Neighbouring units of all units of the map. */
+    @Benchmark
+    public int neighbouringUnits() throws LayerAccessException {
+        int count = 0;
+        for (int y = 0; y < mapSize; y++) {
+            for (int x = 0; x < mapSize; x++) {
+                count += layer.getNeighbouringUnits(x, y).size();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,75 @@
+package at.tuwien.ifs.somtoolbox.benchmarks;
+
+import java.util.Random;
+
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.data.VectorChunk;
+
+/**
+ * A stream of random input vectors, drawn around a number of cluster centres in the unit cube. The stream is
+ * deterministic: it yields the same vectors after each {@link #reset()}.
+ * 
+ * @version $Id: $
+ */
+public class SyntheticVectorStream implements InputVectorStream {
+
+    private final int numVectors;
+
+    private final int dim;
+
+    private final long seed;
+
+    private final double[][] centres;
+
+    private Random random;
+
+    private int position;
+
+    public SyntheticVectorStream(int numVectors, int dim, int numClusters, long seed) {
+        this.numVectors = numVectors;
+        this.dim = dim;
+        this.seed = seed;
+        Random centreRandom = new Random(seed);
+        centres = new double[numClusters][dim];
+        for (double[] centre : centres) {
+            for (int d = 0; d < dim; d++) {
+                centre[d] = centreRandom.nextDouble();
+            }
+        }
+        reset();
+    }
+
+    // @Override
+    public int dim() {
+        return dim;
+    }
+
+    // @Override
+    public long numVectors() {
+        return numVectors;
+    }
+
+    // @Override
+    public int read(VectorChunk chunk) {
+        chunk.clear(position);
+        while (!chunk.isFull() && position < numVectors) {
+            int offset = chunk.add("v" + position);
+            double[] centre = centres[random.nextInt(centres.length)];
+            for (int d = 0; d < dim; d++) {
+                chunk.set(offset + d, centre[d] + 0.05 * random.nextGaussian());
+            }
+            position++;
+        }
+        return chunk.size();
+    }
+
+    // @Override
+    public void reset() {
+        random = new Random(seed + 1);
+        position = 0;
+    }
+
+    // @Override
+    public void close() {
+    }
+}
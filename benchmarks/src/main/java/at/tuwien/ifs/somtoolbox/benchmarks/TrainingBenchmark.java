@@ -0,0 +1,73 @@
+package at.tuwien.ifs.somtoolbox.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+
+/**
+ * Benchmark of one epoch of batch training of a {@link HexagonalLayer}, including reading the input stream. The map
+ * is trained further by each invocation; as an epoch visits every input vector and unit regardless of the weights,
+ * its cost does not depend on the state of training.
+ * 
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Param({ BenchmarkData.SYNTHETIC, BenchmarkData.ZOO })
+    public String dataset;
+
+    @Param({ "10000" })
+    public int numVectors;
+
+    @Param({ "32" })
+    public int dim;
+
+    @Param({ "20", "100" })
+    public int mapSize;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private InputVectorStream stream;
+
+    private HexagonalLayer layer;
+
+    @Setup
+    public void setUp() throws Exception {
+        HexagonalLayer.setNO_CPUS(threads);
+        stream = BenchmarkData.open(dataset, numVectors, dim);
+        layer = BenchmarkData.createLayer(mapSize, mapSize, stream.dim());
+        layer.setFlatWeightStore(true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        stream.close();
+    }
+
+    @Benchmark
+    public double batchEpoch() throws SOMToolboxException {
+        return layer.trainBatch(stream, 1, 2.0, 2.0, HexagonalLayer.DEFAULT_CHUNK_SIZE);
+    }
+}
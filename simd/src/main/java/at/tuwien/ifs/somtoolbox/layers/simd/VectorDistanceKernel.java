@@ -0,0 +1,197 @@
+package at.tuwien.ifs.somtoolbox.layers.simd;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import at.tuwien.ifs.somtoolbox.layers.DistanceKernel;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+
+/**
+ * {@link DistanceKernel} on the Vector API, which the JIT compiles to SIMD instructions of the widest width the CPU
+ * supports, e.g. four doubles per instruction with AVX2, eight with AVX-512. The remainder of a vector that does not
+ * fill a SIMD register is handled by scalar code. Like the scalar kernel, the scan for the closest unit abandons a unit
+ * once its partial distance exceeds the best distance, but checks this only every {@link #BLOCK} registers, as summing
+ * up the lanes of the accumulator is comparatively expensive.
+ * <p>
+ * Weights in single precision are loaded as half as wide <code>float</code> registers with as many lanes, and widened
+ * to <code>double</code>, so the arithmetic is the same as for weights in double precision at half the memory traffic.
+ *
+ * @version $Id: $
+ */
+public class VectorDistanceKernel implements DistanceKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /** Floats with as many lanes as {@link #SPECIES}, for weights in single precision. */
+    private static final VectorSpecies<Float> FLOAT_SPECIES = VectorSpecies.of(float.class,
+            VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+    /** Number of SIMD registers summed up between two checks of the partial distance. */
+    private static final int BLOCK = 8;
+
+    // @Override
+    public double distanceSq(double[] vector, double[] weights, int offset, int dim) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(dim);
+        int k = 0;
+        for (; k < bound; k += SPECIES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(SPECIES, vector, k).sub(
+                    DoubleVector.fromArray(SPECIES, weights, offset + k));
+            sum = diff.fma(diff, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < dim; k++) {
+            double diff = vector[k] - weights[offset + k];
+            result += diff * diff;
+        }
+        return result;
+    }
+
+    // @Override
+    public double distanceSq(double[] vector, float[] weights, int offset, int dim) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(dim);
+        int k = 0;
+        for (; k < bound; k += SPECIES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(SPECIES, vector, k).sub(load(weights, offset + k));
+            sum = diff.fma(diff, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; k < dim; k++) {
+            double diff = vector[k] - weights[offset + k];
+            result += diff * diff;
+        }
+        return result;
+    }
+
+    /** Loads floats from the offset on, widened to doubles. */
+    private static DoubleVector load(float[] weights, int offset) {
+        return (DoubleVector) FloatVector.fromArray(FLOAT_SPECIES, weights, offset).castShape(SPECIES, 0);
+    }
+
+    // @Override
+    public int nearest(HexagonalCodebook codebook, double[] vector, int skip, double bestDistance) {
+        if (codebook.isSinglePrecision()) {
+            return nearestSingle(codebook, vector, skip, bestDistance);
+        }
+        double[] weights = codebook.getWeights();
+        int dim = codebook.getDim();
+        int bound = SPECIES.loopBound(dim);
+        int step = SPECIES.length();
+        int best = -1;
+        for (int index = 0; index < codebook.getNumberOfUnits(); index++) {
+            if (index == skip || !codebook.isPresent(index)) {
+                continue;
+            }
+            int offset = index * dim;
+            double distance = 0;
+            int k = 0;
+            while (k < bound && distance < bestDistance) {
+                int end = Math.min(bound, k + BLOCK * step);
+                DoubleVector sum = DoubleVector.zero(SPECIES);
+                for (; k < end; k += step) {
+                    DoubleVector diff = DoubleVector.fromArray(SPECIES, vector, k).sub(
+                            DoubleVector.fromArray(SPECIES, weights, offset + k));
+                    sum = diff.fma(diff, sum);
+                }
+                distance += sum.reduceLanes(VectorOperators.ADD);
+            }
+            if (k >= bound) {
+                for (; k < dim; k++) {
+                    double diff = vector[k] - weights[offset + k];
+                    distance += diff * diff;
+                }
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    /** {@link #nearest(HexagonalCodebook, double[], int, double)} on a codebook in single precision. */
+    private static int nearestSingle(HexagonalCodebook codebook, double[] vector, int skip, double bestDistance) {
+        float[] weights = codebook.getFloatWeights();
+        int dim = codebook.getDim();
+        int bound = SPECIES.loopBound(dim);
+        int step = SPECIES.length();
+        int best = -1;
+        for (int index = 0; index < codebook.getNumberOfUnits(); index++) {
+            if (index == skip || !codebook.isPresent(index)) {
+                continue;
+            }
+            int offset = index * dim;
+            double distance = 0;
+            int k = 0;
+            while (k < bound && distance < bestDistance) {
+                int end = Math.min(bound, k + BLOCK * step);
+                DoubleVector sum = DoubleVector.zero(SPECIES);
+                for (; k < end; k += step) {
+                    DoubleVector diff = DoubleVector.fromArray(SPECIES, vector, k).sub(load(weights, offset + k));
+                    sum = diff.fma(diff, sum);
+                }
+                distance += sum.reduceLanes(VectorOperators.ADD);
+            }
+            if (k >= bound) {
+                for (; k < dim; k++) {
+                    double diff = vector[k] - weights[offset + k];
+                    distance += diff * diff;
+                }
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    // @Override
+    public double update(double[] weights, int offset, double factor, double[] vector, int dim) {
+        DoubleVector normSq = DoubleVector.zero(SPECIES);
+        DoubleVector factors = DoubleVector.broadcast(SPECIES, factor);
+        int bound = SPECIES.loopBound(dim);
+        int k = 0;
+        for (; k < bound; k += SPECIES.length()) {
+            DoubleVector weight = DoubleVector.fromArray(SPECIES, weights, offset + k);
+            weight = DoubleVector.fromArray(SPECIES, vector, k).sub(weight).fma(factors, weight);
+            weight.intoArray(weights, offset + k);
+            normSq = weight.fma(weight, normSq);
+        }
+        double result = normSq.reduceLanes(VectorOperators.ADD);
+        for (; k < dim; k++) {
+            double weight = weights[offset + k] + factor * (vector[k] - weights[offset + k]);
+            weights[offset + k] = weight;
+            result += weight * weight;
+        }
+        return result;
+    }
+
+    // @Override
+    public double update(float[] weights, int offset, double factor, double[] vector, int dim) {
+        DoubleVector normSq = DoubleVector.zero(SPECIES);
+        DoubleVector factors = DoubleVector.broadcast(SPECIES, factor);
+        int bound = SPECIES.loopBound(dim);
+        int k = 0;
+        for (; k < bound; k += SPECIES.length()) {
+            DoubleVector weight = load(weights, offset + k);
+            weight = DoubleVector.fromArray(SPECIES, vector, k).sub(weight).fma(factors, weight);
+            FloatVector stored = (FloatVector) weight.castShape(FLOAT_SPECIES, 0);
+            stored.intoArray(weights, offset + k);
+            // the norm of the values as stored, i.e. after rounding
+            weight = (DoubleVector) stored.castShape(SPECIES, 0);
+            normSq = weight.fma(weight, normSq);
+        }
+        double result = normSq.reduceLanes(VectorOperators.ADD);
+        for (; k < dim; k++) {
+            float weight = (float) (weights[offset + k] + factor * (vector[k] - weights[offset + k]));
+            weights[offset + k] = weight;
+            result += (double) weight * weight;
+        }
+        return result;
+    }
+}
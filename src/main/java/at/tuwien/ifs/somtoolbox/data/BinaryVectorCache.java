@@ -0,0 +1,376 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Binary cache of an input vector file in SOMLib format, for training repeatedly on the same data, e.g. in parameter
+ * sweeps. The text file is parsed once, by {@link SOMLibVectorStream}, and converted to a binary file in a cache
+ * directory; later runs read the vectors from that file through {@link java.nio.MappedByteBuffer}s, without any
+ * parsing. The cache is keyed by the canonical path, the length and the modification time of the input file, which
+ * are stored in its header; if any of them has changed, the cache is rebuilt. All values are little-endian:
+ *
+ * <pre>
+ * int    magic ({@link #MAGIC}), int version ({@link #VERSION})
+ * int    dim, long number of vectors
+ * long   length, last modification time of the input file
+ * long   position and length in bytes of the label section
+ * int    length of the canonical path of the input file in bytes, followed by the UTF-8 encoded path
+ *        padding to a multiple of 8 bytes
+ * double per vector: its values
+ * per vector: int length of the label in bytes, <code>-1</code> if there is none, followed by the UTF-8 encoded label
+ * </pre>
+ *
+ * A cache is written under a temporary name and renamed when it is complete, so concurrent runs on the same input
+ * never read a partial cache. A cache whose size does not match its header is rebuilt as well.
+ *
+ * @version $Id: $
+ */
+public class BinaryVectorCache implements InputVectorStream {
+
+    public static final int MAGIC = 0x43564F48; // "HOVC" in little-endian byte order
+
+    public static final int VERSION = 1;
+
+    /** The size of the fixed part of the header, up to and including the length of the path. */
+    public static final int HEADER_SIZE = 56;
+
+    /** The file name suffix of input vector caches. */
+    public static final String FILE_SUFFIX = ".hvc";
+
+    /** The largest region of values mapped at once. */
+    private static final long REGION_SIZE = 1L << 30;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final int dim;
+
+    private final long numVectors;
+
+    private final long sourceLength;
+
+    private final long sourceLastModified;
+
+    private final String sourcePath;
+
+    /** Position of the first value in the file. */
+    private final long dataOffset;
+
+    private final long labelsOffset;
+
+    private final long labelsLength;
+
+    /** Number of vectors per mapped region of values. */
+    private final long regionVectors;
+
+    /** The mapped region of values containing the current position, or <code>null</code>. */
+    private DoubleBuffer values;
+
+    /** The index of the first vector of {@link #values}. */
+    private long regionStart;
+
+    private final ByteBuffer labels = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /** Position in the file of the first byte after {@link #labels}. */
+    private long labelsPosition;
+
+    private byte[] label = new byte[256];
+
+    /** Number of vectors read since the last reset. */
+    private long position;
+
+    /** Opens the given cache file, and checks that it is complete. */
+    public BinaryVectorCache(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        try {
+            channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            header.flip();
+            if (header.limit() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not an input vector cache.");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported input vector cache version " + version + ".");
+            }
+            dim = header.getInt();
+            numVectors = header.getLong();
+            sourceLength = header.getLong();
+            sourceLastModified = header.getLong();
+            labelsOffset = header.getLong();
+            labelsLength = header.getLong();
+            int pathLength = header.getInt();
+            if (dim <= 0 || numVectors < 0 || pathLength < 0 || pathLength > channel.size()) {
+                throw new IOException(file + " has an invalid header.");
+            }
+            ByteBuffer path = ByteBuffer.allocate(pathLength);
+            readFully(path, HEADER_SIZE);
+            sourcePath = new String(path.array(), 0, path.position(), "UTF-8");
+            dataOffset = (HEADER_SIZE + pathLength + 7) / 8 * 8;
+            if (labelsOffset != dataOffset + 8 * numVectors * dim || channel.size() != labelsOffset + labelsLength) {
+                throw new IOException(file + " is truncated.");
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        regionVectors = Math.max(1, REGION_SIZE / (8L * dim));
+        reset();
+    }
+
+    /**
+     * Opens the cache of the given input vector file in the cache directory, and creates it first if it does not exist
+     * or does not match the input file any more.
+     *
+     * @param vectorFileName the input vector file in SOMLib format, optionally gzipped.
+     * @param cacheDirectory the directory of the cache files; it is created if necessary.
+     */
+    public static BinaryVectorCache open(String vectorFileName, File cacheDirectory) throws IOException {
+        File source = new File(vectorFileName);
+        if (!source.exists() && new File(vectorFileName + ".gz").exists()) {
+            source = new File(vectorFileName + ".gz");
+        }
+        if (!source.exists()) {
+            throw new IOException("Input vector file " + source + " not found.");
+        }
+        File cacheFile = getCacheFile(source, cacheDirectory);
+        if (cacheFile.exists()) {
+            try {
+                BinaryVectorCache cache = new BinaryVectorCache(cacheFile);
+                if (cache.isCacheOf(source)) {
+                    Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                            "Reading input vectors of " + source + " from cache " + cacheFile + ".");
+                    return cache;
+                }
+                cache.close();
+            } catch (IOException e) {
+                // an unreadable cache is simply replaced
+            }
+        }
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + cacheDirectory + ".");
+        }
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Converting input vectors of " + source + " to cache " + cacheFile + ".");
+        File temporary = File.createTempFile(cacheFile.getName(), ".tmp", cacheDirectory);
+        try {
+            SOMLibVectorStream input = new SOMLibVectorStream(source.getPath());
+            try {
+                write(input, source, temporary);
+            } finally {
+                input.close();
+            }
+            // replaces the target atomically on POSIX file systems; elsewhere, the target has to be removed first
+            if (!temporary.renameTo(cacheFile) && !(cacheFile.delete() && temporary.renameTo(cacheFile))) {
+                throw new IOException("Could not rename " + temporary + " to " + cacheFile + ".");
+            }
+        } finally {
+            temporary.delete();
+        }
+        return new BinaryVectorCache(cacheFile);
+    }
+
+    /** Returns the cache file of the given input vector file in the cache directory. */
+    public static File getCacheFile(File source, File cacheDirectory) throws IOException {
+        // the hash keeps files of the same name in different directories apart; the header holds the full path
+        String path = source.getCanonicalPath();
+        return new File(cacheDirectory, source.getName() + "-" + Integer.toHexString(path.hashCode()) + FILE_SUFFIX);
+    }
+
+    /**
+     * Writes all vectors of the stream to a cache file for the given input vector file.
+     *
+     * @param input the vectors to write, read from the current position on.
+     * @param source the input vector file the vectors are read from, whose path, length and modification time are
+     *            stored as key of the cache.
+     * @param file the cache file to write.
+     */
+    public static void write(InputVectorStream input, File source, File file) throws IOException {
+        // taken before reading, so that a file modified while it is read does not match the cache afterwards
+        long sourceLength = source.length();
+        long sourceLastModified = source.lastModified();
+        byte[] path = source.getCanonicalPath().getBytes("UTF-8");
+        int dim = input.dim();
+        long dataOffset = (HEADER_SIZE + path.length + 7) / 8 * 8;
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(dataOffset);
+            ByteArrayOutputStream labels = new ByteArrayOutputStream();
+            ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            VectorChunk chunk = new VectorChunk(1024, dim);
+            long numVectors = 0;
+            int count;
+            while ((count = input.read(chunk)) > 0) {
+                double[] chunkValues = chunk.getValues();
+                for (int i = 0; i < count * dim; i++) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer);
+                    }
+                    buffer.putDouble(chunkValues[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    String label = chunk.getLabel(i);
+                    byte[] bytes = label != null ? label.getBytes("UTF-8") : null;
+                    length.clear();
+                    length.putInt(bytes != null ? bytes.length : -1);
+                    labels.write(length.array(), 0, 4);
+                    if (bytes != null) {
+                        labels.write(bytes, 0, bytes.length);
+                    }
+                }
+                numVectors += count;
+            }
+            byte[] labelBytes = labels.toByteArray();
+            for (int written = 0; written < labelBytes.length;) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                int n = Math.min(buffer.remaining(), labelBytes.length - written);
+                buffer.put(labelBytes, written, n);
+                written += n;
+            }
+            flush(channel, buffer);
+
+            // the header is written last, as the number of vectors is only known now
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(dim).putLong(numVectors);
+            buffer.putLong(sourceLength).putLong(sourceLastModified);
+            buffer.putLong(dataOffset + 8 * numVectors * dim).putLong(labelBytes.length);
+            buffer.putInt(path.length).put(path);
+            channel.position(0);
+            flush(channel, buffer);
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Returns whether this cache holds the vectors of the given file in its current version. */
+    public boolean isCacheOf(File source) throws IOException {
+        return sourcePath.equals(source.getCanonicalPath()) && sourceLength == source.length()
+                && sourceLastModified == source.lastModified();
+    }
+
+    /** Returns the file of this cache. */
+    public File getFile() {
+        return file;
+    }
+
+    // @Override
+    public int dim() {
+        return dim;
+    }
+
+    // @Override
+    public long numVectors() {
+        return numVectors;
+    }
+
+    // @Override
+    public int read(VectorChunk chunk) throws IOException {
+        chunk.clear(position);
+        while (!chunk.isFull() && position < numVectors) {
+            if (values == null || position >= regionStart + regionVectors) {
+                mapRegion(position);
+            }
+            int offset = chunk.add(readLabel());
+            int index = (int) ((position - regionStart) * dim);
+            for (int k = 0; k < dim; k++) {
+                chunk.set(offset + k, values.get(index + k));
+            }
+            position++;
+        }
+        return chunk.size();
+    }
+
+    private void mapRegion(long start) throws IOException {
+        long count = Math.min(regionVectors, numVectors - start);
+        values = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + 8 * start * dim, 8 * count * dim)
+                .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        regionStart = start;
+    }
+
+    private String readLabel() throws IOException {
+        fill(4);
+        int length = labels.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > label.length) {
+            label = new byte[Math.max(length, 2 * label.length)];
+        }
+        for (int read = 0; read < length;) {
+            fill(1);
+            int n = Math.min(labels.remaining(), length - read);
+            labels.get(label, read, n);
+            read += n;
+        }
+        return new String(label, 0, length, "UTF-8");
+    }
+
+    /** Reads more of the label section until the buffer has at least the given number of bytes remaining. */
+    private void fill(int bytes) throws IOException {
+        if (labels.remaining() >= bytes) {
+            return;
+        }
+        labels.compact();
+        while (labels.position() < bytes) {
+            int n = channel.read(labels, labelsPosition);
+            if (n < 0) {
+                throw new IOException(file + " is truncated.");
+            }
+            labelsPosition += n;
+        }
+        labels.flip();
+    }
+
+    private void readFully(ByteBuffer buffer, long start) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, start + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+    }
+
+    // @Override
+    public void reset() throws IOException {
+        position = 0;
+        values = null;
+        labels.clear();
+        labels.flip();
+        labelsPosition = labelsOffset;
+    }
+
+    // @Override
+    public void close() throws IOException {
+        values = null;
+        raf.close();
+    }
+}
@@ -0,0 +1,52 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import cern.colt.matrix.DoubleMatrix1D;
+
+/**
+ * An {@link InputVectorStream} over {@link InputData} that is already in memory.
+ * 
+ * @version $Id: $
+ */
+public class InputDataVectorStream implements InputVectorStream {
+
+    private final InputData data;
+
+    private int position = 0;
+
+    public InputDataVectorStream(InputData data) {
+        this.data = data;
+    }
+
+    // @Override
+    public int dim() {
+        return data.dim();
+    }
+
+    // @Override
+    public long numVectors() {
+        return data.numVectors();
+    }
+
+    // @Override
+    public int read(VectorChunk chunk) {
+        chunk.clear(position);
+        while (!chunk.isFull() && position < data.numVectors()) {
+            InputDatum datum = data.getInputDatum(position++);
+            DoubleMatrix1D vector = datum.getVector();
+            int offset = chunk.add(datum.getLabel());
+            for (int k = 0; k < chunk.getDim(); k++) {
+                chunk.set(offset + k, vector.getQuick(k));
+            }
+        }
+        return chunk.size();
+    }
+
+    // @Override
+    public void reset() {
+        position = 0;
+    }
+
+    // @Override
+    public void close() {
+    }
+}
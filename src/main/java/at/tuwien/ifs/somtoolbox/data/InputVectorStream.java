@@ -0,0 +1,30 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import java.io.IOException;
+
+/**
+ * Sequential access to input vectors in chunks, e.g. for training on data sets that do not fit into memory. A stream
+ * can be read several times; {@link #reset()} starts over at the first vector.
+ * 
+ * @version $Id: $
+ */
+public interface InputVectorStream {
+
+    /** Returns the dimensionality of the vectors. */
+    int dim();
+
+    /** Returns the number of vectors, or <code>-1</code> if it is not known in advance. */
+    long numVectors();
+
+    /**
+     * Reads the next vectors into the chunk, replacing its content.
+     * 
+     * @return the number of vectors read; <code>0</code> at the end of the stream.
+     */
+    int read(VectorChunk chunk) throws IOException;
+
+    /** Continues reading with the first vector. */
+    void reset() throws IOException;
+
+    void close() throws IOException;
+}
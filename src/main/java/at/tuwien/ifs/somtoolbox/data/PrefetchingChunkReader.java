@@ -0,0 +1,109 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads an {@link InputVectorStream} chunk by chunk in a background thread: while the caller processes one chunk, the
+ * next one is read into a second buffer, so parsing the input overlaps with the computation on it.
+ * 
+ * @version $Id: $
+ */
+public class PrefetchingChunkReader {
+
+    private final InputVectorStream stream;
+
+    private final VectorChunk[] chunks;
+
+    private final ExecutorService reader;
+
+    private int current;
+
+    private Future<Integer> pending;
+
+    public PrefetchingChunkReader(InputVectorStream stream, int chunkSize) {
+        this(stream, chunkSize, false);
+    }
+
+    /** Creates a reader into chunks of the given precision, see {@link VectorChunk#isSinglePrecision()}. */
+    public PrefetchingChunkReader(InputVectorStream stream, int chunkSize, boolean singlePrecision) {
+        this.stream = stream;
+        chunks = new VectorChunk[] { new VectorChunk(chunkSize, stream.dim(), singlePrecision),
+                new VectorChunk(chunkSize, stream.dim(), singlePrecision) };
+        reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            // @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "InputVectorReader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Starts reading the stream from its first vector. */
+    public void restart() throws IOException {
+        await();
+        stream.reset();
+        current = 0;
+        pending = submit(chunks[current]);
+    }
+
+    /**
+     * Returns the next chunk of vectors, which stays valid until the next call of this method, or <code>null</code> at
+     * the end of the stream.
+     */
+    public VectorChunk next() throws IOException {
+        if (pending == null) {
+            return null;
+        }
+        int read = await();
+        if (read == 0) {
+            return null;
+        }
+        VectorChunk ready = chunks[current];
+        current ^= 1;
+        pending = submit(chunks[current]);
+        return ready;
+    }
+
+    private Future<Integer> submit(final VectorChunk chunk) {
+        return reader.submit(new Callable<Integer>() {
+            // @Override
+            public Integer call() throws IOException {
+                return stream.read(chunk);
+            }
+        });
+    }
+
+    /** Waits for the pending read, if any, and returns the number of vectors it read. */
+    private int await() throws IOException {
+        if (pending == null) {
+            return 0;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading input vectors.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            IOException exception = new IOException("Reading input vectors failed: " + e.getCause());
+            exception.initCause(e.getCause());
+            throw exception;
+        } finally {
+            pending = null;
+        }
+    }
+
+    /** Stops the background thread; the stream itself is not closed. */
+    public void close() {
+        reader.shutdownNow();
+    }
+}
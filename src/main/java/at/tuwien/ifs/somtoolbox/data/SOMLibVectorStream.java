@@ -0,0 +1,329 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader for input vector files in SOMLib format (<code>.vec</code>, optionally gzipped). In contrast to
+ * {@link InputData}, which holds all vectors in memory, this reader parses the file chunk by chunk through a
+ * {@link ReadableByteChannel} and a direct buffer, so the size of the data set is not limited by the heap. Numbers are
+ * parsed directly from the bytes, without creating a string per value.
+ * 
+ * @version $Id: $
+ */
+public class SOMLibVectorStream implements InputVectorStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /** Exact powers of ten, for the fast path of number parsing. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private ReadableByteChannel channel;
+
+    private int dim = -1;
+
+    private long numVectors = -1;
+
+    /** Number of vectors read since the last reset. */
+    private long position;
+
+    private int lineNumber;
+
+    /** A character that was read ahead, or -2 if there is none. */
+    private int pending = -2;
+
+    private char[] token = new char[64];
+
+    /** The first data line of the file; the header ends before it. */
+    private int firstDataLine;
+
+    public SOMLibVectorStream(String fileName) throws IOException {
+        this(fileName, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SOMLibVectorStream(String fileName, int bufferSize) throws IOException {
+        File f = new File(fileName);
+        if (!f.exists() && new File(fileName + ".gz").exists()) {
+            f = new File(fileName + ".gz");
+        }
+        file = f;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        open();
+        readHeader();
+        if (dim <= 0) {
+            throw new IOException("Missing $VEC_DIM in header of input vector file " + file + ".");
+        }
+    }
+
+    private void open() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            channel = Channels.newChannel(new GZIPInputStream(in, 1 << 16));
+        } else {
+            channel = in.getChannel();
+        }
+        buffer.clear();
+        buffer.flip();
+        pending = -2;
+        lineNumber = 1;
+        position = 0;
+    }
+
+    private void readHeader() throws IOException {
+        long xDim = -1;
+        long yDim = 1;
+        while (true) {
+            int c = read();
+            if (c == '$') {
+                String line = readLine().trim();
+                int space = line.indexOf(' ');
+                String key = space < 0 ? line : line.substring(0, space);
+                String value = space < 0 ? "" : line.substring(space + 1).trim();
+                try {
+                    if (key.equals("VEC_DIM")) {
+                        dim = Integer.parseInt(value);
+                    } else if (key.equals("XDIM")) {
+                        xDim = Long.parseLong(value);
+                    } else if (key.equals("YDIM")) {
+                        yDim = Long.parseLong(value);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid header line $" + line + " in input vector file " + file + ".");
+                }
+            } else if (c == '#' || c == '\n' || c == '\r') {
+                if (c != '\n') {
+                    readLine();
+                } else {
+                    lineNumber++;
+                }
+            } else {
+                unread(c);
+                break;
+            }
+        }
+        firstDataLine = lineNumber;
+        if (xDim >= 0) {
+            numVectors = xDim * yDim;
+        }
+    }
+
+    // @Override
+    public int dim() {
+        return dim;
+    }
+
+    // @Override
+    public long numVectors() {
+        return numVectors;
+    }
+
+    /** Returns the file this stream reads from. */
+    public File getFile() {
+        return file;
+    }
+
+    // @Override
+    public int read(VectorChunk chunk) throws IOException {
+        chunk.clear(position);
+        while (!chunk.isFull()) {
+            int c = skipBlanks();
+            if (c == -1) {
+                break;
+            }
+            if (c == '\n' || c == '\r' || c == '#') { // empty or comment line
+                if (c != '\n') {
+                    readLine();
+                } else {
+                    lineNumber++;
+                }
+                continue;
+            }
+            unread(c);
+            int offset = chunk.add(null);
+            for (int k = 0; k < dim; k++) {
+                chunk.set(offset + k, readNumber(k));
+            }
+            // the label is only known after the values have been read
+            String label = readLine().trim();
+            chunk.setLabel(chunk.size() - 1, label.length() > 0 ? label : null);
+            position++;
+        }
+        return chunk.size();
+    }
+
+    // @Override
+    public void reset() throws IOException {
+        close();
+        open();
+        // skip the header
+        while (lineNumber < firstDataLine) {
+            readLine();
+        }
+    }
+
+    // @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private int read() throws IOException {
+        if (pending != -2) {
+            int c = pending;
+            pending = -2;
+            return c;
+        }
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int n;
+            do {
+                n = channel.read(buffer);
+            } while (n == 0);
+            buffer.flip();
+            if (n < 0) {
+                return -1;
+            }
+        }
+        return buffer.get() & 0xff;
+    }
+
+    private void unread(int c) {
+        pending = c;
+    }
+
+    /** Skips spaces and tabs, and returns the next other character. */
+    private int skipBlanks() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t');
+        return c;
+    }
+
+    /** Reads the rest of the current line, without the line terminator. */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        lineNumber++;
+        return line.toString();
+    }
+
+    private double readNumber(int component) throws IOException {
+        int c = skipBlanks();
+        int length = 0;
+        while (c != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            if (length == token.length) {
+                char[] larger = new char[token.length * 2];
+                System.arraycopy(token, 0, larger, 0, length);
+                token = larger;
+            }
+            token[length++] = (char) c;
+            c = read();
+        }
+        unread(c);
+        if (length == 0) {
+            throw new IOException("Input vector file " + file + ", line " + lineNumber + ": expected " + dim
+                    + " values, found " + component + ".");
+        }
+        double value = parseSimple(token, length);
+        if (Double.isNaN(value)) {
+            try {
+                value = Double.parseDouble(new String(token, 0, length));
+            } catch (NumberFormatException e) {
+                throw new IOException("Input vector file " + file + ", line " + lineNumber + ": invalid value "
+                        + new String(token, 0, length) + ".");
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Parses decimal numbers of at most 18 significant digits and an exponent that allows an exact result, i.e. a
+     * single multiplication or division by an exactly representable power of ten. Returns <code>NaN</code> for all
+     * other numbers, which are then left to {@link Double#parseDouble(String)}.
+     */
+    private static double parseSimple(char[] chars, int length) {
+        int i = 0;
+        boolean negative = false;
+        if (chars[0] == '-' || chars[0] == '+') {
+            negative = chars[0] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean any = false;
+        for (; i < length; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (digits > 0 || c != '0') {
+                    if (++digits > 18) {
+                        return Double.NaN;
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (point) {
+                    scale--;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if (i < length) {
+            if (chars[i] != 'e' && chars[i] != 'E' || ++i == length) {
+                return Double.NaN;
+            }
+            boolean negativeExponent = false;
+            if (chars[i] == '-' || chars[i] == '+') {
+                negativeExponent = chars[i] == '-';
+                if (++i == length) {
+                    return Double.NaN;
+                }
+            }
+            int exponent = 0;
+            for (; i < length; i++) {
+                char c = chars[i];
+                if (c < '0' || c > '9' || exponent > 1000) {
+                    return Double.NaN;
+                }
+                exponent = exponent * 10 + (c - '0');
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (mantissa >= (1L << 53) || scale < -22 || scale > 22) {
+            return Double.NaN;
+        }
+        double value = scale >= 0 ? mantissa * POWERS_OF_TEN[scale] : mantissa / POWERS_OF_TEN[-scale];
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,136 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+/**
+ * A block of consecutive input vectors read from an {@link InputVectorStream}. The vectors are stored row-major in one
+ * <code>double</code> array, so a chunk can be reused for all reads of a stream without further allocation.
+ * <p>
+ * In single precision, the vectors are stored in a <code>float</code> array instead, which halves the memory of a chunk
+ * of high-dimensional vectors. Streams write the values by {@link #set(int, double)}, which rounds them as needed;
+ * {@link #getVector(int, double[])} returns them as <code>double</code>s, so that the computations on them keep
+ * their precision.
+ * 
+ * @version $Id: $
+ */
+public class VectorChunk {
+
+    private final int dim;
+
+    private final int capacity;
+
+    /** The values in double precision, <code>null</code> in single precision. */
+    private final double[] values;
+
+    /** The values in single precision, <code>null</code> in double precision. */
+    private final float[] floatValues;
+
+    private final String[] labels;
+
+    private int size;
+
+    private long first;
+
+    public VectorChunk(int capacity, int dim) {
+        this(capacity, dim, false);
+    }
+
+    /** Creates a chunk storing its values as <code>float</code>s if <code>singlePrecision</code> is set. */
+    public VectorChunk(int capacity, int dim, boolean singlePrecision) {
+        this.capacity = capacity;
+        this.dim = dim;
+        values = singlePrecision ? null : new double[capacity * dim];
+        floatValues = singlePrecision ? new float[capacity * dim] : null;
+        labels = new String[capacity];
+    }
+
+    public boolean isSinglePrecision() {
+        return floatValues != null;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the number of vectors in this chunk. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the position of the first vector of this chunk in the stream. */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * Returns the backing array; vector <code>i</code> starts at <code>i * dim</code>. In single precision, the
+     * values are in {@link #getFloatValues()}, and this method returns <code>null</code>.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /** Returns the backing array in single precision, or <code>null</code> in double precision. */
+    public float[] getFloatValues() {
+        return floatValues;
+    }
+
+    /** Sets the value at the given offset of the backing array, rounded to a <code>float</code> in single precision. */
+    public void set(int offset, double value) {
+        if (floatValues != null) {
+            floatValues[offset] = (float) value;
+        } else {
+            values[offset] = value;
+        }
+    }
+
+    public String getLabel(int i) {
+        return labels[i];
+    }
+
+    public void setLabel(int i, String label) {
+        labels[i] = label;
+    }
+
+    /** Copies the vector at position <code>i</code> of this chunk into <code>target</code>. */
+    public void getVector(int i, double[] target) {
+        if (floatValues != null) {
+            for (int k = 0, offset = i * dim; k < dim; k++) {
+                target[k] = floatValues[offset + k];
+            }
+        } else {
+            System.arraycopy(values, i * dim, target, 0, dim);
+        }
+    }
+
+    /** Removes all vectors; the next vector added will be the one at the given position of the stream. */
+    public void clear(long first) {
+        this.first = first;
+        size = 0;
+    }
+
+    /** Adds a vector, given as the values array of which the first <code>dim</code> elements are used. */
+    public void add(double[] vector, String label) {
+        if (floatValues != null) {
+            for (int k = 0, offset = size * dim; k < dim; k++) {
+                floatValues[offset + k] = (float) vector[k];
+            }
+        } else {
+            System.arraycopy(vector, 0, values, size * dim, dim);
+        }
+        labels[size] = label;
+        size++;
+    }
+
+    /** Adds a vector whose values the caller sets by {@link #set(int, double)}, from the returned offset on. */
+    public int add(String label) {
+        labels[size] = label;
+        return size++ * dim;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+}
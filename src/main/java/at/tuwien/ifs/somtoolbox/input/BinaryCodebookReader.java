@@ -0,0 +1,199 @@
+package at.tuwien.ifs.somtoolbox.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.Layer.GridLayout;
+import at.tuwien.ifs.somtoolbox.layers.Layer.GridTopology;
+import at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter;
+
+/**
+ * Reads a binary codebook written by {@link BinaryCodebookOutputter}. The header is parsed on construction; the weight
+ * vectors are read through {@link MappedByteBuffer}s, i.e. without any parsing and copied in bulk.
+ * 
+ * @version $Id: $
+ */
+public class BinaryCodebookReader {
+
+    /** The largest region mapped at once; a multiple of 8, so that no double crosses two regions. */
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final File file;
+
+    private final int xSize;
+
+    private final int ySize;
+
+    private final int zSize;
+
+    private final int dim;
+
+    private final GridLayout gridLayout;
+
+    private final GridTopology gridTopology;
+
+    private final long iteration;
+
+    private final long numIterations;
+
+    private final String metricName;
+
+    private final boolean[] present;
+
+    /** Position of the first weight in the file. */
+    private final long dataOffset;
+
+    public BinaryCodebookReader(String fileName) throws IOException {
+        file = new File(fileName);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), BinaryCodebookOutputter.HEADER_SIZE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.limit() < BinaryCodebookOutputter.HEADER_SIZE
+                    || header.getInt() != BinaryCodebookOutputter.MAGIC) {
+                throw new IOException(file + " is not a binary codebook.");
+            }
+            int version = header.getInt();
+            if (version != BinaryCodebookOutputter.VERSION) {
+                throw new IOException(file + " has unsupported binary codebook version " + version + ".");
+            }
+            xSize = header.getInt();
+            ySize = header.getInt();
+            zSize = header.getInt();
+            dim = header.getInt();
+            int layout = header.getInt();
+            int topology = header.getInt();
+            gridLayout = layout >= 0 && layout < GridLayout.values().length ? GridLayout.values()[layout] : null;
+            gridTopology = topology >= 0 && topology < GridTopology.values().length ? GridTopology.values()[topology]
+                    : null;
+            iteration = header.getLong();
+            numIterations = header.getLong();
+            int metricLength = header.getInt();
+
+            int numUnits = xSize * ySize * zSize;
+            MappedByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, BinaryCodebookOutputter.HEADER_SIZE,
+                    metricLength + numUnits);
+            byte[] metric = new byte[metricLength];
+            meta.get(metric);
+            metricName = metricLength > 0 ? new String(metric, "UTF-8") : null;
+            present = new boolean[numUnits];
+            for (int i = 0; i < numUnits; i++) {
+                present[i] = meta.get() != 0;
+            }
+            long offset = BinaryCodebookOutputter.HEADER_SIZE + metricLength + numUnits;
+            dataOffset = (offset + 7) / 8 * 8;
+            if (channel.size() < dataOffset + 8L * numUnits * dim) {
+                throw new IOException(file + " is truncated.");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Reads all weight vectors into one array, ordered by unit index as in {@link HexagonalCodebook#getWeights()}. */
+    public void readWeights(double[] target) throws IOException {
+        long total = (long) xSize * ySize * zSize * dim;
+        if (target.length < total) {
+            throw new IllegalArgumentException("Target array too small for " + total + " weights.");
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long read = 0;
+            while (read < total) {
+                long count = Math.min(total - read, REGION_SIZE / 8);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + 8 * read, 8 * count);
+                DoubleBuffer doubles = region.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                doubles.get(target, (int) read, (int) count);
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Reads the weight vectors into a codebook of the same size. */
+    public void readWeights(HexagonalCodebook codebook) throws IOException {
+        if (codebook.getNumberOfUnits() != present.length || codebook.getDim() != dim) {
+            throw new IOException("Codebook size does not match " + file + ".");
+        }
+        if (codebook.isSinglePrecision()) {
+            double[] weights = new double[present.length * dim];
+            readWeights(weights);
+            codebook.setWeights(weights);
+        } else {
+            readWeights(codebook.getWeights());
+            codebook.recomputeNorms();
+        }
+    }
+
+    /**
+     * Returns the weight vectors in the form expected by the constructors of the layers, i.e. [x][y][z][dim]. Units
+     * that are not present in the codebook, e.g. the empty units of a mnemonic map, have a <code>null</code> vector.
+     */
+    public double[][][][] getVectors() throws IOException {
+        double[] weights = new double[xSize * ySize * zSize * dim];
+        readWeights(weights);
+        double[][][][] vectors = new double[xSize][ySize][zSize][];
+        for (int z = 0; z < zSize; z++) {
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    int index = (z * ySize + y) * xSize + x;
+                    if (present[index]) {
+                        vectors[x][y][z] = new double[dim];
+                        System.arraycopy(weights, index * dim, vectors[x][y][z], 0, dim);
+                    }
+                }
+            }
+        }
+        return vectors;
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    public int getZSize() {
+        return zSize;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public GridLayout getGridLayout() {
+        return gridLayout;
+    }
+
+    public GridTopology getGridTopology() {
+        return gridTopology;
+    }
+
+    public long getIteration() {
+        return iteration;
+    }
+
+    public long getNumIterations() {
+        return numIterations;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public boolean isPresent(int index) {
+        return present[index];
+    }
+}
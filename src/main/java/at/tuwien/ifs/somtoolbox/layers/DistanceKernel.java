@@ -0,0 +1,69 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The arithmetic of the hot loops of {@link HexagonalCodebook}: squared Euclidean distances, the scan for the closest
+ * unit, and the neighbourhood update <code>w += factor * (x - w)</code>. {@link ScalarDistanceKernel} is the portable
+ * default; other implementations may use SIMD instructions, e.g. the one built on the JDK Vector API in the optional
+ * <code>simd</code> module. Implementations are stateless and thread-safe.
+ * <p>
+ * Each operation exists for weights in double and in single precision, see
+ * {@link HexagonalCodebook#isSinglePrecision()}; in single precision, the input vectors are still <code>double</code>s,
+ * and the results are accumulated in <code>double</code>.
+ *
+ * @see HexagonalCodebook#setDistanceKernel(DistanceKernel)
+ * @version $Id: $
+ */
+public interface DistanceKernel {
+
+    /**
+     * Returns the squared Euclidean distance between <code>vector</code> and the <code>dim</code> values of
+     * <code>weights</code> from <code>offset</code> on.
+     */
+    double distanceSq(double[] vector, double[] weights, int offset, int dim);
+
+    /** Returns the squared Euclidean distance to weights in single precision, see above. */
+    double distanceSq(double[] vector, float[] weights, int offset, int dim);
+
+    /**
+     * Finds the unit of the codebook closest to the vector, among the units closer than <code>bestDistance</code>. The
+     * codebook may be in double or in single precision.
+     *
+     * @param skip a unit not to check, e.g. one whose distance is <code>bestDistance</code>; <code>-1</code> for none.
+     * @param bestDistance the squared distance a unit has to beat.
+     * @return the index of the closest unit, or <code>-1</code> if no unit is closer than <code>bestDistance</code>.
+     */
+    int nearest(HexagonalCodebook codebook, double[] vector, int skip, double bestDistance);
+
+    /**
+     * Moves the <code>dim</code> values of <code>weights</code> from <code>offset</code> on towards
+     * <code>vector</code> by the given factor.
+     *
+     * @return the squared Euclidean norm of the updated values.
+     */
+    double update(double[] weights, int offset, double factor, double[] vector, int dim);
+
+    /**
+     * Moves weights in single precision towards <code>vector</code>, see above; the updated values are rounded when
+     * they are stored.
+     *
+     * @return the squared Euclidean norm of the updated values as stored.
+     */
+    double update(float[] weights, int offset, double factor, double[] vector, int dim);
+}
@@ -0,0 +1,80 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Exact linear best-matching unit search. The scan over the units is done by the {@link DistanceKernel} of the
+ * codebook, which in the scalar case abandons the distance computation of a unit as soon as the partial sum exceeds
+ * the smallest distance found so far. The <code>hint</code> is checked first, as a small initial distance makes the
+ * early abandoning more effective.
+ * <p>
+ * Sparse vectors, with at most {@link SparseVector#MAX_DENSITY} non-zero values, are compared over their non-zero
+ * values only, using the squared norms of the weight vectors kept by the {@link HexagonalCodebook}.
+ *
+ * @version $Id: $
+ */
+public class ExactBMUSearch implements HexagonalBMUSearch {
+
+    /** The non-zero values of the current vector, per thread, as instances are shared. */
+    private static final ThreadLocal<SparseVector> SPARSE = new ThreadLocal<SparseVector>() {
+        @Override
+        protected SparseVector initialValue() {
+            return new SparseVector();
+        }
+    };
+
+    // @Override
+    public int search(HexagonalCodebook codebook, double[] vector, int hint) {
+        SparseVector sparse = SPARSE.get();
+        if (sparse.set(vector)) {
+            return searchSparse(codebook, sparse);
+        }
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        if (hint >= 0 && codebook.isPresent(hint)) {
+            best = hint;
+            bestDistance = codebook.getDistanceSq(hint, vector);
+        }
+        int nearest = HexagonalCodebook.getDistanceKernel().nearest(codebook, vector, best, bestDistance);
+        return nearest >= 0 ? nearest : best;
+    }
+
+    /**
+     * Linear search for sparse vectors. Of the squared distance <code>|w|&sup2; - 2 w&middot;x + |x|&sup2;</code>, the
+     * last term is the same for all units and is left out.
+     */
+    private static int searchSparse(HexagonalCodebook codebook, SparseVector vector) {
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int index = 0; index < codebook.getNumberOfUnits(); index++) {
+            if (codebook.isPresent(index)) {
+                double distance = codebook.getNormSq(index) - 2 * codebook.getDotProduct(index, vector);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = index;
+                }
+            }
+        }
+        return best;
+    }
+
+    // @Override
+    public void weightsChanged(HexagonalCodebook codebook) {
+        // nothing cached
+    }
+}
@@ -0,0 +1,46 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Strategy to find the best-matching unit of an input vector in a {@link HexagonalCodebook}, i.e. the unit with the
+ * smallest Euclidean distance between its weight vector and the input. Implementations are thread-safe, so one instance
+ * can be shared by all threads of a parallel training or mapping.
+ *
+ * @see HexagonalLayer#setBMUSearch(HexagonalBMUSearch)
+ * @version $Id: $
+ */
+public interface HexagonalBMUSearch {
+
+    /**
+     * Finds the best-matching unit of the given vector.
+     *
+     * @param codebook the weight vectors to search.
+     * @param vector the input vector.
+     * @param hint the index of a unit expected to be close to the best-matching unit, e.g. the best-matching unit of
+     *            the same input in the previous epoch; <code>-1</code> if unknown.
+     * @return the index of the best-matching unit, or <code>-1</code> if the codebook has no units.
+     */
+    int search(HexagonalCodebook codebook, double[] vector, int hint);
+
+    /**
+     * Notifies the strategy that the weight vectors of the codebook have changed, e.g. after an epoch of batch
+     * training, so that index structures built from the previous weights can be discarded.
+     */
+    void weightsChanged(HexagonalCodebook codebook);
+}
@@ -0,0 +1,402 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays store of the weight vectors of a {@link HexagonalLayer}. All weight vectors are kept in one
+ * contiguous <code>double</code> array in row-major order, i.e. the vector of the unit with index <code>i</code> in the
+ * {@link HexagonalGrid} occupies the elements <code>i * dim</code> to <code>(i + 1) * dim - 1</code>. Scanning all
+ * units thus reads memory sequentially instead of following a pointer to a separate array per {@link Unit}.
+ * <p>
+ * The codebook is a copy of the units' weight vectors; {@link #load(Unit[][][])} and {@link #store(Unit[][][])}
+ * synchronise the two representations.
+ * <p>
+ * The squared norm of each weight vector is kept along with it, for distances to {@link SparseVector}s. It is
+ * maintained by {@link #update(int, double, double[])} in the same pass as the weights; code that writes to
+ * {@link #getWeights()} directly has to call {@link #recomputeNorms()} afterwards.
+ * <p>
+ * The arrays may be larger than needed: when the map grows, they are reused as long as they have room for the new
+ * units, and otherwise replaced by arrays half as large again, so that a growing map allocates and copies its weights
+ * only a logarithmic number of times. {@link #getWeights()} thus may have elements beyond the last weight vector.
+ * <p>
+ * A codebook in single precision keeps the weights in a <code>float</code> array, {@link #getFloatWeights()}, which
+ * halves its memory and the memory bandwidth of a scan over all units. Distances, dot products and norms are still
+ * accumulated in <code>double</code>, and so are the weight updates, which are rounded only when they are stored.
+ *
+ * @version $Id: $
+ */
+public class HexagonalCodebook {
+
+    private static volatile DistanceKernel kernel = new ScalarDistanceKernel();
+
+    private HexagonalGrid grid;
+
+    private final int dim;
+
+    private int numberOfUnits;
+
+    /** The weights in double precision, <code>null</code> in single precision. */
+    private double[] weights;
+
+    /** The weights in single precision, <code>null</code> in double precision. */
+    private float[] floatWeights;
+
+    /** Whether a unit exists; units of mnemonic SOMs may be empty. */
+    private boolean[] present;
+
+    /** The squared Euclidean norms of the weight vectors. */
+    private double[] normsSq;
+
+    public HexagonalCodebook(HexagonalGrid grid, int dim) {
+        this(grid, dim, false);
+    }
+
+    /** Creates a codebook keeping its weights as <code>float</code>s if <code>singlePrecision</code> is set. */
+    public HexagonalCodebook(HexagonalGrid grid, int dim, boolean singlePrecision) {
+        this.grid = grid;
+        this.dim = dim;
+        numberOfUnits = grid.getNumberOfUnits();
+        if (singlePrecision) {
+            floatWeights = new float[numberOfUnits * dim];
+        } else {
+            weights = new double[numberOfUnits * dim];
+        }
+        present = new boolean[numberOfUnits];
+        normsSq = new double[numberOfUnits];
+    }
+
+    /**
+     * Adapts the codebook to a grid of another size, e.g. after the map has grown. The content is undefined
+     * afterwards, until it is loaded from the units again.
+     */
+    public void setGrid(HexagonalGrid grid) {
+        ensureCapacity(grid.getNumberOfUnits());
+        this.grid = grid;
+        numberOfUnits = grid.getNumberOfUnits();
+    }
+
+    /**
+     * Adapts the codebook to a grid grown by columns or rows inserted at one position, moving the weight vectors of the
+     * units behind the inserted ones to their new indices. The inserted units are empty until
+     * {@link #setWeightVector(int, double[])} is called for them.
+     *
+     * @param grid the grid of the grown map.
+     * @param column the first column inserted, i.e. the first one whose units have moved; <code>-1</code> if rows are.
+     * @param row the first row inserted, <code>-1</code> if columns are.
+     * @param count the number of columns or rows inserted.
+     */
+    public void insert(HexagonalGrid grid, int column, int row, int count) {
+        HexagonalGrid old = this.grid;
+        ensureCapacity(grid.getNumberOfUnits());
+        // the units keep their order, so moving them from the last one backwards never overwrites a unit not moved yet
+        for (int index = old.getNumberOfUnits() - 1; index >= 0; index--) {
+            int x = old.getX(index);
+            int y = old.getY(index);
+            int target = grid.getIndex(column >= 0 && x >= column ? x + count : x,
+                    row >= 0 && y >= row ? y + count : y, old.getZ(index));
+            if (target == index) { // as do all units before it
+                break;
+            }
+            if (floatWeights != null) {
+                System.arraycopy(floatWeights, index * dim, floatWeights, target * dim, dim);
+            } else {
+                System.arraycopy(weights, index * dim, weights, target * dim, dim);
+            }
+            present[target] = present[index];
+            normsSq[target] = normsSq[index];
+        }
+        this.grid = grid;
+        numberOfUnits = grid.getNumberOfUnits();
+        for (int z = 0; z < grid.getZSize(); z++) {
+            for (int i = 0; i < count; i++) {
+                if (column >= 0) {
+                    for (int y = 0; y < grid.getYSize(); y++) {
+                        present[grid.getIndex(column + i, y, z)] = false;
+                    }
+                } else {
+                    for (int x = 0; x < grid.getXSize(); x++) {
+                        present[grid.getIndex(x, row + i, z)] = false;
+                    }
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int units) {
+        if (units <= present.length) {
+            return;
+        }
+        int capacity = Math.max(units, present.length + present.length / 2);
+        if (floatWeights != null) {
+            floatWeights = Arrays.copyOf(floatWeights, capacity * dim);
+        } else {
+            weights = Arrays.copyOf(weights, capacity * dim);
+        }
+        present = Arrays.copyOf(present, capacity);
+        normsSq = Arrays.copyOf(normsSq, capacity);
+    }
+
+    /** Copies the weight vectors of the given units into the codebook. */
+    public void load(Unit[][][] units) {
+        for (int index = 0; index < numberOfUnits; index++) {
+            Unit unit = units[grid.getX(index)][grid.getY(index)][grid.getZ(index)];
+            present[index] = unit != null;
+            if (unit != null) {
+                setValues(index, unit.getWeightVector());
+            }
+        }
+        recomputeNorms();
+    }
+
+    /** Copies the weight vectors of the codebook back into the given units. */
+    public void store(Unit[][][] units) {
+        for (int index = 0; index < numberOfUnits; index++) {
+            if (present[index]) {
+                Unit unit = units[grid.getX(index)][grid.getY(index)][grid.getZ(index)];
+                getWeightVector(index, unit.getWeightVector());
+            }
+        }
+    }
+
+    /** Returns an independent copy of this codebook, e.g. a snapshot that later training does not change. */
+    public HexagonalCodebook copy() {
+        HexagonalCodebook copy = new HexagonalCodebook(grid, dim, isSinglePrecision());
+        if (floatWeights != null) {
+            System.arraycopy(floatWeights, 0, copy.floatWeights, 0, copy.floatWeights.length);
+        } else {
+            System.arraycopy(weights, 0, copy.weights, 0, copy.weights.length);
+        }
+        System.arraycopy(present, 0, copy.present, 0, copy.present.length);
+        System.arraycopy(normsSq, 0, copy.normsSq, 0, copy.normsSq.length);
+        return copy;
+    }
+
+    public HexagonalGrid getGrid() {
+        return grid;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getNumberOfUnits() {
+        return numberOfUnits;
+    }
+
+    public boolean isSinglePrecision() {
+        return floatWeights != null;
+    }
+
+    /**
+     * Returns the backing array of all weight vectors; it may be longer than
+     * <code>getNumberOfUnits() * getDim()</code>.
+     *
+     * @throws IllegalStateException if the codebook is in single precision, see {@link #getFloatWeights()}.
+     */
+    public double[] getWeights() {
+        if (weights == null) {
+            throw new IllegalStateException("The weights of the codebook are in single precision.");
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the backing array of all weight vectors in single precision; it may be longer than
+     * <code>getNumberOfUnits() * getDim()</code>.
+     *
+     * @throws IllegalStateException if the codebook is in double precision, see {@link #getWeights()}.
+     */
+    public float[] getFloatWeights() {
+        if (floatWeights == null) {
+            throw new IllegalStateException("The weights of the codebook are in double precision.");
+        }
+        return floatWeights;
+    }
+
+    /**
+     * Returns a copy of all weight vectors in double precision, of length <code>getNumberOfUnits() * getDim()</code>,
+     * e.g. to write them to a file.
+     */
+    public double[] copyWeights() {
+        double[] copy = new double[numberOfUnits * dim];
+        if (floatWeights != null) {
+            for (int k = 0; k < copy.length; k++) {
+                copy[k] = floatWeights[k];
+            }
+        } else {
+            System.arraycopy(weights, 0, copy, 0, copy.length);
+        }
+        return copy;
+    }
+
+    /**
+     * Replaces all weight vectors by the given values, ordered by unit index as in {@link #getWeights()}, and
+     * recomputes their squared norms.
+     */
+    public void setWeights(double[] values) {
+        for (int index = 0; index < numberOfUnits; index++) {
+            setValues(index, values, index * dim);
+        }
+        recomputeNorms();
+    }
+
+    /** Returns the offset of the weight vector of the given unit in {@link #getWeights()}. */
+    public int getOffset(int index) {
+        return index * dim;
+    }
+
+    public boolean isPresent(int index) {
+        return present[index];
+    }
+
+    /** Copies the weight vector of the given unit into <code>target</code>. */
+    public void getWeightVector(int index, double[] target) {
+        getWeightVector(index, target, 0);
+    }
+
+    /** Copies the weight vector of the given unit into <code>target</code>, from <code>offset</code> on. */
+    public void getWeightVector(int index, double[] target, int offset) {
+        if (floatWeights != null) {
+            for (int k = 0, from = index * dim; k < dim; k++) {
+                target[offset + k] = floatWeights[from + k];
+            }
+        } else {
+            System.arraycopy(weights, index * dim, target, offset, dim);
+        }
+    }
+
+    /** Sets the weight vector of the given unit, which is present afterwards, and updates its squared norm. */
+    public void setWeightVector(int index, double[] vector) {
+        setValues(index, vector);
+        present[index] = true;
+        normsSq[index] = computeNormSq(index);
+    }
+
+    private void setValues(int index, double[] vector) {
+        setValues(index, vector, 0);
+    }
+
+    /** Sets the weights of the given unit to the <code>dim</code> values of <code>vector</code> from the offset on. */
+    private void setValues(int index, double[] vector, int offset) {
+        if (floatWeights != null) {
+            for (int k = 0, to = index * dim; k < dim; k++) {
+                floatWeights[to + k] = (float) vector[offset + k];
+            }
+        } else {
+            System.arraycopy(vector, offset, weights, index * dim, dim);
+        }
+    }
+
+    /** Returns the squared norm of the weight vector of the given unit as stored, i.e. after rounding. */
+    private double computeNormSq(int index) {
+        double sum = 0;
+        if (floatWeights != null) {
+            for (int k = index * dim; k < (index + 1) * dim; k++) {
+                sum += (double) floatWeights[k] * floatWeights[k];
+            }
+        } else {
+            for (int k = index * dim; k < (index + 1) * dim; k++) {
+                sum += weights[k] * weights[k];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the implementation of the distance computations and weight updates of all codebooks, e.g. a SIMD one; the
+     * default is a {@link ScalarDistanceKernel}.
+     */
+    public static void setDistanceKernel(DistanceKernel distanceKernel) {
+        kernel = distanceKernel;
+    }
+
+    public static DistanceKernel getDistanceKernel() {
+        return kernel;
+    }
+
+    /** Returns the squared Euclidean distance between the weight vector of the given unit and <code>vector</code>. */
+    public double getDistanceSq(int index, double[] vector) {
+        if (floatWeights != null) {
+            return kernel.distanceSq(vector, floatWeights, index * dim, dim);
+        }
+        return kernel.distanceSq(vector, weights, index * dim, dim);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between the weight vector of the given unit and a sparse vector, computed
+     * over the non-zero values of the vector only.
+     */
+    public double getDistanceSq(int index, SparseVector vector) {
+        // cancellation may leave a tiny negative value for a vector equal to the weight vector
+        return Math.max(0, normsSq[index] - 2 * getDotProduct(index, vector) + vector.getNormSq());
+    }
+
+    /** Returns the dot product of the weight vector of the given unit and a sparse vector. */
+    public double getDotProduct(int index, SparseVector vector) {
+        int[] indices = vector.getIndices();
+        double[] values = vector.getValues();
+        int offset = index * dim;
+        double sum = 0;
+        if (floatWeights != null) {
+            for (int i = 0; i < vector.size(); i++) {
+                sum += values[i] * floatWeights[offset + indices[i]];
+            }
+        } else {
+            for (int i = 0; i < vector.size(); i++) {
+                sum += values[i] * weights[offset + indices[i]];
+            }
+        }
+        return sum;
+    }
+
+    /** Returns the squared Euclidean norm of the weight vector of the given unit. */
+    public double getNormSq(int index) {
+        return normsSq[index];
+    }
+
+    /** Recomputes the squared norms of all weight vectors, after {@link #getWeights()} has been written to. */
+    public void recomputeNorms() {
+        for (int index = 0; index < numberOfUnits; index++) {
+            normsSq[index] = computeNormSq(index);
+        }
+    }
+
+    /**
+     * Moves the weight vector of the given unit towards <code>vector</code> by the given factor, and updates its
+     * squared norm.
+     */
+    public void update(int index, double factor, double[] vector) {
+        if (floatWeights != null) {
+            normsSq[index] = kernel.update(floatWeights, index * dim, factor, vector, dim);
+        } else {
+            normsSq[index] = kernel.update(weights, index * dim, factor, vector, dim);
+        }
+    }
+
+    /**
+     * Finds the unit whose weight vector is closest to <code>vector</code> in terms of Euclidean distance, by a linear
+     * scan over the codebook.
+     *
+     * @return the index of the best-matching unit, or <code>-1</code> if there is no unit.
+     */
+    public int getNearest(double[] vector) {
+        return kernel.nearest(this, vector, -1, Double.MAX_VALUE);
+    }
+}
@@ -0,0 +1,639 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Precomputed geometry of a hexagonal grid as used by {@link HexagonalLayer}. Units are addressed by offset
+ * coordinates where the even rows are shifted half a unit to the right, i.e. the direct neighbours of a unit in an even
+ * row are at <code>x</code> and <code>x + 1</code> in the rows above and below, and at <code>x - 1</code> and
+ * <code>x</code> for a unit in an odd row.
+ * <p>
+ * The map distance between two units is the Euclidean distance of the centres of their hexagonal cells, measured in
+ * multiples of the distance between two adjacent units. As it only depends on the offset between the two units and on
+ * the parity of the row of the first unit, the squared distances are kept in a table of
+ * <code>2 * (2 * xSize - 1) * (2 * ySize - 1)</code> integers that is built once per grid capacity. Together with a
+ * neighbourhood stencil that lists all offsets ordered by their distance, the neighbourhood update of a training step is
+ * a sequence of table lookups without any square root.
+ * <p>
+ * The grid also holds a neighbour index in compressed sparse row layout: the direct neighbours of the unit with index
+ * <code>i</code> (see {@link #getIndex(int, int, int)}) are the unit indices
+ * <code>getNeighbours()[getNeighbourOffsets()[i]]</code> to <code>getNeighbours()[getNeighbourOffsets()[i + 1] - 1]</code>,
+ * which allows to walk the neighbours of a unit without creating any objects.
+ * <p>
+ * When a map grows, {@link #resize(int, int, int)} derives the grid of the new size. The distance tables and the
+ * unfiltered stencils only depend on the offsets, so they are built for a capacity that grows by half each time it is
+ * exceeded, and shared by all grids up to that capacity; growing a map by a row or column then only rebuilds the
+ * neighbour index and filters the stencils, without computing and sorting distances again.
+ * <p>
+ * A toroidal grid wraps around at its borders: the last unit of a row is a neighbour of the first one, and the last row
+ * of the first. In axial coordinates, the grid is the plane modulo the translations by <code>xSize</code> units along a
+ * row and by <code>ySize</code> rows, the latter shifted such that the columns stay aligned if the number of rows is
+ * even; if it is odd, a unit in an odd row wraps to the column to its left. The distance between two units is the
+ * shortest distance between any of their images in the plane, and the stencil lists each unit of the grid once, at
+ * the offset of its closest image. Positions beyond the border are mapped back into the grid by
+ * {@link #locate(int, int, int)}. As these distances depend on the exact size, the tables of a toroidal grid are
+ * rebuilt whenever it is resized.
+ *
+ * @version $Id: $
+ */
+public class HexagonalGrid {
+
+    /** Neighbourhood function values below this threshold are considered as zero. */
+    public static final double DEFAULT_KERNEL_THRESHOLD = 0.0001;
+
+    private final int xSize;
+
+    private final int ySize;
+
+    private final int zSize;
+
+    private final boolean toroidal;
+
+    /** Distance tables and stencils, possibly built for a larger grid. */
+    private final Geometry geometry;
+
+    /** Neighbourhood stencils per row parity; offsets are sorted by increasing squared distance. */
+    private final int[][] stencilDx = new int[2][];
+
+    private final int[][] stencilDy = new int[2][];
+
+    private final int[][] stencilDistanceSq = new int[2][];
+
+    /** Start of the neighbours of each unit in {@link #neighbours}; has one more element than there are units. */
+    private final int[] neighbourOffsets;
+
+    /** Indices of the direct neighbours of all units, concatenated. */
+    private final int[] neighbours;
+
+    /** The largest squared map distance between two units, see {@link #getMaxDistanceSq()}. */
+    private final int maxDistanceSq;
+
+    /** The most recently requested kernel, cached as training usually queries the same sigma several times. */
+    private volatile NeighbourhoodKernel kernel;
+
+    public HexagonalGrid(int xSize, int ySize, int zSize) {
+        this(xSize, ySize, zSize, false);
+    }
+
+    /** Creates a planar grid, or a toroidal one that wraps around at its borders. */
+    public HexagonalGrid(int xSize, int ySize, int zSize, boolean toroidal) {
+        this(new Geometry(xSize, ySize, toroidal), xSize, ySize, zSize);
+    }
+
+    private HexagonalGrid(Geometry geometry, int xSize, int ySize, int zSize) {
+        this.geometry = geometry;
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.toroidal = geometry.toroidal;
+        int max = 0;
+        for (int parity = 0; parity < 2; parity++) {
+            filterStencil(parity);
+            // the stencil is sorted, and covers all offsets between two units of the grid
+            max = Math.max(max, stencilDistanceSq[parity][stencilDistanceSq[parity].length - 1]);
+        }
+        maxDistanceSq = max + (zSize - 1) * (zSize - 1);
+        neighbourOffsets = new int[xSize * ySize * zSize + 1];
+        neighbours = new int[countNeighbours(null)];
+        countNeighbours(neighbours);
+    }
+
+    /**
+     * Returns the grid of the given size, e.g. after the map has grown. The distance tables of this grid are reused if
+     * their capacity suffices; otherwise, they are rebuilt with a capacity half as large again as needed, so that a
+     * map growing row by row or column by column rebuilds them only a logarithmic number of times. The tables of a
+     * toroidal grid are rebuilt for each new size.
+     */
+    public HexagonalGrid resize(int xSize, int ySize, int zSize) {
+        Geometry g = geometry;
+        if (toroidal) {
+            if (xSize != g.xCapacity || ySize != g.yCapacity) {
+                g = new Geometry(xSize, ySize, true);
+            }
+        } else if (xSize > g.xCapacity || ySize > g.yCapacity) {
+            g = new Geometry(xSize > g.xCapacity ? Math.max(xSize, g.xCapacity + g.xCapacity / 2) : g.xCapacity,
+                    ySize > g.yCapacity ? Math.max(ySize, g.yCapacity + g.yCapacity / 2) : g.yCapacity, false);
+        }
+        return new HexagonalGrid(g, xSize, ySize, zSize);
+    }
+
+    /**
+     * Collects the direct neighbours of all units into the given array and fills {@link #neighbourOffsets}; if the
+     * array is <code>null</code>, only counts them. The order of the neighbours of a unit is left, right, the two
+     * neighbours in the row above, the two in the row below, and finally the units in front and behind. On a toroidal
+     * grid too small for six distinct neighbours, each neighbour is listed once, and a unit is never its own neighbour.
+     */
+    private int countNeighbours(int[] target) {
+        int n = 0;
+        int[] unitNeighbours = new int[8];
+        for (int z = 0; z < zSize; z++) {
+            for (int y = 0; y < ySize; y++) {
+                // units in odd rows have their diagonal neighbours at x - 1 and x, in even rows at x and x + 1
+                int shift = (y & 1) == 1 ? -1 : 0;
+                for (int x = 0; x < xSize; x++) {
+                    int index = getIndex(x, y, z);
+                    int count = add(unitNeighbours, 0, index, locate(x - 1, y, z));
+                    count = add(unitNeighbours, count, index, locate(x + 1, y, z));
+                    for (int dy = -1; dy <= 1; dy += 2) {
+                        for (int nx = x + shift; nx <= x + shift + 1; nx++) {
+                            count = add(unitNeighbours, count, index, locate(nx, y + dy, z));
+                        }
+                    }
+                    if (z > 0) {
+                        count = add(unitNeighbours, count, index, getIndex(x, y, z - 1));
+                    }
+                    if (z + 1 < zSize) {
+                        count = add(unitNeighbours, count, index, getIndex(x, y, z + 1));
+                    }
+                    if (target != null) {
+                        neighbourOffsets[index] = n;
+                        System.arraycopy(unitNeighbours, 0, target, n, count);
+                    }
+                    n += count;
+                }
+            }
+        }
+        if (target != null) {
+            neighbourOffsets[neighbourOffsets.length - 1] = n;
+        }
+        return n;
+    }
+
+    /**
+     * Adds the neighbour with the given index to the <code>count</code> neighbours of a unit collected so far, unless
+     * it lies outside the grid, is the unit itself or has been added before, as on small toroidal grids.
+     */
+    private static int add(int[] unitNeighbours, int count, int unit, int index) {
+        if (index < 0 || index == unit) {
+            return count;
+        }
+        for (int i = 0; i < count; i++) {
+            if (unitNeighbours[i] == index) {
+                return count;
+            }
+        }
+        unitNeighbours[count] = index;
+        return count + 1;
+    }
+
+    /** Selects the offsets of the stencil of the geometry that fit into this grid; their order is kept. */
+    private void filterStencil(int parity) {
+        int[] dxs = geometry.stencilDx[parity];
+        int[] dys = geometry.stencilDy[parity];
+        int[] d2s = geometry.stencilDistanceSq[parity];
+        if (geometry.xCapacity == xSize && geometry.yCapacity == ySize) {
+            stencilDx[parity] = dxs;
+            stencilDy[parity] = dys;
+            stencilDistanceSq[parity] = d2s;
+            return;
+        }
+        int count = (2 * xSize - 1) * (2 * ySize - 1);
+        stencilDx[parity] = new int[count];
+        stencilDy[parity] = new int[count];
+        stencilDistanceSq[parity] = new int[count];
+        int n = 0;
+        for (int i = 0; i < d2s.length; i++) {
+            if (Math.abs(dxs[i]) < xSize && Math.abs(dys[i]) < ySize) {
+                stencilDx[parity][n] = dxs[i];
+                stencilDy[parity][n] = dys[i];
+                stencilDistanceSq[parity][n] = d2s[i];
+                n++;
+            }
+        }
+    }
+
+    /** Checks whether this grid wraps around at its borders. */
+    public boolean isToroidal() {
+        return toroidal;
+    }
+
+    /** Checks whether this grid was built for the given map size. */
+    public boolean hasSize(int xSize, int ySize, int zSize) {
+        return this.xSize == xSize && this.ySize == ySize && this.zSize == zSize;
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    public int getZSize() {
+        return zSize;
+    }
+
+    /** Returns the number of units in the grid. */
+    public int getNumberOfUnits() {
+        return xSize * ySize * zSize;
+    }
+
+    /** Returns the index of the unit at the given position, as used by the neighbour index. */
+    public int getIndex(int x, int y, int z) {
+        return (z * ySize + y) * xSize + x;
+    }
+
+    /**
+     * Returns the index of the unit at the given position, which may lie outside the grid by up to its size, e.g. the
+     * position of a stencil offset from a unit. On a toroidal grid, the position is wrapped around, on a planar grid,
+     * positions outside the grid have no unit and yield <code>-1</code>.
+     */
+    public int locate(int x, int y, int z) {
+        if (x >= 0 && x < xSize && y >= 0 && y < ySize) {
+            return (z * ySize + y) * xSize + x;
+        }
+        if (!toroidal) {
+            return -1;
+        }
+        return z * xSize * ySize + wrap(x, y, xSize, ySize);
+    }
+
+    /**
+     * Returns the index of the unit at the given position within one z-layer of a toroidal grid, i.e. the position
+     * moved back into the grid by the translations that map the grid onto itself.
+     */
+    private static int wrap(int x, int y, int xSize, int ySize) {
+        // number of translations by ySize rows, rounded down
+        int b = y >= 0 ? y / ySize : -((-y - 1) / ySize) - 1;
+        int wrappedY = y - b * ySize;
+        // the axial column x - ceil(y / 2) moves by ceil(ySize / 2) per translation
+        int wrappedX = x - ceilHalf(y) + b * ceilHalf(ySize) + ceilHalf(wrappedY);
+        wrappedX %= xSize;
+        if (wrappedX < 0) {
+            wrappedX += xSize;
+        }
+        return wrappedY * xSize + wrappedX;
+    }
+
+    private static int ceilHalf(int value) {
+        return (value + (value & 1)) / 2;
+    }
+
+    public int getX(int index) {
+        return index % xSize;
+    }
+
+    public int getY(int index) {
+        return index / xSize % ySize;
+    }
+
+    public int getZ(int index) {
+        return index / (xSize * ySize);
+    }
+
+    /** Returns the start offsets of the neighbours of each unit in {@link #getNeighbours()}. */
+    public int[] getNeighbourOffsets() {
+        return neighbourOffsets;
+    }
+
+    /** Returns the unit indices of the direct neighbours of all units; see {@link #getNeighbourOffsets()}. */
+    public int[] getNeighbours() {
+        return neighbours;
+    }
+
+    /** Checks whether the two units at the given indices are direct neighbours. */
+    public boolean areNeighbours(int index1, int index2) {
+        for (int i = neighbourOffsets[index1]; i < neighbourOffsets[index1 + 1]; i++) {
+            if (neighbours[i] == index2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the squared hexagonal distance between two units in the same z-layer. */
+    public int getDistanceSq(int x1, int y1, int x2, int y2) {
+        return geometry.distanceSq[geometry.offsetIndex(y1 & 1, x2 - x1, y2 - y1)];
+    }
+
+    /** Returns the hexagonal distance between two units in the same z-layer. */
+    public double getDistance(int x1, int y1, int x2, int y2) {
+        return geometry.distance[geometry.offsetIndex(y1 & 1, x2 - x1, y2 - y1)];
+    }
+
+    /** Returns the number of steps between two units in the same z-layer, i.e. the length of the shortest path. */
+    public int getSteps(int x1, int y1, int x2, int y2) {
+        return geometry.steps[geometry.offsetIndex(y1 & 1, x2 - x1, y2 - y1)];
+    }
+
+    public double getMapDistanceSq(int x1, int y1, int z1, int x2, int y2, int z2) {
+        return getDistanceSq(x1, y1, x2, y2) + (z1 - z2) * (z1 - z2);
+    }
+
+    public double getMapDistance(int x1, int y1, int z1, int x2, int y2, int z2) {
+        if (z1 == z2) {
+            return getDistance(x1, y1, x2, y2);
+        }
+        return Math.sqrt(getMapDistanceSq(x1, y1, z1, x2, y2, z2));
+    }
+
+    /** Returns the x-offsets of the neighbourhood stencil for units in rows of the given parity. */
+    public int[] getStencilDx(int parity) {
+        return stencilDx[parity];
+    }
+
+    /** Returns the y-offsets of the neighbourhood stencil for units in rows of the given parity. */
+    public int[] getStencilDy(int parity) {
+        return stencilDy[parity];
+    }
+
+    /** Returns the squared distances of the neighbourhood stencil for units in rows of the given parity. */
+    public int[] getStencilDistanceSq(int parity) {
+        return stencilDistanceSq[parity];
+    }
+
+    /** Returns the largest squared map distance between two units of the grid, across all of its z-layers. */
+    public int getMaxDistanceSq() {
+        return maxDistanceSq;
+    }
+
+    /**
+     * Returns the largest squared distance at which the Gaussian neighbourhood function for the given
+     * <code>sigma</code> is at least <code>threshold</code>, but at most {@link #getMaxDistanceSq()}. A
+     * <code>sigma</code> of <code>0</code> restricts the neighbourhood to the winner, i.e. to the distance
+     * <code>0</code>.
+     * 
+     * @throws IllegalArgumentException if <code>sigma</code> is negative or not a number, or if <code>threshold</code>
+     *             is not between <code>0</code> and <code>1</code>.
+     */
+    public int getCutoffDistanceSq(double sigma, double threshold) {
+        if (!(sigma >= 0)) {
+            throw new IllegalArgumentException("The neighbourhood radius must not be negative, but is " + sigma + ".");
+        }
+        if (!(threshold > 0 && threshold < 1)) {
+            throw new IllegalArgumentException("The kernel threshold must be between 0 and 1, but is " + threshold
+                    + ".");
+        }
+        // exp(-d2 / (2 * sigma^2)) >= threshold <=> d2 <= -2 * sigma^2 * ln(threshold)
+        return (int) Math.min(maxDistanceSq, Math.floor(-2 * sigma * sigma * Math.log(threshold)));
+    }
+
+    /**
+     * Returns the Gaussian neighbourhood kernel for the given <code>sigma</code>, truncated where it falls below
+     * <code>threshold</code> or at the largest distance of the grid, see {@link #getCutoffDistanceSq(double, double)}.
+     * The kernel tabulates the function for all squared distances up to the cut-off, so it is meant for a
+     * <code>sigma</code> used for many updates, e.g. an epoch of the batch training; a single update should compute
+     * the function for the distances it visits only.
+     * 
+     * @throws IllegalArgumentException if <code>sigma</code> is negative or not a number, or if <code>threshold</code>
+     *             is not between <code>0</code> and <code>1</code>.
+     */
+    public NeighbourhoodKernel getKernel(double sigma, double threshold) {
+        NeighbourhoodKernel k = kernel;
+        if (k == null || k.sigma != sigma || k.threshold != threshold) {
+            k = new NeighbourhoodKernel(sigma, threshold, getCutoffDistanceSq(sigma, threshold));
+            kernel = k;
+        }
+        return k;
+    }
+
+    /**
+     * The distances of all offsets between two units of a grid of up to the given capacity, and the stencils listing
+     * these offsets ordered by distance. The geometry of a toroidal grid is built for its exact size.
+     */
+    private static final class Geometry {
+        private final int xCapacity;
+
+        private final int yCapacity;
+
+        private final boolean toroidal;
+
+        /** On a toroidal grid, the largest number of rows between an offset and its closest image. */
+        private final int imageRows;
+
+        private final int xSpan;
+
+        private final int ySpan;
+
+        /** Squared hexagonal distances, indexed by {@link #offsetIndex(int, int, int)}. */
+        private final int[] distanceSq;
+
+        /** Hexagonal distances, i.e. the square roots of {@link #distanceSq}. */
+        private final double[] distance;
+
+        /** Number of hexagonal steps between two units, indexed by {@link #offsetIndex(int, int, int)}. */
+        private final int[] steps;
+
+        private final int[][] stencilDx = new int[2][];
+
+        private final int[][] stencilDy = new int[2][];
+
+        private final int[][] stencilDistanceSq = new int[2][];
+
+        private Geometry(int xCapacity, int yCapacity, boolean toroidal) {
+            this.xCapacity = xCapacity;
+            this.yCapacity = yCapacity;
+            this.toroidal = toroidal;
+            // some image lies within half the grid size along and across the rows, which bounds the distance of the
+            // closest one; an image r rows away is at least r * sqrt(3) / 2 away
+            double bound = (xCapacity / 2.0 + 1) * (xCapacity / 2.0 + 1) + 0.75 * (yCapacity / 2.0 + 1)
+                    * (yCapacity / 2.0 + 1);
+            imageRows = (int) Math.ceil(Math.sqrt(bound / 0.75));
+            xSpan = 2 * xCapacity - 1;
+            ySpan = 2 * yCapacity - 1;
+
+            int size = 2 * xSpan * ySpan;
+            distanceSq = new int[size];
+            distance = new double[size];
+            steps = new int[size];
+            for (int parity = 0; parity < 2; parity++) {
+                for (int dy = -(yCapacity - 1); dy < yCapacity; dy++) {
+                    for (int dx = -(xCapacity - 1); dx < xCapacity; dx++) {
+                        int index = offsetIndex(parity, dx, dy);
+                        // axial coordinates of the offset; (dy + parity2 - parity) is always even
+                        int parity2 = (parity + dy) & 1;
+                        int dq = dx - (dy + parity2 - parity) / 2;
+                        int dr = dy;
+                        distanceSq[index] = dq * dq + dq * dr + dr * dr;
+                        steps[index] = (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+                        if (toroidal) {
+                            setClosestImage(index, dq, dr);
+                        }
+                        distance[index] = Math.sqrt(distanceSq[index]);
+                    }
+                }
+                if (toroidal) {
+                    buildToroidalStencil(parity);
+                } else {
+                    buildStencil(parity);
+                }
+            }
+        }
+
+        /**
+         * Sets the distances of the offset with the given axial coordinates to the shortest ones among its images on
+         * the torus, i.e. among the offsets <code>(dq + a * xCapacity - b * ceil(yCapacity / 2), dr + b *
+         * yCapacity)</code>. For a given <code>b</code>, the distances are convex in the axial column, with their
+         * minimum at <code>-r / 2</code>, so only the images next to it need to be checked.
+         */
+        private void setClosestImage(int index, int dq, int dr) {
+            int rowShift = ceilHalf(yCapacity);
+            int translations = imageRows / yCapacity + 2;
+            for (int b = -translations; b <= translations; b++) {
+                int r = dr + b * yCapacity;
+                int q0 = dq - b * rowShift;
+                // image column closest to -r / 2, rounded down; its right neighbour is checked as well
+                int a0 = (int) Math.floor((-r / 2.0 - q0) / xCapacity);
+                for (int a = a0 - 1; a <= a0 + 2; a++) {
+                    int q = q0 + a * xCapacity;
+                    distanceSq[index] = Math.min(distanceSq[index], q * q + q * r + r * r);
+                    steps[index] = Math.min(steps[index], (Math.abs(q) + Math.abs(r) + Math.abs(q + r)) / 2);
+                }
+            }
+        }
+
+        /**
+         * Builds the stencil of a toroidal grid, which lists each unit once, at the offset of its image closest to a
+         * unit in a row of the given parity. The unit at offset <code>(dx, dy)</code> is found by wrapping the offset
+         * around the grid from the unit at column <code>0</code> and row <code>parity</code>. The closest image may
+         * lie further away than the offsets of the distance tables, e.g. in a grid of one row.
+         */
+        private void buildToroidalStencil(int parity) {
+            int count = xCapacity * yCapacity;
+            int[] closestDx = new int[count];
+            int[] closestDy = new int[count];
+            int[] closestDistanceSq = new int[count];
+            Arrays.fill(closestDistanceSq, -1);
+            for (int dy = -imageRows; dy <= imageRows; dy++) {
+                int parity2 = (parity + dy) & 1;
+                for (int dx = -xCapacity; dx <= xCapacity; dx++) {
+                    int dq = dx - (dy + parity2 - parity) / 2;
+                    int d2 = dq * dq + dq * dy + dy * dy;
+                    int unit = wrap(dx, parity + dy, xCapacity, yCapacity);
+                    if (closestDistanceSq[unit] < 0 || d2 < closestDistanceSq[unit]) {
+                        closestDx[unit] = dx;
+                        closestDy[unit] = dy;
+                        closestDistanceSq[unit] = d2;
+                    }
+                }
+            }
+            int[] dxs = new int[count];
+            int[] dys = new int[count];
+            int[] d2s = new int[count];
+            int[] order = sortByDistance(closestDistanceSq);
+            for (int i = 0; i < count; i++) {
+                dxs[i] = closestDx[order[i]];
+                dys[i] = closestDy[order[i]];
+                d2s[i] = closestDistanceSq[order[i]];
+            }
+            stencilDx[parity] = dxs;
+            stencilDy[parity] = dys;
+            stencilDistanceSq[parity] = d2s;
+        }
+
+        private void buildStencil(int parity) {
+            int count = xSpan * ySpan;
+            // sort the offsets by their distance; counting sort, as the squared distances are small integers
+            int maxDistanceSq = 0;
+            for (int dy = -(yCapacity - 1); dy < yCapacity; dy++) {
+                for (int dx = -(xCapacity - 1); dx < xCapacity; dx++) {
+                    maxDistanceSq = Math.max(maxDistanceSq, distanceSq[offsetIndex(parity, dx, dy)]);
+                }
+            }
+            int[] start = new int[maxDistanceSq + 2];
+            for (int dy = -(yCapacity - 1); dy < yCapacity; dy++) {
+                for (int dx = -(xCapacity - 1); dx < xCapacity; dx++) {
+                    start[distanceSq[offsetIndex(parity, dx, dy)] + 1]++;
+                }
+            }
+            for (int i = 1; i < start.length; i++) {
+                start[i] += start[i - 1];
+            }
+            int[] dxs = new int[count];
+            int[] dys = new int[count];
+            int[] d2s = new int[count];
+            for (int dy = -(yCapacity - 1); dy < yCapacity; dy++) {
+                for (int dx = -(xCapacity - 1); dx < xCapacity; dx++) {
+                    int d2 = distanceSq[offsetIndex(parity, dx, dy)];
+                    int pos = start[d2]++;
+                    dxs[pos] = dx;
+                    dys[pos] = dy;
+                    d2s[pos] = d2;
+                }
+            }
+            stencilDx[parity] = dxs;
+            stencilDy[parity] = dys;
+            stencilDistanceSq[parity] = d2s;
+        }
+
+        /** Returns the indices of the given squared distances in increasing order of distance, by counting sort. */
+        private static int[] sortByDistance(int[] distancesSq) {
+            int maxDistanceSq = 0;
+            for (int d2 : distancesSq) {
+                maxDistanceSq = Math.max(maxDistanceSq, d2);
+            }
+            int[] start = new int[maxDistanceSq + 2];
+            for (int d2 : distancesSq) {
+                start[d2 + 1]++;
+            }
+            for (int i = 1; i < start.length; i++) {
+                start[i] += start[i - 1];
+            }
+            int[] order = new int[distancesSq.length];
+            for (int i = 0; i < distancesSq.length; i++) {
+                order[start[distancesSq[i]]++] = i;
+            }
+            return order;
+        }
+
+        private int offsetIndex(int parity, int dx, int dy) {
+            return (parity * ySpan + dy + yCapacity - 1) * xSpan + dx + xCapacity - 1;
+        }
+    }
+
+    /**
+     * A Gaussian neighbourhood function <code>exp(-d^2 / (2 * sigma^2))</code>, tabulated by the squared hexagonal
+     * distance <code>d^2</code> up to the distance where it drops below the threshold, or up to the largest distance
+     * of the grid.
+     */
+    public static final class NeighbourhoodKernel {
+        private final double sigma;
+
+        private final double threshold;
+
+        private final double[] values;
+
+        private NeighbourhoodKernel(double sigma, double threshold, int maxDistanceSq) {
+            this.sigma = sigma;
+            this.threshold = threshold;
+            double opt1 = 2 * sigma * sigma;
+            values = new double[maxDistanceSq + 1];
+            values[0] = 1;
+            for (int d2 = 1; d2 < values.length; d2++) {
+                values[d2] = Math.exp(-d2 / opt1);
+            }
+        }
+
+        /** Returns the largest squared distance with a non-zero neighbourhood value. */
+        public int getMaxDistanceSq() {
+            return values.length - 1;
+        }
+
+        /** Returns the neighbourhood value for the given squared distance, or zero beyond the cut-off. */
+        public double get(int distanceSq) {
+            return distanceSq < values.length ? values[distanceSq] : 0;
+        }
+
+        public double getSigma() {
+            return sigma;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package at.tuwien.ifs.somtoolbox.layers;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,6 +29,7 @@ import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import org.apache.commons.collections.CollectionUtils;
@@ -44,14 +46,19 @@ import cern.jet.math.Functions;
 import at.tuwien.ifs.commons.util.MathUtils;
 import at.tuwien.ifs.somtoolbox.SOMToolboxException;
 import at.tuwien.ifs.somtoolbox.data.InputData;
+import at.tuwien.ifs.somtoolbox.data.InputDataVectorStream;
 import at.tuwien.ifs.somtoolbox.data.InputDatum;
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.data.PrefetchingChunkReader;
 import at.tuwien.ifs.somtoolbox.data.SOMLibClassInformation;
 import at.tuwien.ifs.somtoolbox.data.SOMLibTemplateVector;
+import at.tuwien.ifs.somtoolbox.data.VectorChunk;
 import at.tuwien.ifs.somtoolbox.input.InputCorrections;
 import at.tuwien.ifs.somtoolbox.input.InputCorrections.InputCorrection;
 import at.tuwien.ifs.somtoolbox.input.SOMLibFileFormatException;
 import at.tuwien.ifs.somtoolbox.layers.AdaptiveCoordinatesVirtualLayer;
 import at.tuwien.ifs.somtoolbox.layers.GrowingLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalGrid.NeighbourhoodKernel;
 import at.tuwien.ifs.somtoolbox.layers.InputContainer;
 import at.tuwien.ifs.somtoolbox.layers.Layer;
 import at.tuwien.ifs.somtoolbox.layers.Layer.GridLayout;
@@ -63,6 +70,7 @@ import at.tuwien.ifs.somtoolbox.layers.Unit.FeatureWeightMode;
 import at.tuwien.ifs.somtoolbox.layers.metrics.AbstractMetric;
 import at.tuwien.ifs.somtoolbox.layers.metrics.AbstractWeightedMetric;
 import at.tuwien.ifs.somtoolbox.layers.metrics.DistanceMetric;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
 import at.tuwien.ifs.somtoolbox.layers.metrics.L2MetricSparse;
 import at.tuwien.ifs.somtoolbox.layers.metrics.MetricException;
 import at.tuwien.ifs.somtoolbox.layers.quality.AbstractQualityMeasure;
@@ -94,7 +102,84 @@ import at.tuwien.ifs.somtoolbox.util.comparables.UnitDistance;
  */
 
 public class HexagonalLayer extends GrowingLayer {
-    
+
+    /** Precomputed distances and neighbourhood stencil, see {@link #getGrid()}. */
+    private transient volatile HexagonalGrid grid;
+
+    /** Whether weight updates of this layer go to the flat {@link #codebook}, see {@link #setFlatWeightStore(boolean)}. */
+    private boolean flatWeightStore = false;
+
+    /** Contiguous copy of all weight vectors, see {@link #getCodebook()}. */
+    private transient HexagonalCodebook codebook;
+
+    /** Whether the codebook and the training input are in single precision, see {@link #setSinglePrecision}. */
+    private boolean singlePrecision = false;
+
+    /** The strategy to find best-matching units in the {@link #codebook}, see {@link #setBMUSearch(HexagonalBMUSearch)}. */
+    private HexagonalBMUSearch bmuSearch = new ExactBMUSearch();
+
+    /** The default number of input vectors processed at once by the batch training. */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /** Number of threads used by the parallel training of this layer, see {@link #setNO_CPUS(int)}. */
+    private static int noCPUs = 1;
+
+    private transient volatile HexagonalTrainingMetrics metrics;
+
+    private TrainingInterruptionListener interruptionListener;
+
+    private int interruptionInterval;
+
+    private HexagonalTrainingState.CheckpointListener checkpointListener;
+
+    private HexagonalQualityEvaluator qualityEvaluator;
+
+    /**
+     * Sets the number of CPUs used for training, both by the training inherited from {@link GrowingLayer} and by the
+     * batch training of this layer.
+     */
+    public static void setNO_CPUS(int cpus) {
+        GrowingLayer.setNO_CPUS(cpus);
+        noCPUs = Math.max(1, cpus);
+    }
+
+    /** Returns the number of CPUs used by the parallel computations on hexagonal layers. */
+    public static int getNO_CPUS() {
+        return noCPUs;
+    }
+
+    /**
+     * Sets the listener that may save the state of batch and mini-batch training, after each epoch of batch training
+     * and after each chunk of mini-batch training; <code>null</code> for none. The growing online training of
+     * {@link at.tuwien.ifs.somtoolbox.models.HexGrowingSOM} offers checkpoints to it after each growth of the map.
+     */
+    public void setCheckpointListener(HexagonalTrainingState.CheckpointListener listener) {
+        checkpointListener = listener;
+    }
+
+    public HexagonalTrainingState.CheckpointListener getCheckpointListener() {
+        return checkpointListener;
+    }
+
+    /**
+     * Sets the evaluator of the quality of the map during batch and mini-batch training; the results of each epoch are
+     * logged and passed to the training metrics. <code>null</code>, the default, evaluates nothing.
+     * <p>
+     * The quality is not measured in a pass of its own: for the inputs in the sample of the evaluator, the search of
+     * the training finds the second-best matching unit as well. The results of batch training are therefore those of
+     * the weight vectors at the start of the epoch, the results of mini-batch training those of the weight vectors
+     * while they are being updated.
+     */
+    public void setQualityEvaluator(HexagonalQualityEvaluator evaluator) {
+        qualityEvaluator = evaluator;
+    }
+
+    @Override
+    public void setTrainingInterruptionListener(TrainingInterruptionListener listener, int interval) {
+        super.setTrainingInterruptionListener(listener, interval);
+        interruptionListener = listener;
+        interruptionInterval = interval;
+    }
 
     public void initHex(){
     	gridLayout = GridLayout.hexagonal;
@@ -227,13 +312,176 @@ public class HexagonalLayer extends GrowingLayer {
 
 
 
+    /**
+     * Returns the precomputed geometry of this layer's hexagonal grid, which is toroidal if the grid topology of the
+     * layer is {@link GridTopology#toroid}. The grid is built on first access and resized only when the layer has grown
+     * since, or rebuilt when the topology has changed.
+     */
+    public HexagonalGrid getGrid() {
+        HexagonalGrid g = grid;
+        boolean toroidal = getGridTopology() == GridTopology.toroid;
+        if (g == null || g.isToroidal() != toroidal) {
+            g = new HexagonalGrid(getXSize(), getYSize(), getZSize(), toroidal);
+            grid = g;
+        } else if (!g.hasSize(getXSize(), getYSize(), getZSize())) {
+            if (metrics != null) {
+                metrics.growthOccurred(getXSize(), getYSize(), getZSize());
+            }
+            g = g.resize(getXSize(), getYSize(), getZSize());
+            grid = g;
+        }
+        return g;
+    }
+
+    /**
+     * Enables or disables keeping the weight vectors in a flat {@link HexagonalCodebook}. When enabled, the
+     * neighbourhood updates of this layer are applied to the codebook only, and the weight vectors of the {@link Unit}s
+     * are brought up to date by {@link #flushWeights()}. This makes best-matching unit search and neighbourhood updates
+     * scan memory sequentially instead of following one pointer per unit. Code that modifies the units' weight vectors
+     * directly has to call {@link #reloadWeights()} afterwards.
+     */
+    public void setFlatWeightStore(boolean flatWeightStore) {
+        if (this.flatWeightStore && !flatWeightStore) {
+            flushWeights();
+        }
+        this.flatWeightStore = flatWeightStore;
+        if (flatWeightStore) {
+            reloadWeights();
+        }
+    }
+
+    public boolean isFlatWeightStore() {
+        return flatWeightStore;
+    }
+
+    /**
+     * Enables or disables single precision for the flat {@link HexagonalCodebook} and for the chunks of input vectors
+     * read by the batch and mini-batch training, which halves the memory traffic of the best-matching unit search.
+     * Distances and the sums of the batch training are still accumulated in <code>double</code>. The weight vectors of
+     * the {@link Unit}s stay in double precision; with the flat weight store, they receive the rounded weights of the
+     * codebook. As the units keep their own weight vectors besides the codebook, this does not save heap: the weights
+     * take one and a half times the memory of the units' vectors, instead of twice with a double-precision codebook.
+     */
+    public synchronized void setSinglePrecision(boolean singlePrecision) {
+        if (this.singlePrecision == singlePrecision) {
+            return;
+        }
+        if (flatWeightStore) {
+            flushWeights();
+        }
+        this.singlePrecision = singlePrecision;
+        if (codebook != null) {
+            codebook = null;
+            getCodebook();
+            bmuSearch.weightsChanged(codebook);
+        }
+    }
+
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * Returns the weight vectors of all units as a flat {@link HexagonalCodebook}. The codebook is created from the
+     * units on first access, and loaded from them again whenever the layer has grown by other means than
+     * {@link #insertRowPair(int)} and {@link #insertColumn(int)}.
+     */
+    public synchronized HexagonalCodebook getCodebook() {
+        HexagonalGrid g = getGrid();
+        if (codebook == null) {
+            codebook = new HexagonalCodebook(g, getWeightVectorDim(), singlePrecision);
+            codebook.load(units);
+        } else if (codebook.getGrid() != g) {
+            // the arrays of the codebook are reused if they have room for the grown layer
+            codebook.setGrid(g);
+            codebook.load(units);
+            bmuSearch.weightsChanged(codebook);
+        }
+        return codebook;
+    }
+
+    /** Copies the weight vectors of the flat codebook, if any, back into the units. */
+    public synchronized void flushWeights() {
+        if (codebook != null && codebook.getGrid() == getGrid()) {
+            codebook.store(units);
+        }
+    }
+
+    /** Copies the weight vectors of the units into the flat codebook, e.g. after they have been modified directly. */
+    public synchronized void reloadWeights() {
+        if (codebook != null && codebook.getGrid() == getGrid()) {
+            codebook.load(units);
+        } else {
+            codebook = null;
+            getCodebook();
+        }
+    }
+
+    /**
+     * Sets the strategy used to search best-matching units in the flat codebook. The strategy is used by the batch
+     * training, and by {@link #getWinner(InputDatum)} if the flat weight store is enabled and the metric is Euclidean.
+     */
+    public void setBMUSearch(HexagonalBMUSearch bmuSearch) {
+        this.bmuSearch = bmuSearch;
+    }
+
+    public HexagonalBMUSearch getBMUSearch() {
+        return bmuSearch;
+    }
+
+    /**
+     * Sets the metrics to collect during training, or <code>null</code> to collect none. Only the training loops
+     * collect metrics; winner searches outside of them, e.g. for mapping or labelling, are not counted. The online
+     * training of {@link GrowingLayer} searches the winners itself, so its samples, quantization error, update time,
+     * learning rate and radius are collected by {@link #updateUnits}, but not its search time.
+     */
+    public void setTrainingMetrics(HexagonalTrainingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public HexagonalTrainingMetrics getTrainingMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the winner of the given input. If the flat weight store is enabled and the layer uses the Euclidean
+     * distance, the winner is searched in the {@link HexagonalCodebook} with the configured {@link HexagonalBMUSearch};
+     * otherwise, the search of {@link GrowingLayer} is used.
+     */
+    @Override
+    public Unit getWinner(InputDatum input) {
+        if (!flatWeightStore || !(getMetric() instanceof L2Metric)) {
+            return super.getWinner(input);
+        }
+        HexagonalCodebook cb = getCodebook();
+        int index = bmuSearch.search(cb, input.getVector().toArray(), -1);
+        if (index < 0) {
+            return null;
+        }
+        HexagonalGrid g = cb.getGrid();
+        return units[g.getX(index)][g.getY(index)][g.getZ(index)];
+    }
+
+    private int getWeightVectorDim() {
+        for (Unit unit : getAllUnits()) {
+            if (unit != null) {
+                return unit.getWeightVector().length;
+            }
+        }
+        return 0;
+    }
+
     public double getMapDistance(int x1, int y1, int x2, int y2) {
         return getMapDistance(x1, y1, 0, x2, y2, 0);
     }
 
+    /**
+     * Returns the distance of the centres of the hexagonal cells of two units, looked up from the precomputed
+     * {@link HexagonalGrid}.
+     */
     @Override
     public double getMapDistance(int x1, int y1, int z1, int x2, int y2, int z2) {
-        return Math.sqrt((x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2) + (z1 - z2) * (z1 - z2));
+        return getGrid().getMapDistance(x1, y1, z1, x2, y2, z2);
     }
 
     @Override
@@ -241,51 +489,702 @@ public class HexagonalLayer extends GrowingLayer {
         return getMapDistance(u1.getXPos(), u1.getYPos(), u1.getZPos(), u2.getXPos(), u2.getYPos(), u2.getZPos());
     }
 
+    @Override
     public double getMapDistanceSq(int x1, int y1, int z1, int x2, int y2, int z2) {
-        return (x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2) + (z1 - z2) * (z1 - z2);
+        return getGrid().getMapDistanceSq(x1, y1, z1, x2, y2, z2);
     }
 
     public double getMapDistanceSq(Unit u1, Unit u2) {
         return getMapDistanceSq(u1.getXPos(), u1.getYPos(), u1.getZPos(), u2.getXPos(), u2.getYPos(), u2.getZPos());
     }
 
-    
-    public boolean hasNeighbours(int x, int y) throws LayerAccessException {
-        if (x > 0 && getUnit(x - 1, y, 0) != null) {
-            return true;
-        } else if (x + 1 < units.length && getUnit(x + 1, y, 0) != null) {
-            return true;
-        } else if(y%2 == 1){
-        	if (y > 0 && getUnit(x-1, y - 1, 0) != null) {
-                return true;
-            } else if (y > 0 && getUnit(x, y - 1, 0) != null) {
-                return true;
-            } else if (y + 1 < units[x-1].length && getUnit(x-1, y + 1, 0) != null) {
-                return true;
-            } else if (y + 1 < units[x].length && getUnit(x, y + 1, 0) != null) {
-                return true;
+    /**
+     * Updates the units around the winner with the neighbourhood stencil of the hexagonal grid, see
+     * {@link #updateUnitsHexagonal(int, int, int, double[], double, double)}; this is the update step of the online
+     * training of {@link GrowingLayer}.
+     */
+    @Override
+    protected void updateUnits(Unit winner, InputDatum input, double learnrate, double sigma) {
+        double[] vector = input.getVector().toArray();
+        HexagonalTrainingMetrics m = metrics;
+        if (m != null) {
+            m.addSamples(1, getQuantizationError(winner, vector));
+        }
+        updateUnitsHexagonal(winner.getXPos(), winner.getYPos(), winner.getZPos(), vector, learnrate, sigma);
+    }
+
+    /** Returns the distance of the input to the current weight vector of the winner, for the training metrics. */
+    private double getQuantizationError(Unit winner, double[] vector) {
+        if (flatWeightStore && getMetric() instanceof L2Metric) {
+            HexagonalCodebook cb = getCodebook();
+            return Math.sqrt(cb.getDistanceSq(
+                    cb.getGrid().getIndex(winner.getXPos(), winner.getYPos(), winner.getZPos()), vector));
+        }
+        try {
+            return getMetric().distance(winner.getWeightVector(), vector);
+        } catch (MetricException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Moves the weight vectors of the winner and its neighbouring units towards the given input vector. Only the units
+     * within the cut-off radius of the Gaussian neighbourhood are visited, by walking the precomputed neighbourhood
+     * stencil of the grid in order of increasing distance, in the layer of the winner and in the other layers within
+     * the radius. The neighbourhood function is computed once per distinct distance of the stencil, rather than
+     * tabulated for each <code>sigma</code>, which changes with every sample. If the flat weight store is enabled, the
+     * weight vectors of the {@link HexagonalCodebook} are updated instead of the ones of the units.
+     * 
+     * @param winnerX the x-position of the winning unit.
+     * @param winnerY the y-position of the winning unit.
+     * @param winnerZ the z-position of the winning unit.
+     * @param input the input vector.
+     * @param learnrate the current learning rate.
+     * @param sigma the current neighbourhood radius; <code>0</code> updates the winner only.
+     * @throws IllegalArgumentException if <code>sigma</code> is negative.
+     */
+    public void updateUnitsHexagonal(int winnerX, int winnerY, int winnerZ, double[] input, double learnrate,
+            double sigma) {
+        HexagonalTrainingMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        HexagonalGrid g = getGrid();
+        int cutoffDistanceSq = g.getCutoffDistanceSq(sigma, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+        double opt1 = 2 * sigma * sigma;
+        if (flatWeightStore) {
+            updateCodebook(getCodebook(), opt1, cutoffDistanceSq, winnerX, winnerY, winnerZ, input, learnrate);
+        } else {
+            int parity = winnerY & 1;
+            int[] dxs = g.getStencilDx(parity);
+            int[] dys = g.getStencilDy(parity);
+            int[] d2s = g.getStencilDistanceSq(parity);
+            for (int z = 0; z < g.getZSize(); z++) {
+                int dz2 = (z - winnerZ) * (z - winnerZ);
+                int lastDistanceSq = -1;
+                double hci = 0;
+                for (int i = 0; i < d2s.length && d2s[i] <= cutoffDistanceSq - dz2; i++) {
+                    int index = g.locate(winnerX + dxs[i], winnerY + dys[i], z);
+                    if (index < 0 || units[g.getX(index)][g.getY(index)][z] == null) {
+                        continue;
+                    }
+                    if (d2s[i] + dz2 != lastDistanceSq) { // the stencil is sorted by distance
+                        lastDistanceSq = d2s[i] + dz2;
+                        hci = learnrate * (lastDistanceSq == 0 ? 1 : Math.exp(-lastDistanceSq / opt1));
+                    }
+                    double[] weights = units[g.getX(index)][g.getY(index)][z].getWeightVector();
+                    for (int k = 0; k < weights.length; k++) {
+                        weights[k] += hci * (input[k] - weights[k]);
+                    }
+                }
             }
-        } else if (y%2 == 0){
-        	if (y > 0 && getUnit(x, y - 1, 0) != null) {
-                return true;
-            } else if (y > 0 && getUnit(x+1, y - 1, 0) != null) {
-                return true;
-            } else if (y + 1 < units[x].length && getUnit(x, y + 1, 0) != null) {
-                return true;
-            } else if (y + 1 < units[x+1].length && getUnit(x+1, y + 1, 0) != null) {
+        }
+        if (m != null) {
+            m.addNeighbourhoodUpdateTime(System.nanoTime() - start);
+            m.setLearningRate(learnrate);
+            m.setRadius(sigma);
+        }
+    }
+
+    /**
+     * Moves the weight vectors of the codebook around the given winner towards the input, see above;
+     * <code>opt1</code> is <code>2 * sigma^2</code>, and <code>cutoffDistanceSq</code> the cut-off of the
+     * neighbourhood, see {@link HexagonalGrid#getCutoffDistanceSq(double, double)}.
+     */
+    private static void updateCodebook(HexagonalCodebook cb, double opt1, int cutoffDistanceSq, int winnerX,
+            int winnerY, int winnerZ, double[] input, double learnrate) {
+        HexagonalGrid g = cb.getGrid();
+        int parity = winnerY & 1;
+        int[] dxs = g.getStencilDx(parity);
+        int[] dys = g.getStencilDy(parity);
+        int[] d2s = g.getStencilDistanceSq(parity);
+        for (int z = 0; z < g.getZSize(); z++) {
+            int dz2 = (z - winnerZ) * (z - winnerZ);
+            int lastDistanceSq = -1;
+            double hci = 0;
+            for (int i = 0; i < d2s.length && d2s[i] <= cutoffDistanceSq - dz2; i++) {
+                int index = g.locate(winnerX + dxs[i], winnerY + dys[i], z);
+                if (index < 0 || !cb.isPresent(index)) {
+                    continue;
+                }
+                if (d2s[i] + dz2 != lastDistanceSq) { // the stencil is sorted by distance
+                    lastDistanceSq = d2s[i] + dz2;
+                    hci = learnrate * (lastDistanceSq == 0 ? 1 : Math.exp(-lastDistanceSq / opt1));
+                }
+                cb.update(index, hci, input);
+            }
+        }
+    }
+
+    /**
+     * Trains the layer with the online SOM algorithm, parallelised over mini-batches. Each worker thread takes its own
+     * samples of a chunk; it searches the best-matching units of a mini-batch of <code>miniBatchSize</code> samples,
+     * and then applies their neighbourhood updates to the shared codebook. The codebook is striped into bands of rows,
+     * each with its own lock; an update holds the locks of the bands within the cut-off radius of the neighbourhood
+     * only, so that updates in distant regions of the map proceed concurrently. Best-matching units are searched
+     * without locking, i.e. possibly on weight vectors that are being updated by other threads.
+     * <p>
+     * The learning rate and neighbourhood radius decrease exponentially over all samples of all epochs, and are
+     * adjusted once per chunk. With one thread and a mini-batch size of 1, this is the sequential online algorithm.
+     * 
+     * @param input the input vectors.
+     * @param epochs the number of passes over the input data.
+     * @param learnrateStart the learning rate at the first sample.
+     * @param learnrateEnd the learning rate at the last sample.
+     * @param sigmaStart the neighbourhood radius at the first sample.
+     * @param sigmaEnd the neighbourhood radius at the last sample.
+     * @param miniBatchSize the number of samples whose best-matching units are searched before updating.
+     * @param chunkSize the number of vectors read at once.
+     * @return the mean quantization error of the inputs in the last epoch, measured before their update.
+     * @throws SOMToolboxException if reading the input or the parallel computation failed.
+     */
+    public double trainMiniBatch(InputVectorStream input, int epochs, double learnrateStart, double learnrateEnd,
+            double sigmaStart, double sigmaEnd, int miniBatchSize, int chunkSize) throws SOMToolboxException {
+        return train(input, HexagonalTrainingState.miniBatch(epochs, learnrateStart, learnrateEnd, sigmaStart,
+                sigmaEnd, miniBatchSize, chunkSize));
+    }
+
+    /**
+     * Trains the layer with the batch or mini-batch algorithm, as given by the state, starting from the progress
+     * recorded in it. A new state starts a new training; a state saved by a
+     * {@link HexagonalTrainingState.CheckpointListener}, together with the weight vectors at that time, continues an
+     * interrupted training. The state is updated as the training proceeds.
+     * 
+     * @return the mean quantization error of the inputs in the last epoch trained, or <code>0</code> if the training
+     *         had already finished.
+     * @throws SOMToolboxException if reading the input or the parallel computation failed.
+     */
+    public double train(InputVectorStream input, HexagonalTrainingState state) throws SOMToolboxException {
+        if (state.getMode() == HexagonalTrainingState.Mode.batch) {
+            return trainBatch(input, state);
+        } else {
+            return trainMiniBatch(input, state);
+        }
+    }
+
+    private double trainMiniBatch(InputVectorStream input, final HexagonalTrainingState state)
+            throws SOMToolboxException {
+        int epochs = state.getEpochs();
+        double learnrateStart = state.getLearnrateStart();
+        double learnrateEnd = state.getLearnrateEnd();
+        double sigmaStart = state.getSigmaStart();
+        double sigmaEnd = state.getSigmaEnd();
+        final int miniBatchSize = state.getMiniBatchSize();
+        if (!flatWeightStore) {
+            reloadWeights();
+        }
+        final HexagonalCodebook cb = getCodebook();
+        final HexagonalGrid g = cb.getGrid();
+        final int dim = cb.getDim();
+        if (input.dim() != dim) {
+            throw new SOMToolboxException("Input vectors have " + input.dim() + " dimensions, the weight vectors "
+                    + dim + ".");
+        }
+        long numVectors = input.numVectors();
+        if (numVectors < 0) {
+            throw new SOMToolboxException("Mini-batch training needs the number of input vectors in advance.");
+        }
+        long totalSamples = Math.max(1, epochs * numVectors);
+
+        HexagonalWorkers workers = new HexagonalWorkers(noCPUs);
+        final int numWorkers = workers.getNumberOfWorkers();
+        // several bands per worker, so that concurrent updates rarely need the same lock
+        final int rowsPerStripe = Math.max(1, (g.getYSize() + 4 * numWorkers - 1) / (4 * numWorkers));
+        final ReentrantLock[] stripes = new ReentrantLock[(g.getYSize() + rowsPerStripe - 1) / rowsPerStripe];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        final double[] errors = new double[numWorkers];
+        final HexagonalBMUSearch search = bmuSearch;
+        final HexagonalQualityEvaluator evaluator = qualityEvaluator;
+        PrefetchingChunkReader reader = new PrefetchingChunkReader(input, state.getChunkSize(), singlePrecision);
+
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Mini-batch training of " + cb.getNumberOfUnits() + " units for " + epochs + " epochs on "
+                        + numWorkers + " threads, " + stripes.length + " lock stripes.");
+        StdErrProgressWriter progressWriter = new StdErrProgressWriter(epochs, "Mini-batch epoch ", 10);
+        double qe = 0;
+        long samples = state.samples;
+        try {
+            for (int epoch = state.epoch; epoch < epochs; epoch++) {
+                Arrays.fill(errors, 0);
+                errors[0] = state.error;
+                long epochVectors = state.position;
+                final HexagonalQualityEvaluator.Result[] qualities = evaluator != null ? HexagonalQualityEvaluator
+                        .createResults(numWorkers, cb.getNumberOfUnits()) : null;
+                reader.restart();
+                VectorChunk chunk;
+                while ((chunk = reader.next()) != null) {
+                    if (chunk.getFirst() < epochVectors) { // trained before the training was interrupted
+                        continue;
+                    }
+                    final VectorChunk vectors = chunk;
+                    double progress = samples / (double) totalSamples;
+                    final double learnrate = learnrateStart * Math.pow(learnrateEnd / learnrateStart, progress);
+                    final double sigma = sigmaStart * Math.pow(sigmaEnd / sigmaStart, progress);
+                    final int cutoffDistanceSq = g.getCutoffDistanceSq(sigma,
+                            HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+                    final double opt1 = 2 * sigma * sigma;
+                    final int maxRowOffset = getMaxRowOffset(g, cutoffDistanceSq);
+                    final HexagonalTrainingMetrics m = metrics;
+                    if (m != null) {
+                        m.setEpoch(epoch + 1);
+                        m.setLearningRate(learnrate);
+                        m.setRadius(sigma);
+                    }
+                    workers.run(vectors.size(), new HexagonalWorkers.RangeTask() {
+                        // @Override
+                        public void run(int worker, int from, int to) {
+                            double[][] batch = new double[miniBatchSize][dim];
+                            int[] bmus = new int[miniBatchSize];
+                            int[] locked = new int[3];
+                            int[] units = new int[2];
+                            double[] distances = new double[2];
+                            for (int first = from; first < to; first += miniBatchSize) {
+                                int size = Math.min(miniBatchSize, to - first);
+                                long start = m != null ? System.nanoTime() : 0;
+                                double error = 0;
+                                for (int i = 0; i < size; i++) {
+                                    vectors.getVector(first + i, batch[i]);
+                                    if (evaluator != null && evaluator.isSampled(vectors.getFirst() + first + i)) {
+                                        bmus[i] = HexagonalQualityEvaluator.search(cb, batch[i], units, distances,
+                                                qualities[worker]);
+                                    } else {
+                                        bmus[i] = search.search(cb, batch[i], -1);
+                                    }
+                                    error += Math.sqrt(cb.getDistanceSq(bmus[i], batch[i]));
+                                }
+                                errors[worker] += error;
+                                long searched = m != null ? System.nanoTime() : 0;
+                                for (int i = 0; i < size; i++) {
+                                    int y = g.getY(bmus[i]);
+                                    getStripes(g, y, maxRowOffset, rowsPerStripe, stripes.length, locked);
+                                    // always lock in ascending order, to avoid deadlocks
+                                    for (int s = 0; s < locked[0]; s++) {
+                                        stripes[s].lock();
+                                    }
+                                    for (int s = locked[1]; s <= locked[2]; s++) {
+                                        stripes[s].lock();
+                                    }
+                                    try {
+                                        updateCodebook(cb, opt1, cutoffDistanceSq, g.getX(bmus[i]), y,
+                                                g.getZ(bmus[i]), batch[i], learnrate);
+                                    } finally {
+                                        for (int s = locked[2]; s >= locked[1]; s--) {
+                                            stripes[s].unlock();
+                                        }
+                                        for (int s = locked[0] - 1; s >= 0; s--) {
+                                            stripes[s].unlock();
+                                        }
+                                    }
+                                }
+                                if (m != null) {
+                                    m.addBMUSearchTime(searched - start);
+                                    m.addNeighbourhoodUpdateTime(System.nanoTime() - searched);
+                                    m.addSamples(size, error);
+                                }
+                            }
+                        }
+                    });
+                    search.weightsChanged(cb);
+                    samples += vectors.size();
+                    epochVectors += vectors.size();
+                    fireInterruption(samples - vectors.size(), samples, totalSamples);
+                    state.samples = samples;
+                    state.position = epochVectors;
+                    state.error = sum(errors);
+                    if (checkpointListener != null) {
+                        checkpointListener.checkpoint(this, state);
+                    }
+                }
+
+                qe = epochVectors > 0 ? sum(errors) / epochVectors : 0;
+                progressWriter.progress("Mini-batch epoch " + (epoch + 1) + ", mean qe " + qe + ", ", epoch + 1);
+                reportQuality(qualities, epoch);
+                state.epoch = epoch + 1;
+                state.position = 0;
+                state.error = 0;
+            }
+        } catch (IOException e) {
+            SOMToolboxException exception = new SOMToolboxException("Could not read input vectors: "
+                    + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        } finally {
+            reader.close();
+            workers.shutdown();
+        }
+        flushWeights();
+        return qe;
+    }
+
+    /** Reports the quality measured by the search of an epoch, if a quality evaluator is set. */
+    private void reportQuality(HexagonalQualityEvaluator.Result[] qualities, int epoch) {
+        if (qualities == null) {
+            return;
+        }
+        HexagonalQualityEvaluator.Result result = HexagonalQualityEvaluator.merge(qualities);
+        HexagonalTrainingMetrics m = metrics;
+        if (m != null) {
+            m.setTopographicError(result.getTopographicError());
+        }
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Quality in epoch " + (epoch + 1) + ": " + result + ".");
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Determines the lock stripes covering the rows within <code>maxRowOffset</code> of row <code>y</code>, as the
+     * stripes <code>0</code> to <code>stripes[0] - 1</code> and <code>stripes[1]</code> to <code>stripes[2]</code>, in
+     * ascending order and disjoint. The first range is empty unless the rows wrap around a toroidal grid.
+     */
+    private static void getStripes(HexagonalGrid g, int y, int maxRowOffset, int rowsPerStripe, int numStripes,
+            int[] stripes) {
+        int from = y - maxRowOffset;
+        int to = y + maxRowOffset;
+        int ySize = g.getYSize();
+        if (!g.isToroidal()) {
+            stripes[0] = 0;
+            stripes[1] = Math.max(0, from) / rowsPerStripe;
+            stripes[2] = Math.min(ySize - 1, to) / rowsPerStripe;
+        } else if (to - from + 1 >= ySize) {
+            stripes[0] = 0;
+            stripes[1] = 0;
+            stripes[2] = numStripes - 1;
+        } else if (from < 0 || to >= ySize) {
+            // the rows wrapped around to the top of the grid, and those at its bottom
+            stripes[0] = (from < 0 ? to : to - ySize) / rowsPerStripe + 1;
+            stripes[1] = Math.max(stripes[0], (from < 0 ? from + ySize : from) / rowsPerStripe);
+            stripes[2] = numStripes - 1;
+        } else {
+            stripes[0] = 0;
+            stripes[1] = from / rowsPerStripe;
+            stripes[2] = to / rowsPerStripe;
+        }
+    }
+
+    /** Returns the largest row offset of a unit within the given squared cut-off radius of the neighbourhood. */
+    private static int getMaxRowOffset(HexagonalGrid g, int cutoffDistanceSq) {
+        int max = 0;
+        for (int parity = 0; parity < 2; parity++) {
+            int[] dys = g.getStencilDy(parity);
+            int[] d2s = g.getStencilDistanceSq(parity);
+            for (int i = 0; i < d2s.length && d2s[i] <= cutoffDistanceSq; i++) {
+                max = Math.max(max, Math.abs(dys[i]));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Trains the layer with the batch SOM algorithm. In each epoch, the best-matching units of all inputs are searched
+     * in parallel, and the inputs are summed up per best-matching unit in one accumulator per worker thread. After
+     * reducing the accumulators, each weight vector is replaced by the mean of the summed inputs, weighted by the
+     * neighbourhood function of the distance between the unit and the respective best-matching unit. The neighbourhood
+     * radius decreases exponentially from <code>sigmaStart</code> in the first to <code>sigmaEnd</code> in the last
+     * epoch; the algorithm needs no learning rate.
+     * 
+     * @param data the input data.
+     * @param epochs the number of passes over the input data.
+     * @param sigmaStart the neighbourhood radius of the first epoch.
+     * @param sigmaEnd the neighbourhood radius of the last epoch.
+     * @return the mean quantization error of the inputs in the last epoch.
+     * @throws SOMToolboxException if the parallel computation failed.
+     */
+    public double trainBatch(InputData data, int epochs, double sigmaStart, double sigmaEnd)
+            throws SOMToolboxException {
+        return trainBatch(new InputDataVectorStream(data), epochs, sigmaStart, sigmaEnd, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Trains the layer with the batch SOM algorithm on a stream of input vectors, see
+     * {@link #trainBatch(InputData, int, double, double)}. The input is read chunk by chunk in each epoch, so it does
+     * not have to fit into memory; the next chunk is read while the current one is processed.
+     * 
+     * @param input the input vectors.
+     * @param epochs the number of passes over the input data.
+     * @param sigmaStart the neighbourhood radius of the first epoch.
+     * @param sigmaEnd the neighbourhood radius of the last epoch.
+     * @param chunkSize the number of vectors processed at once.
+     * @return the mean quantization error of the inputs in the last epoch.
+     * @throws SOMToolboxException if reading the input or the parallel computation failed.
+     */
+    public double trainBatch(InputVectorStream input, int epochs, double sigmaStart, double sigmaEnd, int chunkSize)
+            throws SOMToolboxException {
+        return train(input, HexagonalTrainingState.batch(epochs, sigmaStart, sigmaEnd, chunkSize));
+    }
+
+    private double trainBatch(InputVectorStream input, HexagonalTrainingState state) throws SOMToolboxException {
+        int epochs = state.getEpochs();
+        double sigmaStart = state.getSigmaStart();
+        double sigmaEnd = state.getSigmaEnd();
+        if (!flatWeightStore) {
+            reloadWeights();
+        }
+        final HexagonalCodebook cb = getCodebook();
+        final HexagonalGrid g = cb.getGrid();
+        final int dim = cb.getDim();
+        final int numUnits = cb.getNumberOfUnits();
+        if (input.dim() != dim) {
+            throw new SOMToolboxException("Input vectors have " + input.dim() + " dimensions, the weight vectors "
+                    + dim + ".");
+        }
+
+        HexagonalWorkers workers = new HexagonalWorkers(noCPUs);
+        final int numWorkers = workers.getNumberOfWorkers();
+        final double[][] sums = new double[numWorkers][numUnits * dim];
+        final int[][] counts = new int[numWorkers][numUnits];
+        final double[] errors = new double[numWorkers];
+        final double[] newWeights = new double[numUnits * dim];
+        final HexagonalBMUSearch search = bmuSearch;
+        final HexagonalQualityEvaluator evaluator = qualityEvaluator;
+        // the best-matching unit of each input in the previous epoch, as hint for the search, if the size is known
+        if (state.previousBMUs == null && input.numVectors() >= 0 && input.numVectors() < Integer.MAX_VALUE) {
+            state.previousBMUs = new int[(int) input.numVectors()];
+            Arrays.fill(state.previousBMUs, -1);
+        }
+        final int[] previousBMUs = state.previousBMUs;
+        PrefetchingChunkReader reader = new PrefetchingChunkReader(input, state.getChunkSize(), singlePrecision);
+
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Batch training of " + numUnits + " units for " + epochs + " epochs on " + numWorkers + " threads.");
+        StdErrProgressWriter progressWriter = new StdErrProgressWriter(epochs, "Batch epoch ", 10);
+        double qe = 0;
+        try {
+            for (int epoch = state.epoch; epoch < epochs; epoch++) {
+                double sigma = epochs > 1 ? sigmaStart * Math.pow(sigmaEnd / sigmaStart, epoch / (epochs - 1.0))
+                        : sigmaEnd;
+                HexagonalTrainingMetrics m = metrics;
+                if (m != null) {
+                    m.setEpoch(epoch + 1);
+                    m.setRadius(sigma);
+                }
+                for (int w = 0; w < numWorkers; w++) {
+                    Arrays.fill(sums[w], 0);
+                    Arrays.fill(counts[w], 0);
+                    errors[w] = 0;
+                }
+                final HexagonalQualityEvaluator.Result[] qualities = evaluator != null ? HexagonalQualityEvaluator
+                        .createResults(numWorkers, numUnits) : null;
+
+                // find the best-matching units, and sum up the inputs per best-matching unit
+                long numVectors = 0;
+                reader.restart();
+                VectorChunk chunk;
+                while ((chunk = reader.next()) != null) {
+                    final VectorChunk vectors = chunk;
+                    long start = m != null ? System.nanoTime() : 0;
+                    double errorBefore = 0;
+                    for (int w = 0; m != null && w < numWorkers; w++) {
+                        errorBefore += errors[w];
+                    }
+                    workers.run(vectors.size(), new HexagonalWorkers.RangeTask() {
+                        // @Override
+                        public void run(int worker, int from, int to) {
+                            double[] vector = new double[dim];
+                            double[] sum = sums[worker];
+                            int[] count = counts[worker];
+                            int[] units = new int[2];
+                            double[] distances = new double[2];
+                            for (int i = from; i < to; i++) {
+                                vectors.getVector(i, vector);
+                                int position = (int) vectors.getFirst() + i;
+                                boolean hint = previousBMUs != null && position < previousBMUs.length;
+                                int bmu;
+                                if (evaluator != null && evaluator.isSampled(vectors.getFirst() + i)) {
+                                    bmu = HexagonalQualityEvaluator.search(cb, vector, units, distances,
+                                            qualities[worker]);
+                                } else {
+                                    bmu = search.search(cb, vector, hint ? previousBMUs[position] : -1);
+                                }
+                                if (hint) {
+                                    previousBMUs[position] = bmu;
+                                }
+                                errors[worker] += Math.sqrt(cb.getDistanceSq(bmu, vector));
+                                count[bmu]++;
+                                int offset = bmu * dim;
+                                for (int k = 0; k < dim; k++) {
+                                    sum[offset + k] += vector[k];
+                                }
+                            }
+                        }
+                    });
+                    numVectors += vectors.size();
+                    if (m != null) {
+                        // the search dominates this phase, summing up the inputs is comparatively cheap
+                        m.addBMUSearchTime(System.nanoTime() - start);
+                        double errorAfter = 0;
+                        for (int w = 0; w < numWorkers; w++) {
+                            errorAfter += errors[w];
+                        }
+                        m.addSamples(vectors.size(), errorAfter - errorBefore);
+                    }
+                }
+                long updateStart = m != null ? System.nanoTime() : 0;
+
+                // reduce into the accumulators of the first worker
+                workers.run(numUnits, new HexagonalWorkers.RangeTask() {
+                    // @Override
+                    public void run(int worker, int from, int to) {
+                        for (int w = 1; w < numWorkers; w++) {
+                            for (int unit = from; unit < to; unit++) {
+                                counts[0][unit] += counts[w][unit];
+                            }
+                            for (int k = from * dim; k < to * dim; k++) {
+                                sums[0][k] += sums[w][k];
+                            }
+                        }
+                    }
+                });
+
+                // new weight vectors: neighbourhood-weighted means of the per-unit sums
+                final NeighbourhoodKernel kernel = g.getKernel(sigma, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+                workers.run(numUnits, new HexagonalWorkers.RangeTask() {
+                    // @Override
+                    public void run(int worker, int from, int to) {
+                        double[] sum = sums[0];
+                        int[] count = counts[0];
+                        int maxDistanceSq = kernel.getMaxDistanceSq();
+                        for (int unit = from; unit < to; unit++) {
+                            int offset = unit * dim;
+                            int x = g.getX(unit);
+                            int y = g.getY(unit);
+                            int z = g.getZ(unit);
+                            int[] dxs = g.getStencilDx(y & 1);
+                            int[] dys = g.getStencilDy(y & 1);
+                            int[] d2s = g.getStencilDistanceSq(y & 1);
+                            Arrays.fill(newWeights, offset, offset + dim, 0);
+                            double denominator = 0;
+                            for (int i = 0; i < d2s.length && d2s[i] <= maxDistanceSq; i++) {
+                                int bmu = g.locate(x + dxs[i], y + dys[i], z);
+                                if (bmu < 0 || count[bmu] == 0) {
+                                    continue;
+                                }
+                                double h = kernel.get(d2s[i]);
+                                denominator += h * count[bmu];
+                                int bmuOffset = bmu * dim;
+                                for (int k = 0; k < dim; k++) {
+                                    newWeights[offset + k] += h * sum[bmuOffset + k];
+                                }
+                            }
+                            if (denominator > 0 && cb.isPresent(unit)) {
+                                for (int k = offset; k < offset + dim; k++) {
+                                    newWeights[k] /= denominator;
+                                }
+                            } else { // no input mapped in the neighbourhood, keep the old weight vector
+                                cb.getWeightVector(unit, newWeights, offset);
+                            }
+                        }
+                    }
+                });
+                cb.setWeights(newWeights);
+                search.weightsChanged(cb);
+                if (m != null) {
+                    m.addNeighbourhoodUpdateTime(System.nanoTime() - updateStart);
+                }
+
+                double error = 0;
+                for (int w = 0; w < numWorkers; w++) {
+                    error += errors[w];
+                }
+                qe = numVectors > 0 ? error / numVectors : 0;
+                progressWriter.progress("Batch epoch " + (epoch + 1) + ", sigma " + sigma + ", mean qe " + qe + ", ",
+                        epoch + 1);
+                reportQuality(qualities, epoch);
+                fireInterruption(epoch * numVectors, (epoch + 1) * numVectors, epochs * numVectors);
+                state.epoch = epoch + 1;
+                state.samples += numVectors;
+                if (checkpointListener != null) {
+                    checkpointListener.checkpoint(this, state);
+                }
+            }
+        } catch (IOException e) {
+            SOMToolboxException exception = new SOMToolboxException("Could not read input vectors: "
+                    + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        } finally {
+            reader.close();
+            workers.shutdown();
+        }
+        flushWeights();
+        return qe;
+    }
+
+    /**
+     * Notifies the training interruption listener if a multiple of its interval lies within the given range of
+     * processed samples. The codebook is written to the units first, as the listener reads from them.
+     */
+    private void fireInterruption(long samplesBefore, long samplesAfter, long totalSamples) {
+        if (interruptionListener != null && interruptionInterval > 0
+                && samplesAfter / interruptionInterval > samplesBefore / interruptionInterval) {
+            flushWeights();
+            interruptionListener.interruptionOccurred((int) samplesAfter, (int) totalSamples);
+        }
+    }
+
+    /**
+     * Callback for {@link HexagonalLayer#visitNeighbours(int, int, int, NeighbourVisitor)}. A single visitor instance
+     * can be reused for many calls, so walking the neighbours of a unit does not create any objects.
+     */
+    public interface NeighbourVisitor {
+        /**
+         * Called for each existing direct neighbour of a unit.
+         * 
+         * @param neighbour the neighbouring unit.
+         * @param index the index of the neighbouring unit in the {@link HexagonalGrid}.
+         */
+        void visit(Unit neighbour, int index);
+    }
+
+    /**
+     * Calls the visitor for each direct neighbour of the given unit that exists, i.e. is not empty. The neighbours are
+     * taken from the precomputed neighbour index of the {@link HexagonalGrid}.
+     * 
+     * @return the number of visited neighbours.
+     * @throws LayerAccessException if the position is outside the layer.
+     */
+    public int visitNeighbours(int x, int y, int z, NeighbourVisitor visitor) throws LayerAccessException {
+        checkPosition(x, y, z);
+        HexagonalGrid g = getGrid();
+        int[] offsets = g.getNeighbourOffsets();
+        int[] neighbours = g.getNeighbours();
+        int index = g.getIndex(x, y, z);
+        int visited = 0;
+        for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+            int n = neighbours[i];
+            Unit neighbour = units[g.getX(n)][g.getY(n)][g.getZ(n)];
+            if (neighbour != null) {
+                visitor.visit(neighbour, n);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    public boolean hasNeighbours(int x, int y) throws LayerAccessException {
+        checkPosition(x, y, 0);
+        HexagonalGrid g = getGrid();
+        int[] offsets = g.getNeighbourOffsets();
+        int[] neighbours = g.getNeighbours();
+        int index = g.getIndex(x, y, 0);
+        for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+            int n = neighbours[i];
+            if (units[g.getX(n)][g.getY(n)][g.getZ(n)] != null) {
                 return true;
             }
         }
-        
         return false;
     }
 
-    //1,3,5... x-1, x mod=1
-    //2,4,6 ... x, x + 1, mod=0
-
     /**
-     * Get direct neighbours of the given unit. Direct neighbours are neighbours in the same column or row of the SOM,
-     * thus this method returns at most six neighbours (two for each of the x, y and z dimensions).
+     * Get direct neighbours of the given unit. Direct neighbours are the two units left and right in the same row, the
+     * two adjacent units in the row above and the row below, and the units in front and behind, thus this method
+     * returns at most eight neighbours.
      */
     protected ArrayList<Unit> getNeighbouringUnits(Unit u) throws LayerAccessException {
         return getNeighbouringUnits(u.getXPos(), u.getYPos(), u.getZPos());
@@ -296,47 +1195,253 @@ public class HexagonalLayer extends GrowingLayer {
     }
 
     private ArrayList<Unit> getNeighbouringUnits(int x, int y, int z) throws LayerAccessException {
-        ArrayList<Unit> neighbourUnits = new ArrayList<Unit>();
+        checkPosition(x, y, z);
+        HexagonalGrid g = getGrid();
+        int[] offsets = g.getNeighbourOffsets();
+        int[] neighbours = g.getNeighbours();
+        int index = g.getIndex(x, y, z);
+        ArrayList<Unit> neighbourUnits = new ArrayList<Unit>(offsets[index + 1] - offsets[index]);
+        for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+            int n = neighbours[i];
+            neighbourUnits.add(units[g.getX(n)][g.getY(n)][g.getZ(n)]);
+        }
+        return neighbourUnits;
+    }
 
-        if (x > 0) {
-            neighbourUnits.add(getUnit(x - 1, y, z));
+    /**
+     * Inserts two rows of new units before row <code>y</code>, or appends them if <code>y</code> is the number of rows.
+     * Rows are inserted in pairs, so that the units behind them move by two rows and keep the parity of their row, i.e.
+     * whether it is shifted to the right; their neighbourhoods thus stay the same. The weight vector of each new unit
+     * is the mean of its direct neighbours in the grown layer, see {@link #insertColumn(int)}.
+     * <p>
+     * The units are moved by reference, and the grid and the codebook are grown incrementally: the distance tables of
+     * the grid are kept as long as their capacity suffices, see {@link HexagonalGrid#resize(int, int, int)}, and the
+     * weight vectors behind the new rows are moved within the arrays of the codebook, which are only replaced when
+     * full. Each column of {@link #units} is still replaced by one two rows longer, as {@link GrowingLayer} expects
+     * the arrays to match the size of the layer.
+     * 
+     * @throws LayerAccessException if <code>y</code> is not between <code>0</code> and the number of rows.
+     */
+    public synchronized void insertRowPair(int y) throws LayerAccessException {
+        if (y < 0 || y > getYSize()) {
+            throw new LayerAccessException("Cannot insert rows at " + y + " into a map of " + getYSize() + " rows.");
         }
-        if (x + 1 < getXSize()) {
-            neighbourUnits.add(getUnit(x + 1, y, z));
+        HexagonalGrid before = getGrid();
+        int xs = getXSize();
+        int ys = getYSize();
+        int zs = getZSize();
+        for (int x = 0; x < xs; x++) {
+            Unit[][] column = new Unit[ys + 2][];
+            System.arraycopy(units[x], 0, column, 0, y);
+            column[y] = new Unit[zs];
+            column[y + 1] = new Unit[zs];
+            System.arraycopy(units[x], y, column, y + 2, ys - y);
+            units[x] = column;
+            for (int row = y + 2; row < ys + 2; row++) {
+                for (int z = 0; z < zs; z++) {
+                    if (column[row][z] != null) {
+                        column[row][z].updatePosition(x, row, z);
+                    }
+                }
+            }
         }
-        
-      //1,3,5... x-1, x mod=1
-        //2,4,6 ... x, x + 1, mod=0
-        
-        if(y%2 == 1){
-	        if (y > 0) {
-	            neighbourUnits.add(getUnit(x-1, y - 1, z));
-	            neighbourUnits.add(getUnit(x, y - 1, z));
-	        }
-	        if (y + 1 < getYSize()) {
-	            neighbourUnits.add(getUnit(x-1, y + 1, z));
-	            neighbourUnits.add(getUnit(x, y + 1, z));
-
-	        }
-        } else if (y%2 == 0) {
-        	if (y > 0) {
-	            neighbourUnits.add(getUnit(x, y - 1, z));
-	            neighbourUnits.add(getUnit(x+1, y - 1, z));
-
-	        }
-	        if (y + 1 < getYSize()) {
-	            neighbourUnits.add(getUnit(x, y + 1, z));
-	            neighbourUnits.add(getUnit(x+1, y + 1, z));
-
-	        }
-        }
-        if (z > 0) {
-            neighbourUnits.add(getUnit(x, y, z - 1));
-        }
-        if (z + 1 < getZSize()) {
-            neighbourUnits.add(getUnit(x, y, z + 1));
+        ySize += 2;
+        grown(before, -1, y, 2);
+    }
+
+    /**
+     * Inserts a column of new units before column <code>x</code>, or appends one if <code>x</code> is the number of
+     * columns. The weight vector of each new unit is the mean of its direct neighbours in the grown layer; new units
+     * without an existing neighbour, e.g. in a column appended to a map of one column, take the mean of their new
+     * neighbours instead. The grid and the codebook are grown incrementally, see {@link #insertRowPair(int)}.
+     * 
+     * @throws LayerAccessException if <code>x</code> is not between <code>0</code> and the number of columns.
+     */
+    public synchronized void insertColumn(int x) throws LayerAccessException {
+        if (x < 0 || x > getXSize()) {
+            throw new LayerAccessException("Cannot insert column " + x + " into a map of " + getXSize()
+                    + " columns.");
+        }
+        HexagonalGrid before = getGrid();
+        int xs = getXSize();
+        int ys = getYSize();
+        int zs = getZSize();
+        Unit[][][] grown = new Unit[xs + 1][][];
+        System.arraycopy(units, 0, grown, 0, x);
+        grown[x] = new Unit[ys][zs];
+        System.arraycopy(units, x, grown, x + 1, xs - x);
+        for (int column = x + 1; column <= xs; column++) {
+            for (int y = 0; y < ys; y++) {
+                for (int z = 0; z < zs; z++) {
+                    if (grown[column][y][z] != null) {
+                        grown[column][y][z].updatePosition(column, y, z);
+                    }
+                }
+            }
+        }
+        units = grown;
+        xSize++;
+        grown(before, x, -1, 1);
+    }
+
+    /**
+     * Grows the layer at the given unit, e.g. the unit with the highest quantization error: new units are inserted
+     * between the unit and its most dissimilar direct neighbour in the same z-layer, a column if the neighbour is in
+     * the same row, a pair of rows otherwise, see {@link #insertRowPair(int)}.
+     * 
+     * @return <code>false</code> if the unit has no neighbour, so that the layer has not grown.
+     * @throws LayerAccessException if there is no unit at the given position.
+     */
+    public synchronized boolean growAt(int x, int y, int z) throws LayerAccessException {
+        checkPosition(x, y, z);
+        if (units[x][y][z] == null) {
+            throw new LayerAccessException("There is no unit at position " + x + "/" + y + "/" + z + ".");
+        }
+        HexagonalGrid g = getGrid();
+        int[] offsets = g.getNeighbourOffsets();
+        int[] neighbours = g.getNeighbours();
+        int index = g.getIndex(x, y, z);
+        double[] weights = getWeightVector(index);
+        int dissimilar = -1;
+        double maxDistance = -1;
+        for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+            int n = neighbours[i];
+            if (g.getZ(n) != z || units[g.getX(n)][g.getY(n)][z] == null) {
+                continue;
+            }
+            double[] other = getWeightVector(n);
+            double distance = 0;
+            for (int k = 0; k < weights.length; k++) {
+                distance += (weights[k] - other[k]) * (weights[k] - other[k]);
+            }
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                dissimilar = n;
+            }
+        }
+        if (dissimilar < 0) {
+            return false;
+        }
+        if (g.getY(dissimilar) == y) {
+            insertColumn(Math.max(x, g.getX(dissimilar)));
+        } else {
+            insertRowPair(Math.max(y, g.getY(dissimilar)));
+        }
+        return true;
+    }
+
+    /**
+     * Maps the given inputs onto their winners, and sums the quantization errors per unit, e.g. to find the unit to
+     * grow the layer at with {@link #growAt(int, int, int)}. The errors are measured with the metric of the layer.
+     * 
+     * @param counts receives the number of inputs mapped onto each unit, indexed as in the {@link HexagonalGrid}.
+     * @return the sum of the quantization errors of the inputs mapped onto each unit, indexed as in the grid.
+     * @throws MetricException if an input cannot be compared to the weight vectors.
+     */
+    public double[] getQuantizationErrors(InputData data, int[] counts) throws MetricException {
+        HexagonalGrid g = getGrid();
+        double[] errors = new double[g.getNumberOfUnits()];
+        Arrays.fill(counts, 0, errors.length, 0);
+        for (int i = 0; i < data.numVectors(); i++) {
+            InputDatum datum = data.getInputDatum(i);
+            Unit winner = getWinner(datum);
+            if (winner == null) {
+                continue;
+            }
+            int index = g.getIndex(winner.getXPos(), winner.getYPos(), winner.getZPos());
+            errors[index] += getMetric().distance(getWeightVector(index), datum.getVector().toArray());
+            counts[index]++;
+        }
+        return errors;
+    }
+
+    /** Returns the current weight vector of the unit with the given index, from the codebook if it is the master. */
+    private double[] getWeightVector(int index) {
+        if (flatWeightStore && codebook != null && codebook.getGrid() == grid) {
+            double[] weights = new double[codebook.getDim()];
+            codebook.getWeightVector(index, weights);
+            return weights;
+        }
+        return units[grid.getX(index)][grid.getY(index)][grid.getZ(index)].getWeightVector();
+    }
+
+    /**
+     * Brings the grid and the codebook up to date after columns or rows have been inserted into {@link #units}, and
+     * creates the new units. The new units next to existing ones are created first, from these only; the others, if
+     * any, from the new units created before them.
+     */
+    private void grown(HexagonalGrid before, int column, int row, int count) {
+        HexagonalGrid g = before.resize(getXSize(), getYSize(), getZSize());
+        grid = g;
+        if (metrics != null) {
+            metrics.growthOccurred(getXSize(), getYSize(), getZSize());
+        }
+        if (codebook != null && codebook.getGrid() == before) {
+            codebook.insert(g, column, row, count);
+        } else {
+            codebook = null;
+        }
+        int[] offsets = g.getNeighbourOffsets();
+        int[] neighbours = g.getNeighbours();
+        int dim = getWeightVectorDim();
+        int length = column >= 0 ? g.getYSize() : g.getXSize();
+        // the units created in one pass are used as neighbours from the next pass on only
+        boolean[] created = new boolean[g.getNumberOfUnits()];
+        ArrayList<Integer> pass = new ArrayList<Integer>();
+        do {
+            pass.clear();
+            for (int z = 0; z < g.getZSize(); z++) {
+                for (int c = 0; c < count; c++) {
+                    for (int i = 0; i < length; i++) {
+                        int x = column >= 0 ? column + c : i;
+                        int y = column >= 0 ? i : row + c;
+                        int index = g.getIndex(x, y, z);
+                        if (created[index]) {
+                            continue;
+                        }
+                        double[] mean = new double[dim];
+                        int existing = 0;
+                        for (int j = offsets[index]; j < offsets[index + 1]; j++) {
+                            int n = neighbours[j];
+                            boolean inserted = column >= 0 ? g.getX(n) >= column && g.getX(n) < column + count
+                                    : g.getY(n) >= row && g.getY(n) < row + count;
+                            if ((inserted && !created[n]) || units[g.getX(n)][g.getY(n)][g.getZ(n)] == null) {
+                                continue;
+                            }
+                            double[] weights = getWeightVector(n);
+                            for (int k = 0; k < dim; k++) {
+                                mean[k] += weights[k];
+                            }
+                            existing++;
+                        }
+                        if (existing == 0) { // no neighbour yet; if surrounded by empty units, it stays empty as well
+                            continue;
+                        }
+                        for (int k = 0; k < dim; k++) {
+                            mean[k] /= existing;
+                        }
+                        units[x][y][z] = new Unit(this, x, y, z, mean);
+                        if (codebook != null) {
+                            codebook.setWeightVector(index, mean);
+                        }
+                        pass.add(index);
+                    }
+                }
+            }
+            for (int index : pass) {
+                created[index] = true;
+            }
+        } while (!pass.isEmpty());
+        if (codebook != null) {
+            bmuSearch.weightsChanged(codebook);
+        }
+    }
+
+    private void checkPosition(int x, int y, int z) throws LayerAccessException {
+        if (x < 0 || x >= getXSize() || y < 0 || y >= getYSize() || z < 0 || z >= getZSize()) {
+            throw new LayerAccessException("Position " + x + "/" + y + "/" + z + " is invalid. Map size is "
+                    + getXSize() + "x" + getYSize() + "x" + getZSize());
         }
-        return neighbourUnits;
     }
 
 
@@ -0,0 +1,278 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.data.PrefetchingChunkReader;
+import at.tuwien.ifs.somtoolbox.data.VectorChunk;
+
+/**
+ * Computes quality measures of a {@link HexagonalCodebook} in a single parallel pass over the input vectors. For each
+ * input, the best and the second-best matching unit are searched once, see
+ * {@link HexagonalWinnerMapper#findWinners(HexagonalCodebook, int, double[], int[], double[], int)}; the quantization
+ * errors and the topographic error of the map, as well as the hits, quantization errors and topographic errors per
+ * unit are all derived from these two units.
+ * <p>
+ * The topographic error counts the inputs whose best and second-best matching units are not direct neighbours. It
+ * uses the six-neighbour adjacency of the hexagonal grid, see {@link HexagonalGrid#areNeighbours(int, int)}, so it is
+ * not distorted by the rectangular adjacency of the generic quality measures.
+ * <p>
+ * During batch and mini-batch training, the evaluator does not pass over the inputs itself: the training searches the
+ * two units of the inputs in the sample instead of only the best-matching unit, see
+ * {@link HexagonalLayer#setQualityEvaluator(HexagonalQualityEvaluator)}.
+ * <p>
+ * To monitor the quality of large data sets during training, the evaluator can be restricted to a random sample of the
+ * inputs. Whether an input belongs to the sample depends only on its position in the stream and the seed, so the same
+ * inputs are evaluated every time, independent of the number of threads. The inputs not in the sample are still read,
+ * but not searched.
+ *
+ * @see HexagonalLayer#setQualityEvaluator(HexagonalQualityEvaluator)
+ * @version $Id: $
+ */
+public class HexagonalQualityEvaluator {
+
+    private final double sampleRate;
+
+    private final long seed;
+
+    /** Creates an evaluator of all input vectors. */
+    public HexagonalQualityEvaluator() {
+        this(1, 0);
+    }
+
+    /**
+     * @param sampleRate the fraction of input vectors to evaluate, greater than <code>0</code> and at most
+     *            <code>1</code>.
+     * @param seed the seed selecting the sample.
+     */
+    public HexagonalQualityEvaluator(double sampleRate, long seed) {
+        if (!(sampleRate > 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("The sample rate must be greater than 0 and at most 1.");
+        }
+        this.sampleRate = sampleRate;
+        this.seed = seed;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Evaluates the codebook with the inputs of the stream, on {@link HexagonalLayer#getNO_CPUS()} threads. The stream
+     * is reset before.
+     *
+     * @throws SOMToolboxException if reading the input or the parallel computation failed.
+     */
+    public Result evaluate(final HexagonalCodebook codebook, InputVectorStream input, int chunkSize)
+            throws SOMToolboxException {
+        if (input.dim() != codebook.getDim()) {
+            throw new SOMToolboxException("Input vectors have " + input.dim() + " dimensions, the weight vectors "
+                    + codebook.getDim() + ".");
+        }
+        final int dim = codebook.getDim();
+        HexagonalWorkers workers = new HexagonalWorkers(HexagonalLayer.getNO_CPUS());
+        final Result[] results = createResults(workers.getNumberOfWorkers(), codebook.getNumberOfUnits());
+        PrefetchingChunkReader reader = new PrefetchingChunkReader(input, chunkSize, codebook.isSinglePrecision());
+        try {
+            reader.restart();
+            VectorChunk chunk;
+            while ((chunk = reader.next()) != null) {
+                final VectorChunk vectors = chunk;
+                workers.run(vectors.size(), new HexagonalWorkers.RangeTask() {
+                    // @Override
+                    public void run(int worker, int from, int to) {
+                        double[] vector = new double[dim];
+                        int[] units = new int[2];
+                        double[] distances = new double[2];
+                        for (int i = from; i < to; i++) {
+                            if (isSampled(vectors.getFirst() + i)) {
+                                vectors.getVector(i, vector);
+                                search(codebook, vector, units, distances, results[worker]);
+                            }
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            SOMToolboxException exception = new SOMToolboxException("Could not read input vectors: "
+                    + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        } finally {
+            reader.close();
+            workers.shutdown();
+        }
+        return merge(results);
+    }
+
+    /** Creates empty results for the given number of workers, to be merged by {@link #merge(Result[])}. */
+    static Result[] createResults(int numWorkers, int numUnits) {
+        Result[] results = new Result[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            results[w] = new Result(numUnits);
+        }
+        return results;
+    }
+
+    /** Merges the results of all workers into the first one, and returns it. */
+    static Result merge(Result[] results) {
+        for (int w = 1; w < results.length; w++) {
+            results[0].merge(results[w]);
+        }
+        return results[0];
+    }
+
+    /**
+     * Searches the best and the second-best matching unit of the vector, and adds them to the result. This is the
+     * search of the batch and mini-batch training for the inputs in the sample, so that the quality is derived from the
+     * training itself, without a pass of its own.
+     *
+     * @param units the two units found, best first.
+     * @param distances the squared distances of the two units.
+     * @return the index of the best-matching unit, or <code>-1</code> if the codebook has no units.
+     */
+    static int search(HexagonalCodebook codebook, double[] vector, int[] units, double[] distances, Result result) {
+        int count = HexagonalWinnerMapper.findWinners(codebook, 2, vector, units, distances, 0);
+        if (count == 0) {
+            return -1;
+        }
+        boolean error = count == 2 && !codebook.getGrid().areNeighbours(units[0], units[1]);
+        result.add(units[0], Math.sqrt(distances[0]), error);
+        return units[0];
+    }
+
+    /** Decides by a hash of the position whether the input belongs to the sample. */
+    boolean isSampled(long position) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        // the finaliser of SplitMix64, which spreads consecutive positions uniformly
+        long z = position * 0x9E3779B97F4A7C15L + seed;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+
+    /** The quality measures of a codebook, for the evaluated inputs. */
+    public static class Result {
+
+        private long samples;
+
+        private long topographicErrors;
+
+        private double quantizationError;
+
+        private final int[] hits;
+
+        private final double[] unitQuantizationErrors;
+
+        private final int[] unitTopographicErrors;
+
+        Result(int numUnits) {
+            hits = new int[numUnits];
+            unitQuantizationErrors = new double[numUnits];
+            unitTopographicErrors = new int[numUnits];
+        }
+
+        void add(int unit, double distance, boolean topographicError) {
+            samples++;
+            quantizationError += distance;
+            hits[unit]++;
+            unitQuantizationErrors[unit] += distance;
+            if (topographicError) {
+                topographicErrors++;
+                unitTopographicErrors[unit]++;
+            }
+        }
+
+        void merge(Result other) {
+            samples += other.samples;
+            topographicErrors += other.topographicErrors;
+            quantizationError += other.quantizationError;
+            for (int unit = 0; unit < hits.length; unit++) {
+                hits[unit] += other.hits[unit];
+                unitQuantizationErrors[unit] += other.unitQuantizationErrors[unit];
+                unitTopographicErrors[unit] += other.unitTopographicErrors[unit];
+            }
+        }
+
+        /** Returns the number of evaluated inputs. */
+        public long getSamples() {
+            return samples;
+        }
+
+        /** Returns the mean distance of the inputs to their best-matching units. */
+        public double getQuantizationError() {
+            return samples > 0 ? quantizationError / samples : Double.NaN;
+        }
+
+        /**
+         * Returns the mean of the mean quantization errors of the units with at least one input, i.e. each unit counts
+         * equally, regardless of the number of its inputs.
+         */
+        public double getMeanUnitQuantizationError() {
+            double sum = 0;
+            int units = 0;
+            for (int unit = 0; unit < hits.length; unit++) {
+                if (hits[unit] > 0) {
+                    sum += unitQuantizationErrors[unit] / hits[unit];
+                    units++;
+                }
+            }
+            return units > 0 ? sum / units : Double.NaN;
+        }
+
+        /** Returns the fraction of inputs whose best and second-best matching units are not direct neighbours. */
+        public double getTopographicError() {
+            return samples > 0 ? topographicErrors / (double) samples : Double.NaN;
+        }
+
+        /** Returns the number of inputs mapped to the unit with the given index. */
+        public int getHits(int unit) {
+            return hits[unit];
+        }
+
+        /** Returns the sum of the distances of the inputs mapped to the unit with the given index. */
+        public double getUnitQuantizationError(int unit) {
+            return unitQuantizationErrors[unit];
+        }
+
+        /** Returns the mean distance of the inputs mapped to the unit with the given index, or NaN if none. */
+        public double getUnitMeanQuantizationError(int unit) {
+            return hits[unit] > 0 ? unitQuantizationErrors[unit] / hits[unit] : Double.NaN;
+        }
+
+        /**
+         * Returns the fraction of the inputs mapped to the unit with the given index whose second-best matching unit is
+         * not a direct neighbour of it, or NaN if there are none.
+         */
+        public double getUnitTopographicError(int unit) {
+            return hits[unit] > 0 ? unitTopographicErrors[unit] / (double) hits[unit] : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return "qe " + getQuantizationError() + ", mqe " + getMeanUnitQuantizationError() + ", te "
+                    + getTopographicError() + " (" + samples + " inputs)";
+        }
+    }
+}
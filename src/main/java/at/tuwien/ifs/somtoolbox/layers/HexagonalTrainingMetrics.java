@@ -0,0 +1,205 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects metrics of the training of a {@link HexagonalLayer}, see {@link HexagonalLayer#setTrainingMetrics}. The
+ * metrics can be read through JMX after {@link #register(String)}, and written periodically by
+ * {@link at.tuwien.ifs.somtoolbox.output.TrainingMetricsLog}. All methods are thread-safe; the counters are updated by
+ * the training threads, and read by any other thread.
+ *
+ * @version $Id: $
+ */
+public class HexagonalTrainingMetrics implements HexagonalTrainingMetricsMBean {
+
+    /** The weight of a single input in the running mean of the quantization error. */
+    private static final double QE_SMOOTHING = 0.001;
+
+    private final AtomicLong samples = new AtomicLong();
+
+    private final AtomicLong bmuSearchNanos = new AtomicLong();
+
+    private final AtomicLong updateNanos = new AtomicLong();
+
+    private final AtomicLong growthEvents = new AtomicLong();
+
+    private volatile double learningRate = Double.NaN;
+
+    private volatile double radius = Double.NaN;
+
+    private volatile int epoch = 0;
+
+    private double quantizationError = Double.NaN;
+
+    private volatile double topographicError = Double.NaN;
+
+    private long rateTime = System.nanoTime();
+
+    private long rateSamples = 0;
+
+    private double samplesPerSecond = 0;
+
+    private ObjectName objectName;
+
+    /** Adds processed inputs, and the sum of their quantization errors. */
+    public void addSamples(long count, double errorSum) {
+        if (count <= 0) {
+            return;
+        }
+        samples.addAndGet(count);
+        double mean = errorSum / count;
+        synchronized (this) {
+            if (Double.isNaN(quantizationError)) {
+                quantizationError = mean;
+            } else {
+                quantizationError += (1 - Math.pow(1 - QE_SMOOTHING, count)) * (mean - quantizationError);
+            }
+        }
+    }
+
+    public void addBMUSearchTime(long nanos) {
+        bmuSearchNanos.addAndGet(nanos);
+    }
+
+    public void addNeighbourhoodUpdateTime(long nanos) {
+        updateNanos.addAndGet(nanos);
+    }
+
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public void setRadius(double radius) {
+        this.radius = radius;
+    }
+
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    /** Sets the topographic error of the last evaluation, see {@link HexagonalQualityEvaluator}. */
+    public void setTopographicError(double topographicError) {
+        this.topographicError = topographicError;
+    }
+
+    /** Records that the layer has grown to the given size. */
+    public void growthOccurred(int xSize, int ySize, int zSize) {
+        growthEvents.incrementAndGet();
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").fine("Layer grew to " + xSize + "x" + ySize + "x" + zSize + ".");
+    }
+
+    // @Override
+    public long getSamples() {
+        return samples.get();
+    }
+
+    // @Override
+    public synchronized double getSamplesPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateTime >= 1000000000L) {
+            long current = samples.get();
+            samplesPerSecond = (current - rateSamples) * 1E9 / (now - rateTime);
+            rateTime = now;
+            rateSamples = current;
+        }
+        return samplesPerSecond;
+    }
+
+    // @Override
+    public long getBMUSearchTimeMillis() {
+        return bmuSearchNanos.get() / 1000000;
+    }
+
+    // @Override
+    public long getNeighbourhoodUpdateTimeMillis() {
+        return updateNanos.get() / 1000000;
+    }
+
+    // @Override
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    // @Override
+    public double getRadius() {
+        return radius;
+    }
+
+    // @Override
+    public synchronized double getQuantizationError() {
+        return quantizationError;
+    }
+
+    // @Override
+    public double getTopographicError() {
+        return topographicError;
+    }
+
+    // @Override
+    public long getGrowthEvents() {
+        return growthEvents.get();
+    }
+
+    // @Override
+    public int getEpoch() {
+        return epoch;
+    }
+
+    // @Override
+    public long getHeapUsed() {
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, as
+     * <code>at.tuwien.ifs.somtoolbox:type=HexagonalTrainingMetrics,name=&lt;name&gt;</code>. Failures are logged only,
+     * as training does not depend on the metrics.
+     */
+    public synchronized void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("at.tuwien.ifs.somtoolbox:type=HexagonalTrainingMetrics,name="
+                    + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                    "Could not register training metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                        "Could not unregister training metrics from JMX: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+}
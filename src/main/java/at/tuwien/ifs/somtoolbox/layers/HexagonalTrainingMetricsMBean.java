@@ -0,0 +1,60 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Management interface of {@link HexagonalTrainingMetrics}, exposing the training progress of a
+ * {@link HexagonalLayer} through JMX.
+ *
+ * @version $Id: $
+ */
+public interface HexagonalTrainingMetricsMBean {
+
+    /** Returns the number of input vectors processed so far. */
+    long getSamples();
+
+    /** Returns the number of input vectors processed per second, measured over at least the last second. */
+    double getSamplesPerSecond();
+
+    /** Returns the total time spent searching best-matching units; the parallel batch search counts wall-clock time. */
+    long getBMUSearchTimeMillis();
+
+    /** Returns the total time spent updating weight vectors in the neighbourhood of best-matching units. */
+    long getNeighbourhoodUpdateTimeMillis();
+
+    /** Returns the current learning rate, or <code>NaN</code> if the training algorithm has none. */
+    double getLearningRate();
+
+    /** Returns the current neighbourhood radius. */
+    double getRadius();
+
+    /** Returns the exponentially weighted running mean of the quantization error of the processed inputs. */
+    double getQuantizationError();
+
+    /** Returns the topographic error after the last epoch, or <code>NaN</code> if the quality is not evaluated. */
+    double getTopographicError();
+
+    /** Returns the number of times the layer has grown. */
+    long getGrowthEvents();
+
+    /** Returns the current epoch of batch training, or <code>0</code>. */
+    int getEpoch();
+
+    /** Returns the heap memory currently in use, in bytes. */
+    long getHeapUsed();
+}
@@ -0,0 +1,260 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Properties;
+
+/**
+ * The schedule and progress of a batch or mini-batch training of a {@link HexagonalLayer}, i.e. everything apart from
+ * the weight vectors that is needed to continue an interrupted training exactly where it stopped. The training updates
+ * the progress as it goes; a {@link CheckpointListener} can save the state together with the weights, and a later
+ * training started with the restored state resumes with the next epoch, or for mini-batch training with the next
+ * chunk of the epoch.
+ * <p>
+ * The state of a growing online training, see {@link #online(double)}, records the growth phases trained and the
+ * quantization error the map grows to; the weights are checkpointed after each growth, so a restored online training
+ * resumes with the next phase.
+ * <p>
+ * Mini-batch training resumes bit-exactly on one thread only, as the order of updates of several threads varies
+ * anyway.
+ *
+ * @see HexagonalLayer#train(at.tuwien.ifs.somtoolbox.data.InputVectorStream, HexagonalTrainingState)
+ * @version $Id: $
+ */
+public class HexagonalTrainingState {
+
+    /** Called by the training at points where the state is consistent with the weights, and may be saved. */
+    public interface CheckpointListener {
+        /**
+         * @param layer the layer being trained; its codebook holds the current weights.
+         * @param state the state of the training; it must not be modified.
+         */
+        void checkpoint(HexagonalLayer layer, HexagonalTrainingState state);
+    }
+
+    public enum Mode {
+        batch, minibatch, online
+    }
+
+    private final Mode mode;
+
+    private final int epochs;
+
+    private final double sigmaStart;
+
+    private final double sigmaEnd;
+
+    private final double learnrateStart;
+
+    private final double learnrateEnd;
+
+    private final int miniBatchSize;
+
+    private final int chunkSize;
+
+    /** The current epoch, counted from <code>0</code>; for online training, the number of growth phases trained. */
+    int epoch;
+
+    /** The number of vectors of the current epoch already trained, for mini-batch training. */
+    long position;
+
+    /** The number of samples trained in all epochs. */
+    long samples;
+
+    /** The sum of quantization errors of the vectors of the current epoch already trained. */
+    double error;
+
+    /** The best-matching units of the inputs in the previous epoch of batch training, or <code>null</code>. */
+    int[] previousBMUs;
+
+    /** The mean quantization error up to which an online training grows the map. */
+    private double growthTarget;
+
+    private HexagonalTrainingState(Mode mode, int epochs, double learnrateStart, double learnrateEnd,
+            double sigmaStart, double sigmaEnd, int miniBatchSize, int chunkSize) {
+        // the radius decreases exponentially from the start to the end value, which must thus both be positive
+        if (mode != Mode.online && !(sigmaStart > 0 && sigmaEnd > 0)) {
+            throw new IllegalArgumentException("The neighbourhood radii must be positive, but are " + sigmaStart
+                    + " and " + sigmaEnd + ".");
+        }
+        this.mode = mode;
+        this.epochs = epochs;
+        this.learnrateStart = learnrateStart;
+        this.learnrateEnd = learnrateEnd;
+        this.sigmaStart = sigmaStart;
+        this.sigmaEnd = sigmaEnd;
+        this.miniBatchSize = miniBatchSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates the state of a new batch training, see {@link HexagonalLayer#trainBatch}.
+     *
+     * @throws IllegalArgumentException if a neighbourhood radius is not positive.
+     */
+    public static HexagonalTrainingState batch(int epochs, double sigmaStart, double sigmaEnd, int chunkSize) {
+        return new HexagonalTrainingState(Mode.batch, epochs, 0, 0, sigmaStart, sigmaEnd, 1, chunkSize);
+    }
+
+    /**
+     * Creates the state of a new mini-batch training, see {@link HexagonalLayer#trainMiniBatch}.
+     *
+     * @throws IllegalArgumentException if a neighbourhood radius is not positive.
+     */
+    public static HexagonalTrainingState miniBatch(int epochs, double learnrateStart, double learnrateEnd,
+            double sigmaStart, double sigmaEnd, int miniBatchSize, int chunkSize) {
+        return new HexagonalTrainingState(Mode.minibatch, epochs, learnrateStart, learnrateEnd, sigmaStart, sigmaEnd,
+                miniBatchSize, chunkSize);
+    }
+
+    /**
+     * Creates the state of a new growing online training, see
+     * {@link at.tuwien.ifs.somtoolbox.models.HexGrowingSOM#train(at.tuwien.ifs.somtoolbox.data.InputData,
+     * at.tuwien.ifs.somtoolbox.properties.SOMProperties)}; its schedule is given by the properties of the training.
+     *
+     * @param growthTarget the mean quantization error up to which the map grows.
+     */
+    public static HexagonalTrainingState online(double growthTarget) {
+        HexagonalTrainingState state = new HexagonalTrainingState(Mode.online, 0, 0, 0, 0, 0, 1, 1);
+        state.growthTarget = growthTarget;
+        return state;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getEpochs() {
+        return epochs;
+    }
+
+    /**
+     * Returns the current epoch, counted from <code>0</code>; {@link #getEpochs()} once the training has finished. For
+     * online training, returns the number of growth phases trained.
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /** Returns the mean quantization error up to which an online training grows the map. */
+    public double getGrowthTarget() {
+        return growthTarget;
+    }
+
+    /** Records a growth phase of online training with the given number of samples as trained. */
+    public void finishPhase(long phaseSamples) {
+        epoch++;
+        samples += phaseSamples;
+    }
+
+    /** Returns the number of samples trained so far. */
+    public long getSamples() {
+        return samples;
+    }
+
+    /** Returns whether a batch or mini-batch training has finished; an online training ends with its growth. */
+    public boolean isFinished() {
+        return mode != Mode.online && epoch >= epochs;
+    }
+
+    public double getSigmaStart() {
+        return sigmaStart;
+    }
+
+    public double getSigmaEnd() {
+        return sigmaEnd;
+    }
+
+    public double getLearnrateStart() {
+        return learnrateStart;
+    }
+
+    public double getLearnrateEnd() {
+        return learnrateEnd;
+    }
+
+    public int getMiniBatchSize() {
+        return miniBatchSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the best-matching units of the inputs in the previous epoch of batch training, which the search uses as
+     * hints, or <code>null</code>. They are not part of {@link #store(Properties)}, as there is one per input.
+     */
+    public int[] getPreviousBMUs() {
+        return previousBMUs;
+    }
+
+    public void setPreviousBMUs(int[] previousBMUs) {
+        this.previousBMUs = previousBMUs;
+    }
+
+    /** Writes the state, except the {@link #getPreviousBMUs()}, into the given properties. */
+    public void store(Properties properties) {
+        properties.setProperty("mode", mode.name());
+        properties.setProperty("epochs", String.valueOf(epochs));
+        // hexadecimal, so that the values are restored exactly
+        properties.setProperty("learnrateStart", Double.toHexString(learnrateStart));
+        properties.setProperty("learnrateEnd", Double.toHexString(learnrateEnd));
+        properties.setProperty("sigmaStart", Double.toHexString(sigmaStart));
+        properties.setProperty("sigmaEnd", Double.toHexString(sigmaEnd));
+        properties.setProperty("miniBatchSize", String.valueOf(miniBatchSize));
+        properties.setProperty("chunkSize", String.valueOf(chunkSize));
+        properties.setProperty("epoch", String.valueOf(epoch));
+        properties.setProperty("position", String.valueOf(position));
+        properties.setProperty("samples", String.valueOf(samples));
+        properties.setProperty("error", Double.toHexString(error));
+        properties.setProperty("growthTarget", Double.toHexString(growthTarget));
+    }
+
+    /**
+     * Reads a state written by {@link #store(Properties)}.
+     *
+     * @throws IllegalArgumentException if a value is missing or malformed.
+     */
+    public static HexagonalTrainingState load(Properties properties) {
+        try {
+            HexagonalTrainingState state = new HexagonalTrainingState(Mode.valueOf(get(properties, "mode")),
+                    Integer.parseInt(get(properties, "epochs")), Double.parseDouble(get(properties, "learnrateStart")),
+                    Double.parseDouble(get(properties, "learnrateEnd")), Double.parseDouble(get(properties,
+                            "sigmaStart")), Double.parseDouble(get(properties, "sigmaEnd")), Integer.parseInt(get(
+                            properties, "miniBatchSize")), Integer.parseInt(get(properties, "chunkSize")));
+            state.epoch = Integer.parseInt(get(properties, "epoch"));
+            state.position = Long.parseLong(get(properties, "position"));
+            state.samples = Long.parseLong(get(properties, "samples"));
+            state.error = Double.parseDouble(get(properties, "error"));
+            // missing in states written before online training was checkpointed
+            state.growthTarget = Double.parseDouble(properties.getProperty("growthTarget", "0").trim());
+            return state;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed training state: " + e.getMessage());
+        }
+    }
+
+    private static String get(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Training state lacks " + key + ".");
+        }
+        return value.trim();
+    }
+}
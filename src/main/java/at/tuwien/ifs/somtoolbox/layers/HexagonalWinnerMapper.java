@@ -0,0 +1,266 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.data.PrefetchingChunkReader;
+import at.tuwien.ifs.somtoolbox.data.VectorChunk;
+import at.tuwien.ifs.somtoolbox.util.StdErrProgressWriter;
+
+/**
+ * Finds the <code>k</code> units closest to input vectors in a {@link HexagonalCodebook}, e.g. to write a data winner
+ * mapping. Instead of sorting the distances to all units, each search keeps a bounded max-heap of the <code>k</code>
+ * best units in primitive arrays, and abandons the distance computation of a unit as soon as the partial sum exceeds
+ * the distance of the worst unit in the heap. Sparse vectors are compared over their non-zero values only, see
+ * {@link SparseVector}.
+ * <p>
+ * {@link #map(InputVectorStream, int, Listener)} maps a stream chunk by chunk, with the vectors of a chunk distributed
+ * over the worker threads, and passes the winners to a {@link Listener} in the order of the stream. As the codebook is
+ * only read, new data can be mapped against a trained map at any time, e.g. a codebook restored by
+ * {@link at.tuwien.ifs.somtoolbox.input.BinaryCodebookReader}.
+ *
+ * @version $Id: $
+ */
+public class HexagonalWinnerMapper {
+
+    /** Receives the winners of the mapped input vectors, in the order of the stream. */
+    public interface Listener {
+        /**
+         * @param position the position of the vector in the stream.
+         * @param label the label of the vector, may be <code>null</code>.
+         * @param units the indices of the winners in the {@link HexagonalGrid}, closest first.
+         * @param distances the Euclidean distances of the winners.
+         * @param offset the position of the first winner of this vector in <code>units</code> and
+         *            <code>distances</code>.
+         * @param count the number of winners, less than <code>k</code> only if the codebook has less units.
+         */
+        void winners(long position, String label, int[] units, double[] distances, int offset, int count)
+                throws IOException;
+    }
+
+    /** Number of dimensions summed up between two checks of the partial distance. */
+    private static final int BLOCK = 8;
+
+    /** The non-zero values of the current vector, per thread. */
+    private static final ThreadLocal<SparseVector> SPARSE = new ThreadLocal<SparseVector>() {
+        @Override
+        protected SparseVector initialValue() {
+            return new SparseVector();
+        }
+    };
+
+    private final HexagonalCodebook codebook;
+
+    private final int k;
+
+    public HexagonalWinnerMapper(HexagonalCodebook codebook, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("The number of winners must be greater than zero.");
+        }
+        this.codebook = codebook;
+        this.k = Math.min(k, codebook.getNumberOfUnits());
+    }
+
+    /** Returns the number of winners per vector. */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Finds the winners of one vector. The result arrays need room for {@link #getK()} elements from
+     * <code>offset</code> on; apart from them, the search allocates nothing.
+     *
+     * @param vector the input vector.
+     * @param units receives the indices of the winners, closest first.
+     * @param distances receives the squared Euclidean distances of the winners.
+     * @param offset the position of the first winner in <code>units</code> and <code>distances</code>.
+     * @return the number of winners found.
+     */
+    public int findWinners(double[] vector, int[] units, double[] distances, int offset) {
+        return findWinners(codebook, k, vector, units, distances, offset);
+    }
+
+    /**
+     * Finds the <code>k</code> winners of one vector in the given codebook, see
+     * {@link #findWinners(double[], int[], double[], int)}.
+     */
+    public static int findWinners(HexagonalCodebook codebook, int k, double[] vector, int[] units, double[] distances,
+            int offset) {
+        double[] weights = codebook.isSinglePrecision() ? null : codebook.getWeights();
+        float[] floatWeights = codebook.isSinglePrecision() ? codebook.getFloatWeights() : null;
+        int dim = codebook.getDim();
+        SparseVector sparse = SPARSE.get();
+        boolean isSparse = sparse.set(vector);
+        // max-heap of the best units so far, in the result arrays themselves
+        int size = 0;
+        double worst = Double.MAX_VALUE;
+        for (int index = 0; index < codebook.getNumberOfUnits(); index++) {
+            if (!codebook.isPresent(index)) {
+                continue;
+            }
+            double sum = 0;
+            if (isSparse) {
+                sum = codebook.getDistanceSq(index, sparse);
+            } else if (weights != null) {
+                int unitOffset = index * dim;
+                int d = 0;
+                while (d < dim && sum < worst) {
+                    int end = Math.min(dim, d + BLOCK);
+                    for (; d < end; d++) {
+                        double diff = vector[d] - weights[unitOffset + d];
+                        sum += diff * diff;
+                    }
+                }
+            } else {
+                int unitOffset = index * dim;
+                int d = 0;
+                while (d < dim && sum < worst) {
+                    int end = Math.min(dim, d + BLOCK);
+                    for (; d < end; d++) {
+                        double diff = vector[d] - floatWeights[unitOffset + d];
+                        sum += diff * diff;
+                    }
+                }
+            }
+            if (size < k) {
+                units[offset + size] = index;
+                distances[offset + size] = sum;
+                siftUp(units, distances, offset, size++);
+                if (size == k) {
+                    worst = distances[offset];
+                }
+            } else if (sum < worst) {
+                units[offset] = index;
+                distances[offset] = sum;
+                siftDown(units, distances, offset, 0, size);
+                worst = distances[offset];
+            }
+        }
+        // heap sort, the largest distance goes to the end
+        for (int end = size - 1; end > 0; end--) {
+            swap(units, distances, offset, offset + end);
+            siftDown(units, distances, offset, 0, end);
+        }
+        return size;
+    }
+
+    /**
+     * Maps all vectors of the stream, and passes their winners to the listener in the order of the stream. The vectors
+     * of each chunk are searched in parallel on {@link HexagonalLayer#getNO_CPUS()} threads, while the next chunk is
+     * read in the background.
+     *
+     * @return the number of vectors mapped.
+     * @throws SOMToolboxException if reading the input, the listener or the parallel computation failed.
+     */
+    public long map(InputVectorStream input, int chunkSize, Listener listener) throws SOMToolboxException {
+        if (input.dim() != codebook.getDim()) {
+            throw new SOMToolboxException("Input vectors have " + input.dim() + " dimensions, the weight vectors "
+                    + codebook.getDim() + ".");
+        }
+        final int dim = codebook.getDim();
+        final int[] units = new int[chunkSize * k];
+        final double[] distances = new double[chunkSize * k];
+        final int[] counts = new int[chunkSize];
+        HexagonalWorkers workers = new HexagonalWorkers(HexagonalLayer.getNO_CPUS());
+        PrefetchingChunkReader reader = new PrefetchingChunkReader(input, chunkSize, codebook.isSinglePrecision());
+        StdErrProgressWriter progressWriter = input.numVectors() > 0 ? new StdErrProgressWriter(
+                (int) Math.min(Integer.MAX_VALUE, input.numVectors()), "Mapping vector ", 10) : null;
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Mapping input vectors to their " + k + " winners on " + workers.getNumberOfWorkers() + " threads.");
+        long mapped = 0;
+        try {
+            reader.restart();
+            VectorChunk chunk;
+            while ((chunk = reader.next()) != null) {
+                final VectorChunk vectors = chunk;
+                workers.run(vectors.size(), new HexagonalWorkers.RangeTask() {
+                    // @Override
+                    public void run(int worker, int from, int to) {
+                        double[] vector = new double[dim];
+                        for (int i = from; i < to; i++) {
+                            vectors.getVector(i, vector);
+                            counts[i] = findWinners(vector, units, distances, i * k);
+                        }
+                    }
+                });
+                for (int i = 0; i < vectors.size(); i++) {
+                    for (int j = i * k; j < i * k + counts[i]; j++) {
+                        distances[j] = Math.sqrt(distances[j]);
+                    }
+                    listener.winners(vectors.getFirst() + i, vectors.getLabel(i), units, distances, i * k, counts[i]);
+                }
+                mapped += vectors.size();
+                if (progressWriter != null) {
+                    progressWriter.progress("Mapping vector ", (int) Math.min(Integer.MAX_VALUE, mapped));
+                }
+            }
+        } catch (IOException e) {
+            SOMToolboxException exception = new SOMToolboxException("Could not map input vectors: " + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        } finally {
+            reader.close();
+            workers.shutdown();
+        }
+        return mapped;
+    }
+
+    // max-heap on the distances from offset on, also used by QuantizedCodebook
+    static void siftUp(int[] units, double[] distances, int offset, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (distances[offset + parent] >= distances[offset + i]) {
+                break;
+            }
+            swap(units, distances, offset + parent, offset + i);
+            i = parent;
+        }
+    }
+
+    static void siftDown(int[] units, double[] distances, int offset, int i, int size) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && distances[offset + left] > distances[offset + largest]) {
+                largest = left;
+            }
+            if (right < size && distances[offset + right] > distances[offset + largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                break;
+            }
+            swap(units, distances, offset + i, offset + largest);
+            i = largest;
+        }
+    }
+
+    static void swap(int[] units, double[] distances, int a, int b) {
+        int unit = units[a];
+        units[a] = units[b];
+        units[b] = unit;
+        double distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+}
@@ -0,0 +1,125 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+
+/**
+ * A fixed pool of worker threads that processes index ranges in parallel. The range <code>[0, size)</code> is split
+ * into one contiguous part per worker; each part is passed to the {@link RangeTask} together with the number of the
+ * worker, so that tasks can use per-worker accumulators without synchronisation.
+ * 
+ * @version $Id: $
+ */
+public class HexagonalWorkers {
+
+    /** A task processing a part of an index range. */
+    public interface RangeTask {
+        void run(int worker, int from, int to) throws Exception;
+    }
+
+    private final int numberOfWorkers;
+
+    private final ExecutorService executor;
+
+    public HexagonalWorkers(int numberOfWorkers) {
+        this.numberOfWorkers = Math.max(1, numberOfWorkers);
+        executor = this.numberOfWorkers > 1 ? Executors.newFixedThreadPool(this.numberOfWorkers, new ThreadFactory() {
+            // @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HexagonalWorker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    public int getNumberOfWorkers() {
+        return numberOfWorkers;
+    }
+
+    /**
+     * Runs the task on all workers and waits for them to finish.
+     * 
+     * @throws SOMToolboxException if any of the workers failed; the first failure is given as cause.
+     */
+    public void run(int size, final RangeTask task) throws SOMToolboxException {
+        if (executor == null || size < 2) {
+            try {
+                task.run(0, 0, size);
+            } catch (Exception e) {
+                throw failure(e);
+            }
+            return;
+        }
+        final int parts = Math.min(numberOfWorkers, size);
+        final CountDownLatch latch = new CountDownLatch(parts);
+        final Exception[] errors = new Exception[parts];
+        for (int i = 0; i < parts; i++) {
+            final int worker = i;
+            final int from = (int) ((long) size * i / parts);
+            final int to = (int) ((long) size * (i + 1) / parts);
+            executor.execute(new Runnable() {
+                // @Override
+                public void run() {
+                    try {
+                        task.run(worker, from, to);
+                    } catch (Exception e) {
+                        errors[worker] = e;
+                    } catch (Error e) {
+                        errors[worker] = new RuntimeException(e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure(e);
+        }
+        for (Exception e : errors) {
+            if (e != null) {
+                throw failure(e);
+            }
+        }
+    }
+
+    private static SOMToolboxException failure(Exception e) {
+        if (e instanceof SOMToolboxException) {
+            return (SOMToolboxException) e;
+        }
+        SOMToolboxException exception = new SOMToolboxException("Parallel computation failed: " + e.getMessage());
+        exception.initCause(e);
+        return exception;
+    }
+
+    /** Stops the worker threads. */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
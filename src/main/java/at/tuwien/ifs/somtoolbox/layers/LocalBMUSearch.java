@@ -0,0 +1,68 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Approximate best-matching unit search that starts at the <code>hint</code>, usually the best-matching unit of the
+ * same input in the previous epoch, and walks the hexagonal grid: as long as one of the direct neighbours of the
+ * current unit is closer to the input, it moves to the closest of them. Once a map is roughly ordered, the best-matching
+ * units of an input move only little between epochs, and the walk visits a few dozen units instead of all of them.
+ * As the walk stops in the first local minimum, the result may differ from the one of the exact search. Without a
+ * hint, the {@link ExactBMUSearch} is used.
+ *
+ * @version $Id: $
+ */
+public class LocalBMUSearch implements HexagonalBMUSearch {
+
+    private final HexagonalBMUSearch fallback = new ExactBMUSearch();
+
+    // @Override
+    public int search(HexagonalCodebook codebook, double[] vector, int hint) {
+        if (hint < 0 || hint >= codebook.getNumberOfUnits() || !codebook.isPresent(hint)) {
+            return fallback.search(codebook, vector, -1);
+        }
+        int[] offsets = codebook.getGrid().getNeighbourOffsets();
+        int[] neighbours = codebook.getGrid().getNeighbours();
+        int current = hint;
+        double currentDistance = codebook.getDistanceSq(current, vector);
+        while (true) {
+            int next = current;
+            double nextDistance = currentDistance;
+            for (int i = offsets[current]; i < offsets[current + 1]; i++) {
+                int neighbour = neighbours[i];
+                if (codebook.isPresent(neighbour)) {
+                    double distance = codebook.getDistanceSq(neighbour, vector);
+                    if (distance < nextDistance) {
+                        next = neighbour;
+                        nextDistance = distance;
+                    }
+                }
+            }
+            if (next == current) {
+                return current;
+            }
+            current = next;
+            currentDistance = nextDistance;
+        }
+    }
+
+    // @Override
+    public void weightsChanged(HexagonalCodebook codebook) {
+        // nothing cached
+    }
+}
@@ -0,0 +1,161 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Read-only copy of a {@link HexagonalCodebook} with each weight quantized to one byte, for scoring against a trained
+ * map at an eighth of the memory traffic of double precision. Each dimension <code>d</code> is quantized linearly over
+ * the range of its weights, i.e. a weight is approximated by <code>m[d] + s[d] * q</code> with a code <code>q</code>
+ * from <code>-128</code> to <code>127</code>. The squared distance of a vector <code>x</code> to a unit then expands to
+ * <code>|x - m|&sup2; - 2 &Sigma; (x[d] - m[d]) s[d] q[d] + &Sigma; (s[d] q[d])&sup2;</code>, whose last sum is
+ * computed once per unit, so a query costs one multiply-add per code.
+ * <p>
+ * The distances are approximate, with an error of at most half a quantization step per dimension. The codebook is
+ * therefore meant to select candidates, which are then ranked by their exact distances in the original codebook; see
+ * {@link #findCandidates(double[], int, double[], int[], double[])}. It is never modified, and can be shared by any
+ * number of threads.
+ *
+ * @version $Id: $
+ */
+public class QuantizedCodebook {
+
+    private final int dim;
+
+    private final int numberOfUnits;
+
+    private final byte[] codes;
+
+    /** The weight of code zero, per dimension. */
+    private final double[] means;
+
+    /** The quantization step, per dimension. */
+    private final double[] scales;
+
+    /** The squared norm of each quantized weight vector relative to {@link #means}. */
+    private final double[] normsSq;
+
+    private final boolean[] present;
+
+    public QuantizedCodebook(HexagonalCodebook codebook) {
+        dim = codebook.getDim();
+        numberOfUnits = codebook.getNumberOfUnits();
+        double[] weights = codebook.copyWeights();
+        present = new boolean[numberOfUnits];
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        Arrays.fill(min, Double.MAX_VALUE);
+        Arrays.fill(max, -Double.MAX_VALUE);
+        for (int index = 0; index < numberOfUnits; index++) {
+            present[index] = codebook.isPresent(index);
+            for (int d = 0; present[index] && d < dim; d++) {
+                min[d] = Math.min(min[d], weights[index * dim + d]);
+                max[d] = Math.max(max[d], weights[index * dim + d]);
+            }
+        }
+        means = new double[dim];
+        scales = new double[dim];
+        for (int d = 0; d < dim; d++) {
+            if (min[d] <= max[d]) {
+                scales[d] = (max[d] - min[d]) / 255;
+                means[d] = min[d] + 128 * scales[d];
+            }
+        }
+        codes = new byte[numberOfUnits * dim];
+        normsSq = new double[numberOfUnits];
+        for (int index = 0; index < numberOfUnits; index++) {
+            if (!present[index]) {
+                continue;
+            }
+            double normSq = 0;
+            for (int d = 0; d < dim; d++) {
+                int code = 0;
+                if (scales[d] > 0) {
+                    code = (int) Math.round((weights[index * dim + d] - means[d]) / scales[d]);
+                    code = Math.max(-128, Math.min(127, code));
+                }
+                codes[index * dim + d] = (byte) code;
+                double value = scales[d] * code;
+                normSq += value * value;
+            }
+            normsSq[index] = normSq;
+        }
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getNumberOfUnits() {
+        return numberOfUnits;
+    }
+
+    /** Returns the number of bytes of the codes, i.e. the memory a scan over all units reads. */
+    public int getCodeSize() {
+        return codes.length;
+    }
+
+    /**
+     * Finds the <code>count</code> units with the smallest approximate distances to the vector.
+     *
+     * @param query a buffer of at least <code>dim</code> elements, overwritten with the projected vector.
+     * @param units receives the indices of the units, closest first; needs room for <code>count</code> elements.
+     * @param distances receives the approximate squared distances; needs room for <code>count</code> elements.
+     * @return the number of units found, less than <code>count</code> only if the map has less units.
+     */
+    public int findCandidates(double[] vector, int count, double[] query, int[] units, double[] distances) {
+        double offsetSq = 0;
+        for (int d = 0; d < dim; d++) {
+            double diff = vector[d] - means[d];
+            offsetSq += diff * diff;
+            query[d] = 2 * diff * scales[d];
+        }
+        int size = 0;
+        double worst = Double.MAX_VALUE;
+        for (int index = 0; index < numberOfUnits; index++) {
+            if (!present[index]) {
+                continue;
+            }
+            int unitOffset = index * dim;
+            double dot = 0;
+            for (int d = 0; d < dim; d++) {
+                dot += query[d] * codes[unitOffset + d];
+            }
+            double distance = offsetSq + normsSq[index] - dot;
+            if (size < count) {
+                units[size] = index;
+                distances[size] = distance;
+                HexagonalWinnerMapper.siftUp(units, distances, 0, size++);
+                if (size == count) {
+                    worst = distances[0];
+                }
+            } else if (distance < worst) {
+                units[0] = index;
+                distances[0] = distance;
+                HexagonalWinnerMapper.siftDown(units, distances, 0, 0, size);
+                worst = distances[0];
+            }
+        }
+        for (int end = size - 1; end > 0; end--) {
+            HexagonalWinnerMapper.swap(units, distances, 0, end);
+            HexagonalWinnerMapper.siftDown(units, distances, 0, 0, end);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,130 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Plain Java implementation of the {@link DistanceKernel}. The scan for the closest unit uses partial distance
+ * elimination: the distance computation of a unit is abandoned as soon as the partial sum exceeds the smallest
+ * distance found so far.
+ *
+ * @version $Id: $
+ */
+public class ScalarDistanceKernel implements DistanceKernel {
+
+    /** Number of dimensions summed up between two checks of the partial distance. */
+    private static final int BLOCK = 8;
+
+    // @Override
+    public double distanceSq(double[] vector, double[] weights, int offset, int dim) {
+        double sum = 0;
+        for (int k = 0; k < dim; k++) {
+            double diff = vector[k] - weights[offset + k];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    // @Override
+    public double distanceSq(double[] vector, float[] weights, int offset, int dim) {
+        double sum = 0;
+        for (int k = 0; k < dim; k++) {
+            double diff = vector[k] - weights[offset + k];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    // @Override
+    public int nearest(HexagonalCodebook codebook, double[] vector, int skip, double bestDistance) {
+        if (codebook.isSinglePrecision()) {
+            return nearestSingle(codebook, vector, skip, bestDistance);
+        }
+        double[] weights = codebook.getWeights();
+        int dim = codebook.getDim();
+        int best = -1;
+        for (int index = 0; index < codebook.getNumberOfUnits(); index++) {
+            if (index == skip || !codebook.isPresent(index)) {
+                continue;
+            }
+            int offset = index * dim;
+            double sum = 0;
+            int k = 0;
+            while (k < dim && sum < bestDistance) {
+                int end = Math.min(dim, k + BLOCK);
+                for (; k < end; k++) {
+                    double diff = vector[k] - weights[offset + k];
+                    sum += diff * diff;
+                }
+            }
+            if (sum < bestDistance) {
+                bestDistance = sum;
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    /** {@link #nearest(HexagonalCodebook, double[], int, double)} on a codebook in single precision. */
+    private static int nearestSingle(HexagonalCodebook codebook, double[] vector, int skip, double bestDistance) {
+        float[] weights = codebook.getFloatWeights();
+        int dim = codebook.getDim();
+        int best = -1;
+        for (int index = 0; index < codebook.getNumberOfUnits(); index++) {
+            if (index == skip || !codebook.isPresent(index)) {
+                continue;
+            }
+            int offset = index * dim;
+            double sum = 0;
+            int k = 0;
+            while (k < dim && sum < bestDistance) {
+                int end = Math.min(dim, k + BLOCK);
+                for (; k < end; k++) {
+                    double diff = vector[k] - weights[offset + k];
+                    sum += diff * diff;
+                }
+            }
+            if (sum < bestDistance) {
+                bestDistance = sum;
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    // @Override
+    public double update(double[] weights, int offset, double factor, double[] vector, int dim) {
+        double normSq = 0;
+        for (int k = 0; k < dim; k++) {
+            double weight = weights[offset + k] + factor * (vector[k] - weights[offset + k]);
+            weights[offset + k] = weight;
+            normSq += weight * weight;
+        }
+        return normSq;
+    }
+
+    // @Override
+    public double update(float[] weights, int offset, double factor, double[] vector, int dim) {
+        double normSq = 0;
+        for (int k = 0; k < dim; k++) {
+            float weight = (float) (weights[offset + k] + factor * (vector[k] - weights[offset + k]));
+            weights[offset + k] = weight;
+            normSq += (double) weight * weight;
+        }
+        return normSq;
+    }
+}
@@ -0,0 +1,90 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * The non-zero values of an input vector, for distance computations that skip the zeros, e.g. of TF-IDF vectors of
+ * text documents. With the squared norms kept by {@link HexagonalCodebook}, the squared Euclidean distance to a weight
+ * vector <code>w</code> is <code>|w|&sup2; - 2 w&middot;x + |x|&sup2;</code>, where the dot product only needs the
+ * non-zero values of <code>x</code>. An instance is reused for many vectors, and is not thread-safe.
+ *
+ * @version $Id: $
+ */
+public class SparseVector {
+
+    /** The largest fraction of non-zero values for which the sparse distance computation pays off. */
+    public static final double MAX_DENSITY = 0.2;
+
+    private int[] indices = new int[16];
+
+    private double[] values = new double[16];
+
+    private int size;
+
+    private double normSq;
+
+    /**
+     * Collects the non-zero values of the given vector, if there are not more than {@link #MAX_DENSITY} of them.
+     *
+     * @return whether the vector is sparse; if not, the content of this object is undefined.
+     */
+    public boolean set(double[] vector) {
+        int max = (int) (vector.length * MAX_DENSITY);
+        size = 0;
+        normSq = 0;
+        for (int k = 0; k < vector.length; k++) {
+            double value = vector[k];
+            if (value != 0) {
+                if (size == max) {
+                    return false;
+                }
+                if (size == indices.length) {
+                    indices = Arrays.copyOf(indices, Math.min(max, 2 * size));
+                    values = Arrays.copyOf(values, indices.length);
+                }
+                indices[size] = k;
+                values[size] = value;
+                normSq += value * value;
+                size++;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of non-zero values. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the dimensions of the non-zero values; only the first {@link #size()} elements are used. */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /** Returns the non-zero values; only the first {@link #size()} elements are used. */
+    public double[] getValues() {
+        return values;
+    }
+
+    /** Returns the squared Euclidean norm of the vector. */
+    public double getNormSq() {
+        return normSq;
+    }
+}
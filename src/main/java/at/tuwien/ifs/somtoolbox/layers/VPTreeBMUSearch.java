@@ -0,0 +1,217 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Approximate best-matching unit search backed by a vantage-point tree over the weight vectors. Each node of the tree
+ * holds one unit, the vantage point, and splits the remaining units at the median of their distance to it; the search
+ * prunes all subtrees that cannot contain a closer unit by the triangle inequality.
+ * <p>
+ * Building the tree takes <code>O(n log n)</code> distance computations for <code>n</code> units, so it is not
+ * rebuilt on every change of the weights, but only every <code>rebuildInterval</code> searches and whenever a different
+ * codebook is searched. In between, the weight vectors move away from the distances the tree was built with, which
+ * makes the search approximate during training; the result is never worse than the <code>hint</code>. On a codebook
+ * that does not change anymore, e.g. when mapping data after training, the search is exact.
+ *
+ * @version $Id: $
+ */
+public class VPTreeBMUSearch implements HexagonalBMUSearch {
+
+    /** The default number of searches after which the tree is rebuilt. */
+    public static final int DEFAULT_REBUILD_INTERVAL = 10000;
+
+    private final int rebuildInterval;
+
+    private final AtomicLong searches = new AtomicLong();
+
+    private volatile Tree tree;
+
+    public VPTreeBMUSearch() {
+        this(DEFAULT_REBUILD_INTERVAL);
+    }
+
+    /**
+     * @param rebuildInterval the number of searches after which the tree is rebuilt from the current weights.
+     */
+    public VPTreeBMUSearch(int rebuildInterval) {
+        this.rebuildInterval = Math.max(1, rebuildInterval);
+    }
+
+    /** Rebuilds the tree with the current weight vectors on the next search. */
+    // @Override
+    public void weightsChanged(HexagonalCodebook codebook) {
+        tree = null;
+    }
+
+    // @Override
+    public int search(HexagonalCodebook codebook, double[] vector, int hint) {
+        Tree t = tree;
+        if (t == null || t.codebook != codebook || searches.incrementAndGet() % rebuildInterval == 0) {
+            t = rebuild(codebook, t);
+        }
+        Query query = new Query(codebook, vector);
+        if (hint >= 0 && hint < codebook.getNumberOfUnits() && codebook.isPresent(hint)) {
+            query.best = hint;
+            query.tau = Math.sqrt(codebook.getDistanceSq(hint, vector));
+        }
+        t.search(0, query);
+        return query.best;
+    }
+
+    private synchronized Tree rebuild(HexagonalCodebook codebook, Tree old) {
+        if (tree != old && tree != null && tree.codebook == codebook) { // rebuilt by another thread in the meantime
+            return tree;
+        }
+        Tree t = new Tree(codebook);
+        tree = t;
+        return t;
+    }
+
+    /** State of a single search. */
+    private static final class Query {
+        private final HexagonalCodebook codebook;
+
+        private final double[] vector;
+
+        private int best = -1;
+
+        private double tau = Double.MAX_VALUE;
+
+        private Query(HexagonalCodebook codebook, double[] vector) {
+            this.codebook = codebook;
+            this.vector = vector;
+        }
+    }
+
+    /** An immutable vantage-point tree; node <code>i</code> is stored at position <code>i</code> of each array. */
+    private static final class Tree {
+        private final HexagonalCodebook codebook;
+
+        private final int[] point;
+
+        private final double[] radius;
+
+        private final int[] inside;
+
+        private final int[] outside;
+
+        private int nodes = 0;
+
+        private Tree(HexagonalCodebook codebook) {
+            this.codebook = codebook;
+            int[] items = new int[codebook.getNumberOfUnits()];
+            int n = 0;
+            for (int index = 0; index < items.length; index++) {
+                if (codebook.isPresent(index)) {
+                    items[n++] = index;
+                }
+            }
+            point = new int[n];
+            radius = new double[n];
+            inside = new int[n];
+            outside = new int[n];
+            build(items, new double[items.length], 0, n);
+        }
+
+        /** Builds the subtree of the items in [from, to), and returns its root node, or -1 if the range is empty. */
+        private int build(int[] items, double[] distances, int from, int to) {
+            if (from >= to) {
+                return -1;
+            }
+            int node = nodes++;
+            // the middle item as vantage point; items are in grid order, so this spreads the vantage points
+            swap(items, distances, from, (from + to) >>> 1);
+            point[node] = items[from];
+            double[] vantage = new double[codebook.getDim()];
+            codebook.getWeightVector(items[from], vantage);
+            for (int i = from + 1; i < to; i++) {
+                distances[i] = Math.sqrt(codebook.getDistanceSq(items[i], vantage));
+            }
+            int median = (from + 1 + to) >>> 1;
+            if (from + 1 < to) {
+                select(items, distances, from + 1, to - 1, median);
+                radius[node] = distances[median];
+            }
+            // inside: distance <= radius, i.e. [from + 1, median]; outside: (median, to)
+            int insideEnd = Math.min(to, median + 1);
+            inside[node] = build(items, distances, from + 1, insideEnd);
+            outside[node] = build(items, distances, insideEnd, to);
+            return node;
+        }
+
+        /** Quickselect: partially sorts [left, right] by distance such that position k holds its final element. */
+        private static void select(int[] items, double[] distances, int left, int right, int k) {
+            while (left < right) {
+                double pivot = distances[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (distances[i] < pivot) {
+                        i++;
+                    }
+                    while (distances[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(items, distances, i++, j--);
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static void swap(int[] items, double[] distances, int i, int j) {
+            int item = items[i];
+            items[i] = items[j];
+            items[j] = item;
+            double distance = distances[i];
+            distances[i] = distances[j];
+            distances[j] = distance;
+        }
+
+        private void search(int node, Query query) {
+            if (node < 0 || node >= nodes) {
+                return;
+            }
+            double distance = Math.sqrt(query.codebook.getDistanceSq(point[node], query.vector));
+            if (distance < query.tau) {
+                query.tau = distance;
+                query.best = point[node];
+            }
+            if (distance <= radius[node]) {
+                search(inside[node], query);
+                if (distance + query.tau > radius[node]) {
+                    search(outside[node], query);
+                }
+            } else {
+                search(outside[node], query);
+                if (distance - query.tau <= radius[node]) {
+                    search(inside[node], query);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package at.tuwien.ifs.somtoolbox.layers.quality;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.InputData;
+import at.tuwien.ifs.somtoolbox.data.InputDataVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.GrowingLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalGrid;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalQualityEvaluator;
+import at.tuwien.ifs.somtoolbox.layers.Layer;
+import at.tuwien.ifs.somtoolbox.layers.LayerAccessException;
+import at.tuwien.ifs.somtoolbox.layers.Unit;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
+
+/**
+ * Quantization and topographic errors of a {@link HexagonalLayer}. The topographic error uses the six-neighbour
+ * adjacency of the hexagonal grid, see {@link HexagonalQualityEvaluator}, unlike the generic measures, which assume a
+ * rectangular grid.
+ * <p>
+ * Map qualities:
+ * <ul>
+ * <li><code>qe</code>: the mean distance of the inputs to their best-matching units.</li>
+ * <li><code>mqe</code>: the mean of the mean quantization errors of the units with at least one input.</li>
+ * <li><code>te</code>: the fraction of inputs whose best and second-best matching units are not direct neighbours.
+ * </li>
+ * </ul>
+ * Unit qualities, of the units in the first z-layer: <code>qe</code>, the sum of the distances of the inputs mapped
+ * onto the unit, <code>mqe</code>, their mean, <code>te</code>, the fraction of them with a topographic error, and
+ * <code>hits</code>, their number.
+ * <p>
+ * With input data and the Euclidean metric, all measures are computed by a {@link HexagonalQualityEvaluator}.
+ * Otherwise, e.g. for a map restored from files, the quantization errors are computed from the inputs mapped onto the
+ * units and their distances, and the topographic errors are not available.
+ *
+ * @version $Id: $
+ */
+public class HexagonalQualityMeasure extends AbstractQualityMeasure {
+
+    private double mapQE;
+
+    private double mapMQE;
+
+    private double mapTE = Double.NaN;
+
+    private final double[][] unitQE;
+
+    private final double[][] unitMQE;
+
+    private final double[][] unitTE;
+
+    private final double[][] unitHits;
+
+    public HexagonalQualityMeasure(Layer layer, InputData data) {
+        super(layer, data);
+        mapQualityNames = new String[] { "qe", "mqe", "te" };
+        mapQualityDescriptions = new String[] { "Quantization Error", "Mean Quantization Error",
+                "Topographic Error (hexagonal)" };
+        unitQualityNames = new String[] { "qe", "mqe", "te", "hits" };
+        unitQualityDescriptions = new String[] { "Quantization Error", "Mean Quantization Error",
+                "Topographic Error (hexagonal)", "Hits" };
+
+        GrowingLayer growingLayer = (GrowingLayer) layer;
+        unitQE = new double[growingLayer.getXSize()][growingLayer.getYSize()];
+        unitMQE = new double[growingLayer.getXSize()][growingLayer.getYSize()];
+        unitTE = new double[growingLayer.getXSize()][growingLayer.getYSize()];
+        unitHits = new double[growingLayer.getXSize()][growingLayer.getYSize()];
+        if (data != null && layer instanceof HexagonalLayer && growingLayer.getMetric() instanceof L2Metric) {
+            try {
+                computeFromInputs((HexagonalLayer) layer, data);
+                return;
+            } catch (SOMToolboxException e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                        "Could not evaluate the input data, computing the quantization errors from the mapped inputs: "
+                                + e.getMessage());
+            }
+        }
+        computeFromMappedInputs(growingLayer);
+    }
+
+    private void computeFromInputs(HexagonalLayer layer, InputData data) throws SOMToolboxException {
+        HexagonalQualityEvaluator.Result result = new HexagonalQualityEvaluator().evaluate(layer.getCodebook(),
+                new InputDataVectorStream(data), HexagonalLayer.DEFAULT_CHUNK_SIZE);
+        HexagonalGrid grid = layer.getGrid();
+        for (int x = 0; x < unitQE.length; x++) {
+            for (int y = 0; y < unitQE[x].length; y++) {
+                int unit = grid.locate(x, y, 0);
+                unitQE[x][y] = result.getUnitQuantizationError(unit);
+                unitMQE[x][y] = result.getHits(unit) > 0 ? result.getUnitMeanQuantizationError(unit) : 0;
+                unitTE[x][y] = result.getHits(unit) > 0 ? result.getUnitTopographicError(unit) : 0;
+                unitHits[x][y] = result.getHits(unit);
+            }
+        }
+        mapQE = result.getQuantizationError();
+        mapMQE = result.getMeanUnitQuantizationError();
+        mapTE = result.getTopographicError();
+    }
+
+    private void computeFromMappedInputs(GrowingLayer layer) {
+        double sum = 0;
+        double meanSum = 0;
+        long inputs = 0;
+        int units = 0;
+        for (int z = 0; z < layer.getZSize(); z++) {
+            for (int x = 0; x < layer.getXSize(); x++) {
+                for (int y = 0; y < layer.getYSize(); y++) {
+                    Unit unit;
+                    try {
+                        unit = layer.getUnit(x, y, z);
+                    } catch (LayerAccessException e) {
+                        continue; // cannot happen, the position is within the layer
+                    }
+                    double[] distances = unit != null ? unit.getMappedInputDistances() : null;
+                    if (distances == null || distances.length == 0) {
+                        continue;
+                    }
+                    double qe = 0;
+                    for (double distance : distances) {
+                        qe += distance;
+                    }
+                    sum += qe;
+                    meanSum += qe / distances.length;
+                    inputs += distances.length;
+                    units++;
+                    if (z == 0) {
+                        unitQE[x][y] = qe;
+                        unitMQE[x][y] = qe / distances.length;
+                        unitHits[x][y] = distances.length;
+                    }
+                }
+            }
+        }
+        mapQE = inputs > 0 ? sum / inputs : 0;
+        mapMQE = units > 0 ? meanSum / units : 0;
+    }
+
+    // @Override
+    public double getMapQuality(String name) throws QualityMeasureNotFoundException {
+        if (name.equals("qe")) {
+            return mapQE;
+        } else if (name.equals("mqe")) {
+            return mapMQE;
+        } else if (name.equals("te")) {
+            if (Double.isNaN(mapTE)) {
+                throw new QualityMeasureNotFoundException(
+                        "The hexagonal topographic error needs the input data and the Euclidean metric.");
+            }
+            return mapTE;
+        }
+        throw new QualityMeasureNotFoundException("Quality measure with name " + name + " not found.");
+    }
+
+    // @Override
+    public double[][] getUnitQualities(String name) throws QualityMeasureNotFoundException {
+        if (name.equals("qe")) {
+            return unitQE;
+        } else if (name.equals("mqe")) {
+            return unitMQE;
+        } else if (name.equals("te")) {
+            if (Double.isNaN(mapTE)) {
+                throw new QualityMeasureNotFoundException(
+                        "The hexagonal topographic error needs the input data and the Euclidean metric.");
+            }
+            return unitTE;
+        } else if (name.equals("hits")) {
+            return unitHits;
+        }
+        throw new QualityMeasureNotFoundException("Quality measure with name " + name + " not found.");
+    }
+}
@@ -0,0 +1,225 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.input.BinaryCodebookReader;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalTrainingState;
+import at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter;
+
+/**
+ * Writes checkpoints of the training of a {@link HexGrowingSOM}, from which an interrupted training resumes exactly
+ * where it stopped. A checkpoint consists of the weight vectors, as a binary codebook, and of the
+ * {@link HexagonalTrainingState}, including the size of the map after growth. Checkpoints are written at most once per
+ * interval, at the points where the training offers them: after epochs or chunks of batch and mini-batch training, and
+ * after the growth phases of online training.
+ * <p>
+ * Both files are written under temporary names and then renamed, the state file last. As the state file names the
+ * codebook file it belongs to, and each checkpoint writes a new codebook file, a crash at any time leaves either the
+ * previous or the new checkpoint complete. The codebook of the previous checkpoint is deleted afterwards.
+ *
+ * @see HexGrowingSOM#setTrainingState(HexagonalTrainingState)
+ * @version $Id: $
+ */
+public class HexCheckpointWriter implements HexagonalTrainingState.CheckpointListener {
+
+    public static final String FILE_SUFFIX = ".checkpoint";
+
+    private static final int MAGIC = 0x48434B50;
+
+    private static final int VERSION = 1;
+
+    private final HexGrowingSOM som;
+
+    private final File stateFile;
+
+    private final long intervalMillis;
+
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    private File codebookFile;
+
+    /**
+     * @param som the SOM being trained.
+     * @param stateFile the state file of the checkpoints; the codebook files are written next to it.
+     * @param intervalMillis the time between two checkpoints.
+     */
+    public HexCheckpointWriter(HexGrowingSOM som, File stateFile, long intervalMillis) {
+        this.som = som;
+        this.stateFile = stateFile;
+        this.intervalMillis = intervalMillis;
+        if (stateFile.exists()) {
+            try {
+                codebookFile = readCodebookFile(stateFile);
+            } catch (IOException e) {
+                // an unreadable checkpoint is simply replaced by the next one
+            }
+        }
+    }
+
+    /** Returns the state file of the checkpoints of training with the given output directory and name prefix. */
+    public static File getStateFile(String outputDirectory, String namePrefix) {
+        return new File(outputDirectory, namePrefix + FILE_SUFFIX);
+    }
+
+    // @Override
+    public void checkpoint(HexagonalLayer layer, HexagonalTrainingState state) {
+        if (System.currentTimeMillis() - lastCheckpoint < intervalMillis) {
+            return;
+        }
+        try {
+            write(state);
+            lastCheckpoint = System.currentTimeMillis();
+        } catch (IOException e) {
+            // training goes on; the previous checkpoint, if any, stays valid
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                    "Could not write checkpoint " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+    /** Writes a checkpoint of the current weights and the given state. */
+    public void write(HexagonalTrainingState state) throws IOException {
+        File previous = codebookFile;
+        File codebook = new File(stateFile.getPath() + "-" + state.getSamples() + BinaryCodebookOutputter.FILE_SUFFIX);
+        if (codebook.equals(previous)) {
+            return;
+        }
+        File temporary = new File(codebook.getPath() + ".tmp");
+        // the schedule is kept in the state file, so the total number of iterations is left open
+        som.writeBinaryCodebook(temporary, state.getSamples(), 0);
+        sync(temporary);
+        rename(temporary, codebook);
+
+        Properties properties = new Properties();
+        state.store(properties);
+        properties.setProperty("codebook", codebook.getName());
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        properties.store(text, null);
+        temporary = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(text.size());
+            text.writeTo(out);
+            int[] bmus = state.getPreviousBMUs();
+            out.writeInt(bmus != null ? bmus.length : -1);
+            for (int i = 0; bmus != null && i < bmus.length; i++) {
+                out.writeInt(bmus[i]);
+            }
+        } finally {
+            out.close();
+        }
+        sync(temporary);
+        rename(temporary, stateFile);
+        codebookFile = codebook;
+        if (previous != null && !previous.equals(codebook)) {
+            previous.delete();
+        }
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Wrote checkpoint at epoch " + state.getEpoch() + ", sample " + state.getSamples() + ".");
+    }
+
+    /** Deletes the files of the last checkpoint, e.g. after the training has finished. */
+    public void delete() {
+        stateFile.delete();
+        if (codebookFile != null) {
+            codebookFile.delete();
+        }
+    }
+
+    /**
+     * Restores the SOM from the checkpoint with the given state file, with its training state set, so that training it
+     * continues the interrupted training.
+     */
+    public static HexGrowingSOM restore(File stateFile) throws SOMToolboxException, IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile), 1 << 16));
+        Properties properties = new Properties();
+        int[] bmus = null;
+        try {
+            readHeader(in, stateFile);
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            properties.load(new ByteArrayInputStream(text));
+            int length = in.readInt();
+            if (length >= 0) {
+                bmus = new int[length];
+                for (int i = 0; i < length; i++) {
+                    bmus[i] = in.readInt();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        HexagonalTrainingState state;
+        try {
+            state = HexagonalTrainingState.load(properties);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid checkpoint " + stateFile + ": " + e.getMessage());
+        }
+        state.setPreviousBMUs(bmus);
+        File codebook = new File(stateFile.getParentFile(), properties.getProperty("codebook", ""));
+        HexGrowingSOM som = new HexGrowingSOM(new BinaryCodebookReader(codebook.getPath()));
+        som.setTrainingState(state);
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Restored checkpoint " + stateFile + (state.getMode() == HexagonalTrainingState.Mode.online ? " after "
+                        + state.getEpoch() + " growth phases." : " at epoch " + state.getEpoch() + " of "
+                        + state.getEpochs() + "."));
+        return som;
+    }
+
+    private static File readCodebookFile(File stateFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+        try {
+            readHeader(in, stateFile);
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            Properties properties = new Properties();
+            properties.load(new ByteArrayInputStream(text));
+            String name = properties.getProperty("codebook");
+            return name != null ? new File(stateFile.getParentFile(), name) : null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readHeader(DataInputStream in, File stateFile) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(stateFile + " is not a checkpoint.");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version + " in " + stateFile + ".");
+        }
+    }
+
+    /** Forces the content of the file to the disk, so that it is complete before it is renamed. */
+    private static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // replaces the target atomically on POSIX file systems; elsewhere, the target has to be removed first
+        if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+            throw new IOException("Could not rename " + from + " to " + to + ".");
+        }
+    }
+}
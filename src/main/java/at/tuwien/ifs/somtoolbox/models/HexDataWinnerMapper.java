@@ -0,0 +1,73 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.apps.config.AbstractOptionFactory;
+import at.tuwien.ifs.somtoolbox.apps.config.OptionFactory;
+import at.tuwien.ifs.somtoolbox.data.SOMLibVectorStream;
+import at.tuwien.ifs.somtoolbox.input.BinaryCodebookReader;
+import at.tuwien.ifs.somtoolbox.input.SOMLibDataWinnerMapping;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+
+/**
+ * Maps new input vectors onto a trained {@link HexGrowingSOM} without training, and writes their data winner mapping
+ * file. The map is read from a binary codebook (<code>.hcb</code>) or a SOMLib weight vector file; the input vectors
+ * are streamed from a SOMLib vector file, so the data set need not fit into memory.
+ *
+ * @see HexGrowingSOM#writeDataWinnerMappingFile
+ * @version $Id: $
+ */
+public class HexDataWinnerMapper {
+
+    private static final Parameter[] OPTIONS = {
+            new FlaggedOption("weightVectorFile", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, true, 'w', "weightVectorFile",
+                    "The trained map, a binary codebook or a SOMLib weight vector file."),
+            new FlaggedOption("mapDescriptionFile", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, 'm',
+                    "mapDescriptionFile", "The map description file of a SOMLib weight vector file."),
+            new FlaggedOption("inputVectorFile", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, true, 'v', "inputVectorFile",
+                    "The input vectors to map, in SOMLib format."),
+            new FlaggedOption("output", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, true, 'o', "output",
+                    "The data winner mapping file to write, without the suffix .dwm.gz."),
+            new FlaggedOption("numberWinners", JSAP.INTEGER_PARSER,
+                    String.valueOf(SOMLibDataWinnerMapping.MAX_DATA_WINNERS), false, 'n', "numberWinners",
+                    "The number of winners per input vector."),
+            new FlaggedOption("cpus", JSAP.INTEGER_PARSER, "1", false, JSAP.NO_SHORTFLAG, "cpus",
+                    "The number of threads mapping the input vectors.") };
+
+    public static void main(String[] args) {
+        JSAPResult config = OptionFactory.parseResults(args, OPTIONS);
+        String weightFileName = AbstractOptionFactory.getFilePath(config, "weightVectorFile");
+        String mapDescFileName = AbstractOptionFactory.getFilePath(config, "mapDescriptionFile");
+        String vectorFileName = AbstractOptionFactory.getFilePath(config, "inputVectorFile");
+        File output = new File(config.getString("output"));
+        HexagonalLayer.setNO_CPUS(Math.min(config.getInt("cpus"), Runtime.getRuntime().availableProcessors()));
+
+        try {
+            HexGrowingSOM som;
+            if (weightFileName.endsWith(BinaryCodebookOutputter.FILE_SUFFIX)) {
+                som = new HexGrowingSOM(new BinaryCodebookReader(weightFileName));
+            } else {
+                // only the top map is mapped to, so its sub-maps are never read
+                som = new HexHierarchyRestorer(1, true).restore(weightFileName, null, mapDescFileName);
+            }
+            SOMLibVectorStream stream = new SOMLibVectorStream(vectorFileName);
+            try {
+                String dir = output.getParent() != null ? output.getParent() + File.separator : "";
+                som.writeDataWinnerMappingFile(stream, config.getInt("numberWinners"), dir, output.getName(), true);
+            } finally {
+                stream.close();
+            }
+        } catch (Exception e) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
+            System.exit(-1);
+        }
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Finished mapping " + vectorFileName + ".");
+    }
+}
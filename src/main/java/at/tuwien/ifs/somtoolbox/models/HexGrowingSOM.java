@@ -1,34 +1,51 @@
 package at.tuwien.ifs.somtoolbox.models;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
-
 import org.apache.commons.lang.NotImplementedException;
 
 import at.tuwien.ifs.somtoolbox.SOMToolboxException;
 import at.tuwien.ifs.somtoolbox.apps.config.AbstractOptionFactory;
 import at.tuwien.ifs.somtoolbox.apps.config.OptionFactory;
+import at.tuwien.ifs.somtoolbox.data.BinaryVectorCache;
 import at.tuwien.ifs.somtoolbox.data.InputData;
+import at.tuwien.ifs.somtoolbox.data.InputDataVectorStream;
+import at.tuwien.ifs.somtoolbox.data.InputVectorStream;
+import at.tuwien.ifs.somtoolbox.data.SOMLibVectorStream;
 import at.tuwien.ifs.somtoolbox.data.SOMVisualisationData;
 import at.tuwien.ifs.somtoolbox.data.SharedSOMVisualisationData;
+import at.tuwien.ifs.somtoolbox.input.BinaryCodebookReader;
 import at.tuwien.ifs.somtoolbox.input.SOMInputReader;
 import at.tuwien.ifs.somtoolbox.input.SOMLibDataWinnerMapping;
 import at.tuwien.ifs.somtoolbox.input.SOMLibFormatInputReader;
 import at.tuwien.ifs.somtoolbox.layers.GrowingLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalGrid;
 import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalQualityEvaluator;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalTrainingMetrics;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalTrainingState;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalWinnerMapper;
 import at.tuwien.ifs.somtoolbox.layers.Layer.GridTopology;
 import at.tuwien.ifs.somtoolbox.layers.LayerAccessException;
-import at.tuwien.ifs.somtoolbox.layers.TrainingInterruptionListener;
 import at.tuwien.ifs.somtoolbox.layers.Unit;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
+import at.tuwien.ifs.somtoolbox.layers.metrics.MetricException;
+import at.tuwien.ifs.somtoolbox.layers.quality.HexagonalQualityMeasure;
+import at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter;
+import at.tuwien.ifs.somtoolbox.output.DataWinnerMappingWriter;
 import at.tuwien.ifs.somtoolbox.output.HTMLOutputter;
 import at.tuwien.ifs.somtoolbox.output.SOMLibMapOutputter;
+import at.tuwien.ifs.somtoolbox.output.TrainingMetricsLog;
 import at.tuwien.ifs.somtoolbox.output.labeling.AbstractLabeler;
 import at.tuwien.ifs.somtoolbox.output.labeling.Labeler;
 import at.tuwien.ifs.somtoolbox.properties.FileProperties;
+import at.tuwien.ifs.somtoolbox.properties.HexSOMProperties;
+import at.tuwien.ifs.somtoolbox.properties.HexSOMProperties.CodebookFormat;
+import at.tuwien.ifs.somtoolbox.properties.HexSOMProperties.InputMode;
+import at.tuwien.ifs.somtoolbox.properties.HexSOMProperties.TrainingMode;
 import at.tuwien.ifs.somtoolbox.properties.PropertiesException;
 import at.tuwien.ifs.somtoolbox.properties.SOMProperties;
 import at.tuwien.ifs.somtoolbox.util.StdErrProgressWriter;
@@ -37,6 +54,12 @@ import at.tuwien.ifs.somtoolbox.visualization.FuzzyColourCodingVisualiser;
 import com.martiansoftware.jsap.JSAPResult;
 
 public class HexGrowingSOM extends GrowingSOM {
+
+    /** The state of batch or mini-batch training, see {@link #setTrainingState(HexagonalTrainingState)}. */
+    private HexagonalTrainingState trainingState;
+
+    /** A sub-map not yet restored, see {@link HexHierarchyRestorer}. */
+    private volatile HexHierarchyRestorer.SubMap pendingSubMap;
 	
 	public static void main(String[] args) {
         InputData data = null;
@@ -44,6 +67,7 @@ public class HexGrowingSOM extends GrowingSOM {
 
         HexGrowingSOM som = null;
         SOMProperties somProps = null;
+        HexSOMProperties hexProps = null;
         String networkModelName = "GrowingSOM";
 
         // register and parse all options
@@ -94,38 +118,137 @@ public class HexGrowingSOM extends GrowingSOM {
         try {
             fileProps = new FileProperties(propFileName);
             somProps = new SOMProperties(propFileName);
+            hexProps = new HexSOMProperties(propFileName);
         } catch (PropertiesException e) {
             Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
             System.exit(-1);
         }
 
-        data = getInputData(fileProps);
+        HexagonalCodebook.setDistanceKernel(hexProps.createDistanceKernel());
 
-        if (weightFileName == null) {
-            som = new HexGrowingSOM(data.isNormalizedToUnitLength(), somProps, data);
+        InputVectorStream stream = null;
+        if (hexProps.inputMode() == InputMode.stream) {
+            if (somProps.pca()) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                        "PCA initialisation is not supported with inputMode=stream. Aborting.");
+                System.exit(-1);
+            }
+            try {
+                if (hexProps.inputCacheDirectory() != null) {
+                    stream = BinaryVectorCache.open(fileProps.vectorFileName(true), new File(
+                            hexProps.inputCacheDirectory()));
+                } else {
+                    stream = new SOMLibVectorStream(fileProps.vectorFileName(true));
+                }
+            } catch (IOException e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
+                System.exit(-1);
+            }
         } else {
+            data = getInputData(fileProps);
+        }
+
+        File checkpointFile = HexCheckpointWriter.getStateFile(fileProps.outputDirectory(),
+                fileProps.namePrefix(false));
+        if (hexProps.checkpointInterval() > 0 && checkpointFile.exists()) {
             try {
-                som = new HexGrowingSOM(new SOMLibFormatInputReader(weightFileName, null, mapDescFileName));
+                som = HexCheckpointWriter.restore(checkpointFile);
+            } catch (Exception e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                        "Could not resume from checkpoint " + checkpointFile + ": " + e.getMessage() + " Aborting.");
+                System.exit(-1);
+            }
+        } else if (weightFileName == null) {
+            if (data != null) {
+                som = new HexGrowingSOM(data.isNormalizedToUnitLength(), somProps, data);
+            } else {
+                som = new HexGrowingSOM(1, null, stream.dim(), false, somProps, null);
+            }
+        } else {
+            try {
+                if (weightFileName.endsWith(BinaryCodebookOutputter.FILE_SUFFIX)) {
+                    som = new HexGrowingSOM(new BinaryCodebookReader(weightFileName));
+                } else {
+                    som = new HexHierarchyRestorer(cpus, false).restore(weightFileName, null, mapDescFileName);
+                }
             } catch (Exception e) {
                 Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
                 System.exit(-1);
             }
         }
 
+        HexCheckpointWriter checkpointWriter = null;
+        if (hexProps.checkpointInterval() > 0) {
+            checkpointWriter = new HexCheckpointWriter(som, checkpointFile, hexProps.checkpointInterval() * 1000L);
+            ((HexagonalLayer) som.getLayer()).setCheckpointListener(checkpointWriter);
+        }
+
+        HexIntermediateSOMDumper dumper = null;
         if (somProps.getDumpEvery() > 0) {
-            IntermediateSOMDumper dumper = som.new IntermediateSOMDumper(fileProps);
+            dumper = new HexIntermediateSOMDumper(som, fileProps, hexProps.codebookFormat(), hexProps.dumpQueueSize(),
+                    hexProps.dumpQueuePolicy());
             som.layer.setTrainingInterruptionListener(dumper, somProps.getDumpEvery());
         }
 
+        HexagonalTrainingMetrics metrics = null;
+        TrainingMetricsLog metricsLog = null;
+        if (hexProps.metrics() || hexProps.metricsLog() != null) {
+            metrics = new HexagonalTrainingMetrics();
+            ((HexagonalLayer) som.getLayer()).setTrainingMetrics(metrics);
+            if (hexProps.metrics()) {
+                metrics.register(fileProps.namePrefix(false));
+            }
+            if (hexProps.metricsLog() != null) {
+                try {
+                    metricsLog = new TrainingMetricsLog(metrics, new File(hexProps.metricsLog()),
+                            hexProps.metricsInterval() * 1000L);
+                } catch (IOException e) {
+                    Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                            "Could not open metrics log " + hexProps.metricsLog() + ": " + e.getMessage());
+                }
+            }
+        }
+
         // setting input data so it is accessible by map output
         som.setSharedInputObjects(new SharedSOMVisualisationData(null, null, null, null,
                 fileProps.vectorFileName(true), fileProps.templateFileName(true), null));
-        som.getSharedInputObjects().setData(SOMVisualisationData.INPUT_VECTOR, data);
+        if (data != null) {
+            som.getSharedInputObjects().setData(SOMVisualisationData.INPUT_VECTOR, data);
+        }
 
-        som.train(data, somProps);
+        try {
+            if (data != null) {
+                som.train(data, somProps, hexProps);
+            } else {
+                som.train(stream, somProps, hexProps);
+            }
+        } catch (SOMToolboxException e) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
+            System.exit(-1);
+        }
+        if (dumper != null) {
+            dumper.close();
+        }
+        if (checkpointWriter != null) {
+            // the training has finished, a new run starts from scratch
+            ((HexagonalLayer) som.getLayer()).setCheckpointListener(null);
+            checkpointWriter.delete();
+        }
+        if (metrics != null) {
+            ((HexagonalLayer) som.getLayer()).setTrainingMetrics(null);
+            if (metricsLog != null) {
+                metricsLog.close();
+            }
+            metrics.unregister();
+        }
 
         if (labelerName != null) { // if labeling then label
-            labeler.label(som, data, numLabels);
+            if (data != null) {
+                labeler.label(som, data, numLabels);
+            } else {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                        "Skipping labeling, as it needs all input data in memory.");
+            }
         }
 
         try {
@@ -136,19 +259,45 @@ public class HexGrowingSOM extends GrowingSOM {
                     "Could not open or write to output file " + fileProps.namePrefix(false) + ": " + e.getMessage());
             System.exit(-1);
         }
+        if (hexProps.codebookFormat() == CodebookFormat.binary) {
+            String fileName = fileProps.outputDirectory() + fileProps.namePrefix(false)
+                    + BinaryCodebookOutputter.FILE_SUFFIX;
+            try {
+                som.writeBinaryCodebook(new File(fileName), somProps.numIterations(), somProps.numIterations());
+            } catch (IOException e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                        "Could not open or write to output file " + fileName + ": " + e.getMessage());
+                System.exit(-1);
+            }
+        }
         if (!skipDataWinnerMapping) {
-            numWinners = Math.min(numWinners, som.getLayer().getXSize() * som.getLayer().getYSize());
             try {
-                SOMLibMapOutputter.writeDataWinnerMappingFile(som, data, numWinners, fileProps.outputDirectory(),
-                        fileProps.namePrefix(false), true);
+                if (data != null) {
+                    som.writeDataWinnerMappingFile(data, numWinners, fileProps.outputDirectory(),
+                            fileProps.namePrefix(false), true);
+                } else {
+                    som.writeDataWinnerMappingFile(stream, numWinners, fileProps.outputDirectory(),
+                            fileProps.namePrefix(false), true);
+                }
             } catch (IOException e) {
                 Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
                         "Could not open or write to output file " + fileProps.namePrefix(false) + ": " + e.getMessage());
                 System.exit(-1);
+            } catch (SOMToolboxException e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
+                System.exit(-1);
             }
         } else {
             Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Skipping writing data winner mapping file");
         }
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                        "Could not close input vector file: " + e.getMessage());
+            }
+        }
 
         if (config.getBoolean("htmlOutput") == true) {
             try {
@@ -164,60 +313,345 @@ public class HexGrowingSOM extends GrowingSOM {
                 "finished" + networkModelName + "(" + som.getLayer().getGridLayout() + ", "
                         + som.getLayer().getGridTopology() + ")");
         
-        MyFuzzyColourCodingVisualiser visualizer = new MyFuzzyColourCodingVisualiser();
-        try {
-			BufferedImage img = visualizer.createVisualization(0, som, 5000, 5000);
-			File outputfile = new File(fileProps.outputDirectory() + "/som.png");
-		    ImageIO.write(img, "png", outputfile);
-		} catch (SOMToolboxException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+        if (hexProps.imageWidth() > 0 && hexProps.imageHeight() > 0) {
+            MyFuzzyColourCodingVisualiser visualizer = new MyFuzzyColourCodingVisualiser();
+            File outputfile = new File(fileProps.outputDirectory() + "/som.png");
+            try {
+                TilePainter painter = visualizer.createPainter(som, hexProps.imageWidth(), hexProps.imageHeight());
+                new TiledImageRenderer(hexProps.imageTileSize()).render(painter, hexProps.imageWidth(),
+                        hexProps.imageHeight(), outputfile);
+            } catch (SOMToolboxException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-	private class IntermediateSOMDumper implements TrainingInterruptionListener {
-
-	    private final FileProperties fileProperties;
-
-	    public IntermediateSOMDumper(FileProperties fileProperties) {
-	        this.fileProperties = fileProperties;
-	    }
-
-	   // @Override
-	    public void interruptionOccurred(int currentIteration, int numIterations) {
-	        // FIXME: maybe skip writing the SOM at 0 iterations (0 mod x == 0 ...)
-	        String filename = fileProperties.namePrefix(false) + "_" + currentIteration;
-	        try {
-	            SOMLibMapOutputter.writeWeightVectorFile(HexGrowingSOM.this, fileProperties.outputDirectory(), filename,
-	                    true, "$CURRENT_ITERATION=" + currentIteration, "$NUM_ITERATIONS=" + numIterations);
-	        } catch (IOException e) {
-	            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
-	                    "Could not open or write to output file " + filename + ": " + e.getMessage());
-	        }
-
-	    }
+    /**
+     * The quality measure of layers that were not trained by the online algorithm of {@link GrowingLayer}, which uses
+     * the adjacency of the hexagonal grid.
+     */
+    private static final String HEXAGONAL_QUALITY_MEASURE = HexagonalQualityMeasure.class.getName() + ".mqe";
 
-	}
-	
 	public HexGrowingSOM(boolean norm, SOMProperties props, InputData data) {
         initLayer(norm, props, data);
     }
 
+    /**
+     * Creates the layer, planar or toroidal as given by the grid topology; the neighbourhood and map distances of a
+     * toroidal layer wrap around its borders, see {@link at.tuwien.ifs.somtoolbox.layers.HexagonalGrid}.
+     */
     private void initLayer(boolean norm, SOMProperties props, InputData data) {
-        if (props.getGridTopology() == GridTopology.planar) {
-            layer = new HexagonalLayer(props.xSize(), props.ySize(), props.zSize(), props.metricName(), data.dim(), norm,
-                    props.pca(), props.randomSeed(), data);
-        }else {
-            throw new NotImplementedException("Supported for grid topology " + props.getGridTopology()
-                    + " not yet implemented.");
+        checkGridTopology(props.getGridTopology());
+        layer = new HexagonalLayer(props.xSize(), props.ySize(), props.zSize(), props.metricName(), data.dim(), norm,
+                props.pca(), props.randomSeed(), data);
+        initGridTopology(props.getGridTopology());
+    }
+
+    private static void checkGridTopology(GridTopology topology) {
+        if (topology != GridTopology.planar && topology != GridTopology.toroid) {
+            throw new NotImplementedException("Supported for grid topology " + topology + " not yet implemented.");
+        }
+    }
+
+    private void initGridTopology(GridTopology topology) {
+        if (topology == GridTopology.toroid) {
+            layer.setGridTopology(GridTopology.toroid);
         }
     }
     
-    public HexGrowingSOM(SOMInputReader ir) {
+    /**
+     * Trains the SOM with the training mode selected in <code>hexProps</code>. The online mode is the training of
+     * {@link GrowingSOM#train(InputData, SOMProperties)}; the batch mode uses {@link HexagonalLayer#trainBatch}, and
+     * the mini-batch mode {@link HexagonalLayer#trainMiniBatch}, with the number of epochs derived from the number of
+     * iterations unless given explicitly.
+     */
+    public void train(InputData data, SOMProperties props, HexSOMProperties hexProps) throws SOMToolboxException {
+        HexagonalLayer hexLayer = (HexagonalLayer) layer;
+        hexLayer.setBMUSearch(hexProps.createBMUSearch());
+        if (hexProps.trainingMode() == TrainingMode.online) {
+            if (trainingState != null && trainingState.getMode() != HexagonalTrainingState.Mode.online) {
+                throw new SOMToolboxException("Cannot resume " + trainingState.getMode()
+                        + " training with trainingMode=online.");
+            }
+            train(data, props);
+        } else {
+            try {
+                trainParallel(new InputDataVectorStream(data), props, hexProps);
+                // the inputs are still mapped with the winner search on the codebook
+                layer.mapCompleteDataAfterTraining(data);
+            } finally {
+                hexLayer.setFlatWeightStore(false);
+            }
+        }
+    }
+
+    /**
+     * Trains the SOM with the online algorithm of {@link GrowingSOM#train(InputData, SOMProperties)}. If
+     * <code>tau</code> is between <code>0</code> and <code>1</code>, the map grows as a layer of a GHSOM does: after
+     * each training phase of <code>numIterations</code> iterations, it grows at the unit with the highest quantization
+     * error, see {@link HexagonalLayer#growAt(int, int, int)}, until the mean of the units' mean quantization errors is
+     * at most <code>tau</code> times the mean quantization error of the data to their mean vector. The growth of
+     * {@link GrowingLayer} is not used, as the rows it inserts would change the parity, i.e. the neighbourhoods, of
+     * the rows behind them; each phase trains a map of static size with the learning rate, radius, metric and seed of
+     * <code>props</code>.
+     * <p>
+     * The growth is recorded in an online {@link HexagonalTrainingState}, which is offered to the checkpoint listener
+     * of the layer after each growth. If the SOM has a restored online state, see
+     * {@link #setTrainingState(HexagonalTrainingState)}, the training continues with the next phase, towards the
+     * quantization error recorded in the state.
+     */
+    @Override
+    public void train(InputData data, SOMProperties props) {
+        if (props.tau() <= 0 || props.tau() >= 1) {
+            super.train(data, props);
+            return;
+        }
+        HexagonalLayer hexLayer = (HexagonalLayer) getLayer();
+        try {
+            if (trainingState == null || trainingState.getMode() != HexagonalTrainingState.Mode.online) {
+                trainingState = HexagonalTrainingState.online(props.tau() * getMeanQuantizationError(data, hexLayer));
+            } else {
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                        "Resuming growth after " + trainingState.getEpoch() + " phases.");
+            }
+            double target = trainingState.getGrowthTarget();
+            while (true) {
+                super.train(data, new SOMProperties(hexLayer.getXSize(), hexLayer.getYSize(), hexLayer.getZSize(),
+                        props.randomSeed(), 0, props.numIterations(), props.learnrate(), props.sigma(), -1,
+                        props.metricName(), false));
+                HexagonalGrid grid = hexLayer.getGrid();
+                int[] counts = new int[grid.getNumberOfUnits()];
+                double[] errors = hexLayer.getQuantizationErrors(data, counts);
+                double mqe = 0;
+                int mapped = 0;
+                int errorUnit = -1;
+                for (int i = 0; i < errors.length; i++) {
+                    if (counts[i] > 0) {
+                        mqe += errors[i] / counts[i];
+                        mapped++;
+                        if (errorUnit < 0 || errors[i] > errors[errorUnit]) {
+                            errorUnit = i;
+                        }
+                    }
+                }
+                mqe /= Math.max(1, mapped);
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                        "Map of " + hexLayer.getXSize() + "x" + hexLayer.getYSize() + " units has mqe " + mqe
+                                + ", growing until " + target + ".");
+                // a map with as many units as inputs cannot improve by growing
+                if (mqe <= target || errorUnit < 0 || errors.length >= data.numVectors()) {
+                    break;
+                }
+                if (!hexLayer.growAt(grid.getX(errorUnit), grid.getY(errorUnit), grid.getZ(errorUnit))) {
+                    break;
+                }
+                // the weights of the grown map and the state are consistent until the next phase starts
+                trainingState.finishPhase(props.numIterations());
+                if (hexLayer.getCheckpointListener() != null) {
+                    hexLayer.getCheckpointListener().checkpoint(hexLayer, trainingState);
+                }
+            }
+        } catch (PropertiesException e) {
+            throw new IllegalArgumentException("Invalid training properties: " + e.getMessage(), e);
+        } catch (LayerAccessException e) {
+            throw new IllegalStateException("Could not grow the map: " + e.getMessage(), e);
+        } catch (MetricException e) {
+            throw new IllegalStateException("Could not measure the quantization error: " + e.getMessage(), e);
+        }
+    }
+
+    /** Returns the mean distance of the inputs to their mean vector, i.e. the quantization error of a single unit. */
+    private static double getMeanQuantizationError(InputData data, GrowingLayer layer) throws MetricException {
+        double[] mean = new double[data.dim()];
+        for (int i = 0; i < data.numVectors(); i++) {
+            double[] vector = data.getInputDatum(i).getVector().toArray();
+            for (int k = 0; k < mean.length; k++) {
+                mean[k] += vector[k] / data.numVectors();
+            }
+        }
+        double error = 0;
+        for (int i = 0; i < data.numVectors(); i++) {
+            error += layer.getMetric().distance(mean, data.getInputDatum(i).getVector().toArray());
+        }
+        return error / Math.max(1, data.numVectors());
+    }
+
+    /**
+     * Trains the SOM on a stream of input vectors that is read anew in each epoch, e.g. a {@link SOMLibVectorStream}
+     * for data that does not fit into memory. This requires the batch or mini-batch training mode; as there is no
+     * {@link InputData}, the inputs are not mapped onto the units after training.
+     */
+    public void train(InputVectorStream input, SOMProperties props, HexSOMProperties hexProps)
+            throws SOMToolboxException {
+        if (hexProps.trainingMode() == TrainingMode.online) {
+            throw new SOMToolboxException(
+                    "Training on a stream of input vectors requires trainingMode=batch or trainingMode=minibatch.");
+        }
+        HexagonalLayer hexLayer = (HexagonalLayer) layer;
+        hexLayer.setBMUSearch(hexProps.createBMUSearch());
+        try {
+            trainParallel(input, props, hexProps);
+        } finally {
+            hexLayer.setFlatWeightStore(false);
+        }
+    }
+
+    /**
+     * Sets the state from which the next batch, mini-batch or growing online training continues, e.g. one restored by
+     * {@link HexCheckpointWriter#restore(File)}; <code>null</code> starts a new training.
+     */
+    public void setTrainingState(HexagonalTrainingState trainingState) {
+        this.trainingState = trainingState;
+    }
+
+    /** Returns the state of the last or current batch, mini-batch or growing online training, or <code>null</code>. */
+    public HexagonalTrainingState getTrainingState() {
+        return trainingState;
+    }
+
+    private void trainParallel(InputVectorStream input, SOMProperties props, HexSOMProperties hexProps)
+            throws SOMToolboxException {
+        HexagonalLayer hexLayer = (HexagonalLayer) layer;
+        if (!(layer.getMetric() instanceof L2Metric)) {
+            throw new SOMToolboxException("trainingMode=" + hexProps.trainingMode()
+                    + " computes Euclidean distances only, but the map uses "
+                    + layer.getMetric().getClass().getSimpleName() + "; use trainingMode=online or L2Metric.");
+        }
+        // the codebook is the master copy of the weights until the caller disables the flat store, which copies them
+        // back into the units for online training, growth and the outputters
+        hexLayer.setFlatWeightStore(true);
+        hexLayer.setSinglePrecision(hexProps.singlePrecision());
+        hexLayer.setQualityEvaluator(hexProps.qualitySampleRate() > 0 ? new HexagonalQualityEvaluator(
+                hexProps.qualitySampleRate(), props.randomSeed()) : null);
+        if (trainingState != null) {
+            if (!trainingState.getMode().name().equals(hexProps.trainingMode().name())) {
+                throw new SOMToolboxException("Cannot resume " + trainingState.getMode()
+                        + " training with trainingMode=" + hexProps.trainingMode() + ".");
+            }
+            hexLayer.train(input, trainingState);
+            layer.setQualityMeasure(HEXAGONAL_QUALITY_MEASURE);
+            return;
+        }
+        int epochs = hexProps.batchEpochs();
+        if (epochs == 0) {
+            if (input.numVectors() < 0) {
+                throw new SOMToolboxException("The number of input vectors is unknown, batchEpochs must be given.");
+            }
+            epochs = (int) Math.max(1, Math.round(props.numIterations() / (double) Math.max(1, input.numVectors())));
+        }
+        double sigma = props.sigma() > 0 ? props.sigma() : Math.max(layer.getXSize(), layer.getYSize()) / 2.0;
+        double sigmaStart = Math.max(sigma, hexProps.batchSigmaEnd());
+        if (hexProps.trainingMode() == TrainingMode.minibatch) {
+            // the learning rate decays to a hundredth of the initial one, as the radius decays to batchSigmaEnd
+            trainingState = HexagonalTrainingState.miniBatch(epochs, props.learnrate(), props.learnrate() / 100,
+                    sigmaStart, hexProps.batchSigmaEnd(), hexProps.miniBatchSize(), hexProps.chunkSize());
+        } else {
+            trainingState = HexagonalTrainingState.batch(epochs, sigmaStart, hexProps.batchSigmaEnd(),
+                    hexProps.chunkSize());
+        }
+        hexLayer.train(input, trainingState);
+        layer.setQualityMeasure(HEXAGONAL_QUALITY_MEASURE);
+    }
+
+    /**
+     * Restores a trained SOM, and sequentially the sub-maps expanded from its units. See {@link HexHierarchyRestorer}
+     * for restoring the sub-maps in parallel or lazily.
+     * 
+     * @throws SOMToolboxException if the map or one of its sub-maps cannot be restored.
+     */
+    public HexGrowingSOM(SOMInputReader ir) throws SOMToolboxException {
         this(1, null, ir);
     }
 
+    /** Creates a SOM around an existing layer, e.g. a snapshot of another SOM. */
+    HexGrowingSOM(HexagonalLayer layer) {
+        this.layer = layer;
+        layer.setQualityMeasure(HEXAGONAL_QUALITY_MEASURE);
+    }
+
+    /**
+     * Restores a SOM from a binary codebook written by {@link #writeBinaryCodebook(File, long, long)}. The binary
+     * format holds the weight vectors only, so the units have neither mapped inputs nor labels.
+     */
+    public HexGrowingSOM(BinaryCodebookReader reader) throws SOMToolboxException, IOException {
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info(
+                "Restoring layer from binary codebook at iteration " + reader.getIteration() + ".");
+        HexagonalLayer hexLayer = new HexagonalLayer(1, null, reader.getXSize(), reader.getYSize(), reader.getZSize(),
+                reader.getMetricName(), reader.getDim(), reader.getVectors(), 7);
+        if (reader.getGridLayout() != null) {
+            hexLayer.setGridLayout(reader.getGridLayout());
+        }
+        if (reader.getGridTopology() != null) {
+            hexLayer.setGridTopology(reader.getGridTopology());
+        }
+        hexLayer.setQualityMeasure(HEXAGONAL_QUALITY_MEASURE);
+        layer = hexLayer;
+    }
+
+    /**
+     * Writes the weight vectors in the binary codebook format of {@link BinaryCodebookOutputter}. This is considerably
+     * faster than {@link SOMLibMapOutputter#writeWeightVectorFile}, and is meant for intermediate dumps and
+     * checkpoints; the SOMLib format remains the format for exchange with other tools.
+     */
+    public void writeBinaryCodebook(File file, long iteration, long numIterations) throws IOException {
+        HexagonalLayer hexLayer = (HexagonalLayer) layer;
+        if (!hexLayer.isFlatWeightStore()) {
+            // the units hold the current weights
+            hexLayer.reloadWeights();
+        }
+        String metricName = layer.getMetric() != null ? layer.getMetric().getClass().getName() : null;
+        BinaryCodebookOutputter.write(hexLayer.getCodebook(), layer.getGridLayout(), layer.getGridTopology(),
+                metricName, iteration, numIterations, file);
+    }
+
+    /**
+     * Writes the data winner mapping file of the given inputs, with the {@link HexagonalWinnerMapper} of
+     * {@link #writeDataWinnerMappingFile(InputVectorStream, int, String, String, boolean)} if the layer uses the
+     * Euclidean distance, and with {@link SOMLibMapOutputter#writeDataWinnerMappingFile} for any other metric.
+     */
+    public void writeDataWinnerMappingFile(InputData data, int numWinners, String fDir, String fName, boolean gzipped)
+            throws IOException, SOMToolboxException {
+        if (layer.getMetric() instanceof L2Metric) {
+            writeDataWinnerMappingFile(new InputDataVectorStream(data), numWinners, fDir, fName, gzipped);
+        } else {
+            SOMLibMapOutputter.writeDataWinnerMappingFile(this, data, numWinners, fDir, fName, gzipped);
+        }
+    }
+
+    /**
+     * Maps the input vectors to their <code>numWinners</code> closest units with a {@link HexagonalWinnerMapper}, and
+     * writes the data winner mapping file while mapping. In contrast to
+     * {@link SOMLibMapOutputter#writeDataWinnerMappingFile}, the distances to all units are not sorted per input, the
+     * inputs are mapped in parallel, and they need not be in memory; the stream is read once from its first vector.
+     * The mapper computes Euclidean distances, so the layer has to use the Euclidean metric.
+     */
+    public void writeDataWinnerMappingFile(InputVectorStream input, int numWinners, String fDir, String fName,
+            boolean gzipped) throws IOException, SOMToolboxException {
+        if (!(layer.getMetric() instanceof L2Metric)) {
+            throw new SOMToolboxException("Mapping a stream of input vectors requires L2Metric, the map uses "
+                    + layer.getMetric().getClass().getSimpleName() + ".");
+        }
+        if (input.numVectors() < 0) {
+            throw new SOMToolboxException("The number of input vectors is unknown, cannot write the mapping.");
+        }
+        HexagonalLayer hexLayer = (HexagonalLayer) layer;
+        if (!hexLayer.isFlatWeightStore()) {
+            // the units hold the current weights
+            hexLayer.reloadWeights();
+        }
+        HexagonalCodebook codebook = hexLayer.getCodebook();
+        HexagonalWinnerMapper mapper = new HexagonalWinnerMapper(codebook, numWinners);
+        DataWinnerMappingWriter writer = new DataWinnerMappingWriter(codebook.getGrid(), mapper.getK(),
+                input.numVectors(), fDir, fName, gzipped);
+        try {
+            mapper.map(input, HexagonalLayer.DEFAULT_CHUNK_SIZE, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
     /**
      * Constructs and trains a new <code>GrowingSOM</code>. All the non-specified parameters will be automatically set
      * to <i>"default"</i> values.
@@ -250,8 +684,10 @@ public class HexGrowingSOM extends GrowingSOM {
      * @param props the network properties.
      */
     public HexGrowingSOM(int id, Unit su, int dim, boolean norm, SOMProperties props, InputData data) {
+        checkGridTopology(props.getGridTopology());
         layer = new HexagonalLayer(id, su, props.xSize(), props.ySize(), props.zSize(), props.metricName(), dim, norm,
                 props.pca(), props.randomSeed(), data);
+        initGridTopology(props.getGridTopology());
     }
 
     /**
@@ -262,36 +698,85 @@ public class HexGrowingSOM extends GrowingSOM {
      * @param id a unique identifier used in hierarchies of maps (e.g. the <code>GHSOM</code>).
      * @param su the superordinate unit of the map.
      * @param ir an object implementing the <code>SOMinputReader</code> interface to load an already trained model.
+     * @throws SOMToolboxException if the map or one of its sub-maps cannot be restored.
      */
-    protected HexGrowingSOM(int id, Unit su, SOMInputReader ir) {
-        Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Starting layer restoration.");
+    protected HexGrowingSOM(int id, Unit su, SOMInputReader ir) throws SOMToolboxException {
+        this(id, su, ir, new HexHierarchyRestorer(1, false));
+    }
 
-        // FIXME: the initialisation of the layer should actually be done in the layer class itself
-        try {
-            // TODO: think about rand seed (7), use map description file when provided
-            layer = new HexagonalLayer(id, su, ir.getXSize(), ir.getYSize(), ir.getZSize(), ir.getMetricName(),
-                    ir.getDim(), ir.getVectors(), 7);
-        } catch (SOMToolboxException e) {
-            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage());
-            System.exit(-1);
-        }
-        labelled = ir.isLabelled();
+    /** Restores a map, leaving its sub-maps to the given restorer. */
+    HexGrowingSOM(int id, Unit su, SOMInputReader ir, HexHierarchyRestorer restorer) throws SOMToolboxException {
+        restore(id, su, ir, restorer);
+    }
 
-        restoreHexLayer(id, ir, layer);
+    /** Creates a sub-map that is restored on the first call of {@link #getLayer()}. */
+    HexGrowingSOM(HexHierarchyRestorer.SubMap subMap) {
+        pendingSubMap = subMap;
     }
-    
-    
+
+    /**
+     * Returns the layer of this map. A sub-map restored lazily by a {@link HexHierarchyRestorer} is read now, if it was
+     * not accessed before.
+     * 
+     * @throws IllegalStateException if the lazily restored sub-map cannot be read.
+     */
     public GrowingLayer getLayer() {
+        if (pendingSubMap != null) {
+            restorePendingSubMap();
+        }
         return layer;
     }
 
-    protected HexGrowingSOM(int id, Unit su, SOMInputReader ir, HexagonalLayer layer) {
+    /** Returns whether the map is labelled, restoring a lazily restored sub-map first, see {@link #getLayer()}. */
+    public boolean isLabelled() {
+        if (pendingSubMap != null) {
+            restorePendingSubMap();
+        }
+        return labelled;
+    }
+
+    /** Returns the content type of the map, restoring a lazily restored sub-map first, see {@link #getLayer()}. */
+    public String getContentType() {
+        if (pendingSubMap != null) {
+            restorePendingSubMap();
+        }
+        return contentType;
+    }
+
+    private synchronized void restorePendingSubMap() {
+        HexHierarchyRestorer.SubMap subMap = pendingSubMap;
+        if (subMap == null) { // restored by another thread meanwhile
+            return;
+        }
+        try {
+            restore(subMap.id, subMap.unit, subMap.open(), subMap.getRestorer());
+        } catch (SOMToolboxException e) {
+            throw new IllegalStateException("Could not restore sub-map " + subMap.id + ": " + e.getMessage(), e);
+        }
+        pendingSubMap = null;
+    }
+
+    protected HexGrowingSOM(int id, Unit su, SOMInputReader ir, HexagonalLayer layer) throws SOMToolboxException {
         this.layer = layer;
         labelled = ir.isLabelled();
-        restoreHexLayer(id, ir, layer);
+        restoreHexLayer(id, ir, layer, new HexHierarchyRestorer(1, false));
     }
 
-    private void restoreHexLayer(int id, SOMInputReader ir, GrowingLayer layer) {
+    private void restore(int id, Unit su, SOMInputReader ir, HexHierarchyRestorer restorer)
+            throws SOMToolboxException {
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Starting layer restoration.");
+
+        // FIXME: the initialisation of the layer should actually be done in the layer class itself
+        // TODO: think about rand seed (7), use map description file when provided
+        layer = new HexagonalLayer(id, su, ir.getXSize(), ir.getYSize(), ir.getZSize(), ir.getMetricName(),
+                ir.getDim(), ir.getVectors(), 7);
+        labelled = ir.isLabelled();
+
+        restoreHexLayer(id, ir, layer, restorer);
+    }
+
+    private void restoreHexLayer(int id, SOMInputReader ir, GrowingLayer layer, HexHierarchyRestorer restorer)
+            throws SOMToolboxException {
         layer.setGridLayout(ir.getGridLayout());
         layer.setGridTopology(ir.getGridTopology());
         contentType = ir.getContentType();
@@ -302,60 +787,47 @@ public class HexGrowingSOM extends GrowingSOM {
         Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Restoring state of " + numUnits + " units: ");
 
         StdErrProgressWriter progressWriter = new StdErrProgressWriter(numUnits, "Restoring state of unit ", 10);
-        try {
-            for (int j = 0; j < layer.getYSize(); j++) {
-                for (int i = 0; i < layer.getXSize(); i++) {
-                    // adapted to mnemonic (sparse) SOMs
-                    if (layer.getUnit(i, j, 0) == null) { // if this unit is empty, i.e. not part of the mnemonic map
-                        // --> we skip it
-                        progressWriter.progress("Skipping empty unit " + i + "/" + j + ", ", (currentUnitNum + 1));
-                    } else { // otherwise we read this unit
-                        progressWriter.progress("Restoring state of unit " + i + "/" + j + ", ", (currentUnitNum + 1));
-                        layer.getUnit(i, j, 0).restoreMappings(ir.getNrVecMapped(i, j), ir.getMappedVecs(i, j),
-                                ir.getMappedVecsDist(i, j));
-                        layer.getUnit(i, j, 0).restoreLabels(ir.getNrUnitLabels(i, j), ir.getUnitLabels(i, j),
-                                ir.getUnitLabelsQe(i, j), ir.getUnitLabelsWgt(i, j));
-                        layer.getUnit(i, j, 0).restoreKaskiLabels(ir.getNrKaskiLabels(i, j),
-                                ir.getKaskiUnitLabels(i, j), ir.getKaskiUnitLabelsWgt(i, j));
-                        layer.getUnit(i, j, 0).restoreKaskiGateLabels(ir.getNrKaskiGateLabels(i, j),
-                                ir.getKaskiGateUnitLabels(i, j, 0));
-                        if (ir.getNrSomsMapped(i, j) > 0) { // if expanded then create new growingsom
-                            String subWeightFileName = null;
-                            if (ir.getWeightVectorFileName() != null) {
-                                subWeightFileName = ir.getFilePath() + ir.getUrlMappedSoms(i, j)[0]
-                                        + SOMLibFormatInputReader.weightFileNameSuffix;
-                            }
-                            String subUnitFileName = null;
-                            if (ir.getUnitDescriptionFileName() != null) {
-                                subUnitFileName = ir.getFilePath() + ir.getUrlMappedSoms(i, j)[0]
-                                        + SOMLibFormatInputReader.unitFileNameSuffix;
-                            }
-                            String subMapFileName = null;
-                            if (ir.getMapDescriptionFileName() != null) {
-                                subMapFileName = ir.getFilePath() + ir.getUrlMappedSoms(i, j)[0]
-                                        + SOMLibFormatInputReader.mapFileNameSuffix;
-                            }
-                            try {
-                                layer.getUnit(i, j, 0).setMappedSOM(
-                                        new HexGrowingSOM(++id, layer.getUnit(i, j, 0), new SOMLibFormatInputReader(
-                                                subWeightFileName, subUnitFileName, subMapFileName)));
-                            } catch (Exception e) {
-                                Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
-                                System.exit(-1);
-                            }
+        for (int j = 0; j < layer.getYSize(); j++) {
+            for (int i = 0; i < layer.getXSize(); i++) {
+                // adapted to mnemonic (sparse) SOMs
+                if (layer.getUnit(i, j, 0) == null) { // if this unit is empty, i.e. not part of the mnemonic map
+                    // --> we skip it
+                    progressWriter.progress("Skipping empty unit " + i + "/" + j + ", ", (currentUnitNum + 1));
+                } else { // otherwise we read this unit
+                    progressWriter.progress("Restoring state of unit " + i + "/" + j + ", ", (currentUnitNum + 1));
+                    layer.getUnit(i, j, 0).restoreMappings(ir.getNrVecMapped(i, j), ir.getMappedVecs(i, j),
+                            ir.getMappedVecsDist(i, j));
+                    layer.getUnit(i, j, 0).restoreLabels(ir.getNrUnitLabels(i, j), ir.getUnitLabels(i, j),
+                            ir.getUnitLabelsQe(i, j), ir.getUnitLabelsWgt(i, j));
+                    layer.getUnit(i, j, 0).restoreKaskiLabels(ir.getNrKaskiLabels(i, j),
+                            ir.getKaskiUnitLabels(i, j), ir.getKaskiUnitLabelsWgt(i, j));
+                    layer.getUnit(i, j, 0).restoreKaskiGateLabels(ir.getNrKaskiGateLabels(i, j),
+                            ir.getKaskiGateUnitLabels(i, j, 0));
+                    if (ir.getNrSomsMapped(i, j) > 0) { // if expanded then create new growingsom
+                        String subWeightFileName = null;
+                        if (ir.getWeightVectorFileName() != null) {
+                            subWeightFileName = ir.getFilePath() + ir.getUrlMappedSoms(i, j)[0]
+                                    + SOMLibFormatInputReader.weightFileNameSuffix;
+                        }
+                        String subUnitFileName = null;
+                        if (ir.getUnitDescriptionFileName() != null) {
+                            subUnitFileName = ir.getFilePath() + ir.getUrlMappedSoms(i, j)[0]
+                                    + SOMLibFormatInputReader.unitFileNameSuffix;
                         }
+                        String subMapFileName = null;
+                        if (ir.getMapDescriptionFileName() != null) {
+                            subMapFileName = ir.getFilePath() + ir.getUrlMappedSoms(i, j)[0]
+                                    + SOMLibFormatInputReader.mapFileNameSuffix;
+                        }
+                        restorer.restoreSubMap(restorer.new SubMap(++id, layer.getUnit(i, j, 0),
+                                subWeightFileName, subUnitFileName, subMapFileName));
                     }
-                    currentUnitNum++;
                 }
+                currentUnitNum++;
             }
-            // TODO FIXME : pass the quality measure as parameter!
-            String qualityMeasureName = "at.tuwien.ifs.somtoolbox.layers.quality.QuantizationError.mqe";
-            layer.setQualityMeasure(qualityMeasureName);
-            layer.setCommonVectorLabelPrefix(ir.getCommonVectorLabelPrefix());
-        } catch (LayerAccessException e) {
-            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage());
-            System.exit(-1);
         }
+        layer.setQualityMeasure(HEXAGONAL_QUALITY_MEASURE);
+        layer.setCommonVectorLabelPrefix(ir.getCommonVectorLabelPrefix());
         Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Finished layer restoration.");
         // layer.calculateQuantizationErrorAfterTraining(); is done by the unit.
     }
@@ -0,0 +1,229 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.input.SOMInputReader;
+import at.tuwien.ifs.somtoolbox.input.SOMLibFormatInputReader;
+import at.tuwien.ifs.somtoolbox.layers.Unit;
+
+/**
+ * Restores a hierarchy of {@link HexGrowingSOM}s, i.e. a map together with the sub-maps expanded from its units.
+ * Restoring a map is dominated by parsing its weight vector, unit and map description files. The restorer parses the
+ * sub-maps concurrently on a bounded number of threads: each map schedules its sub-maps as soon as it is restored
+ * itself, so that all maps of the hierarchy are parsed in parallel, not only the siblings of one map.
+ * <p>
+ * Alternatively, sub-maps are restored lazily, on the first call of {@link HexGrowingSOM#getLayer()}; applications that
+ * use only a few branches of a deep hierarchy, or only its top map, then never parse the others. A sub-map that cannot
+ * be restored on access throws an {@link IllegalStateException} with the cause.
+ * <p>
+ * The numbering of the maps is the same as with sequential restoration. Failures are reported as exceptions, never by
+ * terminating the virtual machine. A restorer restores one hierarchy at a time.
+ *
+ * @version $Id: $
+ */
+public class HexHierarchyRestorer {
+
+    private final int threads;
+
+    private final boolean lazy;
+
+    private ExecutorService executor;
+
+    private int pending;
+
+    private Exception failure;
+
+    /**
+     * @param threads the number of threads parsing sub-maps; with <code>1</code>, sub-maps are restored sequentially.
+     * @param lazy whether to restore sub-maps on first access only; the number of threads is ignored then.
+     */
+    public HexHierarchyRestorer(int threads, boolean lazy) {
+        this.threads = Math.max(1, threads);
+        this.lazy = lazy;
+    }
+
+    /** Restores the map read by the given reader, and its sub-maps. */
+    public HexGrowingSOM restore(SOMInputReader ir) throws SOMToolboxException {
+        if (threads > 1 && !lazy) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                // @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HexHierarchyRestorer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        try {
+            HexGrowingSOM som = new HexGrowingSOM(1, null, ir, this);
+            await();
+            return som;
+        } finally {
+            if (executor != null) {
+                shutdown();
+            }
+            synchronized (this) {
+                pending = 0;
+                failure = null;
+            }
+        }
+    }
+
+    /** Restores the map with the given weight vector, unit description and map description files, and its sub-maps. */
+    public HexGrowingSOM restore(String weightFileName, String unitFileName, String mapFileName)
+            throws SOMToolboxException {
+        return restore(open(weightFileName, unitFileName, mapFileName));
+    }
+
+    /**
+     * Restores the sub-map expanded from the given unit, immediately, on another thread or on first access, and sets it
+     * as mapped SOM of the unit.
+     */
+    void restoreSubMap(final SubMap subMap) throws SOMToolboxException {
+        if (lazy) {
+            subMap.unit.setMappedSOM(new HexGrowingSOM(subMap));
+        } else if (hasFailed()) { // the hierarchy is discarded anyway
+            return;
+        } else if (executor == null) {
+            subMap.unit.setMappedSOM(subMap.restore());
+        } else {
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                pending++;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    // @Override
+                    public void run() {
+                        Exception error = null;
+                        try {
+                            if (!hasFailed()) {
+                                subMap.unit.setMappedSOM(subMap.restore());
+                            }
+                        } catch (Exception e) {
+                            error = e;
+                        } catch (Error e) {
+                            error = new RuntimeException(e);
+                        } finally {
+                            finished(error);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) { // the restorer is shutting down
+                finished(null);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads, and waits until the sub-maps being restored have finished; until then, the executor stays
+     * set, so that they do not fall back to restoring their own sub-maps synchronously.
+     */
+    private void shutdown() {
+        List<Runnable> notStarted = executor.shutdownNow();
+        boolean interrupted = false;
+        synchronized (this) {
+            pending -= notStarted.size();
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        executor = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean hasFailed() {
+        return failure != null;
+    }
+
+    private synchronized void finished(Exception error) {
+        if (error != null && failure == null) {
+            failure = error;
+        }
+        pending--;
+        notifyAll();
+    }
+
+    /** Waits until all scheduled sub-maps are restored, or one of them has failed. */
+    private synchronized void await() throws SOMToolboxException {
+        try {
+            while (pending > 0 && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SOMToolboxException exception = new SOMToolboxException("Interrupted while restoring sub-maps.");
+            exception.initCause(e);
+            throw exception;
+        }
+        if (failure instanceof SOMToolboxException) {
+            throw (SOMToolboxException) failure;
+        } else if (failure != null) {
+            SOMToolboxException exception = new SOMToolboxException("Could not restore sub-map: "
+                    + failure.getMessage());
+            exception.initCause(failure);
+            throw exception;
+        }
+    }
+
+    private static SOMInputReader open(String weightFileName, String unitFileName, String mapFileName)
+            throws SOMToolboxException {
+        try {
+            return new SOMLibFormatInputReader(weightFileName, unitFileName, mapFileName);
+        } catch (SOMToolboxException e) {
+            throw e;
+        } catch (Exception e) {
+            SOMToolboxException exception = new SOMToolboxException("Could not read map " + weightFileName + ": "
+                    + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /** A sub-map to be restored, with the unit it is expanded from and the files it is read from. */
+    class SubMap {
+
+        final int id;
+
+        final Unit unit;
+
+        private final String weightFileName;
+
+        private final String unitFileName;
+
+        private final String mapFileName;
+
+        SubMap(int id, Unit unit, String weightFileName, String unitFileName, String mapFileName) {
+            this.id = id;
+            this.unit = unit;
+            this.weightFileName = weightFileName;
+            this.unitFileName = unitFileName;
+            this.mapFileName = mapFileName;
+        }
+
+        HexHierarchyRestorer getRestorer() {
+            return HexHierarchyRestorer.this;
+        }
+
+        SOMInputReader open() throws SOMToolboxException {
+            return HexHierarchyRestorer.open(weightFileName, unitFileName, mapFileName);
+        }
+
+        HexGrowingSOM restore() throws SOMToolboxException {
+            return new HexGrowingSOM(id, unit, open(), HexHierarchyRestorer.this);
+        }
+    }
+}
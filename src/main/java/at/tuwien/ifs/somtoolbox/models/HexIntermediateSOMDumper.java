@@ -0,0 +1,257 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.Layer.GridLayout;
+import at.tuwien.ifs.somtoolbox.layers.Layer.GridTopology;
+import at.tuwien.ifs.somtoolbox.layers.TrainingInterruptionListener;
+import at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter;
+import at.tuwien.ifs.somtoolbox.output.SOMLibMapOutputter;
+import at.tuwien.ifs.somtoolbox.properties.FileProperties;
+import at.tuwien.ifs.somtoolbox.properties.HexSOMProperties.CodebookFormat;
+import at.tuwien.ifs.somtoolbox.properties.HexSOMProperties.DumpQueuePolicy;
+
+/**
+ * Writes intermediate states of a {@link HexGrowingSOM} during training. On each interruption, the training thread
+ * only copies the weight vectors into a snapshot; formatting and writing the snapshot is done by a background thread.
+ * Snapshots wait in a bounded queue; if it is full, the {@link DumpQueuePolicy} decides whether training waits for the
+ * writer or the snapshot is dropped.
+ * <p>
+ * {@link #close()} has to be called after training, to write the remaining snapshots. A snapshot that cannot be
+ * written is logged and skipped; should the writer thread still end unexpectedly, later snapshots are dropped instead
+ * of blocking training.
+ * 
+ * @version $Id: $
+ */
+public class HexIntermediateSOMDumper implements TrainingInterruptionListener {
+
+    /** Marks the end of the queue. */
+    private static final Snapshot END = new Snapshot();
+
+    /** How long to wait for room in the queue before checking again that the writer is still running. */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final HexGrowingSOM som;
+
+    private final FileProperties fileProperties;
+
+    private final CodebookFormat format;
+
+    private final DumpQueuePolicy policy;
+
+    private final BlockingQueue<Snapshot> queue;
+
+    private final Thread writer;
+
+    private int dropped = 0;
+
+    private boolean closed = false;
+
+    public HexIntermediateSOMDumper(HexGrowingSOM som, FileProperties fileProperties, CodebookFormat format,
+            int queueSize, DumpQueuePolicy policy) {
+        this.som = som;
+        this.fileProperties = fileProperties;
+        this.format = format;
+        this.policy = policy;
+        queue = new ArrayBlockingQueue<Snapshot>(queueSize);
+        writer = new Thread("HexIntermediateSOMDumper") {
+            @Override
+            public void run() {
+                writeSnapshots();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // @Override
+    public void interruptionOccurred(int currentIteration, int numIterations) {
+        // FIXME: maybe skip writing the SOM at 0 iterations (0 mod x == 0 ...)
+        if (closed) {
+            return;
+        }
+        Snapshot snapshot = takeSnapshot(currentIteration, numIterations);
+        if (policy == DumpQueuePolicy.drop) {
+            if (!queue.offer(snapshot)) {
+                dropped++;
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").fine(
+                        "Dump queue full, dropping intermediate SOM at iteration " + currentIteration + ".");
+            }
+        } else {
+            try {
+                if (!enqueue(snapshot)) {
+                    dropped++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Puts the snapshot into the queue, waiting for room as long as the writer thread is running.
+     * 
+     * @return <code>false</code> if the writer thread has ended, so that the snapshot would never be taken.
+     */
+    private boolean enqueue(Snapshot snapshot) throws InterruptedException {
+        while (writer.isAlive()) {
+            if (queue.offer(snapshot, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Copies the current weight vectors; this is the only part of a dump done by the training thread. */
+    private Snapshot takeSnapshot(int currentIteration, int numIterations) {
+        HexagonalLayer layer = (HexagonalLayer) som.getLayer();
+        if (!layer.isFlatWeightStore()) {
+            // the units hold the current weights
+            layer.reloadWeights();
+        }
+        HexagonalCodebook codebook = layer.getCodebook();
+        Snapshot snapshot = new Snapshot();
+        snapshot.xSize = layer.getXSize();
+        snapshot.ySize = layer.getYSize();
+        snapshot.zSize = layer.getZSize();
+        snapshot.dim = codebook.getDim();
+        snapshot.weights = codebook.copyWeights();
+        snapshot.present = new boolean[codebook.getNumberOfUnits()];
+        for (int i = 0; i < snapshot.present.length; i++) {
+            snapshot.present[i] = codebook.isPresent(i);
+        }
+        snapshot.gridLayout = layer.getGridLayout();
+        snapshot.gridTopology = layer.getGridTopology();
+        snapshot.metricName = layer.getMetric() != null ? layer.getMetric().getClass().getName() : null;
+        snapshot.currentIteration = currentIteration;
+        snapshot.numIterations = numIterations;
+        return snapshot;
+    }
+
+    private void writeSnapshots() {
+        while (true) {
+            Snapshot snapshot;
+            try {
+                snapshot = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (snapshot == END) {
+                return;
+            }
+            try {
+                writeSnapshot(snapshot);
+            } catch (RuntimeException e) {
+                // keep the writer running, otherwise training would wait for it forever
+                Logger.getLogger("at.tuwien.ifs.somtoolbox").log(Level.SEVERE,
+                        "Could not write intermediate SOM at iteration " + snapshot.currentIteration + ": " + e, e);
+            }
+        }
+    }
+
+    private void writeSnapshot(Snapshot snapshot) {
+        String filename = fileProperties.namePrefix(false) + "_" + snapshot.currentIteration;
+        try {
+            write(snapshot, filename);
+        } catch (IOException e) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                    "Could not open or write to output file " + filename + ": " + e.getMessage());
+        } catch (SOMToolboxException e) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                    "Could not create intermediate SOM " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private void write(Snapshot snapshot, String filename) throws IOException, SOMToolboxException {
+        if (format == CodebookFormat.binary) {
+            BinaryCodebookOutputter.write(snapshot.xSize, snapshot.ySize, snapshot.zSize, snapshot.dim,
+                    snapshot.weights, snapshot.present, snapshot.gridLayout, snapshot.gridTopology,
+                    snapshot.metricName, snapshot.currentIteration, snapshot.numIterations, new File(
+                            fileProperties.outputDirectory() + filename + BinaryCodebookOutputter.FILE_SUFFIX));
+        } else {
+            SOMLibMapOutputter.writeWeightVectorFile(snapshot.createSOM(), fileProperties.outputDirectory(),
+                    filename, true, "$CURRENT_ITERATION=" + snapshot.currentIteration, "$NUM_ITERATIONS="
+                            + snapshot.numIterations);
+        }
+    }
+
+    /**
+     * Waits until all queued snapshots are written, and stops the writer thread. Interruptions occurring afterwards are
+     * ignored.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (enqueue(END)) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped > 0 && !writer.isAlive() && policy == DumpQueuePolicy.block) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                    "Dropped " + dropped + " intermediate SOMs, as the writer thread has ended unexpectedly.");
+        } else if (dropped > 0) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                    "Dropped " + dropped + " intermediate SOMs, as the writer could not keep up with training.");
+        }
+    }
+
+    /** Returns the number of snapshots dropped so far because the queue was full. */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /** The weight vectors of a {@link HexGrowingSOM} at one iteration. */
+    private static class Snapshot {
+        private int xSize;
+
+        private int ySize;
+
+        private int zSize;
+
+        private int dim;
+
+        private double[] weights;
+
+        private boolean[] present;
+
+        private GridLayout gridLayout;
+
+        private GridTopology gridTopology;
+
+        private String metricName;
+
+        private int currentIteration;
+
+        private int numIterations;
+
+        /** Creates a SOM holding the weight vectors of the snapshot, as needed by the SOMLib outputter. */
+        private HexGrowingSOM createSOM() throws SOMToolboxException {
+            double[][][][] vectors = new double[xSize][ySize][zSize][dim];
+            for (int z = 0; z < zSize; z++) {
+                for (int y = 0; y < ySize; y++) {
+                    for (int x = 0; x < xSize; x++) {
+                        System.arraycopy(weights, ((z * ySize + y) * xSize + x) * dim, vectors[x][y][z], 0, dim);
+                    }
+                }
+            }
+            HexagonalLayer layer = new HexagonalLayer(1, null, xSize, ySize, zSize, metricName, dim, vectors, 7);
+            layer.setGridLayout(gridLayout);
+            layer.setGridTopology(gridTopology);
+            return new HexGrowingSOM(layer);
+        }
+    }
+}
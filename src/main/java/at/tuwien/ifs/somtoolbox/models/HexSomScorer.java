@@ -0,0 +1,247 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.input.BinaryCodebookReader;
+import at.tuwien.ifs.somtoolbox.layers.ExactBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalGrid;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalWinnerMapper;
+import at.tuwien.ifs.somtoolbox.layers.QuantizedCodebook;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
+import at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter;
+
+/**
+ * Scores input vectors against a trained {@link HexGrowingSOM}, for embedding a map into applications that classify
+ * records as they arrive. The scorer holds its own copy of the weight vectors in one contiguous array, which is never
+ * modified, so one instance can be shared by any number of threads without synchronisation. The queries do not
+ * allocate; {@link #topK(double[], int, int[], double[])} writes into arrays provided by the caller.
+ * <p>
+ * A quantized scorer additionally keeps a {@link QuantizedCodebook} with one byte per weight. It scans that for a few
+ * more candidates than requested, and ranks these by their exact distances, which finds the same units as the exact
+ * search unless the quantization error exceeds the gap to the next candidate. The queries then read an eighth of the
+ * memory; they still do not allocate once each thread has scored its first vector.
+ * <p>
+ * Units are identified by their index in the {@link HexagonalGrid}, see {@link #getX(int)} and {@link #getY(int)}.
+ * Errors are reported as exceptions, never by terminating the virtual machine.
+ *
+ * @see HexSomScoringServer
+ * @version $Id: $
+ */
+public class HexSomScorer {
+
+    private final HexagonalCodebook codebook;
+
+    private final HexagonalGrid grid;
+
+    private final ExactBMUSearch search = new ExactBMUSearch();
+
+    /** Number of candidates found in the quantized codebook beyond the requested units, at least. */
+    private static final int EXTRA_CANDIDATES = 8;
+
+    private final QuantizedCodebook quantized;
+
+    private final ThreadLocal<Candidates> candidates = new ThreadLocal<Candidates>() {
+        @Override
+        protected Candidates initialValue() {
+            return new Candidates(codebook.getDim());
+        }
+    };
+
+    /** Creates a scorer for the current weights of the given SOM; later training of the SOM does not affect it. */
+    public HexSomScorer(HexGrowingSOM som) {
+        this(som, false);
+    }
+
+    /**
+     * Creates a scorer for the current weights of the given SOM, optionally searching a quantized copy of the weights
+     * first.
+     * 
+     * @throws IllegalArgumentException if the SOM does not use the Euclidean distance, which the scorer computes.
+     */
+    public HexSomScorer(HexGrowingSOM som, boolean quantize) {
+        HexagonalLayer layer = (HexagonalLayer) som.getLayer();
+        if (!(layer.getMetric() instanceof L2Metric)) {
+            throw new IllegalArgumentException("Scoring requires a map trained with L2Metric, not "
+                    + layer.getMetric().getClass().getSimpleName() + ".");
+        }
+        if (!layer.isFlatWeightStore()) {
+            // the units hold the current weights
+            layer.reloadWeights();
+        }
+        codebook = layer.getCodebook().copy();
+        grid = codebook.getGrid();
+        quantized = quantize ? new QuantizedCodebook(codebook) : null;
+    }
+
+    /**
+     * Loads a trained map from a binary codebook (<code>.hcb</code>) or a SOMLib weight vector file.
+     *
+     * @param mapDescFileName the map description file of a SOMLib weight vector file, may be <code>null</code>.
+     * @throws SOMToolboxException if the map cannot be read, or does not use the Euclidean distance.
+     */
+    public static HexSomScorer load(String weightFileName, String mapDescFileName) throws SOMToolboxException {
+        return load(weightFileName, mapDescFileName, false);
+    }
+
+    /**
+     * Loads a trained map, see {@link #load(String, String)}, for a scorer that optionally searches a quantized copy
+     * of the weights first.
+     */
+    public static HexSomScorer load(String weightFileName, String mapDescFileName, boolean quantize)
+            throws SOMToolboxException {
+        try {
+            if (weightFileName.endsWith(BinaryCodebookOutputter.FILE_SUFFIX)) {
+                return new HexSomScorer(new HexGrowingSOM(new BinaryCodebookReader(weightFileName)), quantize);
+            } else {
+                // only the top map is scored against, so its sub-maps are never read
+                return new HexSomScorer(new HexHierarchyRestorer(1, true).restore(weightFileName, null,
+                        mapDescFileName), quantize);
+            }
+        } catch (SOMToolboxException e) {
+            throw e;
+        } catch (Exception e) {
+            SOMToolboxException exception = new SOMToolboxException("Could not load map " + weightFileName + ": "
+                    + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /** Returns the dimensionality of the vectors this scorer accepts. */
+    public int getDim() {
+        return codebook.getDim();
+    }
+
+    public int getXSize() {
+        return grid.getXSize();
+    }
+
+    public int getYSize() {
+        return grid.getYSize();
+    }
+
+    /** Returns the number of unit indices, including those of empty units. */
+    public int getNumberOfUnits() {
+        return codebook.getNumberOfUnits();
+    }
+
+    public int getX(int unit) {
+        return grid.getX(unit);
+    }
+
+    public int getY(int unit) {
+        return grid.getY(unit);
+    }
+
+    public int getZ(int unit) {
+        return grid.getZ(unit);
+    }
+
+    public boolean isQuantized() {
+        return quantized != null;
+    }
+
+    /** Returns the index of the best-matching unit of the vector. */
+    public int bmu(double[] vector) {
+        checkDim(vector);
+        if (quantized != null) {
+            Candidates c = candidates.get();
+            return findQuantized(vector, 1, c.bmu, c.bmuDistance) > 0 ? c.bmu[0] : -1;
+        }
+        return search.search(codebook, vector, -1);
+    }
+
+    /**
+     * Finds the <code>k</code> units closest to the vector.
+     *
+     * @param units receives the indices of the units, closest first; needs room for <code>k</code> elements.
+     * @param distances receives the Euclidean distances of the units; needs room for <code>k</code> elements.
+     * @return the number of units found, less than <code>k</code> only if the map has less units.
+     * @throws IllegalArgumentException if <code>k</code> is less than <code>1</code>.
+     */
+    public int topK(double[] vector, int k, int[] units, double[] distances) {
+        checkDim(vector);
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1, but is " + k + ".");
+        }
+        int count = quantized != null ? findQuantized(vector, k, units, distances) : HexagonalWinnerMapper
+                .findWinners(codebook, k, vector, units, distances, 0);
+        for (int i = 0; i < count; i++) {
+            distances[i] = Math.sqrt(distances[i]);
+        }
+        return count;
+    }
+
+    /** Returns the quantization error of the vector, i.e. the Euclidean distance to its best-matching unit. */
+    public double quantizationError(double[] vector) {
+        int bmu = bmu(vector);
+        return bmu >= 0 ? Math.sqrt(codebook.getDistanceSq(bmu, vector)) : Double.NaN;
+    }
+
+    /** Returns the Euclidean distance between the vector and the weight vector of the given unit. */
+    public double distance(int unit, double[] vector) {
+        checkDim(vector);
+        return Math.sqrt(codebook.getDistanceSq(unit, vector));
+    }
+
+    /**
+     * Finds the <code>k</code> closest units among the candidates of the quantized codebook, with their squared
+     * distances.
+     */
+    private int findQuantized(double[] vector, int k, int[] units, double[] distances) {
+        Candidates c = candidates.get();
+        int found = quantized.findCandidates(vector, c.ensureCapacity(Math.max(2 * k, k + EXTRA_CANDIDATES)), c.query,
+                c.units, c.distances);
+        // insertion into the result arrays, which hold the closest units so far in ascending order
+        int size = 0;
+        for (int i = 0; i < found; i++) {
+            double distance = codebook.getDistanceSq(c.units[i], vector);
+            if (size == k && distance >= distances[size - 1]) {
+                continue;
+            }
+            int j = size < k ? size++ : size - 1;
+            for (; j > 0 && distances[j - 1] > distance; j--) {
+                units[j] = units[j - 1];
+                distances[j] = distances[j - 1];
+            }
+            units[j] = c.units[i];
+            distances[j] = distance;
+        }
+        return size;
+    }
+
+    private void checkDim(double[] vector) {
+        if (vector.length != codebook.getDim()) {
+            throw new IllegalArgumentException("Vector has " + vector.length + " dimensions, the map "
+                    + codebook.getDim() + ".");
+        }
+    }
+
+    /** Buffers of one thread for the search in the quantized codebook. */
+    private static class Candidates {
+
+        final double[] query;
+
+        final int[] bmu = new int[1];
+
+        final double[] bmuDistance = new double[1];
+
+        int[] units = new int[0];
+
+        double[] distances = new double[0];
+
+        Candidates(int dim) {
+            query = new double[dim];
+        }
+
+        /** Makes room for at least the given number of candidates, and returns that number. */
+        int ensureCapacity(int count) {
+            if (units.length < count) {
+                units = new int[count];
+                distances = new double[count];
+            }
+            return count;
+        }
+    }
+}
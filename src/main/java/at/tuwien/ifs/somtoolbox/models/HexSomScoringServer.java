@@ -0,0 +1,186 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.apps.config.AbstractOptionFactory;
+import at.tuwien.ifs.somtoolbox.apps.config.OptionFactory;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.Switch;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP endpoint around a {@link HexSomScorer}, for scoring batches of records from other processes. It answers
+ * two requests:
+ * <ul>
+ * <li><code>GET /info</code>: the dimensionality and size of the map, as <code>dim xSize ySize</code>.</li>
+ * <li><code>POST /score?k=n</code>: the body holds one vector per line, its values separated by blanks; the response
+ * holds one line per vector, with <code>x y distance</code> of each of its <code>n</code> closest units, default
+ * <code>1</code>; <code>n</code> must not exceed the number of units.</li>
+ * </ul>
+ * With <code>--quantized</code>, the closest units are searched in a quantized copy of the weights first, see
+ * {@link HexSomScorer}. Malformed requests are answered with status 400. The server binds to the loopback interface
+ * by default, as it has no authentication.
+ *
+ * @version $Id: $
+ */
+public class HexSomScoringServer {
+
+    public static final int DEFAULT_PORT = 8642;
+
+    private static final Parameter[] OPTIONS = {
+            new FlaggedOption("weightVectorFile", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, true, 'w', "weightVectorFile",
+                    "The trained map, a binary codebook or a SOMLib weight vector file."),
+            new FlaggedOption("mapDescriptionFile", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, 'm',
+                    "mapDescriptionFile", "The map description file of a SOMLib weight vector file."),
+            new FlaggedOption("port", JSAP.INTEGER_PARSER, String.valueOf(DEFAULT_PORT), false, 'p', "port",
+                    "The port to listen on."),
+            new FlaggedOption("cpus", JSAP.INTEGER_PARSER, "1", false, JSAP.NO_SHORTFLAG, "cpus",
+                    "The number of threads answering requests."),
+            new Switch("quantized", JSAP.NO_SHORTFLAG, "quantized",
+                    "Search a copy of the weights quantized to one byte first, see HexSomScorer.") };
+
+    private final HexSomScorer scorer;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    public HexSomScoringServer(HexSomScorer scorer, InetSocketAddress address, int threads) throws IOException {
+        this.scorer = scorer;
+        server = HttpServer.create(address, 0);
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        server.setExecutor(executor);
+        server.createContext("/info", new HttpHandler() {
+            // @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                HexSomScorer s = HexSomScoringServer.this.scorer;
+                respond(exchange, 200, s.getDim() + " " + s.getXSize() + " " + s.getYSize() + "\n");
+            }
+        });
+        server.createContext("/score", new HttpHandler() {
+            // @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                score(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").info("Scoring server listening on " + server.getAddress() + ".");
+    }
+
+    /** Stops the server, waiting at most the given number of seconds for requests in progress. */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+    }
+
+    private void score(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Use POST.\n");
+            return;
+        }
+        int k;
+        try {
+            k = getK(exchange.getRequestURI(), scorer.getNumberOfUnits());
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "Parameter k must be an integer from 1 to " + scorer.getNumberOfUnits() + ".\n");
+            return;
+        }
+        int dim = scorer.getDim();
+        double[] vector = new double[dim];
+        int[] units = new int[k];
+        double[] distances = new double[k];
+        StringBuilder response = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            StringTokenizer tokens = new StringTokenizer(line);
+            if (!tokens.hasMoreTokens()) {
+                continue;
+            }
+            try {
+                for (int i = 0; i < dim; i++) {
+                    vector[i] = Double.parseDouble(tokens.nextToken());
+                }
+            } catch (RuntimeException e) { // too few values, or not a number
+                respond(exchange, 400, "Line " + lineNumber + " is not a vector of " + dim + " numbers.\n");
+                return;
+            }
+            if (tokens.hasMoreTokens()) {
+                respond(exchange, 400, "Line " + lineNumber + " has more than " + dim + " values.\n");
+                return;
+            }
+            int count = scorer.topK(vector, k, units, distances);
+            for (int i = 0; i < count; i++) {
+                response.append(i > 0 ? " " : "").append(scorer.getX(units[i])).append(' ')
+                        .append(scorer.getY(units[i])).append(' ').append(distances[i]);
+            }
+            response.append('\n');
+        }
+        respond(exchange, 200, response.toString());
+    }
+
+    private static int getK(URI uri, int maxK) {
+        String query = uri.getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("k=")) {
+                    int k = Integer.parseInt(parameter.substring(2));
+                    if (k < 1 || k > maxK) {
+                        throw new NumberFormatException();
+                    }
+                    return k;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    public static void main(String[] args) {
+        JSAPResult config = OptionFactory.parseResults(args, OPTIONS);
+        String weightFileName = AbstractOptionFactory.getFilePath(config, "weightVectorFile");
+        String mapDescFileName = AbstractOptionFactory.getFilePath(config, "mapDescriptionFile");
+        try {
+            HexSomScorer scorer = HexSomScorer.load(weightFileName, mapDescFileName, config.getBoolean("quantized"));
+            new HexSomScoringServer(scorer, new InetSocketAddress(InetAddress.getByName(null), config.getInt("port")),
+                    config.getInt("cpus")).start();
+        } catch (SOMToolboxException e) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(e.getMessage() + " Aborting.");
+            System.exit(-1);
+        } catch (IOException e) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").severe(
+                    "Could not start the scoring server: " + e.getMessage() + " Aborting.");
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.util.Arrays;
+
+/**
+ * Rasterises the cells of a hexagonal map directly into an <code>int[]</code> raster. The cells are pointy-topped
+ * hexagons in rows, with the even rows shifted right by half a cell as in the
+ * {@link at.tuwien.ifs.somtoolbox.layers.HexagonalGrid}, stretched to fill the image.
+ * <p>
+ * Cell boundaries are rounded to whole pixels, so that a cell is one of at most four pixel sizes. For each size, the
+ * hexagon is precomputed as a template of one pixel span per row; drawing a cell then is one {@link Arrays#fill} per
+ * row, without any per-cell polygon filling. Spans are rounded outwards, so that adjacent cells leave no gaps.
+ * 
+ * @version $Id: $
+ */
+public class HexagonRasteriser {
+
+    private final int xSize;
+
+    private final int ySize;
+
+    private final double cellWidth;
+
+    private final double cellHeight;
+
+    private final int minWidth;
+
+    private final int minHeight;
+
+    /** Templates indexed by [width - minWidth][height - minHeight]; each holds start and end of the span per row. */
+    private final int[][][] templates = new int[2][2][];
+
+    public HexagonRasteriser(int xSize, int ySize, int width, int height) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        // rows are shifted by half a cell, and overlap by a quarter cell
+        cellWidth = width / (xSize + 0.5);
+        cellHeight = height / (0.75 * ySize + 0.25);
+        minWidth = (int) Math.floor(cellWidth);
+        minHeight = (int) Math.floor(cellHeight);
+        for (int w = 0; w < 2; w++) {
+            for (int h = 0; h < 2; h++) {
+                templates[w][h] = createTemplate(minWidth + w, minHeight + h);
+            }
+        }
+    }
+
+    private static int[] createTemplate(int width, int height) {
+        int[] spans = new int[2 * height];
+        double quarter = height / 4.0;
+        for (int row = 0; row < height; row++) {
+            double y = row + 0.5;
+            double halfWidth;
+            if (y < quarter) {
+                halfWidth = width / 2.0 * y / quarter;
+            } else if (y > height - quarter) {
+                halfWidth = width / 2.0 * (height - y) / quarter;
+            } else {
+                halfWidth = width / 2.0;
+            }
+            spans[2 * row] = (int) Math.floor(width / 2.0 - halfWidth);
+            spans[2 * row + 1] = (int) Math.ceil(width / 2.0 + halfWidth);
+        }
+        return spans;
+    }
+
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    public double getCellHeight() {
+        return cellHeight;
+    }
+
+    /** Returns the horizontal image position of map position <code>x</code> in row <code>row</code>. */
+    public double getImageX(double x, int row) {
+        return (x + (row % 2 == 0 ? 1.0 : 0.5)) * cellWidth;
+    }
+
+    /** Returns the vertical image position of map position <code>y</code>. */
+    public double getImageY(double y) {
+        return (0.75 * y + 0.5) * cellHeight;
+    }
+
+    /**
+     * Fills all cells overlapping the given region of the image.
+     * 
+     * @param raster the pixels of the region, <code>scansize</code> pixels per row.
+     * @param colours the colour of each cell, cell <code>(x, y)</code> at index <code>y * xSize + x</code>.
+     */
+    public void fill(int[] raster, int scansize, int regionX, int regionY, int regionWidth, int regionHeight,
+            int[] colours) {
+        int regionRight = regionX + regionWidth;
+        int regionBottom = regionY + regionHeight;
+        int firstRow = Math.max(0, (int) (regionY / (0.75 * cellHeight)) - 1);
+        int lastRow = Math.min(ySize - 1, (int) (regionBottom / (0.75 * cellHeight)) + 1);
+        for (int j = firstRow; j <= lastRow; j++) {
+            int top = (int) Math.round(0.75 * j * cellHeight);
+            int height = (int) Math.round(0.75 * j * cellHeight + cellHeight) - top;
+            int shift = j % 2 == 0 ? 1 : 0;
+            int firstColumn = Math.max(0, (int) (regionX / cellWidth) - 1);
+            int lastColumn = Math.min(xSize - 1, (int) (regionRight / cellWidth) + 1);
+            for (int i = firstColumn; i <= lastColumn; i++) {
+                int left = (int) Math.round((2 * i + shift) * cellWidth / 2);
+                int width = (int) Math.round((2 * i + 2 + shift) * cellWidth / 2) - left;
+                int[] spans = templates[width - minWidth][height - minHeight];
+                int colour = colours[j * xSize + i];
+                int fromRow = Math.max(0, regionY - top);
+                int toRow = Math.min(height, regionBottom - top);
+                for (int row = fromRow; row < toRow; row++) {
+                    int from = Math.max(left + spans[2 * row], regionX);
+                    int to = Math.min(left + spans[2 * row + 1], regionRight);
+                    if (from < to) {
+                        int offset = (top + row - regionY) * scansize - regionX;
+                        Arrays.fill(raster, offset + from, offset + to, colour);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -3,9 +3,9 @@ package at.tuwien.ifs.somtoolbox.models;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
-import java.awt.geom.Point2D;
-import java.awt.geom.Point2D.Double;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 
@@ -14,182 +14,374 @@ import javax.imageio.ImageIO;
 import at.tuwien.ifs.somtoolbox.SOMToolboxException;
 import at.tuwien.ifs.somtoolbox.layers.GrowingLayer;
 import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalWorkers;
+import at.tuwien.ifs.somtoolbox.layers.LayerAccessException;
 import at.tuwien.ifs.somtoolbox.layers.Unit;
+import at.tuwien.ifs.somtoolbox.layers.metrics.DistanceMetric;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
 import at.tuwien.ifs.somtoolbox.util.ImageUtils;
 import at.tuwien.ifs.somtoolbox.util.VisualisationUtils;
 import at.tuwien.ifs.somtoolbox.visualization.FuzzyColourCodingVisualiser;
-import cern.colt.function.DoubleFunction;
-import cern.colt.matrix.DoubleMatrix1D;
-import cern.colt.matrix.DoubleMatrix2D;
-import cern.jet.math.Functions;
 
 public class MyFuzzyColourCodingVisualiser extends FuzzyColourCodingVisualiser {
+
+    /** The default number of most similar units each unit is contracted towards. */
+    public static final int DEFAULT_MAX_NEIGHBOURS = 128;
+
+    /** The default similarity below which units are not contracted towards each other. */
+    public static final double DEFAULT_SIMILARITY_THRESHOLD = 1E-6;
+
+    private int maxNeighbours = DEFAULT_MAX_NEIGHBOURS;
+
+    private double similarityThreshold = DEFAULT_SIMILARITY_THRESHOLD;
+
+    /**
+     * Sets the number of most similar units each unit is contracted towards. Together with
+     * {@link #setSimilarityThreshold(double)}, this truncates the similarity matrix of Himberg 2000, which would
+     * otherwise need memory and time quadratic in the number of units for each contraction step.
+     */
+    public void setMaxNeighbours(int maxNeighbours) {
+        this.maxNeighbours = Math.max(1, maxNeighbours);
+    }
+
+    public int getMaxNeighbours() {
+        return maxNeighbours;
+    }
+
+    /** Sets the similarity below which two units are not contracted towards each other. */
+    public void setSimilarityThreshold(double similarityThreshold) {
+        this.similarityThreshold = similarityThreshold;
+    }
+
+    public double getSimilarityThreshold() {
+        return similarityThreshold;
+    }
 	
 	@Override
     public BufferedImage createVisualization(int variantIndex, GrowingSOM gsom, int width, int height)
             throws SOMToolboxException {
+        BufferedImage res = ImageUtils.createEmptyImage(width, height);
+        createPainter(gsom, width, height).paint(res, 0, 0, width, height);
+        return res;
+    }
 
+    /**
+     * Computes the visualisation of the given SOM, and returns a painter that draws any part of it, e.g. for the
+     * {@link TiledImageRenderer}.
+     */
+    public TilePainter createPainter(GrowingSOM gsom, int width, int height) throws SOMToolboxException {
         GrowingLayer layer = gsom.getLayer();
 
-        BufferedImage res = ImageUtils.createEmptyImage(width, height);
-        Graphics2D g = (Graphics2D) res.getGraphics();
+        // contract the unit locations; location of unit (x, y) is at (locations[2 * i], locations[2 * i + 1]) with
+        // i = y * xSize + x
+        double[] locations = contract(layer);
 
-        double unitWidth = width / (double) layer.getXSize();
-        double unitHeight = height / (double) layer.getYSize();
+        // obtain RGB slice according to the (contracted) unit positions
+        int[] colours = new int[layer.getXSize() * layer.getYSize()];
+        double colourZoomX = 255.0 / layer.getXSize();
+        double colourZoomY = 255.0 / layer.getYSize();
+        for (int i = 0; i < colours.length; i++) {
+            double locX = locations[2 * i];
+            double locY = locations[2 * i + 1];
 
-        // set up array of unit coordinates
-        Point2D.Double[][] locations = new Point2D.Double[layer.getXSize()][layer.getYSize()];
-        for (int i = 0; i < layer.getXSize(); i++) {
-            for (int j = 0; j < layer.getYSize(); j++) {
-                locations[i][j] = new Double(i, j);
-            }
+            // colour the SOM unit
+            colours[i] = new Color(
+            // red is 255 on the top, and 0 on the bottom
+                    (int) Math.round(colourZoomY * (layer.getYSize() - locY)),
+                    // green is 255 on the left, and 0 on the right
+                    (int) Math.round(colourZoomX * (layer.getXSize() - locX)),
+                    // blue is 0 on the top, and 255 on the bottom
+                    (int) Math.round(colourZoomY * locY)).getRGB();
         }
+        return new FuzzyColourPainter(layer.getXSize(), layer.getYSize(), new HexagonRasteriser(layer.getXSize(),
+                layer.getYSize(), width, height), locations, colours);
+    }
 
-        // construct a dissimilarity matrix of the model vectors
-        DoubleMatrix2D unitDistanceMatrix = layer.getUnitDistanceMatrix();
+    /**
+     * Draws the contracted locations and colours. The hexagonal cells are rasterised directly into the pixels of the
+     * image by a {@link HexagonRasteriser}; nodes and connecting lines are drawn on top, each only if it overlaps the
+     * painted region, so that painting a tile of a large image does not cost as much as painting the whole image.
+     */
+    private class FuzzyColourPainter implements TilePainter {
+        private final int xSize;
 
-        // transform to a similarity matrix - Equation (1) in Himberg 2000.
-        DoubleMatrix2D similarityMatrix = unitDistanceMatrix.copy();
-        similarityMatrix.assign(new DoubleFunction() {
-           // @Override
-            public double apply(double argument) {
-                return Math.exp(-(argument * argument / T));
+        private final int ySize;
+
+        private final HexagonRasteriser rasteriser;
+
+        private final double[] locations;
+
+        private final int[] colours;
+
+        private FuzzyColourPainter(int xSize, int ySize, HexagonRasteriser rasteriser, double[] locations,
+                int[] colours) {
+            this.xSize = xSize;
+            this.ySize = ySize;
+            this.rasteriser = rasteriser;
+            this.locations = locations;
+            this.colours = colours;
+        }
+
+        // @Override
+        public void paint(BufferedImage tile, int x, int y, int width, int height) {
+            double unitWidth = rasteriser.getCellWidth();
+            double unitHeight = rasteriser.getCellHeight();
+            if (showColourCoding) {
+                if (tile.getType() == BufferedImage.TYPE_INT_ARGB || tile.getType() == BufferedImage.TYPE_INT_RGB) {
+                    int[] raster = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+                    rasteriser.fill(raster, tile.getWidth(), x, y, width, height, colours);
+                } else {
+                    int[] raster = new int[width * height];
+                    tile.getRGB(0, 0, width, height, raster, 0, width);
+                    rasteriser.fill(raster, width, x, y, width, height, colours);
+                    tile.setRGB(0, 0, width, height, raster, 0, width);
+                }
             }
-        });
-
-        // normalise each row so that it sums up to 1
-        for (int i = 0; i < similarityMatrix.rows(); i++) {
-            DoubleMatrix1D row = similarityMatrix.viewRow(i);
-            final double sum = row.aggregate(Functions.plus, Functions.identity);
-            row.assign(new DoubleFunction() {
-                //@Override
-                public double apply(double argument) {
-                    return argument / sum;
+            if (!showUnitNodes && !showConnectingLines) {
+                return;
+            }
+
+            Graphics2D g = tile.createGraphics();
+            g.translate(-x, -y);
+            if (showUnitNodes) {
+                int markerHeight = (int) (unitHeight / 5);
+                int markerWidth = (int) (unitWidth / 5);
+                g.setColor(Color.black);
+                for (int i = 0; i < xSize; i++) {
+                    for (int j = 0; j < ySize; j++) {
+                        // draw the nodes
+                        Point markerPos = getPos(j * xSize + i, markerWidth, markerHeight);
+                        if (markerPos.x + markerWidth >= x && markerPos.x <= x + width
+                                && markerPos.y + markerHeight >= y && markerPos.y <= y + height) {
+                            VisualisationUtils.drawMarker(g, markerWidth, markerHeight, markerPos);
+                        }
+                    }
                 }
-            });
-        }
+            }
 
-        // contraction process
-        // FIXME: check this with the Matlab implementation, it seems that is a bit different to the paper
-        // http://www.cis.hut.fi/somtoolbox/package/docs2/som_fuzzycolor.html)
-        for (int k = 0; k < r; k++) {
-            Double[][] newLocations = new Double[layer.getXSize()][layer.getYSize()];
-            for (int x = 0; x < layer.getXSize(); x++) {
-                for (int y = 0; y < layer.getYSize(); y++) {
-                    Double loc = locations[x][y];
-                    Double newLoc = new Double(loc.x, loc.y);
-                    int unitIndex = layer.getUnitIndex(x, y);
-                    for (int x1 = 0; x1 < layer.getXSize(); x1++) {
-                        for (int y1 = 0; y1 < layer.getYSize(); y1++) {
-                            if (x != x1 && y != y1) {
-                                int otherUnitIndex = layer.getUnitIndex(x1, y1);
-                                double similarity = similarityMatrix.getQuick(unitIndex, otherUnitIndex);
-                                // move towards that location
-                                double diffX = locations[x1][y1].x - loc.x;
-                                double diffY = locations[x1][y1].y - loc.y;
-                                newLoc.setLocation(newLoc.x + diffX * similarity, newLoc.y + diffY * similarity);
+            if (showConnectingLines) {
+                g.setColor(Color.black);
+                int lineWidth = (int) Math.round(unitWidth / 20);
+                int lineHeight = (int) Math.round(unitHeight / 20);
+                Rectangle region = new Rectangle(x - lineWidth, y - lineHeight, width + 2 * lineWidth, height + 2
+                        * lineHeight);
+                // draw the connections between nodes; can do this only after colouring, as it needs to be on top
+                for (int i = 0; i < xSize; i++) {
+                    for (int j = 0; j < ySize; j++) {
+                        Point start = getPos(j * xSize + i, 0, 0);
+                        // draw the nodes connections to the right
+                        if (i + 1 < xSize) {
+                            drawLine(g, region, start, j * xSize + i + 1, lineWidth, lineHeight);
+                        }
+                        // odd rows connect to x - 1 and x of the next row, even rows to x and x + 1
+                        if (j + 1 < ySize) {
+                            drawLine(g, region, start, (j + 1) * xSize + i, lineWidth, lineHeight);
+                            int diagonal = j % 2 == 1 ? i - 1 : i + 1;
+                            if (diagonal >= 0 && diagonal < xSize) {
+                                drawLine(g, region, start, (j + 1) * xSize + diagonal, lineWidth, lineHeight);
                             }
                         }
                     }
-                    newLocations[x][y] = newLoc;
                 }
             }
-            locations = newLocations;
+            g.dispose();
         }
 
-        // obtain RGB slice according to the (contracted) unit positions, and draw visualisation
-        Color[][] colours = new Color[locations.length][locations[0].length];
-
-        if (showColourCoding) {
-            double colourZoomX = 255.0 / layer.getXSize();
-            double colourZoomY = 255.0 / layer.getYSize();
-            for (int i = 0; i < layer.getXSize(); i++) {
-                for (int j = 0; j < layer.getYSize(); j++) {
-                    Double loc = locations[i][j];
-
-                    // colour the SOM unit
-                    colours[i][j] = new Color(
-                    // red is 255 on the top, and 0 on the bottom
-                            (int) Math.round(colourZoomY * (layer.getYSize() - loc.y)),
-                            // green is 255 on the left, and 0 on the right
-                            (int) Math.round(colourZoomX * (layer.getXSize() - loc.x)),
-                            // blue is 0 on the top, and 255 on the bottom
-                            (int) Math.round(colourZoomY * loc.y));
-
-                    g.setColor(colours[i][j]);
-                    g.fillRect((int) (i * unitWidth), (int) (j * unitHeight), (int) unitWidth, (int) unitHeight);
-                }
+        /**
+         * Returns the image position of the contracted location of the given unit, shifted like the unit's row, minus
+         * half the given size.
+         */
+        private Point getPos(int index, int markerWidth, int markerHeight) {
+            return new Point((int) Math.round(rasteriser.getImageX(locations[2 * index], index / xSize) - markerWidth
+                    / 2.0), (int) Math.round(rasteriser.getImageY(locations[2 * index + 1]) - markerHeight / 2.0));
+        }
+
+        private void drawLine(Graphics2D g, Rectangle region, Point start, int endIndex, int lineWidth,
+                int lineHeight) {
+            Point end = getPos(endIndex, 0, 0);
+            if (region.intersectsLine(start.x, start.y, end.x, end.y)) {
+                VisualisationUtils.drawThickLine(g, start.x, start.y, end.x, end.y, lineWidth, lineHeight);
             }
         }
+    }
 
-        if (showUnitNodes) {
-            int markerHeight = (int) (unitHeight / 5);
-            int markerWidth = (int) (unitWidth / 5);
-            for (int i = 0; i < layer.getXSize(); i++) {
-                for (int j = 0; j < layer.getYSize(); j++) {
-                    Double loc = locations[i][j];
-                    // draw the nodes
-                    g.setColor(Color.black);
-                    Point markerPos = getMarkerPos(unitWidth, unitHeight, markerWidth, markerHeight, loc);
-                    VisualisationUtils.drawMarker(g, markerWidth, markerHeight, markerPos);
-                }
+    /**
+     * Contracts the unit locations as described in Himberg 2000: in each of the <code>r</code> steps, every unit moves
+     * towards the other units, weighted by the similarity of their weight vectors. The similarity
+     * <code>exp(-d^2 / T)</code> is kept only for the {@link #getMaxNeighbours()} most similar units of each unit, and
+     * only if it is at least {@link #getSimilarityThreshold()}; each row is normalised to sum up to 1 including the
+     * unit itself. The rows are processed in parallel.
+     * 
+     * @return the contracted locations, unit <code>(x, y)</code> at index <code>2 * (y * xSize + x)</code> and the
+     *         following one.
+     */
+    protected double[] contract(GrowingLayer layer) throws SOMToolboxException {
+        final int xSize = layer.getXSize();
+        final int numUnits = xSize * layer.getYSize();
+        final int k = Math.min(maxNeighbours, Math.max(1, numUnits - 1));
+
+        // weight vectors in one flat array; empty units of mnemonic SOMs are not contracted
+        Unit[] units = new Unit[numUnits];
+        int vectorDim = 0;
+        for (int i = 0; i < numUnits; i++) {
+            try {
+                units[i] = layer.getUnit(i % xSize, i / xSize, 0);
+            } catch (LayerAccessException e) {
+                throw new SOMToolboxException(e.getMessage());
+            }
+            if (units[i] != null) {
+                vectorDim = units[i].getWeightVector().length;
+            }
+        }
+        final int dim = vectorDim;
+        final double[] weights = new double[numUnits * dim];
+        final boolean[] present = new boolean[numUnits];
+        double[] locations = new double[2 * numUnits];
+        for (int i = 0; i < numUnits; i++) {
+            present[i] = units[i] != null;
+            if (present[i]) {
+                System.arraycopy(units[i].getWeightVector(), 0, weights, i * dim, dim);
             }
+            locations[2 * i] = i % xSize;
+            locations[2 * i + 1] = i / xSize;
         }
 
-        if (showConnectingLines) {
-            g.setColor(Color.black);
-            int lineWidth = (int) Math.round(unitWidth / 20);
-            int lineHeight = (int) Math.round(unitHeight / 20);
-            // draw the connections between nodes; can do this only after colouring, as it needs to be on top
-            for (int i = 0; i < layer.getXSize(); i++) {
-                for (int j = 0; j < layer.getYSize(); j++) {
-                	
-                	Point start = getLinePos(unitWidth, unitHeight, locations[i][j]);
-                	// draw the nodes connections to the right
-                    if (i + 1 < layer.getXSize()) {
-                        Point end = getLinePos(unitWidth, unitHeight, locations[i + 1][j]);
-                        VisualisationUtils.drawThickLine(g, start.x, start.y, end.x, end.y, lineWidth, lineHeight);
-                    }
-                	 //1,3,5... x-1, x mod=1
-                    //2,4,6 ... x, x + 1, mod=0
-                	if(j % 2 == 1){
-                        // draw the nodes connections to the right
-                        if (j + 1 < layer.getYSize()) {
-                            Point end = getLinePos(unitWidth, unitHeight, locations[i][j + 1]);
-                            VisualisationUtils.drawThickLine(g, start.x, start.y, end.x, end.y, lineWidth, lineHeight);
-                            if (i-1 >= 0){
-                            	Point end2 = getLinePos(unitWidth, unitHeight, locations[i-1][j + 1]);
-                                VisualisationUtils.drawThickLine(g, start.x, start.y, end2.x, end2.y, lineWidth, lineHeight);
+        // truncated similarity matrix, k entries per row
+        final int[] neighbours = new int[numUnits * k];
+        final double[] similarities = new double[numUnits * k];
+        final int[] counts = new int[numUnits];
+        final DistanceMetric metric = layer.getMetric() instanceof L2Metric ? null : layer.getMetric();
+        final double maxDistanceSq = similarityThreshold > 0 ? -T * Math.log(similarityThreshold)
+                : Double.POSITIVE_INFINITY;
+        final HexagonalWorkers workers = new HexagonalWorkers(HexagonalLayer.getNO_CPUS());
+        try {
+            workers.run(numUnits, new HexagonalWorkers.RangeTask() {
+                // @Override
+                public void run(int worker, int from, int to) throws Exception {
+                    // max-heap of the k most similar units found so far, ordered by distance
+                    int[] heap = new int[k];
+                    double[] heapDistances = new double[k];
+                    double[] vector = new double[dim];
+                    double[] other = new double[dim];
+                    for (int i = from; i < to; i++) {
+                        if (!present[i]) {
+                            continue;
+                        }
+                        int size = 0;
+                        int offset = i * dim;
+                        for (int j = 0; j < numUnits; j++) {
+                            if (j == i || !present[j]) {
+                                continue;
+                            }
+                            double bound = size == k ? Math.min(heapDistances[0], maxDistanceSq) : maxDistanceSq;
+                            double distanceSq;
+                            if (metric == null) {
+                                distanceSq = 0;
+                                int otherOffset = j * dim;
+                                for (int d = 0; d < dim && distanceSq < bound; d++) {
+                                    double diff = weights[offset + d] - weights[otherOffset + d];
+                                    distanceSq += diff * diff;
+                                }
+                            } else {
+                                System.arraycopy(weights, offset, vector, 0, dim);
+                                System.arraycopy(weights, j * dim, other, 0, dim);
+                                double distance = metric.distance(vector, other);
+                                distanceSq = distance * distance;
+                            }
+                            if (distanceSq >= bound) {
+                                continue;
                             }
-                        } 
-                        
-                	} else {
-                		// draw the nodes connections to the right
-                        if (j + 1 < layer.getYSize()) {
-                            Point end = getLinePos(unitWidth, unitHeight, locations[i][j + 1]);
-                            VisualisationUtils.drawThickLine(g, start.x, start.y, end.x, end.y, lineWidth, lineHeight);
-                            if (i+1  < layer.getXSize()){
-                            	Point end2 = getLinePos(unitWidth, unitHeight, locations[i+1][j + 1]);
-                                VisualisationUtils.drawThickLine(g, start.x, start.y, end2.x, end2.y, lineWidth, lineHeight);
+                            if (size < k) {
+                                siftUp(heap, heapDistances, size++, j, distanceSq);
+                            } else {
+                                siftDown(heap, heapDistances, size, j, distanceSq);
                             }
-                       } 
-                        
-                	}
-                    
+                        }
+                        // the unit itself has similarity 1
+                        double sum = 1;
+                        int row = i * k;
+                        for (int n = 0; n < size; n++) {
+                            neighbours[row + n] = heap[n];
+                            similarities[row + n] = Math.exp(-heapDistances[n] / T);
+                            sum += similarities[row + n];
+                        }
+                        for (int n = 0; n < size; n++) {
+                            similarities[row + n] /= sum;
+                        }
+                        counts[i] = size;
+                    }
                 }
+            });
+
+            // contraction process
+            // FIXME: check this with the Matlab implementation, it seems that is a bit different to the paper
+            // http://www.cis.hut.fi/somtoolbox/package/docs2/som_fuzzycolor.html)
+            double[] newLocations = new double[2 * numUnits];
+            for (int step = 0; step < r; step++) {
+                final double[] current = locations;
+                final double[] next = newLocations;
+                workers.run(numUnits, new HexagonalWorkers.RangeTask() {
+                    // @Override
+                    public void run(int worker, int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            double x = current[2 * i];
+                            double y = current[2 * i + 1];
+                            double newX = x;
+                            double newY = y;
+                            int row = i * k;
+                            for (int n = 0; n < counts[i]; n++) {
+                                int j = neighbours[row + n];
+                                // move towards that location
+                                newX += (current[2 * j] - x) * similarities[row + n];
+                                newY += (current[2 * j + 1] - y) * similarities[row + n];
+                            }
+                            next[2 * i] = newX;
+                            next[2 * i + 1] = newY;
+                        }
+                    }
+                });
+                newLocations = locations;
+                locations = next;
             }
+        } finally {
+            workers.shutdown();
         }
+        return locations;
+    }
 
-        return res;
+    private static void siftUp(int[] heap, double[] distances, int position, int unit, double distance) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (distances[parent] >= distance) {
+                break;
+            }
+            heap[position] = heap[parent];
+            distances[position] = distances[parent];
+            position = parent;
+        }
+        heap[position] = unit;
+        distances[position] = distance;
     }
-	
-	private Point getMarkerPos(double unitWidth, double unitHeight, int markerWidth, int markerHeight, Double loc) {
-        return new Point((int) Math.round(loc.x * unitWidth + (unitWidth - markerWidth) / 2), (int) Math.round(loc.y
-                * unitHeight + (unitHeight - markerHeight) / 2));
+
+    /** Replaces the root of the heap, i.e. the least similar unit, and restores the heap order. */
+    private static void siftDown(int[] heap, double[] distances, int size, int unit, double distance) {
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && distances[child + 1] > distances[child]) {
+                child++;
+            }
+            if (distances[child] <= distance) {
+                break;
+            }
+            heap[position] = heap[child];
+            distances[position] = distances[child];
+            position = child;
+        }
+        heap[position] = unit;
+        distances[position] = distance;
     }
-	
-	 private Point getLinePos(double unitWidth, double unitHeight, Double loc) {
-	        return new Point((int) Math.round(loc.x * unitWidth + unitWidth / 2), (int) Math.round(loc.y * unitHeight
-	                + unitHeight / 2));
-	    }
 }
@@ -0,0 +1,17 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Paints a rectangular region of an image, see {@link TiledImageRenderer}.
+ * 
+ * @version $Id: $
+ */
+public interface TilePainter {
+
+    /**
+     * Paints the given region of the image into <code>tile</code>, whose pixel <code>(0, 0)</code> is pixel
+     * <code>(x, y)</code> of the image. Implementations may skip everything outside the region.
+     */
+    void paint(BufferedImage tile, int x, int y, int width, int height);
+}
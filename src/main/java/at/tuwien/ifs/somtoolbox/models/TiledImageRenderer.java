@@ -0,0 +1,82 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalWorkers;
+import at.tuwien.ifs.somtoolbox.output.PNGStreamWriter;
+import at.tuwien.ifs.somtoolbox.util.ImageUtils;
+
+/**
+ * Renders large images to PNG without holding them in memory. The image is split into square tiles; the tiles of one
+ * band of rows are painted in parallel, and the band is then passed on to a {@link PNGStreamWriter}. Memory use is thus
+ * bounded by one band, i.e. <code>width * tileSize</code> pixels, instead of the whole image.
+ * 
+ * @version $Id: $
+ */
+public class TiledImageRenderer {
+
+    /** The default width and height of a tile in pixels. */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private final int tileSize;
+
+    public TiledImageRenderer() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    public TiledImageRenderer(int tileSize) {
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /** Renders the image into the given PNG file. */
+    public void render(TilePainter painter, int width, int height, File file) throws IOException, SOMToolboxException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            render(painter, width, height, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Renders the image as PNG into the given stream, which is not closed. */
+    public void render(final TilePainter painter, final int width, int height, OutputStream out) throws IOException,
+            SOMToolboxException {
+        PNGStreamWriter png = new PNGStreamWriter(out, width, height);
+        final int tilesPerBand = (width + tileSize - 1) / tileSize;
+        final int[] band = new int[width * Math.min(tileSize, height)];
+        HexagonalWorkers workers = new HexagonalWorkers(HexagonalLayer.getNO_CPUS());
+        try {
+            for (int bandY = 0; bandY < height; bandY += tileSize) {
+                final int y = bandY;
+                final int bandHeight = Math.min(tileSize, height - bandY);
+                workers.run(tilesPerBand, new HexagonalWorkers.RangeTask() {
+                    // @Override
+                    public void run(int worker, int from, int to) {
+                        for (int tile = from; tile < to; tile++) {
+                            int x = tile * tileSize;
+                            int tileWidth = Math.min(tileSize, width - x);
+                            BufferedImage image = ImageUtils.createEmptyImage(tileWidth, bandHeight);
+                            painter.paint(image, x, y, tileWidth, bandHeight);
+                            image.getRGB(0, 0, tileWidth, bandHeight, band, x, width);
+                        }
+                    }
+                });
+                png.writeRows(band, 0, width, bandHeight);
+            }
+            png.finish();
+        } finally {
+            workers.shutdown();
+        }
+    }
+}
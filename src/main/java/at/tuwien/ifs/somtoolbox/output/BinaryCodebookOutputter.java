@@ -0,0 +1,130 @@
+package at.tuwien.ifs.somtoolbox.output;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.Layer.GridLayout;
+import at.tuwien.ifs.somtoolbox.layers.Layer.GridTopology;
+
+/**
+ * Writes weight vectors in a compact binary codebook format, which is much faster to write and read than the SOMLib
+ * text format, and can be memory-mapped by {@link at.tuwien.ifs.somtoolbox.input.BinaryCodebookReader}. All values are
+ * little-endian:
+ * 
+ * <pre>
+ * int    magic ({@link #MAGIC}), int version ({@link #VERSION})
+ * int    xSize, ySize, zSize, dim
+ * int    grid layout (ordinal of GridLayout), grid topology (ordinal of GridTopology)
+ * long   current iteration, total number of iterations
+ * int    length of the metric name in bytes, followed by the UTF-8 encoded metric name
+ * byte   per unit: 1 if the unit exists, 0 otherwise
+ *        padding to a multiple of 8 bytes
+ * double per unit, in the order of the unit indices of the HexagonalGrid: the weight vector
+ * </pre>
+ * 
+ * @version $Id: $
+ */
+public class BinaryCodebookOutputter {
+
+    public static final int MAGIC = 0x42434F48; // "HOCB" in little-endian byte order
+
+    public static final int VERSION = 1;
+
+    /** The size of the fixed part of the header, up to and including the length of the metric name. */
+    public static final int HEADER_SIZE = 52;
+
+    /** The file name suffix of binary codebooks. */
+    public static final String FILE_SUFFIX = ".hcb";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Writes the given codebook.
+     * 
+     * @param codebook the weight vectors to write.
+     * @param layout the grid layout of the map.
+     * @param topology the grid topology of the map.
+     * @param metricName the name of the distance metric of the map.
+     * @param iteration the current training iteration.
+     * @param numIterations the total number of training iterations.
+     * @param file the file to write to.
+     */
+    public static void write(HexagonalCodebook codebook, GridLayout layout, GridTopology topology, String metricName,
+            long iteration, long numIterations, File file) throws IOException {
+        boolean[] present = new boolean[codebook.getNumberOfUnits()];
+        for (int i = 0; i < present.length; i++) {
+            present[i] = codebook.isPresent(i);
+        }
+        double[] weights = codebook.isSinglePrecision() ? codebook.copyWeights() : codebook.getWeights();
+        write(codebook.getGrid().getXSize(), codebook.getGrid().getYSize(), codebook.getGrid().getZSize(),
+                codebook.getDim(), weights, present, layout, topology, metricName, iteration,
+                numIterations, file);
+    }
+
+    /**
+     * Writes weight vectors given as one array of at least <code>xSize * ySize * zSize * dim</code> values, ordered by
+     * the unit indices of the {@link at.tuwien.ifs.somtoolbox.layers.HexagonalGrid}, e.g. a snapshot of a codebook.
+     */
+    public static void write(int xSize, int ySize, int zSize, int dim, double[] weights, boolean[] present,
+            GridLayout layout, GridTopology topology, String metricName, long iteration, long numIterations,
+            File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] metric = (metricName != null ? metricName : "").getBytes("UTF-8");
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(xSize).putInt(ySize).putInt(zSize).putInt(dim);
+            buffer.putInt(layout != null ? layout.ordinal() : -1).putInt(topology != null ? topology.ordinal() : -1);
+            buffer.putLong(iteration).putLong(numIterations);
+            buffer.putInt(metric.length);
+            long position = HEADER_SIZE;
+            position += put(channel, buffer, metric);
+            byte[] flags = new byte[present.length];
+            for (int i = 0; i < flags.length; i++) {
+                flags[i] = (byte) (present[i] ? 1 : 0);
+            }
+            position += put(channel, buffer, flags);
+            while (position % 8 != 0) {
+                position += put(channel, buffer, new byte[1]);
+            }
+            int length = xSize * ySize * zSize * dim;
+            for (int i = 0; i < length; i++) {
+                if (buffer.remaining() < 8) {
+                    flush(channel, buffer);
+                }
+                buffer.putDouble(weights[i]);
+            }
+            flush(channel, buffer);
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int put(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        int written = 0;
+        while (written < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - written);
+            buffer.put(bytes, written, length);
+            written += length;
+        }
+        return bytes.length;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,70 @@
+package at.tuwien.ifs.somtoolbox.output;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import at.tuwien.ifs.somtoolbox.layers.HexagonalGrid;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalWinnerMapper;
+
+/**
+ * Writes a data winner mapping file (<code>.dwm</code>) in SOMLib format while the winners are computed, one line per
+ * input vector, so that neither the mapping nor the input data has to be held in memory. Used as the
+ * {@link HexagonalWinnerMapper.Listener} of a mapping; the output is the same as the one of
+ * {@link SOMLibMapOutputter#writeDataWinnerMappingFile}, i.e. the label of the vector followed by the coordinates and
+ * distance of each winner.
+ *
+ * @version $Id: $
+ */
+public class DataWinnerMappingWriter implements HexagonalWinnerMapper.Listener {
+
+    public static final String FILE_SUFFIX = ".dwm";
+
+    private final HexagonalGrid grid;
+
+    private final Writer out;
+
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Opens the file <code>fDir + fName + ".dwm"</code>, with the suffix <code>.gz</code> if gzipped, and writes the
+     * header.
+     *
+     * @param grid the grid of the mapped codebook, to convert unit indices to coordinates.
+     * @param numWinners the number of winners per vector.
+     * @param numVectors the number of vectors that will be mapped.
+     */
+    public DataWinnerMappingWriter(HexagonalGrid grid, int numWinners, long numVectors, String fDir, String fName,
+            boolean gzipped) throws IOException {
+        this.grid = grid;
+        OutputStream stream = new FileOutputStream(fDir + fName + FILE_SUFFIX + (gzipped ? ".gz" : ""));
+        if (gzipped) {
+            stream = new GZIPOutputStream(stream, 1 << 16);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 1 << 16);
+        out.write("$TYPE data_winner_mapping\n");
+        out.write("$XDIM " + numWinners + "\n");
+        out.write("$YDIM " + numVectors + "\n");
+    }
+
+    // @Override
+    public void winners(long position, String label, int[] units, double[] distances, int offset, int count)
+            throws IOException {
+        line.setLength(0);
+        line.append(label != null ? label : String.valueOf(position));
+        for (int i = offset; i < offset + count; i++) {
+            line.append(' ').append(grid.getX(units[i])).append(' ').append(grid.getY(units[i])).append(' ')
+                    .append(distances[i]);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
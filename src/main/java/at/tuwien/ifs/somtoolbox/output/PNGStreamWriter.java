@@ -0,0 +1,125 @@
+package at.tuwien.ifs.somtoolbox.output;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG image row by row, so that the image never has to be held in memory as a whole. Pixels are given as
+ * ARGB <code>int</code>s as in {@link java.awt.image.BufferedImage#getRGB(int, int, int, int, int[], int, int)}, and
+ * written as 8-bit RGBA with the <i>Sub</i> filter.
+ * 
+ * @version $Id: $
+ */
+public class PNGStreamWriter {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    /** The maximum size of an IDAT chunk written. */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+
+    private final int width;
+
+    private final int height;
+
+    private final Deflater deflater = new Deflater();
+
+    private final CRC32 crc = new CRC32();
+
+    /** One filtered row: the filter type byte followed by 4 bytes per pixel. */
+    private final byte[] row;
+
+    private final byte[] compressed = new byte[CHUNK_SIZE];
+
+    private int rowsWritten = 0;
+
+    public PNGStreamWriter(OutputStream out, int width, int height) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Image size must be positive, found " + width + "x" + height + ".");
+        }
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        row = new byte[1 + 4 * width];
+        this.out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = 6; // colour type RGBA
+        // compression, filter and interlace method 0
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Writes the next <code>rows</code> rows of the image, read from <code>pixels</code> starting at
+     * <code>offset</code> with <code>scansize</code> pixels per row.
+     */
+    public void writeRows(int[] pixels, int offset, int scansize, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("Image has only " + height + " rows.");
+        }
+        for (int r = 0; r < rows; r++) {
+            int start = offset + r * scansize;
+            row[0] = 1; // filter type Sub
+            int previous = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[start + x];
+                int i = 1 + 4 * x;
+                row[i] = (byte) ((pixel >> 16) - (previous >> 16));
+                row[i + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+                row[i + 2] = (byte) (pixel - previous);
+                row[i + 3] = (byte) ((pixel >>> 24) - (previous >>> 24));
+                previous = pixel;
+            }
+            deflater.setInput(row);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+        rowsWritten += rows;
+    }
+
+    /** Finishes the image data and writes the end of the image; does not close the underlying stream. */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written.");
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        deflater.end();
+        writeChunk("IEND", compressed, 0);
+        out.flush();
+    }
+
+    private void deflate() throws IOException {
+        int length = deflater.deflate(compressed);
+        if (length > 0) {
+            writeChunk("IDAT", compressed, length);
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,110 @@
+package at.tuwien.ifs.somtoolbox.output;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.layers.HexagonalTrainingMetrics;
+
+/**
+ * Writes {@link HexagonalTrainingMetrics} periodically to a file, one line per period, so that stalled or diverging
+ * training runs can be spotted without JMX. Files ending in <code>.json</code> or <code>.jsonl</code> are written as
+ * JSON lines, all others as CSV with a header line. The samples per second are measured over each period.
+ * 
+ * @version $Id: $
+ */
+public class TrainingMetricsLog {
+
+    private static final String[] COLUMNS = { "time", "samples", "samplesPerSecond", "bmuSearchMillis",
+            "neighbourhoodUpdateMillis", "learningRate", "radius", "quantizationError", "growthEvents", "epoch",
+            "heapUsed", "topographicError" };
+
+    private final HexagonalTrainingMetrics metrics;
+
+    private final PrintWriter out;
+
+    private final boolean json;
+
+    private final Timer timer;
+
+    private long lastTime = System.nanoTime();
+
+    private long lastSamples = 0;
+
+    private boolean closed = false;
+
+    public TrainingMetricsLog(HexagonalTrainingMetrics metrics, File file, long periodMillis) throws IOException {
+        this.metrics = metrics;
+        String name = file.getName().toLowerCase();
+        json = name.endsWith(".json") || name.endsWith(".jsonl");
+        out = new PrintWriter(new FileWriter(file));
+        if (!json) {
+            StringBuilder header = new StringBuilder();
+            for (String column : COLUMNS) {
+                header.append(header.length() > 0 ? "," : "").append(column);
+            }
+            out.println(header);
+            out.flush();
+        }
+        timer = new Timer("TrainingMetricsLog", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, periodMillis, periodMillis);
+    }
+
+    /** Writes the current values of the metrics. */
+    public synchronized void write() {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long samples = metrics.getSamples();
+        double rate = now > lastTime ? (samples - lastSamples) * 1E9 / (now - lastTime) : 0;
+        lastTime = now;
+        lastSamples = samples;
+        Object[] values = { System.currentTimeMillis(), samples, rate, metrics.getBMUSearchTimeMillis(),
+                metrics.getNeighbourhoodUpdateTimeMillis(), metrics.getLearningRate(), metrics.getRadius(),
+                metrics.getQuantizationError(), metrics.getGrowthEvents(), metrics.getEpoch(), metrics.getHeapUsed(),
+                metrics.getTopographicError() };
+        StringBuilder line = new StringBuilder(json ? "{" : "");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            if (json) {
+                line.append('"').append(COLUMNS[i]).append("\":");
+            }
+            line.append(format(values[i]));
+        }
+        if (json) {
+            line.append('}');
+        }
+        out.println(line);
+        out.flush();
+        if (out.checkError()) {
+            Logger.getLogger("at.tuwien.ifs.somtoolbox").warning("Could not write training metrics.");
+        }
+    }
+
+    private String format(Object value) {
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+            return json ? "null" : "";
+        }
+        return String.valueOf(value);
+    }
+
+    /** Stops the periodic writing, writes the final values and closes the file. */
+    public synchronized void close() {
+        timer.cancel();
+        write();
+        closed = true;
+        out.close();
+    }
+}
@@ -0,0 +1,438 @@
+package at.tuwien.ifs.somtoolbox.properties;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import at.tuwien.ifs.somtoolbox.layers.DistanceKernel;
+import at.tuwien.ifs.somtoolbox.layers.ExactBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.LocalBMUSearch;
+import at.tuwien.ifs.somtoolbox.layers.ScalarDistanceKernel;
+import at.tuwien.ifs.somtoolbox.layers.VPTreeBMUSearch;
+import at.tuwien.ifs.somtoolbox.models.TiledImageRenderer;
+
+/**
+ * Additional properties of a {@link at.tuwien.ifs.somtoolbox.models.HexGrowingSOM}, read from the same property file
+ * as the {@link SOMProperties}. All of them are optional:
+ * <ul>
+ * <li><code>trainingMode</code>: <code>online</code> (default) for the sequential online algorithm,
+ * <code>batch</code> for the parallel batch algorithm, or <code>minibatch</code> for the parallel online algorithm
+ * of {@link HexagonalLayer#trainMiniBatch}. Both parallel modes compute Euclidean distances, and thus require the
+ * Euclidean metric <code>L2Metric</code> as <code>metricName</code>.</li>
+ * <li><code>batchEpochs</code>: the number of epochs of batch or mini-batch training; if not given, it is derived
+ * from <code>numIterations</code> and the number of input vectors.</li>
+ * <li><code>batchSigmaEnd</code>: the neighbourhood radius at the end of batch or mini-batch training, default
+ * <code>1.0</code>.</li>
+ * <li><code>miniBatchSize</code>: the number of samples per thread whose best-matching units are searched before
+ * they update the codebook in mini-batch training, default <code>32</code>.</li>
+ * <li><code>bmuSearch</code>: the best-matching unit search, <code>exact</code> (default), <code>local</code> or
+ * <code>vptree</code>; see {@link HexagonalBMUSearch}.</li>
+ * <li><code>bmuSearchRebuildInterval</code>: the number of searches after which the <code>vptree</code> search
+ * rebuilds its tree.</li>
+ * <li><code>inputMode</code>: <code>memory</code> (default) to load all input vectors before training, or
+ * <code>stream</code> to read them chunk by chunk from the vector file in each epoch; requires the batch or
+ * mini-batch training mode.</li>
+ * <li><code>inputCacheDirectory</code>: a directory for binary caches of the vector file, see
+ * {@link at.tuwien.ifs.somtoolbox.data.BinaryVectorCache}; with <code>inputMode=stream</code>, the vectors are read
+ * from the cache, which is created on first use and rebuilt whenever the vector file changes. Default none.</li>
+ * <li><code>chunkSize</code>: the number of input vectors processed at once by the batch or mini-batch
+ * training.</li>
+ * <li><code>codebookFormat</code>: the format of intermediate dumps, <code>somlib</code> (default) for SOMLib weight
+ * vector files, or <code>binary</code> for the binary codebook format of
+ * {@link at.tuwien.ifs.somtoolbox.output.BinaryCodebookOutputter}, which is then also written for the final map.</li>
+ * <li><code>dumpQueueSize</code>: the number of intermediate dumps that may wait for the background writer, default
+ * <code>2</code>.</li>
+ * <li><code>dumpQueuePolicy</code>: what happens to a dump when the queue is full, <code>block</code> (default) to
+ * wait for the writer, or <code>drop</code> to skip the dump.</li>
+ * <li><code>imageWidth</code>, <code>imageHeight</code>: the size in pixels of the fuzzy colour coding image written
+ * after training, default <code>5000</code> each; <code>0</code> skips the image.</li>
+ * <li><code>imageTileSize</code>: the size of the tiles the image is rendered in, see
+ * {@link at.tuwien.ifs.somtoolbox.models.TiledImageRenderer}.</li>
+ * <li><code>metrics</code>: <code>true</code> to expose training metrics through JMX, see
+ * {@link at.tuwien.ifs.somtoolbox.layers.HexagonalTrainingMetrics}; default <code>false</code>.</li>
+ * <li><code>metricsLog</code>: a file to write the training metrics to periodically, as JSON lines if it ends in
+ * <code>.json</code> or <code>.jsonl</code>, as CSV otherwise.</li>
+ * <li><code>metricsInterval</code>: the period of writing the metrics log in seconds, default <code>10</code>.</li>
+ * <li><code>checkpointInterval</code>: the time in seconds between two checkpoints of the training, see
+ * {@link at.tuwien.ifs.somtoolbox.models.HexCheckpointWriter}; default <code>0</code>, i.e. none. Online training is
+ * checkpointed between its growth phases only, i.e. if it grows the map. If a checkpoint of the same output directory
+ * and name prefix exists, training resumes from it.</li>
+ * <li><code>distanceKernel</code>: the implementation of distance computations and weight updates,
+ * <code>scalar</code> (default), <code>vector</code> for the SIMD kernel of the optional <code>simd</code> module, or
+ * the name of a class implementing {@link DistanceKernel}; see {@link #createDistanceKernel()}.</li>
+ * <li><code>qualitySampleRate</code>: the fraction of the input vectors on which the quantization and topographic
+ * error are measured in each epoch of batch or mini-batch training, by the winner search of the training itself, see
+ * {@link HexagonalLayer#setQualityEvaluator(at.tuwien.ifs.somtoolbox.layers.HexagonalQualityEvaluator)}; default
+ * <code>0</code>, i.e. none.</li>
+ * <li><code>singlePrecision</code>: <code>true</code> to keep the codebook and the input chunks of batch or
+ * mini-batch training in single precision, which halves the memory traffic of the winner search. The units keep their
+ * weight vectors in double precision besides the codebook, so the heap used by the map is not reduced; see
+ * {@link HexagonalLayer#setSinglePrecision(boolean)}. Default <code>false</code>.</li>
+ * </ul>
+ * 
+ * @version $Id: $
+ */
+public class HexSOMProperties extends Properties {
+    private static final long serialVersionUID = 1L;
+
+    /** The SIMD distance kernel of the optional <code>simd</code> module. */
+    public static final String VECTOR_DISTANCE_KERNEL = "at.tuwien.ifs.somtoolbox.layers.simd.VectorDistanceKernel";
+
+    public enum TrainingMode {
+        online, batch, minibatch
+    }
+
+    public enum BMUSearchMode {
+        exact, local, vptree
+    }
+
+    public enum InputMode {
+        memory, stream
+    }
+
+    public enum CodebookFormat {
+        somlib, binary
+    }
+
+    public enum DumpQueuePolicy {
+        block, drop
+    }
+
+    private TrainingMode trainingMode = TrainingMode.online;
+
+    private int batchEpochs = 0;
+
+    private double batchSigmaEnd = 1.0;
+
+    private int miniBatchSize = 32;
+
+    private BMUSearchMode bmuSearchMode = BMUSearchMode.exact;
+
+    private int bmuSearchRebuildInterval = VPTreeBMUSearch.DEFAULT_REBUILD_INTERVAL;
+
+    private InputMode inputMode = InputMode.memory;
+
+    private String inputCacheDirectory = null;
+
+    private int chunkSize = HexagonalLayer.DEFAULT_CHUNK_SIZE;
+
+    private CodebookFormat codebookFormat = CodebookFormat.somlib;
+
+    private int dumpQueueSize = 2;
+
+    private DumpQueuePolicy dumpQueuePolicy = DumpQueuePolicy.block;
+
+    private int imageWidth = 5000;
+
+    private int imageHeight = 5000;
+
+    private int imageTileSize = TiledImageRenderer.DEFAULT_TILE_SIZE;
+
+    private boolean metrics = false;
+
+    private String metricsLog = null;
+
+    private int metricsInterval = 10;
+
+    private int checkpointInterval = 0;
+
+    private String distanceKernel = "scalar";
+
+    private double qualitySampleRate = 0;
+
+    private boolean singlePrecision = false;
+
+    /** Creates properties with all values set to their defaults. */
+    public HexSOMProperties() {
+    }
+
+    public HexSOMProperties(String fname) throws PropertiesException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(fname);
+            load(in);
+        } catch (IOException e) {
+            throw new PropertiesException("Could not open properties file " + fname + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        parse();
+    }
+
+    private void parse() throws PropertiesException {
+        try {
+            trainingMode = TrainingMode.valueOf(getProperty("trainingMode", trainingMode.name()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new PropertiesException("Unknown training mode " + getProperty("trainingMode") + ".");
+        }
+        batchEpochs = getInt("batchEpochs", batchEpochs);
+        if (batchEpochs < 0) {
+            throw new PropertiesException("batchEpochs must not be negative.");
+        }
+        batchSigmaEnd = getDouble("batchSigmaEnd", batchSigmaEnd);
+        if (batchSigmaEnd <= 0) {
+            throw new PropertiesException("batchSigmaEnd must be greater than zero.");
+        }
+        miniBatchSize = getInt("miniBatchSize", miniBatchSize);
+        if (miniBatchSize < 1) {
+            throw new PropertiesException("miniBatchSize must be greater than zero.");
+        }
+        try {
+            bmuSearchMode = BMUSearchMode.valueOf(getProperty("bmuSearch", bmuSearchMode.name()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new PropertiesException("Unknown best-matching unit search " + getProperty("bmuSearch") + ".");
+        }
+        bmuSearchRebuildInterval = getInt("bmuSearchRebuildInterval", bmuSearchRebuildInterval);
+        if (bmuSearchRebuildInterval < 1) {
+            throw new PropertiesException("bmuSearchRebuildInterval must be greater than zero.");
+        }
+        try {
+            inputMode = InputMode.valueOf(getProperty("inputMode", inputMode.name()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new PropertiesException("Unknown input mode " + getProperty("inputMode") + ".");
+        }
+        if (inputMode == InputMode.stream && trainingMode == TrainingMode.online) {
+            throw new PropertiesException("Input mode stream requires trainingMode=batch or trainingMode=minibatch.");
+        }
+        inputCacheDirectory = getProperty("inputCacheDirectory");
+        if (inputCacheDirectory != null && inputCacheDirectory.trim().length() == 0) {
+            inputCacheDirectory = null;
+        }
+        if (inputCacheDirectory != null && inputMode != InputMode.stream) {
+            throw new PropertiesException("inputCacheDirectory requires inputMode=stream.");
+        }
+        chunkSize = getInt("chunkSize", chunkSize);
+        if (chunkSize < 1) {
+            throw new PropertiesException("chunkSize must be greater than zero.");
+        }
+        try {
+            codebookFormat = CodebookFormat.valueOf(getProperty("codebookFormat", codebookFormat.name()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new PropertiesException("Unknown codebook format " + getProperty("codebookFormat") + ".");
+        }
+        dumpQueueSize = getInt("dumpQueueSize", dumpQueueSize);
+        if (dumpQueueSize < 1) {
+            throw new PropertiesException("dumpQueueSize must be greater than zero.");
+        }
+        try {
+            dumpQueuePolicy = DumpQueuePolicy.valueOf(getProperty("dumpQueuePolicy", dumpQueuePolicy.name()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new PropertiesException("Unknown dump queue policy " + getProperty("dumpQueuePolicy") + ".");
+        }
+        imageWidth = getInt("imageWidth", imageWidth);
+        imageHeight = getInt("imageHeight", imageHeight);
+        if (imageWidth < 0 || imageHeight < 0) {
+            throw new PropertiesException("imageWidth and imageHeight must not be negative.");
+        }
+        imageTileSize = getInt("imageTileSize", imageTileSize);
+        if (imageTileSize < 1) {
+            throw new PropertiesException("imageTileSize must be greater than zero.");
+        }
+        metrics = Boolean.valueOf(getProperty("metrics", String.valueOf(metrics)).trim()).booleanValue();
+        metricsLog = getProperty("metricsLog");
+        if (metricsLog != null && metricsLog.trim().length() == 0) {
+            metricsLog = null;
+        }
+        metricsInterval = getInt("metricsInterval", metricsInterval);
+        if (metricsInterval < 1) {
+            throw new PropertiesException("metricsInterval must be greater than zero.");
+        }
+        checkpointInterval = getInt("checkpointInterval", checkpointInterval);
+        if (checkpointInterval < 0) {
+            throw new PropertiesException("checkpointInterval must not be negative.");
+        }
+        distanceKernel = getProperty("distanceKernel", distanceKernel).trim();
+        qualitySampleRate = getDouble("qualitySampleRate", qualitySampleRate);
+        if (qualitySampleRate < 0 || qualitySampleRate > 1) {
+            throw new PropertiesException("qualitySampleRate must be between 0 and 1.");
+        }
+        singlePrecision = Boolean.valueOf(getProperty("singlePrecision", String.valueOf(singlePrecision)).trim())
+                .booleanValue();
+        if (singlePrecision && trainingMode == TrainingMode.online) {
+            throw new PropertiesException("singlePrecision requires trainingMode=batch or trainingMode=minibatch.");
+        }
+    }
+
+    protected int getInt(String key, int defaultValue) throws PropertiesException {
+        String value = getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new PropertiesException("Property " + key + " must be an integer, found " + value + ".");
+        }
+    }
+
+    protected double getDouble(String key, double defaultValue) throws PropertiesException {
+        String value = getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new PropertiesException("Property " + key + " must be a number, found " + value + ".");
+        }
+    }
+
+    public TrainingMode trainingMode() {
+        return trainingMode;
+    }
+
+    public void setTrainingMode(TrainingMode trainingMode) {
+        this.trainingMode = trainingMode;
+    }
+
+    /** Returns the number of batch epochs, or <code>0</code> if it shall be derived from the number of iterations. */
+    public int batchEpochs() {
+        return batchEpochs;
+    }
+
+    public double batchSigmaEnd() {
+        return batchSigmaEnd;
+    }
+
+    public int miniBatchSize() {
+        return miniBatchSize;
+    }
+
+    public BMUSearchMode bmuSearchMode() {
+        return bmuSearchMode;
+    }
+
+    public InputMode inputMode() {
+        return inputMode;
+    }
+
+    /** Returns the directory of the binary caches of the vector file, or <code>null</code> if none. */
+    public String inputCacheDirectory() {
+        return inputCacheDirectory != null ? inputCacheDirectory.trim() : null;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public CodebookFormat codebookFormat() {
+        return codebookFormat;
+    }
+
+    public int dumpQueueSize() {
+        return dumpQueueSize;
+    }
+
+    public DumpQueuePolicy dumpQueuePolicy() {
+        return dumpQueuePolicy;
+    }
+
+    public int imageWidth() {
+        return imageWidth;
+    }
+
+    public int imageHeight() {
+        return imageHeight;
+    }
+
+    public int imageTileSize() {
+        return imageTileSize;
+    }
+
+    public boolean metrics() {
+        return metrics;
+    }
+
+    /** Returns the file to write the training metrics to, or <code>null</code> if none. */
+    public String metricsLog() {
+        return metricsLog != null ? metricsLog.trim() : null;
+    }
+
+    public int metricsInterval() {
+        return metricsInterval;
+    }
+
+    /** Returns the time in seconds between two checkpoints, or <code>0</code> if none are written. */
+    public int checkpointInterval() {
+        return checkpointInterval;
+    }
+
+    public String distanceKernel() {
+        return distanceKernel;
+    }
+
+    /** Returns the fraction of the input vectors the quality is measured on in each epoch, or <code>0</code>. */
+    public double qualitySampleRate() {
+        return qualitySampleRate;
+    }
+
+    public boolean singlePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * Creates the distance kernel selected by <code>distanceKernel</code>. The SIMD kernel needs the incubator module
+     * of the Vector API, i.e. <code>--add-modules jdk.incubator.vector</code>; if a kernel cannot be loaded, the scalar
+     * one is used.
+     */
+    public DistanceKernel createDistanceKernel() {
+        if (distanceKernel.equals("scalar")) {
+            return new ScalarDistanceKernel();
+        }
+        String className = distanceKernel.equals("vector") ? VECTOR_DISTANCE_KERNEL : distanceKernel;
+        try {
+            return (DistanceKernel) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return fallBackToScalarKernel(className, e);
+        } catch (LinkageError e) { // if the Vector API is missing
+            return fallBackToScalarKernel(className, e);
+        } catch (ClassCastException e) {
+            return fallBackToScalarKernel(className, e);
+        }
+    }
+
+    private static DistanceKernel fallBackToScalarKernel(String className, Throwable cause) {
+        Logger.getLogger("at.tuwien.ifs.somtoolbox").warning(
+                "Could not load distance kernel " + className + ", using the scalar one: " + cause);
+        return new ScalarDistanceKernel();
+    }
+
+    /** Creates a new instance of the configured best-matching unit search. */
+    public HexagonalBMUSearch createBMUSearch() {
+        switch (bmuSearchMode) {
+            case local:
+                return new LocalBMUSearch();
+            case vptree:
+                return new VPTreeBMUSearch(bmuSearchRebuildInterval);
+            default:
+                return new ExactBMUSearch();
+        }
+    }
+}
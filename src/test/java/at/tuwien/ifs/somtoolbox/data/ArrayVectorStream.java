@@ -0,0 +1,68 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import java.util.Random;
+
+/**
+ * Input vectors held in memory, for tests of the training and mapping of streamed input.
+ *
+ * @version $Id: $
+ */
+public class ArrayVectorStream implements InputVectorStream {
+
+    private final double[][] vectors;
+
+    private int position;
+
+    public ArrayVectorStream(double[][] vectors) {
+        this.vectors = vectors;
+    }
+
+    /** Creates a stream of vectors uniformly distributed in the unit cube. */
+    public ArrayVectorStream(int count, int dim, long seed) {
+        this(createVectors(count, dim, seed));
+    }
+
+    public static double[][] createVectors(int count, int dim, long seed) {
+        Random random = new Random(seed);
+        double[][] vectors = new double[count][dim];
+        for (double[] vector : vectors) {
+            for (int k = 0; k < dim; k++) {
+                vector[k] = random.nextDouble();
+            }
+        }
+        return vectors;
+    }
+
+    public double[][] getVectors() {
+        return vectors;
+    }
+
+    // @Override
+    public int dim() {
+        return vectors[0].length;
+    }
+
+    // @Override
+    public long numVectors() {
+        return vectors.length;
+    }
+
+    // @Override
+    public int read(VectorChunk chunk) {
+        chunk.clear(position);
+        while (!chunk.isFull() && position < vectors.length) {
+            chunk.add(vectors[position], "vector" + position);
+            position++;
+        }
+        return chunk.size();
+    }
+
+    // @Override
+    public void reset() {
+        position = 0;
+    }
+
+    // @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,218 @@
+package at.tuwien.ifs.somtoolbox.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link BinaryVectorCache} yields the same vectors and labels as the SOMLib input vector file it caches,
+ * and that it is rebuilt when the file changes.
+ *
+ * @version $Id: $
+ */
+public class BinaryVectorCacheTest {
+
+    private static final int DIM = 4;
+
+    private File directory;
+
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("vectorcache", "");
+        directory.delete();
+        directory.mkdir();
+        cacheDirectory = new File(directory, "cache");
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private static double[][] createVectors(int count, long seed) {
+        Random random = new Random(seed);
+        double[][] vectors = new double[count][DIM];
+        for (double[] vector : vectors) {
+            for (int k = 0; k < DIM; k++) {
+                vector[k] = random.nextGaussian() * Math.pow(10, random.nextInt(9) - 4);
+            }
+        }
+        return vectors;
+    }
+
+    /** Writes the vectors in SOMLib format; the vector at <code>unlabelled</code> gets no label. */
+    private static void writeVectorFile(File file, double[][] vectors, int unlabelled) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            out = new GZIPOutputStream(out);
+        }
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.println("$TYPE vec");
+        writer.println("$XDIM " + vectors.length);
+        writer.println("$YDIM 1");
+        writer.println("$VEC_DIM " + DIM);
+        for (int i = 0; i < vectors.length; i++) {
+            for (int k = 0; k < DIM; k++) {
+                writer.print(vectors[i][k] + " ");
+            }
+            writer.println(i != unlabelled ? "vector" + i : "");
+        }
+        writer.close();
+    }
+
+    /** Reads all vectors of the stream, in chunks of the given capacity, and appends their labels to the list. */
+    private static double[][] readAll(InputVectorStream input, int capacity, List<String> labels) throws IOException {
+        List<double[]> vectors = new ArrayList<double[]>();
+        VectorChunk chunk = new VectorChunk(capacity, input.dim());
+        while (input.read(chunk) > 0) {
+            for (int i = 0; i < chunk.size(); i++) {
+                assertEquals(vectors.size(), chunk.getFirst() + i);
+                double[] vector = new double[input.dim()];
+                chunk.getVector(i, vector);
+                vectors.add(vector);
+                labels.add(chunk.getLabel(i));
+            }
+        }
+        return vectors.toArray(new double[vectors.size()][]);
+    }
+
+    private static void assertSameVectors(double[][] expected, List<String> expectedLabels, InputVectorStream input)
+            throws IOException {
+        List<String> labels = new ArrayList<String>();
+        double[][] vectors = readAll(input, 7, labels);
+        assertEquals(expected.length, vectors.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], vectors[i], 0);
+        }
+        assertEquals(expectedLabels, labels);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = new File(directory, "test.vec");
+        double[][] vectors = createVectors(50, 1);
+        writeVectorFile(file, vectors, 3);
+        SOMLibVectorStream source = new SOMLibVectorStream(file.getPath());
+        List<String> labels = new ArrayList<String>();
+        double[][] parsed = readAll(source, 16, labels);
+        source.close();
+        for (int i = 0; i < vectors.length; i++) {
+            for (int k = 0; k < DIM; k++) {
+                assertEquals(vectors[i][k], parsed[i][k], Math.abs(vectors[i][k]) * 1E-15);
+            }
+        }
+        assertNull(labels.get(3));
+        assertEquals("vector4", labels.get(4));
+
+        BinaryVectorCache cache = BinaryVectorCache.open(file.getPath(), cacheDirectory);
+        try {
+            assertEquals(BinaryVectorCache.getCacheFile(file, cacheDirectory), cache.getFile());
+            assertTrue(cache.isCacheOf(file));
+            assertEquals(DIM, cache.dim());
+            assertEquals(vectors.length, cache.numVectors());
+            assertSameVectors(parsed, labels, cache);
+            cache.reset();
+            assertSameVectors(parsed, labels, cache);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        File file = new File(directory, "test.vec");
+        writeVectorFile(file, createVectors(10, 2), -1);
+        BinaryVectorCache.open(file.getPath(), cacheDirectory).close();
+        File cacheFile = BinaryVectorCache.getCacheFile(file, cacheDirectory);
+        // an unchanged cache is not written again
+        assertTrue(cacheFile.setLastModified(1000));
+        BinaryVectorCache cache = BinaryVectorCache.open(file.getPath(), cacheDirectory);
+        cache.close();
+        assertEquals(1000, cacheFile.lastModified());
+        assertEquals(1, cacheDirectory.list().length);
+    }
+
+    @Test
+    public void testRebuild() throws IOException {
+        File file = new File(directory, "test.vec");
+        writeVectorFile(file, createVectors(10, 3), -1);
+        BinaryVectorCache cache = BinaryVectorCache.open(file.getPath(), cacheDirectory);
+        cache.close();
+
+        double[][] vectors = createVectors(12, 4);
+        writeVectorFile(file, vectors, -1);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        assertFalse(cache.isCacheOf(file));
+        cache = BinaryVectorCache.open(file.getPath(), cacheDirectory);
+        try {
+            assertTrue(cache.isCacheOf(file));
+            assertEquals(vectors.length, cache.numVectors());
+            SOMLibVectorStream source = new SOMLibVectorStream(file.getPath());
+            List<String> labels = new ArrayList<String>();
+            double[][] parsed = readAll(source, 5, labels);
+            source.close();
+            assertSameVectors(parsed, labels, cache);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testGzipped() throws IOException {
+        File file = new File(directory, "test.vec.gz");
+        writeVectorFile(file, createVectors(20, 5), 0);
+        BinaryVectorCache cache = BinaryVectorCache.open(new File(directory, "test.vec").getPath(), cacheDirectory);
+        try {
+            assertTrue(cache.isCacheOf(file));
+            SOMLibVectorStream source = new SOMLibVectorStream(file.getPath());
+            List<String> labels = new ArrayList<String>();
+            double[][] parsed = readAll(source, 5, labels);
+            source.close();
+            assertSameVectors(parsed, labels, cache);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedCache() throws IOException {
+        File file = new File(directory, "test.vec");
+        writeVectorFile(file, createVectors(10, 6), -1);
+        File cacheFile = new File(directory, "test" + BinaryVectorCache.FILE_SUFFIX);
+        SOMLibVectorStream source = new SOMLibVectorStream(file.getPath());
+        BinaryVectorCache.write(source, file, cacheFile);
+        source.close();
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        new BinaryVectorCache(cacheFile);
+    }
+}
@@ -0,0 +1,260 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.layers.HexagonalGrid.NeighbourhoodKernel;
+
+/**
+ * Tests the distances, the neighbour index, the neighbourhood stencil and the kernel of {@link HexagonalGrid}, on
+ * planar and toroidal grids, and resizing it.
+ *
+ * @version $Id: $
+ */
+public class HexagonalGridTest {
+
+    /** The squared distance of the centres of two cells, with even rows shifted half a unit to the right. */
+    private static int centreDistanceSq(int x1, int y1, int x2, int y2) {
+        // in units of half a cell along a row, (dx / 2)^2 + 3 / 4 dy^2 is a quarter of an integer
+        int dx = 2 * (x2 - x1) + ((y2 & 1) == 0 ? 1 : 0) - ((y1 & 1) == 0 ? 1 : 0);
+        int dy = y2 - y1;
+        return (dx * dx + 3 * dy * dy) / 4;
+    }
+
+    @Test
+    public void testDirectNeighbours() {
+        HexagonalGrid grid = new HexagonalGrid(6, 6, 1);
+        // even row: the neighbours in the rows above and below are at x and x + 1
+        assertNeighbours(grid, 2, 2, new int[][] { { 1, 2 }, { 3, 2 }, { 2, 1 }, { 3, 1 }, { 2, 3 }, { 3, 3 } });
+        // odd row: at x - 1 and x
+        assertNeighbours(grid, 2, 3, new int[][] { { 1, 3 }, { 3, 3 }, { 1, 2 }, { 2, 2 }, { 1, 4 }, { 2, 4 } });
+    }
+
+    private static void assertNeighbours(HexagonalGrid grid, int x, int y, int[][] expected) {
+        int index = grid.getIndex(x, y, 0);
+        assertEquals(expected.length, grid.getNeighbourOffsets()[index + 1] - grid.getNeighbourOffsets()[index]);
+        for (int[] neighbour : expected) {
+            assertTrue(grid.areNeighbours(index, grid.getIndex(neighbour[0], neighbour[1], 0)));
+            assertEquals(1, grid.getDistanceSq(x, y, neighbour[0], neighbour[1]));
+            assertEquals(1, grid.getSteps(x, y, neighbour[0], neighbour[1]));
+        }
+    }
+
+    @Test
+    public void testDistances() {
+        HexagonalGrid grid = new HexagonalGrid(7, 6, 1);
+        assertEquals(3, grid.getDistanceSq(2, 2, 4, 3));
+        assertEquals(2, grid.getSteps(2, 2, 4, 3));
+        assertEquals(3, grid.getDistanceSq(2, 2, 2, 4));
+        assertEquals(4, grid.getDistanceSq(2, 2, 4, 2));
+        assertEquals(2, grid.getDistance(2, 2, 4, 2), 0);
+        for (int y1 = 0; y1 < grid.getYSize(); y1++) {
+            for (int x1 = 0; x1 < grid.getXSize(); x1++) {
+                for (int y2 = 0; y2 < grid.getYSize(); y2++) {
+                    for (int x2 = 0; x2 < grid.getXSize(); x2++) {
+                        int distanceSq = grid.getDistanceSq(x1, y1, x2, y2);
+                        assertEquals(centreDistanceSq(x1, y1, x2, y2), distanceSq);
+                        assertEquals(distanceSq, grid.getDistanceSq(x2, y2, x1, y1));
+                        assertEquals(Math.sqrt(distanceSq), grid.getDistance(x1, y1, x2, y2), 1E-12);
+                        assertEquals(distanceSq == 1, grid.areNeighbours(grid.getIndex(x1, y1, 0), grid.getIndex(
+                                x2, y2, 0)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMapDistanceAcrossLayers() {
+        HexagonalGrid grid = new HexagonalGrid(5, 5, 3);
+        assertEquals(1, grid.getMapDistanceSq(1, 1, 0, 1, 1, 1), 0);
+        assertEquals(3 + 4, grid.getMapDistanceSq(2, 2, 0, 4, 3, 2), 0);
+        assertTrue(grid.areNeighbours(grid.getIndex(1, 1, 0), grid.getIndex(1, 1, 1)));
+        assertFalse(grid.areNeighbours(grid.getIndex(1, 1, 0), grid.getIndex(1, 1, 2)));
+    }
+
+    @Test
+    public void testPlanarBorders() {
+        HexagonalGrid grid = new HexagonalGrid(5, 4, 1);
+        assertFalse(grid.isToroidal());
+        assertEquals(-1, grid.locate(-1, 0, 0));
+        assertEquals(-1, grid.locate(5, 0, 0));
+        assertEquals(-1, grid.locate(0, -1, 0));
+        assertEquals(-1, grid.locate(0, 4, 0));
+        assertEquals(grid.getIndex(4, 3, 0), grid.locate(4, 3, 0));
+        // the corner in an even row has its right neighbour and two below
+        int corner = grid.getIndex(0, 0, 0);
+        assertEquals(3, grid.getNeighbourOffsets()[corner + 1] - grid.getNeighbourOffsets()[corner]);
+        assertFalse(grid.areNeighbours(corner, grid.getIndex(4, 0, 0)));
+        for (int unit = 0; unit < grid.getNumberOfUnits(); unit++) {
+            assertEquals(unit, grid.getIndex(grid.getX(unit), grid.getY(unit), grid.getZ(unit)));
+        }
+    }
+
+    @Test
+    public void testStencil() {
+        HexagonalGrid grid = new HexagonalGrid(6, 5, 1);
+        for (int parity = 0; parity < 2; parity++) {
+            int[] dxs = grid.getStencilDx(parity);
+            int[] dys = grid.getStencilDy(parity);
+            int[] d2s = grid.getStencilDistanceSq(parity);
+            assertEquals(0, d2s[0]);
+            for (int i = 0; i < d2s.length; i++) {
+                assertTrue(i == 0 || d2s[i - 1] <= d2s[i]);
+                assertEquals(centreDistanceSq(0, parity, dxs[i], parity + dys[i]), d2s[i]);
+            }
+            // from any unit, every other unit of the grid is in the stencil
+            for (int y = parity; y < grid.getYSize(); y += 2) {
+                for (int x = 0; x < grid.getXSize(); x++) {
+                    boolean[] visited = new boolean[grid.getXSize() * grid.getYSize()];
+                    for (int i = 0; i < d2s.length; i++) {
+                        int x2 = x + dxs[i];
+                        int y2 = y + dys[i];
+                        if (x2 >= 0 && x2 < grid.getXSize() && y2 >= 0 && y2 < grid.getYSize()) {
+                            visited[y2 * grid.getXSize() + x2] = true;
+                        }
+                    }
+                    for (boolean unit : visited) {
+                        assertTrue(unit);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKernel() {
+        HexagonalGrid grid = new HexagonalGrid(10, 10, 1);
+        NeighbourhoodKernel kernel = grid.getKernel(2, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+        assertEquals(1, kernel.get(0), 0);
+        for (int distanceSq = 0; distanceSq <= kernel.getMaxDistanceSq(); distanceSq++) {
+            assertEquals(Math.exp(-distanceSq / 8.0), kernel.get(distanceSq), 1E-12);
+            assertTrue(kernel.get(distanceSq) >= HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+        }
+        assertTrue(Math.exp(-(kernel.getMaxDistanceSq() + 1) / 8.0) < HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+        assertEquals(0, kernel.get(kernel.getMaxDistanceSq() + 1), 0);
+    }
+
+    @Test
+    public void testKernelBounds() {
+        HexagonalGrid grid = new HexagonalGrid(7, 5, 2);
+        int max = 0;
+        for (int index1 = 0; index1 < grid.getNumberOfUnits(); index1++) {
+            for (int index2 = 0; index2 < grid.getNumberOfUnits(); index2++) {
+                max = Math.max(max, (int) grid.getMapDistanceSq(grid.getX(index1), grid.getY(index1),
+                        grid.getZ(index1), grid.getX(index2), grid.getY(index2), grid.getZ(index2)));
+            }
+        }
+        assertEquals(max, grid.getMaxDistanceSq());
+
+        // a huge radius covers the whole map, but is not tabulated beyond it
+        NeighbourhoodKernel kernel = grid.getKernel(1000, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+        assertEquals(max, kernel.getMaxDistanceSq());
+        assertEquals(Math.exp(-max / 2000000.0), kernel.get(max), 1E-12);
+
+        // a radius of 0 is the winner only
+        kernel = grid.getKernel(0, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+        assertEquals(0, kernel.getMaxDistanceSq());
+        assertEquals(1, kernel.get(0), 0);
+        assertEquals(0, kernel.get(1), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeKernelRadius() {
+        new HexagonalGrid(4, 4, 1).getKernel(-1, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndefinedKernelRadius() {
+        new HexagonalGrid(4, 4, 1).getCutoffDistanceSq(Double.NaN, HexagonalGrid.DEFAULT_KERNEL_THRESHOLD);
+    }
+
+    @Test
+    public void testToroidalWrap() {
+        HexagonalGrid grid = new HexagonalGrid(6, 4, 1, true);
+        assertTrue(grid.isToroidal());
+        assertEquals(grid.getIndex(5, 0, 0), grid.locate(-1, 0, 0));
+        assertEquals(grid.getIndex(0, 2, 0), grid.locate(6, 2, 0));
+        // an even number of rows keeps the columns aligned
+        assertEquals(grid.getIndex(0, 3, 0), grid.locate(0, -1, 0));
+        assertEquals(grid.getIndex(3, 0, 0), grid.locate(3, 4, 0));
+        assertTrue(grid.areNeighbours(grid.getIndex(0, 0, 0), grid.getIndex(5, 0, 0)));
+        assertTrue(grid.areNeighbours(grid.getIndex(0, 0, 0), grid.getIndex(0, 3, 0)));
+        assertEquals(1, grid.getDistanceSq(0, 0, 5, 0));
+        assertEquals(1, grid.getDistanceSq(0, 0, 0, 3));
+    }
+
+    @Test
+    public void testToroidalGridIsHomogeneous() {
+        assertHomogeneous(new HexagonalGrid(6, 4, 1, true));
+        // an odd number of rows shifts the columns at the wrap
+        assertHomogeneous(new HexagonalGrid(7, 5, 1, true));
+    }
+
+    /** Checks that every unit has six neighbours, and that distances do not change when both units are translated. */
+    private static void assertHomogeneous(HexagonalGrid grid) {
+        int xSize = grid.getXSize();
+        int ySize = grid.getYSize();
+        for (int unit = 0; unit < grid.getNumberOfUnits(); unit++) {
+            assertEquals(6, grid.getNeighbourOffsets()[unit + 1] - grid.getNeighbourOffsets()[unit]);
+            for (int i = grid.getNeighbourOffsets()[unit]; i < grid.getNeighbourOffsets()[unit + 1]; i++) {
+                int neighbour = grid.getNeighbours()[i];
+                assertTrue(grid.areNeighbours(neighbour, unit));
+                assertEquals(1, grid.getDistanceSq(grid.getX(unit), grid.getY(unit), grid.getX(neighbour), grid
+                        .getY(neighbour)));
+            }
+        }
+        for (int y1 = 0; y1 < ySize; y1++) {
+            for (int x1 = 0; x1 < xSize; x1++) {
+                for (int y2 = 0; y2 < ySize; y2++) {
+                    for (int x2 = 0; x2 < xSize; x2++) {
+                        int distanceSq = grid.getDistanceSq(x1, y1, x2, y2);
+                        assertEquals(distanceSq, grid.getDistanceSq(x2, y2, x1, y1));
+                        // a translation along the rows
+                        assertEquals(distanceSq, grid.getDistanceSq((x1 + 1) % xSize, y1, (x2 + 1) % xSize, y2));
+                        // a translation by one row, as a move to the lower right neighbour
+                        int moved1 = grid.locate(x1 + ((y1 & 1) ^ 1), y1 + 1, 0);
+                        int moved2 = grid.locate(x2 + ((y2 & 1) ^ 1), y2 + 1, 0);
+                        assertEquals(distanceSq, grid.getDistanceSq(grid.getX(moved1), grid.getY(moved1), grid
+                                .getX(moved2), grid.getY(moved2)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResize() {
+        HexagonalGrid grid = new HexagonalGrid(4, 4, 1).resize(7, 6, 1);
+        HexagonalGrid expected = new HexagonalGrid(7, 6, 1);
+        assertTrue(grid.hasSize(7, 6, 1));
+        for (int unit = 0; unit < expected.getNumberOfUnits(); unit++) {
+            for (int other = 0; other < expected.getNumberOfUnits(); other++) {
+                assertEquals(expected.areNeighbours(unit, other), grid.areNeighbours(unit, other));
+                assertEquals(expected.getDistanceSq(expected.getX(unit), expected.getY(unit), expected.getX(other),
+                        expected.getY(other)), grid.getDistanceSq(grid.getX(unit), grid.getY(unit), grid.getX(other),
+                        grid.getY(other)));
+            }
+        }
+    }
+}
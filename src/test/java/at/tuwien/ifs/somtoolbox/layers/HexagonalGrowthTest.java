@@ -0,0 +1,166 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
+
+/**
+ * Tests that growing a {@link HexagonalLayer} keeps the units, the grid and the codebook consistent with a layer built
+ * at the grown size.
+ *
+ * @version $Id: $
+ */
+public class HexagonalGrowthTest {
+
+    private static final String METRIC = L2Metric.class.getName();
+
+    private static final int DIM = 4;
+
+    private static HexagonalLayer createLayer(int xSize, int ySize, boolean flat) {
+        HexagonalLayer layer = new HexagonalLayer(xSize, ySize, METRIC, DIM, false, false, 11, null);
+        layer.setFlatWeightStore(flat);
+        layer.getCodebook();
+        return layer;
+    }
+
+    private static void assertConsistent(HexagonalLayer layer) throws LayerAccessException {
+        HexagonalGrid grid = layer.getGrid();
+        HexagonalGrid fresh = new HexagonalGrid(layer.getXSize(), layer.getYSize(), layer.getZSize());
+        for (int parity = 0; parity < 2; parity++) {
+            assertArrayEquals(fresh.getStencilDx(parity), grid.getStencilDx(parity));
+            assertArrayEquals(fresh.getStencilDy(parity), grid.getStencilDy(parity));
+            assertArrayEquals(fresh.getStencilDistanceSq(parity), grid.getStencilDistanceSq(parity));
+        }
+        assertArrayEquals(fresh.getNeighbourOffsets(), grid.getNeighbourOffsets());
+        assertArrayEquals(fresh.getNeighbours(), grid.getNeighbours());
+
+        HexagonalCodebook codebook = layer.getCodebook();
+        layer.flushWeights();
+        HexagonalCodebook expected = new HexagonalCodebook(grid, DIM);
+        expected.load(layer.units);
+        assertEquals(expected.getNumberOfUnits(), codebook.getNumberOfUnits());
+        double[] weights = new double[DIM];
+        double[] expectedWeights = new double[DIM];
+        for (int i = 0; i < codebook.getNumberOfUnits(); i++) {
+            Unit unit = layer.getUnit(grid.getX(i), grid.getY(i), grid.getZ(i));
+            assertNotNull(unit);
+            assertEquals(grid.getX(i), unit.getXPos());
+            assertEquals(grid.getY(i), unit.getYPos());
+            assertTrue(codebook.isPresent(i));
+            codebook.getWeightVector(i, weights);
+            expected.getWeightVector(i, expectedWeights);
+            assertArrayEquals(expectedWeights, weights, 0);
+            assertEquals(expected.getNormSq(i), codebook.getNormSq(i), 1E-9);
+        }
+    }
+
+    @Test
+    public void testRandomGrowth() throws LayerAccessException {
+        for (boolean flat : new boolean[] { false, true }) {
+            HexagonalLayer layer = createLayer(6, 5, flat);
+            Random random = new Random(1);
+            for (int i = 0; i < 20; i++) {
+                if (random.nextBoolean()) {
+                    layer.insertRowPair(random.nextInt(layer.getYSize() + 1));
+                } else {
+                    layer.insertColumn(random.nextInt(layer.getXSize() + 1));
+                }
+                assertConsistent(layer);
+                assertTrue(layer.growAt(random.nextInt(layer.getXSize()), random.nextInt(layer.getYSize()), 0));
+                assertConsistent(layer);
+            }
+        }
+    }
+
+    @Test
+    public void testRowPairsKeepNeighbourhoods() throws LayerAccessException {
+        for (int y = 0; y <= 5; y++) {
+            HexagonalLayer layer = createLayer(5, 5, false);
+            Map<Unit, Set<Unit>> before = new HashMap<Unit, Set<Unit>>();
+            for (Unit unit : layer.getAllUnits()) {
+                before.put(unit, new HashSet<Unit>(layer.getNeighbouringUnits(unit.getXPos(), unit.getYPos())));
+            }
+            layer.insertRowPair(y);
+            assertEquals(35, layer.getAllUnits().length);
+            for (Unit unit : before.keySet()) {
+                // units next to the new rows gain them as neighbours
+                if (unit.getYPos() == y - 1 || unit.getYPos() == y + 2) {
+                    continue;
+                }
+                Set<Unit> after = new HashSet<Unit>(layer.getNeighbouringUnits(unit.getXPos(), unit.getYPos()));
+                assertEquals(before.get(unit), after);
+            }
+        }
+    }
+
+    @Test
+    public void testNewUnitIsMeanOfNeighbours() throws LayerAccessException {
+        HexagonalLayer layer = createLayer(4, 4, false);
+        Unit unit = layer.getUnit(1, 1, 0);
+        layer.insertRowPair(2);
+        assertSame(unit, layer.getUnit(1, 1, 0));
+        double[] expected = new double[DIM];
+        int count = 0;
+        for (Unit neighbour : layer.getNeighbouringUnits(1, 2)) {
+            // the old units next to the new one
+            if (neighbour.getYPos() == 1 || neighbour.getYPos() == 4) {
+                for (int k = 0; k < DIM; k++) {
+                    expected[k] += neighbour.getWeightVector()[k];
+                }
+                count++;
+            }
+        }
+        for (int k = 0; k < DIM; k++) {
+            expected[k] /= count;
+        }
+        assertArrayEquals(expected, layer.getUnit(1, 2, 0).getWeightVector(), 1E-12);
+    }
+
+    @Test
+    public void testGrowFromOneUnit() throws LayerAccessException {
+        HexagonalLayer layer = createLayer(1, 1, true);
+        assertFalse(layer.growAt(0, 0, 0));
+        layer.insertRowPair(0);
+        layer.insertColumn(1);
+        layer.insertRowPair(3);
+        assertEquals(2, layer.getXSize());
+        assertEquals(5, layer.getYSize());
+        assertEquals(10, layer.getAllUnits().length);
+        assertConsistent(layer);
+    }
+
+    @Test(expected = LayerAccessException.class)
+    public void testInsertOutOfRange() throws LayerAccessException {
+        createLayer(3, 3, false).insertRowPair(4);
+    }
+}
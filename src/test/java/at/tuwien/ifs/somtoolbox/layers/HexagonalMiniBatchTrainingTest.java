@@ -0,0 +1,142 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.ArrayVectorStream;
+
+/**
+ * Tests the mini-batch training of {@link HexagonalLayer}: on one thread with mini-batches of one sample, it is the
+ * sequential online algorithm; on several threads, the striped locking keeps the weight vectors consistent.
+ *
+ * @version $Id: $
+ */
+public class HexagonalMiniBatchTrainingTest {
+
+    private static final String METRIC = "at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric";
+
+    private static final int DIM = 6;
+
+    private final int cpus = HexagonalLayer.getNO_CPUS();
+
+    @After
+    public void tearDown() {
+        HexagonalLayer.setNO_CPUS(cpus);
+    }
+
+    private static HexagonalLayer createLayer(int xSize, int ySize) {
+        HexagonalLayer layer = new HexagonalLayer(xSize, ySize, METRIC, DIM, false, false, 7, null);
+        layer.setFlatWeightStore(true);
+        return layer;
+    }
+
+    @Test
+    public void testSequentialOnlineAlgorithm() throws SOMToolboxException {
+        HexagonalLayer.setNO_CPUS(1);
+        ArrayVectorStream input = new ArrayVectorStream(150, DIM, 1);
+        int epochs = 2;
+        double learnrateStart = 0.5;
+        double learnrateEnd = 0.01;
+        double sigmaStart = 4;
+        double sigmaEnd = 0.5;
+        HexagonalLayer trained = createLayer(8, 6);
+        trained.trainMiniBatch(input, epochs, learnrateStart, learnrateEnd, sigmaStart, sigmaEnd, 1, 1);
+
+        // the online algorithm, one sample after the other, with the same schedule
+        HexagonalLayer expected = createLayer(8, 6);
+        HexagonalCodebook cb = expected.getCodebook();
+        HexagonalGrid g = cb.getGrid();
+        ExactBMUSearch search = new ExactBMUSearch();
+        double[][] vectors = input.getVectors();
+        long totalSamples = epochs * vectors.length;
+        long samples = 0;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            for (double[] vector : vectors) {
+                double progress = samples / (double) totalSamples;
+                double learnrate = learnrateStart * Math.pow(learnrateEnd / learnrateStart, progress);
+                double sigma = sigmaStart * Math.pow(sigmaEnd / sigmaStart, progress);
+                int bmu = search.search(cb, vector, -1);
+                expected.updateUnitsHexagonal(g.getX(bmu), g.getY(bmu), g.getZ(bmu), vector, learnrate, sigma);
+                samples++;
+            }
+        }
+        assertArrayEquals(expected.getCodebook().getWeights(), trained.getCodebook().getWeights(), 0);
+    }
+
+    @Test
+    public void testWinnerOnlyUpdate() {
+        HexagonalLayer layer = createLayer(5, 4);
+        HexagonalCodebook cb = layer.getCodebook();
+        double[] before = cb.copyWeights();
+        double[] input = new double[DIM];
+        layer.updateUnitsHexagonal(2, 1, 0, input, 0.5, 0);
+        int winner = cb.getGrid().getIndex(2, 1, 0);
+        double[] after = cb.getWeights();
+        for (int k = 0; k < after.length; k++) {
+            if (k / DIM == winner) {
+                assertEquals(before[k] / 2, after[k], 1E-12);
+            } else {
+                assertEquals(before[k], after[k], 0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroRadiusSchedule() throws SOMToolboxException {
+        createLayer(5, 4).trainBatch(new ArrayVectorStream(20, DIM, 1), 2, 0, 0, 8);
+    }
+
+    @Test
+    public void testParallelTraining() throws SOMToolboxException {
+        ArrayVectorStream input = new ArrayVectorStream(4000, DIM, 2);
+        HexagonalLayer.setNO_CPUS(1);
+        HexagonalLayer sequential = createLayer(12, 16);
+        double sequentialError = sequential.trainMiniBatch(input, 3, 0.3, 0.01, 6, 0.5, 1, 512);
+
+        // many threads on few rows per lock stripe, so that concurrent updates overlap
+        HexagonalLayer.setNO_CPUS(8);
+        HexagonalLayer parallel = createLayer(12, 16);
+        double parallelError = parallel.trainMiniBatch(input, 3, 0.3, 0.01, 6, 0.5, 4, 512);
+
+        double[] weights = parallel.getCodebook().getWeights();
+        for (double weight : weights) {
+            // the updates move the weights towards the inputs, so they stay within the unit cube
+            assertTrue(weight >= 0 && weight <= 1);
+        }
+        double error = meanQuantizationError(parallel.getCodebook(), input.getVectors());
+        // the result is as good as the one of the sequential algorithm
+        assertTrue(Math.abs(parallelError - sequentialError) < 0.1 * sequentialError);
+        double expectedError = meanQuantizationError(sequential.getCodebook(), input.getVectors());
+        assertTrue(Math.abs(error - expectedError) < 0.1 * expectedError);
+    }
+
+    private static double meanQuantizationError(HexagonalCodebook cb, double[][] vectors) {
+        double sum = 0;
+        for (double[] vector : vectors) {
+            sum += Math.sqrt(cb.getDistanceSq(cb.getNearest(vector), vector));
+        }
+        return sum / vectors.length;
+    }
+}
@@ -0,0 +1,146 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.ArrayVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
+
+/**
+ * Tests {@link HexagonalQualityEvaluator} against a brute-force evaluation.
+ *
+ * @version $Id: $
+ */
+public class HexagonalQualityEvaluatorTest {
+
+    private static final int DIM = 5;
+
+    @After
+    public void tearDown() {
+        HexagonalLayer.setNO_CPUS(Runtime.getRuntime().availableProcessors());
+    }
+
+    private static HexagonalCodebook createCodebook() {
+        HexagonalCodebook codebook = new HexagonalCodebook(new HexagonalGrid(9, 7, 1), DIM);
+        double[][] weights = ArrayVectorStream.createVectors(codebook.getNumberOfUnits(), DIM, 8);
+        for (int unit = 0; unit < weights.length; unit++) {
+            codebook.setWeightVector(unit, weights[unit]);
+        }
+        return codebook;
+    }
+
+    @Test
+    public void testAgainstBruteForce() throws SOMToolboxException {
+        HexagonalLayer.setNO_CPUS(3);
+        HexagonalCodebook codebook = createCodebook();
+        HexagonalGrid grid = codebook.getGrid();
+        ArrayVectorStream input = new ArrayVectorStream(500, DIM, 9);
+        HexagonalQualityEvaluator.Result result = new HexagonalQualityEvaluator().evaluate(codebook, input, 64);
+
+        int numUnits = codebook.getNumberOfUnits();
+        int[] hits = new int[numUnits];
+        double[] unitErrors = new double[numUnits];
+        int[] unitTopographicErrors = new int[numUnits];
+        double error = 0;
+        int topographicErrors = 0;
+        for (double[] vector : input.getVectors()) {
+            int best = -1;
+            int second = -1;
+            for (int unit = 0; unit < numUnits; unit++) {
+                double distance = codebook.getDistanceSq(unit, vector);
+                if (best < 0 || distance < codebook.getDistanceSq(best, vector)) {
+                    second = best;
+                    best = unit;
+                } else if (second < 0 || distance < codebook.getDistanceSq(second, vector)) {
+                    second = unit;
+                }
+            }
+            double distance = Math.sqrt(codebook.getDistanceSq(best, vector));
+            error += distance;
+            hits[best]++;
+            unitErrors[best] += distance;
+            if (!grid.areNeighbours(best, second)) {
+                topographicErrors++;
+                unitTopographicErrors[best]++;
+            }
+        }
+
+        assertEquals(500, result.getSamples());
+        assertEquals(error / 500, result.getQuantizationError(), 1E-9);
+        assertEquals(topographicErrors / 500.0, result.getTopographicError(), 0);
+        double unitMean = 0;
+        int hitUnits = 0;
+        for (int unit = 0; unit < numUnits; unit++) {
+            assertEquals(hits[unit], result.getHits(unit));
+            assertEquals(unitErrors[unit], result.getUnitQuantizationError(unit), 1E-9);
+            if (hits[unit] > 0) {
+                assertEquals(unitTopographicErrors[unit] / (double) hits[unit], result.getUnitTopographicError(unit),
+                        0);
+                unitMean += unitErrors[unit] / hits[unit];
+                hitUnits++;
+            } else {
+                assertTrue(Double.isNaN(result.getUnitMeanQuantizationError(unit)));
+            }
+        }
+        assertEquals(unitMean / hitUnits, result.getMeanUnitQuantizationError(), 1E-9);
+    }
+
+    @Test
+    public void testSampleIndependentOfThreads() throws SOMToolboxException {
+        HexagonalCodebook codebook = createCodebook();
+        ArrayVectorStream input = new ArrayVectorStream(2000, DIM, 10);
+        HexagonalQualityEvaluator evaluator = new HexagonalQualityEvaluator(0.25, 42);
+        HexagonalLayer.setNO_CPUS(1);
+        HexagonalQualityEvaluator.Result expected = evaluator.evaluate(codebook, input, 2000);
+        assertTrue(expected.getSamples() > 400 && expected.getSamples() < 600);
+        HexagonalLayer.setNO_CPUS(4);
+        HexagonalQualityEvaluator.Result result = evaluator.evaluate(codebook, input, 37);
+        assertEquals(expected.getSamples(), result.getSamples());
+        assertEquals(expected.getQuantizationError(), result.getQuantizationError(), 1E-9);
+        assertEquals(expected.getTopographicError(), result.getTopographicError(), 0);
+        for (int unit = 0; unit < codebook.getNumberOfUnits(); unit++) {
+            assertEquals(expected.getHits(unit), result.getHits(unit));
+        }
+    }
+
+    @Test
+    public void testQualityOfTraining() throws SOMToolboxException {
+        HexagonalLayer.setNO_CPUS(2);
+        HexagonalLayer layer = new HexagonalLayer(8, 6, L2Metric.class.getName(), DIM, false, false, 3, null);
+        ArrayVectorStream input = new ArrayVectorStream(300, DIM, 11);
+        HexagonalQualityEvaluator evaluator = new HexagonalQualityEvaluator(0.5, 7);
+        HexagonalQualityEvaluator.Result expected = evaluator.evaluate(layer.getCodebook().copy(), input, 50);
+        HexagonalTrainingMetrics metrics = new HexagonalTrainingMetrics();
+        layer.setTrainingMetrics(metrics);
+        layer.setQualityEvaluator(evaluator);
+        // the first epoch searches the initial codebook
+        layer.trainBatch(input, 1, 2, 2, 50);
+        assertEquals(expected.getTopographicError(), metrics.getTopographicError(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleRate() {
+        new HexagonalQualityEvaluator(0, 1);
+    }
+}
@@ -0,0 +1,104 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link HexagonalTrainingState#store(Properties)} and {@link HexagonalTrainingState#load(Properties)}
+ * restore the schedule and the progress of a training exactly.
+ *
+ * @version $Id: $
+ */
+public class HexagonalTrainingStateTest {
+
+    private static HexagonalTrainingState roundTrip(HexagonalTrainingState state) {
+        Properties properties = new Properties();
+        state.store(properties);
+        return HexagonalTrainingState.load(properties);
+    }
+
+    @Test
+    public void testBatchRoundTrip() {
+        HexagonalTrainingState state = HexagonalTrainingState.batch(10, 7.3, 1.0 / 3, 4096);
+        state.epoch = 4;
+        state.samples = 4 * 123456789012L;
+        state.previousBMUs = new int[] { 1, 2, 3 };
+        HexagonalTrainingState restored = roundTrip(state);
+        assertEquals(HexagonalTrainingState.Mode.batch, restored.getMode());
+        assertEquals(10, restored.getEpochs());
+        assertEquals(7.3, restored.getSigmaStart(), 0);
+        assertEquals(1.0 / 3, restored.getSigmaEnd(), 0);
+        assertEquals(4096, restored.getChunkSize());
+        assertEquals(4, restored.getEpoch());
+        assertEquals(4 * 123456789012L, restored.getSamples());
+        // the best-matching units are stored separately, see HexCheckpointWriter
+        assertNull(restored.getPreviousBMUs());
+    }
+
+    @Test
+    public void testMiniBatchRoundTrip() {
+        HexagonalTrainingState state = HexagonalTrainingState.miniBatch(3, 0.1, 0.001, 5, 0.5, 32, 1024);
+        state.epoch = 1;
+        state.position = 2048;
+        state.samples = 5120;
+        state.error = Math.PI * 1E5;
+        HexagonalTrainingState restored = roundTrip(state);
+        assertEquals(HexagonalTrainingState.Mode.minibatch, restored.getMode());
+        assertEquals(3, restored.getEpochs());
+        assertEquals(0.1, restored.getLearnrateStart(), 0);
+        assertEquals(0.001, restored.getLearnrateEnd(), 0);
+        assertEquals(5, restored.getSigmaStart(), 0);
+        assertEquals(0.5, restored.getSigmaEnd(), 0);
+        assertEquals(32, restored.getMiniBatchSize());
+        assertEquals(1024, restored.getChunkSize());
+        assertEquals(1, restored.getEpoch());
+        assertEquals(2048, restored.position);
+        assertEquals(5120, restored.getSamples());
+        assertEquals(Math.PI * 1E5, restored.error, 0);
+    }
+
+    @Test
+    public void testFinished() {
+        HexagonalTrainingState state = HexagonalTrainingState.batch(2, 3, 1, 64);
+        state.epoch = 2;
+        assertTrue(roundTrip(state).isFinished());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValue() {
+        Properties properties = new Properties();
+        HexagonalTrainingState.batch(2, 3, 1, 64).store(properties);
+        properties.remove("epoch");
+        HexagonalTrainingState.load(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedValue() {
+        Properties properties = new Properties();
+        HexagonalTrainingState.batch(2, 3, 1, 64).store(properties);
+        properties.setProperty("samples", "many");
+        HexagonalTrainingState.load(properties);
+    }
+}
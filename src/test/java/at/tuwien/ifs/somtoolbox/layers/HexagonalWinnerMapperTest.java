@@ -0,0 +1,138 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.ArrayVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric;
+
+/**
+ * Tests that {@link HexagonalWinnerMapper} finds the same winners as sorting the distances to all units.
+ *
+ * @version $Id: $
+ */
+public class HexagonalWinnerMapperTest {
+
+    private static final int DIM = 20;
+
+    private final int cpus = HexagonalLayer.getNO_CPUS();
+
+    @After
+    public void tearDown() {
+        HexagonalLayer.setNO_CPUS(cpus);
+    }
+
+    private static HexagonalCodebook createCodebook(int xSize, int ySize) {
+        return new HexagonalLayer(xSize, ySize, L2Metric.class.getName(), DIM, false, false, 3, null).getCodebook();
+    }
+
+    /** Returns all units ordered by their distance to the vector. */
+    private static Integer[] sortUnits(final HexagonalCodebook codebook, final double[] vector) {
+        Integer[] units = new Integer[codebook.getNumberOfUnits()];
+        for (int unit = 0; unit < units.length; unit++) {
+            units[unit] = unit;
+        }
+        Arrays.sort(units, new Comparator<Integer>() {
+            // @Override
+            public int compare(Integer unit1, Integer unit2) {
+                return Double.compare(codebook.getDistanceSq(unit1, vector), codebook.getDistanceSq(unit2, vector));
+            }
+        });
+        return units;
+    }
+
+    @Test
+    public void testTopK() {
+        HexagonalCodebook codebook = createCodebook(7, 6);
+        double[][] vectors = ArrayVectorStream.createVectors(50, DIM, 4);
+        // half of the values zero
+        for (int i = 0; i < vectors.length; i += 2) {
+            for (int k = 0; k < DIM; k += 2) {
+                vectors[i][k] = 0;
+            }
+        }
+        for (int k : new int[] { 1, 2, 5, 42 }) {
+            int[] units = new int[k + 1];
+            double[] distances = new double[k + 1];
+            HexagonalWinnerMapper mapper = new HexagonalWinnerMapper(codebook, k);
+            for (double[] vector : vectors) {
+                int count = mapper.findWinners(vector, units, distances, 1);
+                assertEquals(k, count);
+                Integer[] expected = sortUnits(codebook, vector);
+                for (int i = 0; i < k; i++) {
+                    assertEquals(expected[i].intValue(), units[1 + i]);
+                    assertEquals(codebook.getDistanceSq(expected[i], vector), distances[1 + i], 1E-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMoreWinnersThanUnits() {
+        HexagonalCodebook codebook = createCodebook(2, 2);
+        HexagonalWinnerMapper mapper = new HexagonalWinnerMapper(codebook, 10);
+        assertEquals(4, mapper.getK());
+        int[] units = new int[4];
+        double[] distances = new double[4];
+        assertEquals(4, mapper.findWinners(new double[DIM], units, distances, 0));
+        for (int i = 1; i < 4; i++) {
+            assertTrue(distances[i - 1] <= distances[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoWinners() {
+        new HexagonalWinnerMapper(createCodebook(2, 2), 0);
+    }
+
+    @Test
+    public void testMap() throws SOMToolboxException {
+        final HexagonalCodebook codebook = createCodebook(9, 8);
+        final ArrayVectorStream input = new ArrayVectorStream(333, DIM, 5);
+        final int k = 3;
+        HexagonalLayer.setNO_CPUS(4);
+        final long[] next = new long[1];
+        long mapped = new HexagonalWinnerMapper(codebook, k).map(input, 50, new HexagonalWinnerMapper.Listener() {
+            // @Override
+            public void winners(long position, String label, int[] units, double[] distances, int offset,
+                    int count) {
+                // in the order of the stream, with the Euclidean distances
+                assertEquals(next[0]++, position);
+                assertEquals("vector" + position, label);
+                assertEquals(k, count);
+                double[] vector = input.getVectors()[(int) position];
+                Integer[] expected = sortUnits(codebook, vector);
+                for (int i = 0; i < k; i++) {
+                    assertEquals(expected[i].intValue(), units[offset + i]);
+                    assertEquals(Math.sqrt(codebook.getDistanceSq(expected[i], vector)), distances[offset + i], 1E-9);
+                }
+            }
+        });
+        assertEquals(333, mapped);
+        assertEquals(333, next[0]);
+    }
+}
@@ -0,0 +1,118 @@
+package at.tuwien.ifs.somtoolbox.layers;
+/*
+ * Copyright 2004-2010 Information & Software Engineering Group (188/1)
+ *                     Institute of Software Technology and Interactive Systems
+ *                     Vienna University of Technology, Austria
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.ifs.tuwien.ac.at/dm/somtoolbox/license.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.data.ArrayVectorStream;
+
+/**
+ * Tests the approximate distances of {@link QuantizedCodebook}, and the single-precision {@link HexagonalCodebook}.
+ *
+ * @version $Id: $
+ */
+public class QuantizedCodebookTest {
+
+    private static final int DIM = 16;
+
+    private static HexagonalCodebook createCodebook(boolean singlePrecision) {
+        HexagonalCodebook codebook = new HexagonalCodebook(new HexagonalGrid(10, 8, 1), DIM, singlePrecision);
+        double[][] weights = ArrayVectorStream.createVectors(80, DIM, 3);
+        for (int unit = 0; unit < weights.length; unit++) {
+            for (int k = 0; k < DIM; k++) {
+                // a different range in each dimension
+                weights[unit][k] = (weights[unit][k] - 0.5) * (k + 1);
+            }
+            codebook.setWeightVector(unit, weights[unit]);
+        }
+        return codebook;
+    }
+
+    @Test
+    public void testApproximateDistances() {
+        HexagonalCodebook codebook = createCodebook(false);
+        QuantizedCodebook quantized = new QuantizedCodebook(codebook);
+        assertEquals(codebook.getNumberOfUnits() * DIM, quantized.getCodeSize());
+        double[] weights = codebook.copyWeights();
+        double[] steps = new double[DIM];
+        for (int k = 0; k < DIM; k++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int unit = 0; unit < codebook.getNumberOfUnits(); unit++) {
+                min = Math.min(min, weights[unit * DIM + k]);
+                max = Math.max(max, weights[unit * DIM + k]);
+            }
+            steps[k] = (max - min) / 255;
+        }
+        int count = codebook.getNumberOfUnits();
+        int[] units = new int[count];
+        double[] distances = new double[count];
+        double[] query = new double[DIM];
+        for (double[] vector : ArrayVectorStream.createVectors(30, DIM, 4)) {
+            assertEquals(count, quantized.findCandidates(vector, count, query, units, distances));
+            for (int i = 0; i < count; i++) {
+                assertTrue(i == 0 || distances[i - 1] <= distances[i]);
+                // each weight is off by at most half a step
+                double bound = 0;
+                for (int k = 0; k < DIM; k++) {
+                    bound += Math.abs(vector[k] - weights[units[i] * DIM + k]) * steps[k] + steps[k] * steps[k] / 4;
+                }
+                assertEquals(codebook.getDistanceSq(units[i], vector), distances[i], bound + 1E-9);
+            }
+        }
+    }
+
+    @Test
+    public void testCandidatesContainNearest() {
+        HexagonalCodebook codebook = createCodebook(false);
+        QuantizedCodebook quantized = new QuantizedCodebook(codebook);
+        int[] units = new int[8];
+        double[] distances = new double[8];
+        double[] query = new double[DIM];
+        for (double[] vector : ArrayVectorStream.createVectors(200, DIM, 5)) {
+            assertEquals(8, quantized.findCandidates(vector, 8, query, units, distances));
+            int nearest = codebook.getNearest(vector);
+            boolean found = false;
+            for (int unit : units) {
+                found |= unit == nearest;
+            }
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void testSinglePrecision() {
+        HexagonalCodebook doubles = createCodebook(false);
+        HexagonalCodebook floats = createCodebook(true);
+        assertTrue(floats.isSinglePrecision());
+        double[] weights = floats.copyWeights();
+        double[] expected = doubles.copyWeights();
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals((float) expected[i], weights[i], 0);
+        }
+        for (double[] vector : ArrayVectorStream.createVectors(50, DIM, 6)) {
+            for (int unit = 0; unit < doubles.getNumberOfUnits(); unit++) {
+                double distance = doubles.getDistanceSq(unit, vector);
+                assertEquals(distance, floats.getDistanceSq(unit, vector), distance * 1E-6);
+            }
+        }
+    }
+}
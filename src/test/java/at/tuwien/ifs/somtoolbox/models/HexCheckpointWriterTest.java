@@ -0,0 +1,164 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.ArrayVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalTrainingState;
+
+/**
+ * Tests that a checkpoint written by {@link HexCheckpointWriter} restores the weight vectors and the training state,
+ * and that the training resumed from it ends with the same weights as the uninterrupted training.
+ *
+ * @version $Id: $
+ */
+public class HexCheckpointWriterTest {
+
+    private static final String METRIC = "at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric";
+
+    private static final int DIM = 5;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("checkpoint", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    private static HexagonalLayer createLayer() {
+        HexagonalLayer layer = new HexagonalLayer(6, 5, METRIC, DIM, false, false, 7, null);
+        layer.setFlatWeightStore(true);
+        return layer;
+    }
+
+    private static double[] getWeights(HexagonalLayer layer) {
+        HexagonalCodebook codebook = layer.getCodebook();
+        double[] weights = new double[codebook.getNumberOfUnits() * DIM];
+        double[] vector = new double[DIM];
+        for (int unit = 0; unit < codebook.getNumberOfUnits(); unit++) {
+            codebook.getWeightVector(unit, vector);
+            System.arraycopy(vector, 0, weights, unit * DIM, DIM);
+        }
+        return weights;
+    }
+
+    /** Writes a checkpoint after the given epoch only. */
+    private static HexagonalTrainingState.CheckpointListener checkpointAfter(final int epoch,
+            final HexCheckpointWriter writer) {
+        return new HexagonalTrainingState.CheckpointListener() {
+            // @Override
+            public void checkpoint(HexagonalLayer layer, HexagonalTrainingState state) {
+                if (state.getEpoch() == epoch) {
+                    try {
+                        writer.write(state);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testRoundTrip() throws SOMToolboxException, IOException {
+        HexagonalLayer layer = createLayer();
+        File stateFile = HexCheckpointWriter.getStateFile(directory.getPath(), "test");
+        final HexagonalTrainingState.CheckpointListener writer = checkpointAfter(2, new HexCheckpointWriter(
+                new HexGrowingSOM(layer), stateFile, 0));
+        final double[][] checkpointWeights = new double[1][];
+        layer.setCheckpointListener(new HexagonalTrainingState.CheckpointListener() {
+            // @Override
+            public void checkpoint(HexagonalLayer trained, HexagonalTrainingState state) {
+                writer.checkpoint(trained, state);
+                if (state.getEpoch() == 2) {
+                    checkpointWeights[0] = getWeights(trained);
+                }
+            }
+        });
+        HexagonalTrainingState state = HexagonalTrainingState.batch(4, 3, 1, 64);
+        layer.train(new ArrayVectorStream(200, DIM, 1), state);
+        assertTrue(state.isFinished());
+
+        HexGrowingSOM restored = HexCheckpointWriter.restore(stateFile);
+        HexagonalLayer restoredLayer = (HexagonalLayer) restored.getLayer();
+        restoredLayer.setFlatWeightStore(true);
+        assertEquals(layer.getXSize(), restoredLayer.getXSize());
+        assertEquals(layer.getYSize(), restoredLayer.getYSize());
+        assertArrayEquals(checkpointWeights[0], getWeights(restoredLayer), 0);
+        HexagonalTrainingState restoredState = restored.getTrainingState();
+        assertEquals(state.getMode(), restoredState.getMode());
+        assertEquals(state.getEpochs(), restoredState.getEpochs());
+        assertEquals(state.getSigmaStart(), restoredState.getSigmaStart(), 0);
+        assertEquals(2, restoredState.getEpoch());
+        assertEquals(2 * 200, restoredState.getSamples());
+        assertEquals(200, restoredState.getPreviousBMUs().length);
+        assertFalse(restoredState.isFinished());
+    }
+
+    @Test
+    public void testOnlineRoundTrip() throws SOMToolboxException, IOException {
+        // the online training keeps the weights in the units
+        HexagonalLayer layer = new HexagonalLayer(4, 4, METRIC, DIM, false, false, 7, null);
+        assertTrue(layer.growAt(1, 2, 0));
+        HexagonalTrainingState state = HexagonalTrainingState.online(0.125);
+        state.finishPhase(1000);
+        File stateFile = HexCheckpointWriter.getStateFile(directory.getPath(), "test");
+        new HexCheckpointWriter(new HexGrowingSOM(layer), stateFile, 0).checkpoint(layer, state);
+
+        HexGrowingSOM restored = HexCheckpointWriter.restore(stateFile);
+        HexagonalLayer restoredLayer = (HexagonalLayer) restored.getLayer();
+        assertEquals(layer.getXSize(), restoredLayer.getXSize());
+        assertEquals(layer.getYSize(), restoredLayer.getYSize());
+        assertArrayEquals(getWeights(layer), getWeights(restoredLayer), 0);
+        HexagonalTrainingState restoredState = restored.getTrainingState();
+        assertEquals(HexagonalTrainingState.Mode.online, restoredState.getMode());
+        assertEquals(1, restoredState.getEpoch());
+        assertEquals(1000, restoredState.getSamples());
+        assertEquals(0.125, restoredState.getGrowthTarget(), 0);
+        assertFalse(restoredState.isFinished());
+    }
+
+    @Test
+    public void testResume() throws SOMToolboxException, IOException {
+        ArrayVectorStream input = new ArrayVectorStream(300, DIM, 2);
+        HexagonalLayer uninterrupted = createLayer();
+        uninterrupted.train(input, HexagonalTrainingState.batch(4, 3, 1, 64));
+
+        HexagonalLayer layer = createLayer();
+        File stateFile = HexCheckpointWriter.getStateFile(directory.getPath(), "test");
+        layer.setCheckpointListener(checkpointAfter(2, new HexCheckpointWriter(new HexGrowingSOM(layer), stateFile,
+                0)));
+        layer.train(input, HexagonalTrainingState.batch(4, 3, 1, 64));
+        assertArrayEquals(getWeights(uninterrupted), getWeights(layer), 0);
+
+        HexGrowingSOM restored = HexCheckpointWriter.restore(stateFile);
+        HexagonalLayer restoredLayer = (HexagonalLayer) restored.getLayer();
+        restoredLayer.setFlatWeightStore(true);
+        restoredLayer.train(input, restored.getTrainingState());
+        assertTrue(restored.getTrainingState().isFinished());
+        assertArrayEquals(getWeights(uninterrupted), getWeights(restoredLayer), 0);
+    }
+}
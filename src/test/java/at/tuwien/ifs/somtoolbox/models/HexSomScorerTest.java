@@ -0,0 +1,146 @@
+package at.tuwien.ifs.somtoolbox.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import at.tuwien.ifs.somtoolbox.SOMToolboxException;
+import at.tuwien.ifs.somtoolbox.data.ArrayVectorStream;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalCodebook;
+import at.tuwien.ifs.somtoolbox.layers.HexagonalLayer;
+
+/**
+ * Tests that {@link HexSomScorer} finds the closest units of a map, and that it is not affected by later training.
+ *
+ * @version $Id: $
+ */
+public class HexSomScorerTest {
+
+    private static final String METRIC = "at.tuwien.ifs.somtoolbox.layers.metrics.L2Metric";
+
+    private static final int DIM = 12;
+
+    private static HexagonalLayer createLayer() {
+        HexagonalLayer layer = new HexagonalLayer(9, 7, METRIC, DIM, false, false, 7, null);
+        layer.setFlatWeightStore(true);
+        return layer;
+    }
+
+    /** Returns the unit closest to the vector, and its squared distance, by comparing all units. */
+    private static int nearest(HexagonalCodebook codebook, double[] vector) {
+        int best = -1;
+        for (int unit = 0; unit < codebook.getNumberOfUnits(); unit++) {
+            if (best < 0 || codebook.getDistanceSq(unit, vector) < codebook.getDistanceSq(best, vector)) {
+                best = unit;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void testScores() {
+        HexagonalLayer layer = createLayer();
+        HexagonalCodebook codebook = layer.getCodebook();
+        HexSomScorer scorer = new HexSomScorer(new HexGrowingSOM(layer));
+        assertFalse(scorer.isQuantized());
+        assertEquals(DIM, scorer.getDim());
+        assertEquals(63, scorer.getNumberOfUnits());
+        int[] units = new int[5];
+        double[] distances = new double[5];
+        for (double[] vector : ArrayVectorStream.createVectors(100, DIM, 1)) {
+            int bmu = nearest(codebook, vector);
+            assertEquals(bmu, scorer.bmu(vector));
+            assertEquals(Math.sqrt(codebook.getDistanceSq(bmu, vector)), scorer.quantizationError(vector), 1E-12);
+            assertEquals(5, scorer.topK(vector, 5, units, distances));
+            assertEquals(bmu, units[0]);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(scorer.distance(units[i], vector), distances[i], 1E-12);
+                assertTrue(i == 0 || distances[i - 1] <= distances[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testIndependentOfTraining() throws SOMToolboxException {
+        HexagonalLayer layer = createLayer();
+        HexSomScorer scorer = new HexSomScorer(new HexGrowingSOM(layer));
+        double[][] vectors = ArrayVectorStream.createVectors(100, DIM, 2);
+        int[] before = new int[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            before[i] = scorer.bmu(vectors[i]);
+        }
+        layer.trainBatch(new ArrayVectorStream(vectors), 3, 3, 1, 64);
+        for (int i = 0; i < vectors.length; i++) {
+            assertEquals(before[i], scorer.bmu(vectors[i]));
+        }
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        final HexagonalLayer layer = createLayer();
+        final HexSomScorer scorer = new HexSomScorer(new HexGrowingSOM(layer));
+        final double[][] vectors = ArrayVectorStream.createVectors(2000, DIM, 3);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int t = 0; t < futures.length; t++) {
+                futures[t] = executor.submit(new Callable<Void>() {
+                    // @Override
+                    public Void call() {
+                        int[] units = new int[3];
+                        double[] distances = new double[3];
+                        for (double[] vector : vectors) {
+                            scorer.topK(vector, 3, units, distances);
+                            assertEquals(nearest(layer.getCodebook(), vector), units[0]);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuantized() {
+        HexagonalLayer layer = createLayer();
+        HexSomScorer exact = new HexSomScorer(new HexGrowingSOM(layer));
+        HexSomScorer quantized = new HexSomScorer(new HexGrowingSOM(layer), true);
+        assertTrue(quantized.isQuantized());
+        int[] units = new int[4];
+        double[] distances = new double[4];
+        int[] expectedUnits = new int[4];
+        double[] expectedDistances = new double[4];
+        for (double[] vector : ArrayVectorStream.createVectors(200, DIM, 4)) {
+            assertEquals(exact.bmu(vector), quantized.bmu(vector));
+            // the candidates are ranked by their exact distances
+            assertEquals(4, quantized.topK(vector, 4, units, distances));
+            exact.topK(vector, 4, expectedUnits, expectedDistances);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(expectedUnits[i], units[i]);
+                assertEquals(expectedDistances[i], distances[i], 1E-12);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongDimension() {
+        new HexSomScorer(new HexGrowingSOM(createLayer())).bmu(new double[DIM + 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoUnitsRequested() {
+        new HexSomScorer(new HexGrowingSOM(createLayer())).topK(new double[DIM], 0, new int[1], new double[1]);
+    }
+}
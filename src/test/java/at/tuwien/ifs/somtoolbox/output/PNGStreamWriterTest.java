@@ -0,0 +1,111 @@
+package at.tuwien.ifs.somtoolbox.output;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Tests that images written by {@link PNGStreamWriter} are read back unchanged by {@link ImageIO}.
+ *
+ * @version $Id: $
+ */
+public class PNGStreamWriterTest {
+
+    private static int[] createPixels(int width, int height) {
+        Random random = new Random(7);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        // fully opaque and fully transparent pixels, and the extremes of each channel
+        pixels[0] = 0xFF000000;
+        pixels[1] = 0x00FFFFFF;
+        pixels[2] = 0xFFFF0000;
+        pixels[3] = 0x80FF00FF;
+        return pixels;
+    }
+
+    private static void assertImage(int[] pixels, int width, int height, byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("pixel " + x + ", " + y, pixels[y * width + x], image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        int width = 37;
+        int height = 23;
+        int[] pixels = createPixels(width, height);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PNGStreamWriter writer = new PNGStreamWriter(out, width, height);
+        writer.writeRows(pixels, 0, width, height);
+        writer.finish();
+        assertImage(pixels, width, height, out.toByteArray());
+    }
+
+    @Test
+    public void testRowByRow() throws IOException {
+        int width = 5;
+        int height = 4;
+        int[] pixels = createPixels(width, height);
+        // the rows are taken from a wider buffer, two at a time
+        int scansize = width + 3;
+        int[] buffer = new int[2 * scansize + 1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PNGStreamWriter writer = new PNGStreamWriter(out, width, height);
+        for (int y = 0; y < height; y += 2) {
+            for (int r = 0; r < 2; r++) {
+                System.arraycopy(pixels, (y + r) * width, buffer, 1 + r * scansize, width);
+            }
+            writer.writeRows(buffer, 1, scansize, 2);
+        }
+        writer.finish();
+        assertImage(pixels, width, height, out.toByteArray());
+    }
+
+    @Test
+    public void testLargeImage() throws IOException {
+        // the compressed data spans several IDAT chunks
+        int width = 700;
+        int height = 400;
+        int[] pixels = createPixels(width, height);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PNGStreamWriter writer = new PNGStreamWriter(out, width, height);
+        for (int y = 0; y < height; y++) {
+            writer.writeRows(pixels, y * width, width, 1);
+        }
+        writer.finish();
+        assertImage(pixels, width, height, out.toByteArray());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTooManyRows() throws IOException {
+        PNGStreamWriter writer = new PNGStreamWriter(new ByteArrayOutputStream(), 2, 2);
+        writer.writeRows(new int[6], 0, 2, 3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingRows() throws IOException {
+        PNGStreamWriter writer = new PNGStreamWriter(new ByteArrayOutputStream(), 2, 2);
+        writer.writeRows(new int[2], 0, 2, 1);
+        writer.finish();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyImage() throws IOException {
+        new PNGStreamWriter(new ByteArrayOutputStream(), 0, 1);
+    }
+}